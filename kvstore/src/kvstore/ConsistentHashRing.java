@@ -0,0 +1,288 @@
+package kvstore;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * A consistent-hash ring of slave servers. Each slave owns vnodes tokens on
+ * the ring, and a key belongs to the slave owning the first token at or
+ * after the key's position, comparing as unsigned longs and wrapping around.
+ * Its further replicas are the next distinct slaves clockwise.
+ *
+ * With one vnode the ring is the classic layout: a slave's only token is its
+ * ID and a key sits at TPCMaster.hashTo64bit(key). With more, a slave's
+ * tokens and every key position are passed through a 64-bit finalizer,
+ * since the raw polynomial hash puts keys that share a prefix and length
+ * into a narrow arc that a single token would own no matter how many
+ * there are.
+ *
+ * Lookups read an immutable snapshot of the sorted tokens without locking.
+ * Adding or replacing a slave builds a new snapshot and publishes it.
+ *
+ * A key range is described by arcs: an arc (start, end] holds the
+ * positions after start up to and including end, clockwise, and an arc
+ * whose ends are equal is the whole ring.
+ */
+public class ConsistentHashRing {
+
+    private final int vnodes;
+    private volatile Ring ring = new Ring(new long[0], new TPCSlaveInfo[0],
+        new HashMap<Long, TPCSlaveInfo>());
+
+    /**
+     * @param vnodes number of tokens each slave owns, at least 1
+     */
+    public ConsistentHashRing(int vnodes) {
+        if(vnodes < 1)
+            throw new IllegalArgumentException("vnodes must be positive");
+        this.vnodes = vnodes;
+    }
+
+    /**
+     * @return number of tokens each slave owns
+     */
+    public int getVirtualNodes() {
+        return vnodes;
+    }
+
+    /**
+     * Add a slave, or replace the slave registered under the same ID.
+     *
+     * @param  slave the slave to add
+     * @param  maxSlaves refuse a new slave once this many are on the ring
+     * @return false if the slave is new and the ring is full
+     */
+    public synchronized boolean add(TPCSlaveInfo slave, int maxSlaves) {
+        Ring old = ring;
+        long id = slave.getSlaveID();
+        if(!old.slaves.containsKey(id) && old.slaves.size() >= maxSlaves)
+            return false;
+        Map<Long, TPCSlaveInfo> slaves = new HashMap<Long, TPCSlaveInfo>(old.slaves);
+        slaves.put(id, slave);
+
+        /* Keyed by flipped token; two slaves drawing one token: lower ID keeps it. */
+        TreeMap<Long, TPCSlaveInfo> points = new TreeMap<Long, TPCSlaveInfo>();
+        for(TPCSlaveInfo s : slaves.values()) {
+            for(int v = 0; v < vnodes; v++) {
+                long point = token(s.getSlaveID(), v) ^ Long.MIN_VALUE;
+                TPCSlaveInfo other = points.get(point);
+                if(other == null || s.getSlaveID() < other.getSlaveID())
+                    points.put(point, s);
+            }
+        }
+        long[] tokens = new long[points.size()];
+        TPCSlaveInfo[] owners = new TPCSlaveInfo[points.size()];
+        int i = 0;
+        for(Map.Entry<Long, TPCSlaveInfo> e : points.entrySet()) {
+            tokens[i] = e.getKey();
+            owners[i++] = e.getValue();
+        }
+        ring = new Ring(tokens, owners, slaves);
+        return true;
+    }
+
+    /**
+     * @return the ring token of a slave's vnode
+     */
+    long token(long slaveID, int vnode) {
+        if(vnodes == 1)
+            return slaveID;
+        return mix(slaveID + vnode * 0x9E3779B97F4A7C15L);
+    }
+
+    /**
+     * @return where a key sits on the ring
+     */
+    public long position(String key) {
+        return position(key, vnodes);
+    }
+
+    /**
+     * @return where a key sits on a ring whose slaves own vnodes tokens
+     */
+    public static long position(String key, int vnodes) {
+        long h = TPCMaster.hashTo64bit(key);
+        return (vnodes == 1) ? h : mix(h);
+    }
+
+    /**
+     * @return whether position lies on the arc (start, end]
+     */
+    public static boolean inArc(long position, long start, long end) {
+        if(start == end)
+            return true;
+        long offset = position - start;
+        return offset != 0 && TPCMaster.isLessThanEqualUnsigned(offset, end - start);
+    }
+
+    /* The MurmurHash3 64-bit finalizer. */
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * @return the slave owning a key, or null if the ring is empty
+     */
+    public TPCSlaveInfo primary(String key) {
+        Ring r = ring;
+        if(r.tokens.length == 0)
+            return null;
+        return r.owners[r.ceiling(position(key))];
+    }
+
+    /**
+     * @return the first n distinct slaves clockwise from a key, fewer if
+     *         the ring has fewer slaves
+     */
+    public TPCSlaveInfo[] replicas(String key, int n) {
+        Ring r = ring;
+        if(r.tokens.length == 0)
+            return new TPCSlaveInfo[0];
+        return r.walk(r.ceiling(position(key)), null, n);
+    }
+
+    /**
+     * The next slave clockwise after a slave's first token, or after its ID
+     * if it is not on the ring.
+     *
+     * @return the successor, or null if no other slave is on the ring
+     */
+    public TPCSlaveInfo successor(TPCSlaveInfo slave) {
+        Ring r = ring;
+        if(r.tokens.length == 0)
+            return null;
+        long id = slave.getSlaveID();
+        boolean member = r.slaves.containsKey(id);
+        long from = member ? token(id, 0) : id;
+        /* Strictly after from; from + 1 wraps to 0 at the top of the ring. */
+        TPCSlaveInfo skip = member ? r.slaves.get(id) : null;
+        TPCSlaveInfo[] next = r.walk(r.ceiling(from + 1), skip, 1);
+        return (next.length == 0) ? null : next[0];
+    }
+
+    /**
+     * @return a ring holding this ring's slaves and one more, or with the
+     *         slave registered under its ID replaced; this ring is unchanged
+     */
+    public ConsistentHashRing with(TPCSlaveInfo slave) {
+        ConsistentHashRing next = new ConsistentHashRing(vnodes);
+        next.ring = ring;
+        next.add(slave, Integer.MAX_VALUE);
+        return next;
+    }
+
+    /**
+     * @return the arcs of the keys that have a slave among their first n
+     *         replicas, in ring order with neighbours merged; empty if the
+     *         slave is not on the ring
+     */
+    public List<long[]> arcs(long slaveID, int n) {
+        Ring r = ring;
+        TPCSlaveInfo slave = r.slaves.get(slaveID);
+        List<long[]> arcs = new ArrayList<long[]>();
+        int count = r.tokens.length;
+        for(int i = 0; slave != null && i < count; i++) {
+            if(!Arrays.asList(r.walk(i, null, n)).contains(slave))
+                continue;
+            /* Token i holds the keys after the token before it. */
+            long start = r.tokens[(i + count - 1) % count] ^ Long.MIN_VALUE;
+            long end = r.tokens[i] ^ Long.MIN_VALUE;
+            long[] last = arcs.isEmpty() ? null : arcs.get(arcs.size() - 1);
+            if(last != null && last[1] == start) {
+                last[1] = end;
+            } else {
+                arcs.add(new long[] { start, end });
+            }
+        }
+        if(arcs.size() > 1 && arcs.get(arcs.size() - 1)[1] == arcs.get(0)[0]) {
+            /* The last arc runs into the first across the top of the ring. */
+            arcs.get(0)[0] = arcs.remove(arcs.size() - 1)[0];
+        }
+        return arcs;
+    }
+
+    /**
+     * @return the slave registered under an ID, or null
+     */
+    public TPCSlaveInfo get(long slaveID) {
+        return ring.slaves.get(slaveID);
+    }
+
+    /**
+     * @return number of slaves on the ring
+     */
+    public int size() {
+        return ring.slaves.size();
+    }
+
+    /**
+     * @return every slave on the ring
+     */
+    public List<TPCSlaveInfo> slaves() {
+        return new ArrayList<TPCSlaveInfo>(ring.slaves.values());
+    }
+
+    /**
+     * @return fraction of the ring's key space each slave owns as primary
+     */
+    public Map<Long, Double> ownership() {
+        Ring r = ring;
+        Map<Long, Double> share = new HashMap<Long, Double>();
+        int n = r.tokens.length;
+        for(int i = 0; i < n; i++) {
+            /* Token i owns the arc after the previous token, up to itself. */
+            long prev = (i == 0) ? r.tokens[n - 1] : r.tokens[i - 1];
+            double arc = (double) ((r.tokens[i] - prev) >>> 1) * 2 / 0x1p64;
+            if(n == 1)
+                arc = 1;
+            long id = r.owners[i].getSlaveID();
+            Double sofar = share.get(id);
+            share.put(id, ((sofar == null) ? 0 : sofar) + arc);
+        }
+        return share;
+    }
+
+    /**
+     * One immutable version of the ring. Tokens have their sign bit flipped
+     * so signed order is the unsigned order of the real tokens.
+     */
+    private static class Ring {
+        final long[] tokens;
+        final TPCSlaveInfo[] owners;
+        final Map<Long, TPCSlaveInfo> slaves;
+
+        Ring(long[] tokens, TPCSlaveInfo[] owners, Map<Long, TPCSlaveInfo> slaves) {
+            this.tokens = tokens;
+            this.owners = owners;
+            this.slaves = slaves;
+        }
+
+        /** @return index of the first token at or after position, wrapping */
+        int ceiling(long position) {
+            int i = Arrays.binarySearch(tokens, position ^ Long.MIN_VALUE);
+            if(i < 0)
+                i = -i - 1;
+            return (i == tokens.length) ? 0 : i;
+        }
+
+        /** @return up to n distinct owners from index start on, skipping one */
+        TPCSlaveInfo[] walk(int start, TPCSlaveInfo skip, int n) {
+            List<TPCSlaveInfo> found = new ArrayList<TPCSlaveInfo>(n);
+            for(int k = 0; k < tokens.length && found.size() < n; k++) {
+                TPCSlaveInfo s = owners[(start + k) % tokens.length];
+                if(s != skip && !found.contains(s))
+                    found.add(s);
+            }
+            return found.toArray(new TPCSlaveInfo[found.size()]);
+        }
+    }
+}
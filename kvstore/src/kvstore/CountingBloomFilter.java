@@ -0,0 +1,137 @@
+package kvstore;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free counting Bloom filter over String keys. Each key sets hashes
+ * of four-bit counters, sixteen to a long; a key is absent for certain if
+ * any of its counters is zero. Unlike a plain Bloom filter, keys can be
+ * removed again.
+ *
+ * A counter that reaches 15 sticks there, since its true count is no longer
+ * known; that only costs false positives. So does holding more keys than
+ * the filter was sized for. The filter never reports a key that was added
+ * and not removed as absent, provided each key is removed at most once per
+ * add.
+ */
+public class CountingBloomFilter {
+
+    private static final int COUNTER_BITS = 4;
+    private static final int COUNTERS_PER_WORD = 64 / COUNTER_BITS;
+    private static final long COUNTER_MAX = (1L << COUNTER_BITS) - 1;
+    private static final int MAX_HASHES = 16;
+
+    private final AtomicLongArray words;
+    private final long counters;
+    private final int hashes;
+
+    /**
+     * @param expectedKeys number of keys the filter is sized for
+     * @param falsePositiveRate chance, between 0 and 1, that an absent key
+     *        is reported as present once expectedKeys are held
+     */
+    public CountingBloomFilter(int expectedKeys, double falsePositiveRate) {
+        if(expectedKeys < 1)
+            throw new IllegalArgumentException("expectedKeys must be positive");
+        if(!(falsePositiveRate > 0 && falsePositiveRate < 1))
+            throw new IllegalArgumentException("falsePositiveRate must be in (0, 1)");
+        double ln2 = Math.log(2);
+        long m = (long) Math.ceil(-expectedKeys * Math.log(falsePositiveRate) / (ln2 * ln2));
+        long words = (Math.max(m, COUNTERS_PER_WORD) + COUNTERS_PER_WORD - 1) / COUNTERS_PER_WORD;
+        if(words > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("filter too large");
+        this.words = new AtomicLongArray((int) words);
+        this.counters = words * COUNTERS_PER_WORD;
+        int k = (int) Math.round((double) counters / expectedKeys * ln2);
+        this.hashes = Math.max(1, Math.min(MAX_HASHES, k));
+    }
+
+    /**
+     * @return number of hash functions each key is counted under
+     */
+    public int getHashes() {
+        return hashes;
+    }
+
+    /**
+     * @return number of counters in the filter
+     */
+    public long getCounters() {
+        return counters;
+    }
+
+    /**
+     * Count one more copy of key.
+     */
+    public void add(String key) {
+        long h = hash(key);
+        for(int i = 0; i < hashes; i++)
+            adjust(index(h, i), 1);
+    }
+
+    /**
+     * Count one less copy of key. Only call this for a key that was added.
+     */
+    public void remove(String key) {
+        long h = hash(key);
+        for(int i = 0; i < hashes; i++)
+            adjust(index(h, i), -1);
+    }
+
+    /**
+     * @return false if key is certainly not in the filter
+     */
+    public boolean mightContain(String key) {
+        long h = hash(key);
+        for(int i = 0; i < hashes; i++) {
+            long index = index(h, i);
+            if(counter(words.get(word(index)), index) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    private void adjust(long index, int delta) {
+        int word = word(index);
+        int shift = shift(index);
+        while(true) {
+            long w = words.get(word);
+            long c = (w >>> shift) & COUNTER_MAX;
+            if(c == COUNTER_MAX || (c == 0 && delta < 0))
+                return;
+            long next = w + ((long) delta << shift);
+            if(words.compareAndSet(word, w, next))
+                return;
+        }
+    }
+
+    /* Double hashing: the i-th counter is h1 + i * h2, h2 odd. */
+    private long index(long h, int i) {
+        long h1 = h >>> 32;
+        long h2 = (h & 0xffffffffL) | 1;
+        return (h1 + i * h2) % counters;
+    }
+
+    private static int word(long index) {
+        return (int) (index / COUNTERS_PER_WORD);
+    }
+
+    private static int shift(long index) {
+        return (int) (index % COUNTERS_PER_WORD) * COUNTER_BITS;
+    }
+
+    private static long counter(long word, long index) {
+        return (word >>> shift(index)) & COUNTER_MAX;
+    }
+
+    /* The MurmurHash3 64-bit finalizer over the repo's 64-bit string hash. */
+    private static long hash(String key) {
+        long h = TPCMaster.hashTo64bit(key);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,421 @@
+package kvstore;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Decides which entry a full KVCache set gives up for a new one. Each set
+ * has its own policy instance, which refers to entries by slot number.
+ *
+ * onInsert, onRemove and victim are only called with the set's lock held.
+ * onHit may also be called by lock-free readers at the same time, so
+ * implementations keep per-hit state in atomic or loss-tolerant form. Such
+ * a hit can arrive after its entry was removed, so it may land on an empty
+ * slot; victim must never return one.
+ */
+public interface EvictionPolicy {
+
+    /**
+     * Record a read of, or a replacement of the value in, an entry.
+     *
+     * @param slot slot of the entry
+     * @param hash hash code of the entry's key
+     */
+    public void onHit(int slot, int hash);
+
+    /**
+     * Record a new entry.
+     *
+     * @param slot slot the entry was stored in
+     * @param hash hash code of the entry's key
+     */
+    public void onInsert(int slot, int hash);
+
+    /**
+     * Forget an entry that was deleted or evicted.
+     *
+     * @param slot slot the entry was stored in
+     */
+    public void onRemove(int slot);
+
+    /**
+     * Choose the entry to evict to make room for a new key. The set is not
+     * empty, but need not be full when it is over its byte budget.
+     *
+     * @param  hash hash code of the key about to be inserted
+     * @return slot of the entry to evict
+     */
+    public int victim(int hash);
+
+    /**
+     * @param  slot slot of an entry
+     * @return whether the entry has been hit since it was inserted, or since
+     *         a CLOCK hand last passed it
+     */
+    public boolean isReferenced(int slot);
+
+    /**
+     * The policies a KVCache can be built with.
+     */
+    public enum Kind {
+        /** Second chance: a hand sweeps the slots, clearing reference bits. */
+        CLOCK {
+            @Override
+            public EvictionPolicy create(int capacity) {
+                return new Clock(capacity);
+            }
+        },
+        /** Exact least-recently-used. */
+        LRU {
+            @Override
+            public EvictionPolicy create(int capacity) {
+                return new Lru(capacity);
+            }
+        },
+        /** Least-frequently-used, with counts halved periodically. */
+        LFU {
+            @Override
+            public EvictionPolicy create(int capacity) {
+                return new Lfu(capacity);
+            }
+        },
+        /** LRU window in front of an LRU main area guarded by TinyLFU. */
+        TINY_LFU {
+            @Override
+            public EvictionPolicy create(int capacity) {
+                return new TinyLfu(capacity);
+            }
+        };
+
+        /**
+         * @param  capacity number of slots in the set
+         * @return a policy for one set
+         */
+        public abstract EvictionPolicy create(int capacity);
+    }
+
+    /**
+     * Keeps the reference bits every policy reports, and which slots hold
+     * entries.
+     */
+    public abstract static class Base implements EvictionPolicy {
+        protected final int capacity;
+        protected final boolean[] occupied;
+        private final AtomicLongArray referenced;
+
+        protected Base(int capacity) {
+            this.capacity = capacity;
+            occupied = new boolean[capacity];
+            referenced = new AtomicLongArray((capacity + 63) / 64);
+        }
+
+        @Override
+        public void onHit(int slot, int hash) {
+            if(occupied[slot])
+                reference(slot);
+        }
+
+        @Override
+        public void onInsert(int slot, int hash) {
+            occupied[slot] = true;
+            clearReference(slot);
+        }
+
+        @Override
+        public void onRemove(int slot) {
+            occupied[slot] = false;
+            clearReference(slot);
+        }
+
+        @Override
+        public boolean isReferenced(int slot) {
+            return (referenced.get(slot >>> 6) & (1L << slot)) != 0;
+        }
+
+        protected void reference(int slot) {
+            int word = slot >>> 6;
+            long bit = 1L << slot;
+            long bits;
+            while(((bits = referenced.get(word)) & bit) == 0
+                    && !referenced.compareAndSet(word, bits, bits | bit));
+        }
+
+        protected void clearReference(int slot) {
+            int word = slot >>> 6;
+            long bit = 1L << slot;
+            long bits;
+            while(((bits = referenced.get(word)) & bit) != 0
+                    && !referenced.compareAndSet(word, bits, bits & ~bit));
+        }
+    }
+
+    /**
+     * CLOCK. The hand passes over referenced entries, clearing their bits,
+     * and stops at the first unreferenced one.
+     */
+    public static class Clock extends Base {
+        private int hand = 0;
+
+        public Clock(int capacity) {
+            super(capacity);
+        }
+
+        @Override
+        public int victim(int hash) {
+            while(!occupied[hand] || isReferenced(hand)) {
+                clearReference(hand);
+                hand = (hand + 1) % capacity;
+            }
+            int victim = hand;
+            hand = (hand + 1) % capacity;
+            return victim;
+        }
+    }
+
+    /**
+     * LRU. Every hit stamps its slot from a per-set counter; the victim is
+     * the entry with the oldest stamp.
+     */
+    public static class Lru extends Base {
+        protected final AtomicLongArray stamps;
+        protected final AtomicLong clock = new AtomicLong();
+
+        public Lru(int capacity) {
+            super(capacity);
+            stamps = new AtomicLongArray(capacity);
+            for(int i = 0; i < capacity; i++)
+                stamps.set(i, Long.MAX_VALUE);
+        }
+
+        @Override
+        public void onHit(int slot, int hash) {
+            if(!occupied[slot])
+                return;
+            super.onHit(slot, hash);
+            stamps.set(slot, clock.incrementAndGet());
+        }
+
+        @Override
+        public void onInsert(int slot, int hash) {
+            super.onInsert(slot, hash);
+            stamps.set(slot, clock.incrementAndGet());
+        }
+
+        @Override
+        public void onRemove(int slot) {
+            super.onRemove(slot);
+            stamps.set(slot, Long.MAX_VALUE);
+        }
+
+        @Override
+        public int victim(int hash) {
+            return oldest(null, false);
+        }
+
+        /**
+         * @param  region if not null, only consider slots where
+         *         region[slot] == inRegion
+         * @return least recently used occupied slot, or -1 if none
+         *         qualifies
+         */
+        protected int oldest(boolean[] region, boolean inRegion) {
+            int victim = -1;
+            long min = Long.MAX_VALUE;
+            for(int i = 0; i < capacity; i++) {
+                /* A late lock-free hit may have stamped an empty slot. */
+                if(!occupied[i] || region != null && region[i] != inRegion)
+                    continue;
+                long stamp = stamps.get(i);
+                if(stamp < min) {
+                    min = stamp;
+                    victim = i;
+                }
+            }
+            return victim;
+        }
+    }
+
+    /**
+     * LFU with aging. Counts are halved once the set has seen AGING_PERIOD
+     * accesses per slot, so entries that were popular long ago drain out.
+     * Ties go to the entry inserted first.
+     */
+    public static class Lfu extends Base {
+        public static final int AGING_PERIOD = 16;
+
+        private final AtomicIntegerArray counts;
+        private final long[] inserted;
+        private long insertions = 0;
+        private final AtomicLong accesses = new AtomicLong();
+
+        public Lfu(int capacity) {
+            super(capacity);
+            counts = new AtomicIntegerArray(capacity);
+            inserted = new long[capacity];
+        }
+
+        @Override
+        public void onHit(int slot, int hash) {
+            if(!occupied[slot])
+                return;
+            super.onHit(slot, hash);
+            if(counts.get(slot) < Integer.MAX_VALUE)
+                counts.incrementAndGet(slot);
+            accesses.incrementAndGet();
+        }
+
+        @Override
+        public void onInsert(int slot, int hash) {
+            super.onInsert(slot, hash);
+            counts.set(slot, 1);
+            inserted[slot] = insertions++;
+            accesses.incrementAndGet();
+        }
+
+        @Override
+        public int victim(int hash) {
+            if(accesses.get() >= (long) AGING_PERIOD * capacity) {
+                accesses.set(0);
+                for(int i = 0; i < capacity; i++)
+                    counts.set(i, counts.get(i) >>> 1);
+            }
+            int victim = -1;
+            for(int i = 0; i < capacity; i++) {
+                if(!occupied[i])
+                    continue;
+                if(victim < 0) {
+                    victim = i;
+                    continue;
+                }
+                int c = counts.get(i);
+                int v = counts.get(victim);
+                if(c < v || c == v && inserted[i] < inserted[victim])
+                    victim = i;
+            }
+            return victim;
+        }
+    }
+
+    /**
+     * W-TinyLFU. New entries land in a small LRU window. When the set is
+     * full, the window's oldest entry competes with the main area's oldest
+     * entry, and whichever key a frequency sketch has seen less often is
+     * evicted. One-hit wonders therefore churn through the window without
+     * displacing the main area. The main area is plain LRU rather than
+     * segmented LRU.
+     */
+    public static class TinyLfu extends Lru {
+        private final int windowSize;
+        private final boolean[] window;
+        private final int[] hashes;
+        private final FrequencySketch sketch;
+        private int windowCount = 0;
+
+        public TinyLfu(int capacity) {
+            super(capacity);
+            windowSize = Math.max(1, capacity / 100);
+            window = new boolean[capacity];
+            hashes = new int[capacity];
+            sketch = new FrequencySketch(capacity);
+        }
+
+        @Override
+        public void onHit(int slot, int hash) {
+            if(!occupied[slot])
+                return;
+            super.onHit(slot, hash);
+            sketch.increment(hash);
+        }
+
+        @Override
+        public void onInsert(int slot, int hash) {
+            super.onInsert(slot, hash);
+            sketch.increment(hash);
+            hashes[slot] = hash;
+            window[slot] = true;
+            /* While the set fills up, the window spills into the main area. */
+            if(++windowCount > windowSize) {
+                window[oldest(window, true)] = false;
+                windowCount--;
+            }
+        }
+
+        @Override
+        public void onRemove(int slot) {
+            super.onRemove(slot);
+            if(window[slot]) {
+                window[slot] = false;
+                windowCount--;
+            }
+        }
+
+        @Override
+        public int victim(int hash) {
+            int mainVictim = oldest(window, false);
+            if(windowCount < windowSize && mainVictim >= 0)
+                return mainVictim;
+            int candidate = oldest(window, true);
+            if(mainVictim < 0)
+                return candidate;
+            if(sketch.frequency(hashes[candidate]) > sketch.frequency(hashes[mainVictim])) {
+                window[candidate] = false;
+                windowCount--;
+                return mainVictim;
+            }
+            return candidate;
+        }
+    }
+
+    /**
+     * Count-min sketch of 4-bit counters, four rows deep. Once it has
+     * counted ten times as many accesses as the set has slots, every counter
+     * is halved so the estimates follow recent popularity.
+     */
+    public static class FrequencySketch {
+        private static final int[] SEEDS = {
+            0x9E3779B9, 0x85EBCA6B, 0xC2B2AE35, 0x27D4EB2F
+        };
+
+        private final byte[][] rows = new byte[SEEDS.length][];
+        private final int mask;
+        private final int samplePeriod;
+        private int samples = 0;
+
+        public FrequencySketch(int capacity) {
+            int width = Integer.highestOneBit(Math.max(16, capacity * 4) - 1) << 1;
+            for(int i = 0; i < rows.length; i++)
+                rows[i] = new byte[width];
+            mask = width - 1;
+            samplePeriod = Math.max(10, capacity * 10);
+        }
+
+        /* Updates may race with each other; a lost increment is harmless. */
+        public void increment(int hash) {
+            for(int i = 0; i < rows.length; i++) {
+                int index = index(hash, i);
+                if(rows[i][index] < 15)
+                    rows[i][index]++;
+            }
+            if(++samples >= samplePeriod) {
+                samples = 0;
+                for(byte[] row : rows) {
+                    for(int j = 0; j < row.length; j++)
+                        row[j] >>>= 1;
+                }
+            }
+        }
+
+        public int frequency(int hash) {
+            int min = 15;
+            for(int i = 0; i < rows.length; i++)
+                min = Math.min(min, rows[i][index(hash, i)]);
+            return min;
+        }
+
+        private int index(int hash, int row) {
+            int h = hash * SEEDS[row];
+            return (h ^ (h >>> 16)) & mask;
+        }
+    }
+}
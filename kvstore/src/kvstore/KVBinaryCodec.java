@@ -0,0 +1,267 @@
+package kvstore;
+
+import static kvstore.KVConstants.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact binary framing for KVMessages. A frame is laid out as
+ *
+ *   MAGIC | varint bodyLength | type | key | value | message
+ *
+ * where type is a single byte and each of key, value and message is a varint
+ * holding (length + 1), or 0 for a null field, followed by that many bytes of
+ * UTF-8. A batch or multi request continues with a varint count of
+ * operations, each laid out as type | key | value | message in the same way.
+ * Frames are self-delimiting, so unlike the XML format the sender never has
+ * to half-close the socket to mark the end of a message.
+ *
+ * MAGIC can never start an XML document, which lets a receiver tell the two
+ * formats apart by looking at the first byte of a message.
+ */
+public class KVBinaryCodec {
+
+    public static final int MAGIC = 0xB7;
+
+    /** Upper bound on a frame body; a maximal putreq needs well under this. */
+    public static final int MAX_FRAME_SIZE = 4 * 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /* Wire type codes are the index into this array plus one. Only append. */
+    private static final String[] TYPES = {
+        GET_REQ, PUT_REQ, DEL_REQ, RESP, READY, REGISTER, ABORT, COMMIT, ACK,
+        BATCH_REQ, SCAN_REQ, RANGE_REQ, MULTI_REQ
+    };
+
+    /**
+     * Encode a KVMessage into a complete frame, including the magic byte.
+     *
+     * @param  msg KVMessage to encode
+     * @return the encoded frame
+     * @throws KVException with ERROR_INVALID_FORMAT if the type is unknown
+     */
+    public static byte[] encode(KVMessage msg) throws KVException {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(typeCode(msg.getMsgType()));
+        writeField(body, msg.getKey());
+        writeField(body, msg.getValue());
+        writeField(body, msg.getMessage());
+        if(hasOps(msg.getMsgType())) {
+            List<KVMessage> ops = msg.getBatch();
+            writeVarint(body, ops.size());
+            for(KVMessage op : ops) {
+                body.write(typeCode(op.getMsgType()));
+                writeField(body, op.getKey());
+                writeField(body, op.getValue());
+                writeField(body, op.getMessage());
+            }
+        }
+        if(body.size() > MAX_FRAME_SIZE)
+            throw new KVException(ERROR_INVALID_FORMAT);
+
+        ByteArrayOutputStream frame = new ByteArrayOutputStream(body.size() + 6);
+        frame.write(MAGIC);
+        writeVarint(frame, body.size());
+        byte[] bytes = body.toByteArray();
+        frame.write(bytes, 0, bytes.length);
+        return frame.toByteArray();
+    }
+
+    /**
+     * Decode a frame from an InputStream whose magic byte has already been
+     * consumed by the caller. Reads exactly one frame and nothing past it,
+     * even if the frame turns out to be invalid.
+     *
+     * @param  is InputStream positioned just after the magic byte
+     * @return the decoded KVMessage
+     * @throws KVException with ERROR_PARSER if the frame is malformed, or
+     *         ERROR_INVALID_FORMAT if it lacks fields its type requires
+     * @throws IOException if the stream fails or ends mid-frame
+     */
+    public static KVMessage decode(InputStream is) throws KVException, IOException {
+        int length = readVarint(is);
+        if(length < 1 || length > MAX_FRAME_SIZE)
+            throw new KVException(ERROR_PARSER);
+        byte[] body = new byte[length];
+        int off = 0;
+        while(off < length) {
+            int n = is.read(body, off, length - off);
+            if(n < 0)
+                throw new EOFException();
+            off += n;
+        }
+        return decodeBody(body, 0, length);
+    }
+
+    /**
+     * Decode a frame from a buffer filled by non-blocking reads. The buffer
+     * must be in read mode and positioned at a magic byte. If a complete frame
+     * is available it is consumed and returned; otherwise the buffer is left
+     * untouched and null is returned so the caller can read more. A
+     * complete frame that lacks fields its type requires is still consumed.
+     *
+     * @param  buf ByteBuffer positioned at the start of a frame
+     * @return the decoded KVMessage, or null if the frame is incomplete
+     * @throws KVException with ERROR_PARSER if the frame is malformed, or
+     *         ERROR_INVALID_FORMAT if it lacks fields its type requires
+     */
+    public static KVMessage decode(ByteBuffer buf) throws KVException {
+        int pos = buf.position();
+        int limit = buf.limit();
+        if(pos >= limit)
+            return null;
+        if((buf.get(pos++) & 0xff) != MAGIC)
+            throw new KVException(ERROR_PARSER);
+        int length = 0;
+        for(int shift = 0; ; shift += 7) {
+            if(shift > 28)
+                throw new KVException(ERROR_PARSER);
+            if(pos >= limit)
+                return null;
+            int b = buf.get(pos++) & 0xff;
+            length |= (b & 0x7f) << shift;
+            if((b & 0x80) == 0)
+                break;
+        }
+        if(length < 1 || length > MAX_FRAME_SIZE)
+            throw new KVException(ERROR_PARSER);
+        if(limit - pos < length)
+            return null;
+        /* Consume the frame first, so an invalid one is skipped. */
+        buf.position(pos + length);
+        if(buf.hasArray())
+            return decodeBody(buf.array(), buf.arrayOffset() + pos, length);
+        byte[] body = new byte[length];
+        ByteBuffer dup = buf.duplicate();
+        dup.position(pos);
+        dup.get(body);
+        return decodeBody(body, 0, length);
+    }
+
+    /**
+     * Decode the body of a frame (everything after the length prefix).
+     *
+     * @param  buf array holding the body
+     * @param  off offset of the first body byte
+     * @param  len number of body bytes
+     * @return the decoded KVMessage
+     * @throws KVException with ERROR_PARSER if the body is malformed, or
+     *         ERROR_INVALID_FORMAT if it lacks fields its type requires
+     */
+    static KVMessage decodeBody(byte[] buf, int off, int len) throws KVException {
+        int[] pos = { off };
+        int end = off + len;
+        String type = typeName(buf[pos[0]++] & 0xff);
+        String key = readField(buf, pos, end);
+        String value = readField(buf, pos, end);
+        String message = readField(buf, pos, end);
+        List<KVMessage> ops = null;
+        if(hasOps(type)) {
+            int count = readVarint(buf, pos, end);
+            /* Each operation takes at least four bytes; a five-byte varint may be negative. */
+            if(count < 0 || count > (end - pos[0]) / 4)
+                throw new KVException(ERROR_PARSER);
+            ops = new ArrayList<KVMessage>(count);
+            for(int i = 0; i < count; i++) {
+                if(pos[0] >= end)
+                    throw new KVException(ERROR_PARSER);
+                String opType = typeName(buf[pos[0]++] & 0xff);
+                ops.add(new KVMessage(opType, readField(buf, pos, end),
+                    readField(buf, pos, end), readField(buf, pos, end)));
+            }
+        }
+        if(pos[0] != end)
+            throw new KVException(ERROR_PARSER);
+        KVMessage msg = new KVMessage(type, key, value, message);
+        msg.setBatch(ops);
+        msg.setFormat(KVMessage.Format.BINARY);
+        /* Check what a sender must have checked, so handlers need not. */
+        msg.validate();
+        return msg;
+    }
+
+    private static boolean hasOps(String type) {
+        return BATCH_REQ.equals(type) || MULTI_REQ.equals(type);
+    }
+
+    private static int typeCode(String type) throws KVException {
+        if(type != null) {
+            for(int i = 0; i < TYPES.length; i++) {
+                if(TYPES[i].equals(type))
+                    return i + 1;
+            }
+        }
+        throw new KVException(ERROR_INVALID_FORMAT);
+    }
+
+    private static String typeName(int code) throws KVException {
+        if(code < 1 || code > TYPES.length)
+            throw new KVException(ERROR_PARSER);
+        return TYPES[code - 1];
+    }
+
+    static void writeField(ByteArrayOutputStream os, String field) {
+        if(field == null) {
+            writeVarint(os, 0);
+            return;
+        }
+        byte[] bytes = field.getBytes(UTF8);
+        writeVarint(os, bytes.length + 1);
+        os.write(bytes, 0, bytes.length);
+    }
+
+    static String readField(byte[] buf, int[] pos, int end) throws KVException {
+        int length = readVarint(buf, pos, end);
+        if(length == 0)
+            return null;
+        length--;
+        if(length < 0 || length > end - pos[0])
+            throw new KVException(ERROR_PARSER);
+        String field = new String(buf, pos[0], length, UTF8);
+        pos[0] += length;
+        return field;
+    }
+
+    static void writeVarint(ByteArrayOutputStream os, int value) {
+        while((value & ~0x7f) != 0) {
+            os.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        os.write(value);
+    }
+
+    static int readVarint(byte[] buf, int[] pos, int end) throws KVException {
+        int value = 0;
+        int shift = 0;
+        while(true) {
+            if(pos[0] >= end || shift > 28)
+                throw new KVException(ERROR_PARSER);
+            int b = buf[pos[0]++] & 0xff;
+            value |= (b & 0x7f) << shift;
+            if((b & 0x80) == 0)
+                return value;
+            shift += 7;
+        }
+    }
+
+    static int readVarint(InputStream is) throws KVException, IOException {
+        int value = 0;
+        for(int shift = 0; shift <= 28; shift += 7) {
+            int b = is.read();
+            if(b < 0)
+                throw new EOFException();
+            value |= (b & 0x7f) << shift;
+            if((b & 0x80) == 0)
+                return value;
+        }
+        throw new KVException(ERROR_PARSER);
+    }
+}
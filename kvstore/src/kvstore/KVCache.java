@@ -2,6 +2,9 @@ package kvstore;
 
 import java.io.ByteArrayOutputStream;
 import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 import javax.xml.bind.JAXBContext;
@@ -20,13 +23,37 @@ import kvstore.xml.ObjectFactory;
  * Each set has a maximum number of elements (MAX_ELEMS_PER_SET).
  * If a set is full and another entry is added, an entry is dropped based on
  * the eviction policy.
+ *
+ * Each set is a group of parallel arrays (hashes, keys and values) indexed
+ * by slot, plus an EvictionPolicy that picks which slot a full set gives
+ * up. The policy is chosen when the cache is built; the default is CLOCK.
+ * A small open-addressing table from hash to slot finds a key without
+ * walking the slots. Nothing is allocated per operation; JAXB objects are
+ * only built by toXML().
+ *
+ * A cache may also be given a byte budget. Each set then gets an equal share
+ * of it and evicts until the estimated retained size of its keys and values
+ * fits, and entries larger than a threshold are not cached at all.
+ *
+ * Besides the locked get/put/del, a cache hit can be served without any lock
+ * through getOptimistic. Writers bump a per-set sequence number before and
+ * after every change, and a lock-free reader only trusts what it read if the
+ * sequence number was even and unchanged around its reads (a seqlock).
  */
 public class KVCache implements KeyValueInterface {
 
-    protected KVCacheType sets;
+    /* Give up on a lock-free read after this many collisions with writers. */
+    private static final int OPTIMISTIC_RETRIES = 4;
+
+    /* Estimated bytes of an entry besides its characters: two Strings with
+     * their char arrays, and the slot's references. */
+    public static final int ENTRY_OVERHEAD = 96;
+
+    protected CacheSet[] sets;
     protected ReentrantLock[] setLocks;
 
     protected int numSets, maxElemsPerSet;
+    protected long maxBytesPerSet, maxEntryBytes;
 
     /**
      * Constructs a second-chance-replacement cache.
@@ -34,21 +61,52 @@ public class KVCache implements KeyValueInterface {
      * @param numSets the number of sets this cache will have
      * @param maxElemsPerSet the size of each set
      */
-    @SuppressWarnings("unchecked")
     public KVCache(int numSets, int maxElemsPerSet) {
+        this(numSets, maxElemsPerSet, EvictionPolicy.Kind.CLOCK);
+    }
+
+    /**
+     * Constructs a cache that evicts with the given policy.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxElemsPerSet the size of each set
+     * @param policy eviction policy for every set
+     */
+    public KVCache(int numSets, int maxElemsPerSet, EvictionPolicy.Kind policy) {
+        this(numSets, maxElemsPerSet, policy, 0, 0);
+    }
+
+    /**
+     * Constructs a cache limited by bytes as well as entries per set.
+     *
+     * @param numSets the number of sets this cache will have
+     * @param maxElemsPerSet the size of each set
+     * @param policy eviction policy for every set
+     * @param maxBytes estimated bytes the whole cache may retain, split
+     *        evenly between sets, or 0 for no limit
+     * @param maxEntryBytes estimated size above which an entry is not
+     *        cached, or 0 for no limit besides a set's share of maxBytes
+     */
+    public KVCache(int numSets, int maxElemsPerSet, EvictionPolicy.Kind policy,
+            long maxBytes, long maxEntryBytes) {
         this.numSets = numSets;
         this.maxElemsPerSet = maxElemsPerSet;
+        this.maxBytesPerSet = (maxBytes > 0) ? maxBytes / numSets : Long.MAX_VALUE;
+        this.maxEntryBytes = Math.min(maxBytesPerSet,
+            (maxEntryBytes > 0) ? maxEntryBytes : Long.MAX_VALUE);
 
-        sets = new KVCacheType();
+        sets = new CacheSet[numSets];
         setLocks = new ReentrantLock[numSets];
         for(int i = 0; i < numSets; i++) {
             setLocks[i] = new ReentrantLock();
-            KVSetType set = new KVSetType();
-            set.setId((new Integer(i)).toString());
-            sets.getSet().add(set);
+            sets[i] = new CacheSet(maxElemsPerSet, policy.create(maxElemsPerSet));
         }
     }
 
+    private CacheSet setFor(int hash) {
+        return sets[(hash & 0x7fffffff) % numSets];
+    }
+
     /**
      * Retrieves an entry from the cache.
      * Assumes access to the corresponding set has already been locked by the
@@ -60,11 +118,39 @@ public class KVCache implements KeyValueInterface {
      */
     @Override
     public String get(String key) {
-        int id = (key.hashCode() & 0x7fffffff) % numSets;
-        for(KVCacheEntry entry : sets.getSet().get(id).getCacheEntry()) {
-            if(entry.getKey().equals(key)) {
-                entry.setIsReferenced("true");
-                return entry.getValue();
+        int hash = key.hashCode();
+        CacheSet set = setFor(hash);
+        int slot = set.find(hash, key);
+        if(slot < 0)
+            return null;
+        set.policy.onHit(slot, hash);
+        return set.values.get(slot);
+    }
+
+    /**
+     * Retrieves an entry from the cache without taking the set's lock. The
+     * result reflects the most recent put or del on the key's set that has
+     * completed its cache update. Marks the entry referenced, like get. May
+     * report a miss while a writer is busy with the set, in which case the
+     * caller should fall back to the locked get.
+     *
+     * @param  key the key whose associated value is to be returned.
+     * @return the value associated to this key or null if no value is
+     *         associated with this key in the cache
+     */
+    public String getOptimistic(String key) {
+        int hash = key.hashCode();
+        CacheSet set = setFor(hash);
+        for(int attempt = 0; attempt < OPTIMISTIC_RETRIES; attempt++) {
+            int seq = set.seq;
+            if((seq & 1) != 0)
+                continue;
+            int slot = set.find(hash, key);
+            String value = (slot < 0) ? null : set.values.get(slot);
+            if(set.seq == seq) {
+                if(slot >= 0)
+                    set.policy.onHit(slot, hash);
+                return value;
             }
         }
         return null;
@@ -73,43 +159,45 @@ public class KVCache implements KeyValueInterface {
     /**
      * Adds an entry to this cache.
      * If an entry with the specified key already exists in the cache, it is
-     * replaced by the new entry. When an entry is replaced, its reference bit
-     * will be set to True. If the set is full, an entry is removed from
-     * the cache based on the eviction policy. If the set is not full, the entry
-     * will be inserted behind all existing entries. For this policy, we suggest
-     * using a LinkedList over an array to keep track of entries in a set since
-     * deleting an entry in an array will leave a gap in the array, likely not
-     * at the end. More details and explanations in the spec. Assumes access to
-     * the corresponding set has already been locked by the caller of this
-     * method.
+     * replaced by the new entry, which counts as a hit on it. If the set is
+     * full, or the new entry would take it over its byte budget, entries are
+     * removed from the cache based on the eviction policy. An entry over the
+     * size threshold is not cached, and any older entry for its key is
+     * dropped. Assumes access to the
+     * corresponding set has already been locked by the caller of this method.
      *
      * @param key the key with which the specified value is to be associated
      * @param value a value to be associated with the specified key
      */
     @Override
     public void put(String key, String value) {
-        int id = (key.hashCode() & 0x7fffffff) % numSets;
-        KVCacheEntry firstUnref = null;
-        for(KVCacheEntry entry : sets.getSet().get(id).getCacheEntry()) {
-            if(entry.getKey().equals(key)) {
-                entry.setValue(value);
-                return ;
-            } else if(firstUnref == null && !entry.getIsReferenced().equals("true")) {
-                firstUnref = entry;
+        int hash = key.hashCode();
+        CacheSet set = setFor(hash);
+        int slot = set.find(hash, key);
+        long bytes = entrySize(key, value);
+        set.seq++;
+        try {
+            if(bytes > maxEntryBytes) {
+                if(slot >= 0)
+                    set.remove(slot);
+                return;
             }
+            if(slot >= 0) {
+                if(set.bytes - set.sizes[slot] + bytes <= maxBytesPerSet) {
+                    set.values.set(slot, value);
+                    set.bytes += bytes - set.sizes[slot];
+                    set.sizes[slot] = bytes;
+                    set.policy.onHit(slot, hash);
+                    return;
+                }
+                set.remove(slot);
+            }
+            while(set.size == set.capacity || set.bytes + bytes > maxBytesPerSet)
+                set.remove(set.policy.victim(hash));
+            set.insert(hash, key, value, bytes);
+        } finally {
+            set.seq++;
         }
-
-        KVCacheEntry newEntry = new KVCacheEntry();
-        newEntry.setKey(key);
-        newEntry.setValue(value);
-        newEntry.setIsReferenced("false");
-        if(sets.getSet().get(id).getCacheEntry().size() >= maxElemsPerSet) {
-            if(firstUnref == null)
-                sets.getSet().get(id).getCacheEntry().remove(0);
-            else
-                sets.getSet().get(id).getCacheEntry().remove(firstUnref);
-        }
-        sets.getSet().get(id).getCacheEntry().add(newEntry);
     }
 
     /**
@@ -121,14 +209,40 @@ public class KVCache implements KeyValueInterface {
      */
     @Override
     public void del(String key) {
-        int id = (key.hashCode() & 0x7fffffff) % numSets;
-        for(KVCacheEntry entry : sets.getSet().get(id).getCacheEntry()) {
-            if(entry.getKey().equals(key)) {
-                sets.getSet().get(id).getCacheEntry().remove(entry);
-                //entry.setIsReferenced("false");
-                return ;
-            }
+        remove(key);
+    }
+
+    /**
+     * Same as get; a cache miss is never an error.
+     * Assumes access to the corresponding set has already been locked by the
+     * caller of this method.
+     */
+    @Override
+    public String lookup(String key) {
+        return get(key);
+    }
+
+    /**
+     * Same as del, reporting whether the key was cached.
+     * Assumes access to the corresponding set has already been locked by the
+     * caller of this method.
+     *
+     * @return false if the key was not in the cache
+     */
+    @Override
+    public boolean remove(String key) {
+        int hash = key.hashCode();
+        CacheSet set = setFor(hash);
+        int slot = set.find(hash, key);
+        if(slot < 0)
+            return false;
+        set.seq++;
+        try {
+            set.remove(slot);
+        } finally {
+            set.seq++;
         }
+        return true;
     }
 
     /**
@@ -144,13 +258,193 @@ public class KVCache implements KeyValueInterface {
     	return setLocks[(key.hashCode() & 0x7fffffff) % numSets];
     }
     
+    /**
+     * Estimate the memory an entry retains.
+     *
+     * @param  key the entry's key
+     * @param  value the entry's value
+     * @return estimated bytes
+     */
+    public static long entrySize(String key, String value) {
+        return ENTRY_OVERHEAD + 2L * (key.length() + value.length());
+    }
+
+    /**
+     * @return estimated bytes retained by every entry in the cache
+     */
+    public long getRetainedBytes() {
+        long bytes = 0;
+        for(CacheSet set : sets)
+            bytes += set.bytes;
+        return bytes;
+    }
+
+    /**
+     * @return number of entries in the cache
+     */
+    public long getEntryCount() {
+        long entries = 0;
+        for(CacheSet set : sets)
+            entries += set.size;
+        return entries;
+    }
+
     /**
      * Get the size of a given set in the cache.
      * @param cacheSet Which set.
      * @return Size of the cache set.
      */
     int getCacheSetSize(int cacheSet) {
-        return sets.getSet().get(cacheSet).getCacheEntry().size();
+        return sets[cacheSet].size;
+    }
+
+    /**
+     * One cache set. Only the set's lock holder writes; keys and values are
+     * read through volatile array accesses so a seqlock reader's reads cannot
+     * drift outside its two reads of seq. A stale hash or index entry can
+     * only cause a miss, since a slot is only trusted if its key matches.
+     */
+    protected static class CacheSet {
+        final int capacity;
+        final EvictionPolicy policy;
+        final int[] hashes;
+        final AtomicReferenceArray<String> keys;
+        final AtomicReferenceArray<String> values;
+        /* Unused slots, popped from the end. */
+        final int[] free;
+        int freeCount;
+        /* Insertion number of each slot's entry, to list entries in order. */
+        final long[] inserted;
+        long insertions = 0;
+        /* Estimated size of each slot's entry, and their total. */
+        final long[] sizes;
+        volatile long bytes = 0;
+        volatile int size = 0;
+        /* Odd while a writer is changing the set. */
+        volatile int seq = 0;
+        /*
+         * Slot + 1 of each entry at or after the position its hash picks,
+         * linear probing, 0 where empty; at most half full.
+         */
+        final int[] index;
+        final int indexBits;
+
+        CacheSet(int capacity, EvictionPolicy policy) {
+            this.capacity = capacity;
+            this.policy = policy;
+            hashes = new int[capacity];
+            keys = new AtomicReferenceArray<String>(capacity);
+            values = new AtomicReferenceArray<String>(capacity);
+            inserted = new long[capacity];
+            sizes = new long[capacity];
+            free = new int[capacity];
+            for(int i = 0; i < capacity; i++)
+                free[i] = capacity - 1 - i;
+            freeCount = capacity;
+            int bits = 1;
+            while((1 << bits) < 2 * capacity)
+                bits++;
+            indexBits = bits;
+            index = new int[1 << bits];
+        }
+
+        /* Keys of a set share their low hash bits, so use the high ones. */
+        private int home(int hash) {
+            return (hash * 0x9E3779B9) >>> (32 - indexBits);
+        }
+
+        int find(int hash, String key) {
+            int mask = index.length - 1;
+            int pos = home(hash);
+            /* Bounded, since a lock-free reader may see the table mid-change. */
+            for(int probes = 0; probes < index.length; probes++) {
+                int entry = index[pos];
+                if(entry == 0)
+                    return -1;
+                int slot = entry - 1;
+                if(hashes[slot] == hash) {
+                    String k = keys.get(slot);
+                    if(k != null && k.equals(key))
+                        return slot;
+                }
+                pos = (pos + 1) & mask;
+            }
+            return -1;
+        }
+
+        void insert(int hash, String key, String value, long entryBytes) {
+            int slot = free[--freeCount];
+            hashes[slot] = hash;
+            values.set(slot, value);
+            keys.set(slot, key);
+            int mask = index.length - 1;
+            int pos = home(hash);
+            while(index[pos] != 0)
+                pos = (pos + 1) & mask;
+            index[pos] = slot + 1;
+            inserted[slot] = insertions++;
+            sizes[slot] = entryBytes;
+            bytes += entryBytes;
+            size++;
+            policy.onInsert(slot, hash);
+        }
+
+        void remove(int slot) {
+            unindex(slot);
+            keys.set(slot, null);
+            values.set(slot, null);
+            hashes[slot] = 0;
+            bytes -= sizes[slot];
+            sizes[slot] = 0;
+            free[freeCount++] = slot;
+            size--;
+            policy.onRemove(slot);
+        }
+
+        /*
+         * Drop slot from the index, moving back any later entry of its probe
+         * run that may fill the gap, so no probe stops short of its entry.
+         */
+        private void unindex(int slot) {
+            int mask = index.length - 1;
+            int gap = home(hashes[slot]);
+            while(index[gap] != slot + 1)
+                gap = (gap + 1) & mask;
+            int pos = gap;
+            while(true) {
+                pos = (pos + 1) & mask;
+                int entry = index[pos];
+                if(entry == 0)
+                    break;
+                int home = home(hashes[entry - 1]);
+                boolean between = (gap <= pos)
+                    ? (gap < home && home <= pos) : (gap < home || home <= pos);
+                if(!between) {
+                    index[gap] = entry;
+                    gap = pos;
+                }
+            }
+            index[gap] = 0;
+        }
+
+        /**
+         * @return occupied slots, oldest entry first
+         */
+        Integer[] slotsInOrder() {
+            Integer[] slots = new Integer[size];
+            int n = 0;
+            for(int i = 0; i < capacity; i++) {
+                if(keys.get(i) != null)
+                    slots[n++] = i;
+            }
+            Arrays.sort(slots, new Comparator<Integer>() {
+                @Override
+                public int compare(Integer a, Integer b) {
+                    return Long.compare(inserted[a], inserted[b]);
+                }
+            });
+            return slots;
+        }
     }
 
     private void marshalTo(OutputStream os) throws JAXBException {
@@ -165,14 +459,15 @@ public class KVCache implements KeyValueInterface {
     private JAXBElement<KVCacheType> getXMLRoot() throws JAXBException {
         ObjectFactory factory = new ObjectFactory();
         KVCacheType xmlCache = factory.createKVCacheType();
-        for(KVSetType set : sets.getSet()) {
+        for(int id = 0; id < numSets; id++) {
+            CacheSet set = sets[id];
             KVSetType xmlSet = factory.createKVSetType();
-            xmlSet.setId(set.getId());
-            for(KVCacheEntry entry : set.getCacheEntry()) {
+            xmlSet.setId(Integer.toString(id));
+            for(int slot : set.slotsInOrder()) {
                 KVCacheEntry xmlEntry = factory.createKVCacheEntry();
-                xmlEntry.setKey(entry.getKey());
-                xmlEntry.setValue(entry.getValue());
-                xmlEntry.setIsReferenced(entry.getIsReferenced());
+                xmlEntry.setKey(set.keys.get(slot));
+                xmlEntry.setValue(set.values.get(slot));
+                xmlEntry.setIsReferenced(set.policy.isReferenced(slot) ? "true" : "false");
                 xmlSet.getCacheEntry().add(xmlEntry);
             }
             xmlCache.getSet().add(xmlSet);
@@ -1,18 +1,32 @@
 package kvstore;
 
+import static kvstore.KVConstants.BATCH_REQ;
 import static kvstore.KVConstants.DEL_REQ;
 import static kvstore.KVConstants.ERROR_COULD_NOT_CONNECT;
 import static kvstore.KVConstants.ERROR_COULD_NOT_CREATE_SOCKET;
 import static kvstore.KVConstants.ERROR_INVALID_KEY;
 import static kvstore.KVConstants.ERROR_INVALID_VALUE;
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+import static kvstore.KVConstants.ERROR_PARSER;
+import static kvstore.KVConstants.ERROR_REPLY_TOO_LARGE;
 import static kvstore.KVConstants.GET_REQ;
+import static kvstore.KVConstants.MULTI_REQ;
 import static kvstore.KVConstants.PUT_REQ;
+import static kvstore.KVConstants.RANGE_REQ;
 import static kvstore.KVConstants.RESP;
 import static kvstore.KVConstants.SUCCESS;
 
 import java.io.IOException;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 import java.net.InetAddress;
 
@@ -24,6 +38,12 @@ public class KVClient implements KeyValueInterface {
     public String server;
     public int port;
 
+    /*
+     * Format used for requests. Starts out binary and drops back to XML for
+     * good if the server turns out to only understand XML.
+     */
+    private volatile KVMessage.Format format = KVMessage.Format.BINARY;
+
     /**
      * Constructs a KVClient connected to a server.
      *
@@ -35,6 +55,20 @@ public class KVClient implements KeyValueInterface {
         this.port = port;
     }
 
+    /**
+     * Choose the wire format for subsequent requests. Binary is the default;
+     * XML forces the original format for servers known to predate framing.
+     *
+     * @param format wire format to send requests in
+     */
+    public void setFormat(KVMessage.Format format) {
+        this.format = format;
+    }
+
+    public KVMessage.Format getFormat() {
+        return format;
+    }
+
     /**
      * Creates a socket connected to the server to make a request.
      *
@@ -55,6 +89,35 @@ public class KVClient implements KeyValueInterface {
         return ret;
     }
 
+    /**
+     * Opens a persistent connection to the server for issuing many requests
+     * over one socket, optionally pipelined. The connection always uses the
+     * binary format. The caller must close it when done.
+     *
+     * @return KVConnection to the server
+     * @throws KVException if unable to create or connect socket
+     */
+    public KVConnection openConnection() throws KVException {
+        return openConnection(KVConnection.DEFAULT_WINDOW);
+    }
+
+    /**
+     * Opens a persistent connection with a given pipelining window.
+     *
+     * @param  window maximum number of unanswered requests on the wire
+     * @return KVConnection to the server
+     * @throws KVException if unable to create or connect socket
+     */
+    public KVConnection openConnection(int window) throws KVException {
+        Socket s = connectHost();
+        try {
+            return new KVConnection(s, window);
+        } catch(KVException e) {
+            closeHost(s);
+            throw e;
+        }
+    }
+
     /**
      * Closes a socket.
      * Best effort, ignores error since the response has already been received.
@@ -67,6 +130,39 @@ public class KVClient implements KeyValueInterface {
         } catch (Exception e) {}
     }
 
+    /**
+     * Sends a request on a fresh connection and returns the server's response.
+     * A server that only speaks XML answers a binary frame with an XML parser
+     * error without acting on it, in which case the request is resent as XML
+     * and this client keeps using XML from then on.
+     *
+     * @param  msg request to send
+     * @return response from the server
+     * @throws KVException if the request could not be sent or answered
+     */
+    private KVMessage request(KVMessage msg) throws KVException {
+        KVMessage.Format sent = format;
+        KVMessage resp = exchange(msg, sent);
+        if(sent == KVMessage.Format.BINARY
+                && resp.getFormat() == KVMessage.Format.XML
+                && ERROR_PARSER.equals(resp.getMessage())) {
+            format = KVMessage.Format.XML;
+            resp = exchange(msg, KVMessage.Format.XML);
+        }
+        return resp;
+    }
+
+    private KVMessage exchange(KVMessage msg, KVMessage.Format sendFormat)
+            throws KVException {
+        Socket s = connectHost();
+        try {
+            msg.sendMessage(s, sendFormat);
+            return new KVMessage(s);
+        } finally {
+            closeHost(s);
+        }
+    }
+
     /**
      * Issues a PUT request to the server.
      *
@@ -75,13 +171,11 @@ public class KVClient implements KeyValueInterface {
      */
     @Override
     public void put(String key, String value) throws KVException {
-        Socket s = connectHost();
         KVMessage msg = new KVMessage(PUT_REQ);
         msg.setKey(key);
         msg.setValue(value);
-        msg.sendMessage(s);
-        msg = new KVMessage(s);
-        if(!msg.getMessage().equals(SUCCESS))
+        msg = request(msg);
+        if(!SUCCESS.equals(msg.getMessage()))
             throw new KVException(msg.getMessage());
     }
 
@@ -94,13 +188,29 @@ public class KVClient implements KeyValueInterface {
      */
     @Override
     public String get(String key) throws KVException {
-        Socket s = connectHost();
+        String value = lookup(key);
+        if(value == null)
+            throw new KVException(ERROR_NO_SUCH_KEY);
+        return value;
+    }
+
+    /**
+     * Issues a GET request to the server.
+     *
+     * @param  key String to get value for in server
+     * @return String value associated with key, or null if there is none
+     * @throws KVException if the request was not successful in any other way
+     */
+    @Override
+    public String lookup(String key) throws KVException {
         KVMessage msg = new KVMessage(GET_REQ);
         msg.setKey(key);
-        msg.sendMessage(s);
-        msg = new KVMessage(s);
-        if(msg.getKey() == null || !msg.getKey().equals(key))
+        msg = request(msg);
+        if(msg.getKey() == null || !msg.getKey().equals(key)) {
+            if(ERROR_NO_SUCH_KEY.equals(msg.getMessage()))
+                return null;
             throw new KVException(msg.getMessage());
+        }
         return msg.getValue();
     }
 
@@ -112,14 +222,202 @@ public class KVClient implements KeyValueInterface {
      */
     @Override
     public void del(String key) throws KVException {
-        Socket s = connectHost();
+        if(!remove(key))
+            throw new KVException(ERROR_NO_SUCH_KEY);
+    }
+
+    /**
+     * Issues a DEL request to the server.
+     *
+     * @param  key String to delete value for in server
+     * @return false if the server had no such key
+     * @throws KVException if the request was not successful in any other way
+     */
+    @Override
+    public boolean remove(String key) throws KVException {
         KVMessage msg = new KVMessage(DEL_REQ);
         msg.setKey(key);
-        msg.sendMessage(s);
-        msg = new KVMessage(s);
-        if(!msg.getMessage().equals(SUCCESS))
+        msg = request(msg);
+        if(ERROR_NO_SUCH_KEY.equals(msg.getMessage()))
+            return false;
+        if(!SUCCESS.equals(msg.getMessage()))
             throw new KVException(msg.getMessage());
+        return true;
     }
 
+    /**
+     * Issues a batch of puts and dels to a master, which applies all of them
+     * in order or none of them. Batches are always sent in the binary
+     * format, which is the only one that can carry them.
+     *
+     * @param  ops PUT_REQ and DEL_REQ messages with their keys and values
+     * @throws KVException if the batch was not applied
+     */
+    public void batch(List<KVMessage> ops) throws KVException {
+        KVMessage msg = new KVMessage(BATCH_REQ);
+        msg.setBatch(ops);
+        msg = exchange(msg, KVMessage.Format.BINARY);
+        if(!SUCCESS.equals(msg.getMessage()))
+            throw new KVException(msg.getMessage());
+    }
+
+    /**
+     * Issues GET requests for several keys in one message, so they cost one
+     * round trip rather than one each. Keys whose values did not fit in the
+     * reply are asked for again until every key is answered. Multi requests
+     * are always sent in the binary format.
+     *
+     * @param  keys keys to get
+     * @return the keys the server holds and their values; missing keys are
+     *         left out
+     * @throws KVException if a request was not answered, or with the error
+     *         for a key that could not be read
+     */
+    public Map<String, String> getAll(Collection<String> keys) throws KVException {
+        Map<String, String> found = new HashMap<String, String>();
+        Collection<String> wanted = new LinkedHashSet<String>(keys);
+        while(!wanted.isEmpty()) {
+            List<KVMessage> ops = new ArrayList<KVMessage>(wanted.size());
+            for(String key : wanted)
+                ops.add(new KVMessage(GET_REQ, key, null, null));
+            List<String> again = new ArrayList<String>();
+            for(KVMessage result : multi(ops)) {
+                if(result.getMessage() == null)
+                    found.put(result.getKey(), result.getValue());
+                else if(ERROR_REPLY_TOO_LARGE.equals(result.getMessage()))
+                    again.add(result.getKey());
+                else if(!ERROR_NO_SUCH_KEY.equals(result.getMessage()))
+                    throw new KVException(result.getMessage());
+            }
+            wanted = again;
+        }
+        return found;
+    }
+
+    /**
+     * Issues PUT requests for several keys in one message. Each key is put
+     * or fails on its own, so a failed key leaves the others written.
+     * Multi requests are always sent in the binary format.
+     *
+     * @param  entries keys and values to put
+     * @return the keys that could not be put and why; empty if all were
+     * @throws KVException with ERROR_INVALID_FORMAT if the entries do not
+     *         fit in one frame, or if the request was not answered, in which
+     *         case any of the keys may or may not have been put
+     */
+    public Map<String, KVException> putAll(Map<String, String> entries) throws KVException {
+        Map<String, KVException> failed = new HashMap<String, KVException>();
+        if(entries.isEmpty())
+            return failed;
+        List<KVMessage> ops = new ArrayList<KVMessage>(entries.size());
+        for(Map.Entry<String, String> e : entries.entrySet())
+            ops.add(new KVMessage(PUT_REQ, e.getKey(), e.getValue(), null));
+        for(KVMessage result : multi(ops)) {
+            if(!SUCCESS.equals(result.getMessage()))
+                failed.put(result.getKey(), new KVException(result.getMessage()));
+        }
+        return failed;
+    }
+
+    /**
+     * Sends a MULTI_REQ and returns its results, one per operation.
+     */
+    private List<KVMessage> multi(List<KVMessage> ops) throws KVException {
+        KVMessage msg = new KVMessage(MULTI_REQ);
+        msg.setBatch(ops);
+        msg = exchange(msg, KVMessage.Format.BINARY);
+        if(!MULTI_REQ.equals(msg.getMsgType()) || msg.getBatch() == null
+                || msg.getBatch().size() != ops.size())
+            throw new KVException(msg.getMessage() == null ? ERROR_PARSER : msg.getMessage());
+        return msg.getBatch();
+    }
+
+    /**
+     * Starts a scan of the keys from startKey up to endKey, in the order of
+     * String.compareTo. Nothing is sent until the first page is asked for,
+     * and only one page is held at a time, so a scan of any length needs
+     * little memory. Scans are always sent in the binary format.
+     *
+     * @param  startKey first key of the range, or null to start at the
+     *         smallest key
+     * @param  endKey key just past the range, or null for no end
+     * @param  limit most keys to return over the whole scan
+     * @return a Scan to read the pages from
+     */
+    public Scan scan(String startKey, String endKey, int limit) {
+        if(limit < 1)
+            throw new IllegalArgumentException("limit must be positive");
+        return new Scan(startKey, endKey, limit);
+    }
+
+    /**
+     * Starts a scan of every key that starts with prefix, as scan does.
+     *
+     * @param  prefix start shared by every key returned; "" matches all
+     * @return a Scan to read the pages from
+     */
+    public Scan prefix(String prefix) {
+        return new Scan(prefix, KVServer.prefixEnd(prefix), Integer.MAX_VALUE);
+    }
+
+    /**
+     * The pages of a range, fetched one request at a time. The server
+     * keeps no state between pages; each request carries the cursor the
+     * previous page returned, so writes between pages are seen or not
+     * depending on where they fall. A Scan is not thread-safe.
+     */
+    public class Scan {
+
+        private String cursor;
+        private final String endKey;
+        private int remaining;
+        private boolean done;
+
+        private Scan(String startKey, String endKey, int limit) {
+            this.cursor = startKey;
+            this.endKey = endKey;
+            this.remaining = limit;
+        }
+
+        /**
+         * @return false once the range is exhausted or the limit met
+         */
+        public boolean hasNext() {
+            return !done;
+        }
+
+        /**
+         * Fetches the next page of the range. The last page may be empty.
+         *
+         * @return the keys in the page and their values
+         * @throws KVException if the server could not answer; the same
+         *         page can be asked for again
+         * @throws IllegalStateException if there are no more pages
+         */
+        public SortedMap<String, String> next() throws KVException {
+            if(done)
+                throw new IllegalStateException("scan is finished");
+            KVMessage msg = new KVMessage(RANGE_REQ, cursor, endKey,
+                Integer.toString(remaining));
+            msg = exchange(msg, KVMessage.Format.BINARY);
+            if(!BATCH_REQ.equals(msg.getMsgType()))
+                throw new KVException(msg.getMessage());
+            SortedMap<String, String> page = new TreeMap<String, String>();
+            for(KVMessage op : msg.getBatch())
+                page.put(op.getKey(), op.getValue());
+            remaining -= page.size();
+            cursor = msg.getKey();
+            done = (cursor == null || remaining <= 0);
+            return page;
+        }
+
+        /**
+         * @return the start key of the next page, which a new scan can be
+         *         started from to resume this one, or null if finished
+         */
+        public String getCursor() {
+            return done ? null : cursor;
+        }
+    }
 
 }
@@ -0,0 +1,258 @@
+package kvstore;
+
+import static kvstore.KVConstants.DEL_REQ;
+import static kvstore.KVConstants.ERROR_COULD_NOT_RECEIVE_DATA;
+import static kvstore.KVConstants.ERROR_COULD_NOT_SEND_DATA;
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+import static kvstore.KVConstants.ERROR_PARSER;
+import static kvstore.KVConstants.GET_REQ;
+import static kvstore.KVConstants.PUT_REQ;
+import static kvstore.KVConstants.SUCCESS;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A long-lived connection to a key-value server that speaks the binary
+ * format. Requests can be issued one at a time through the KeyValueInterface
+ * methods, or pipelined with send()/receive(), in which case many requests
+ * are written before their responses are read. Responses always come back in
+ * the order the requests were sent.
+ *
+ * At most window requests are left unanswered on the wire. Once the window is
+ * full, send() reads a response and holds it for receive() before writing more,
+ * so neither side can deadlock on full socket buffers.
+ *
+ * A KVConnection is not thread-safe; give each thread its own.
+ */
+public class KVConnection implements KeyValueInterface, Closeable {
+
+    public static final int DEFAULT_WINDOW = 128;
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private final Socket sock;
+    private final InputStream in;
+    private final OutputStream out;
+    private final int window;
+
+    /* Requests written whose responses have not been read off the wire. */
+    private int inFlight = 0;
+    /* Responses read off the wire that receive() has not handed out yet. */
+    private final LinkedList<KVMessage> received = new LinkedList<KVMessage>();
+
+    /**
+     * Wraps an already connected socket.
+     *
+     * @param  sock Socket connected to the server
+     * @param  window maximum number of unanswered requests on the wire
+     * @throws KVException with ERROR_COULD_NOT_CONNECT if the socket's streams
+     *         cannot be opened
+     */
+    public KVConnection(Socket sock, int window) throws KVException {
+        if(window < 1)
+            throw new IllegalArgumentException("window must be positive");
+        this.sock = sock;
+        this.window = window;
+        try {
+            sock.setTcpNoDelay(true);
+            in = new BufferedInputStream(sock.getInputStream(), BUFFER_SIZE);
+            out = new BufferedOutputStream(sock.getOutputStream(), BUFFER_SIZE);
+        } catch(IOException e) {
+            throw new KVException(KVConstants.ERROR_COULD_NOT_CONNECT);
+        }
+    }
+
+    /**
+     * Queues a request. It is buffered locally and only guaranteed to be on
+     * the wire once receive() or flush() is called.
+     *
+     * @param  request KVMessage to send
+     * @throws KVException if the request is malformed or cannot be sent, or if
+     *         the window is full and the oldest response cannot be read
+     */
+    public void send(KVMessage request) throws KVException {
+        byte[] frame = request.toBinary();
+        if(inFlight >= window)
+            received.add(readResponse());
+        try {
+            out.write(frame);
+        } catch(IOException e) {
+            throw new KVException(ERROR_COULD_NOT_SEND_DATA);
+        }
+        inFlight++;
+    }
+
+    /**
+     * Returns the response to the oldest request not yet received.
+     *
+     * @return the response KVMessage
+     * @throws KVException if no request is outstanding or the response cannot
+     *         be read
+     */
+    public KVMessage receive() throws KVException {
+        if(!received.isEmpty())
+            return received.removeFirst();
+        if(inFlight == 0)
+            throw new IllegalStateException("no outstanding requests");
+        return readResponse();
+    }
+
+    /**
+     * Sends a batch of requests back to back and collects their responses.
+     *
+     * @param  requests KVMessages to send, in order
+     * @return responses in the same order as requests
+     * @throws KVException if any request cannot be sent or answered
+     */
+    public List<KVMessage> pipeline(List<KVMessage> requests) throws KVException {
+        List<KVMessage> responses = new ArrayList<KVMessage>(requests.size());
+        for(KVMessage request : requests) {
+            send(request);
+            while(!received.isEmpty())
+                responses.add(received.removeFirst());
+        }
+        while(responses.size() < requests.size())
+            responses.add(receive());
+        return responses;
+    }
+
+    /**
+     * Pushes any buffered requests onto the wire.
+     *
+     * @throws KVException with ERROR_COULD_NOT_SEND_DATA
+     */
+    public void flush() throws KVException {
+        try {
+            out.flush();
+        } catch(IOException e) {
+            throw new KVException(ERROR_COULD_NOT_SEND_DATA);
+        }
+    }
+
+    /**
+     * @return number of requests sent whose responses have not been received
+     */
+    public int getOutstanding() {
+        return inFlight + received.size();
+    }
+
+    private KVMessage readResponse() throws KVException {
+        flush();
+        KVMessage resp = KVMessage.readNext(in);
+        if(resp == null)
+            throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+        if(resp.getFormat() != KVMessage.Format.BINARY) {
+            /* The server only answers in XML when it refuses the connection. */
+            String error = resp.getMessage();
+            throw new KVException((error != null) ? error : ERROR_PARSER);
+        }
+        inFlight--;
+        return resp;
+    }
+
+    private KVMessage call(KVMessage request) throws KVException {
+        if(getOutstanding() > 0)
+            throw new IllegalStateException("pipelined requests still outstanding");
+        send(request);
+        return receive();
+    }
+
+    /**
+     * Issues a PUT request and waits for its response.
+     *
+     * @throws KVException if the request was not successful in any way
+     */
+    @Override
+    public void put(String key, String value) throws KVException {
+        KVMessage msg = new KVMessage(PUT_REQ);
+        msg.setKey(key);
+        msg.setValue(value);
+        msg = call(msg);
+        if(!SUCCESS.equals(msg.getMessage()))
+            throw new KVException(msg.getMessage());
+    }
+
+    /**
+     * Issues a GET request and waits for its response.
+     *
+     * @throws KVException if the request was not successful in any way
+     */
+    @Override
+    public String get(String key) throws KVException {
+        String value = lookup(key);
+        if(value == null)
+            throw new KVException(ERROR_NO_SUCH_KEY);
+        return value;
+    }
+
+    /**
+     * Issues a GET request and waits for its response.
+     *
+     * @return the value, or null if there is none
+     * @throws KVException if the request was not successful in any other way
+     */
+    @Override
+    public String lookup(String key) throws KVException {
+        KVMessage msg = new KVMessage(GET_REQ);
+        msg.setKey(key);
+        msg = call(msg);
+        if(msg.getKey() == null || !msg.getKey().equals(key)) {
+            if(ERROR_NO_SUCH_KEY.equals(msg.getMessage()))
+                return null;
+            throw new KVException(msg.getMessage());
+        }
+        return msg.getValue();
+    }
+
+    /**
+     * Issues a DEL request and waits for its response.
+     *
+     * @throws KVException if the request was not successful in any way
+     */
+    @Override
+    public void del(String key) throws KVException {
+        if(!remove(key))
+            throw new KVException(ERROR_NO_SUCH_KEY);
+    }
+
+    /**
+     * Issues a DEL request and waits for its response.
+     *
+     * @return false if the server had no such key
+     * @throws KVException if the request was not successful in any other way
+     */
+    @Override
+    public boolean remove(String key) throws KVException {
+        KVMessage msg = new KVMessage(DEL_REQ);
+        msg.setKey(key);
+        msg = call(msg);
+        if(ERROR_NO_SUCH_KEY.equals(msg.getMessage()))
+            return false;
+        if(!SUCCESS.equals(msg.getMessage()))
+            throw new KVException(msg.getMessage());
+        return true;
+    }
+
+    /**
+     * Flushes outstanding requests and closes the connection. Responses that
+     * have not been received are discarded. Best effort.
+     */
+    @Override
+    public void close() {
+        try {
+            out.flush();
+        } catch(IOException e) {}
+        try {
+            sock.close();
+        } catch(IOException e) {}
+    }
+}
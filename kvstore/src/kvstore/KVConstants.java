@@ -16,6 +16,36 @@ public class KVConstants {
     public static final String COMMIT   = "commit";
     public static final String ACK      = "ack";
 
+    /**
+     * A transaction of several puts and dels, applied together or not at
+     * all. Carried only in the binary format.
+     */
+    public static final String BATCH_REQ = "batchreq";
+
+    /**
+     * The master's request for a page of the keys a slave holds in some
+     * arcs of the hash ring, answered with a BATCH_REQ of puts. Carried
+     * only in the binary format.
+     */
+    public static final String SCAN_REQ = "scanreq";
+
+    /**
+     * A client's request for a page of the keys in a range and their
+     * values, answered with a BATCH_REQ of puts whose key is the cursor to
+     * start the next page at. Carried only in the binary format.
+     */
+    public static final String RANGE_REQ = "rangereq";
+
+    /**
+     * Several gets and puts for a single server, each carried out and
+     * answered on its own. The reply is a MULTI_REQ holding one RESP per
+     * operation, in the same order. Carried only in the binary format.
+     */
+    public static final String MULTI_REQ = "multireq";
+
+    /** Master's reply to a registration, followed by the slave's info. */
+    public static final String SUCCESSFULLY_REGISTERED = "Successfully registered ";
+
     /**
      * Error message used if an IOException arises while parsing the
      * InputStream of a socket during deserialization of a KVMessage.
@@ -30,6 +60,13 @@ public class KVConstants {
     public static final String ERROR_COULD_NOT_SEND_DATA =
         "Network Error: Could not send data";
 
+    /**
+     * Error message for a get in a MULTI_REQ whose value did not fit in the
+     * reply. The key can be asked for again in another request.
+     */
+    public static final String ERROR_REPLY_TOO_LARGE =
+        "Network Error: Reply too large";
+
     /**
      * Error message used if unable to create a socket.
      */
@@ -50,6 +87,20 @@ public class KVConstants {
     public static final String ERROR_SOCKET_TIMEOUT =
         "Network Error: Socket timeout";
 
+    /**
+     * Error message sent to a client whose request was turned away because
+     * the server's request queue was full.
+     */
+    public static final String ERROR_SERVER_BUSY =
+        "Network Error: Server busy";
+
+    /**
+     * Error message sent to a client whose request failed on the server for
+     * a reason other than a KVException.
+     */
+    public static final String ERROR_SERVER_FAILURE =
+        "Server Error: Request failed";
+
     /**
      * Error message used if any exception arises from the usage of libraries to
      * serialize or deserialize KVMessages. This may include parsers,
@@ -69,6 +120,20 @@ public class KVConstants {
     public static final String ERROR_INVALID_FORMAT =
         "XML Error: Message format incorrect";
 
+    /**
+     * Error message used if a durable store cannot write its log or snapshot,
+     * or cannot recover from them.
+     */
+    public static final String ERROR_STORAGE =
+        "Storage Error: Could not access disk";
+
+    /**
+     * Error message used if a PUT or DEL cannot reach as many replicas as its
+     * write quorum requires.
+     */
+    public static final String ERROR_NO_QUORUM =
+        "Network Error: Could not reach enough replicas";
+
     /**
      * Error message used if a GET or DEL request is made on a key that does not
      * have a value associated with it.
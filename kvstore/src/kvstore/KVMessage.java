@@ -5,6 +5,8 @@ import static kvstore.KVConstants.*;
 import java.io.*;
 import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
@@ -29,13 +31,25 @@ import org.xml.sax.SAXException;
  */
 public class KVMessage implements Serializable {
 
+    /**
+     * Wire formats a KVMessage can be sent in. Receivers accept either one
+     * and remember which one a message arrived in, so a reply can be sent
+     * back in the same format the peer spoke.
+     */
+    public enum Format { XML, BINARY }
+
     private String msgType;
     private String key;
     private String value;
     private String message;
+    private List<KVMessage> batch;
+    private transient Format format = Format.XML;
 
     public static final long serialVersionUID = 6473128480951955693L;
 
+    /* JAXBContext is thread-safe and expensive to build, so share one. */
+    private static JAXBContext jaxbContext;
+
     /**
      * Construct KVMessage with only a type.
      *
@@ -56,6 +70,16 @@ public class KVMessage implements Serializable {
         this.message = message;
     }
 
+    /**
+     * Construct KVMessage with every field set. Used by the binary codec.
+     */
+    KVMessage(String msgType, String key, String value, String message) {
+        this.msgType = msgType;
+        this.key = key;
+        this.value = value;
+        this.message = message;
+    }
+
     /**
      * Construct KVMessage from the InputStream of a socket.
      * Parse XML from the InputStream with unlimited timeout.
@@ -80,14 +104,11 @@ public class KVMessage implements Serializable {
      */
     public KVMessage(Socket sock, int timeout) throws KVException {
         try {
+            sock.setSoTimeout(timeout);
             InputStream is = sock.getInputStream();
-            KVMessageType type = unmarshal(is);
-            msgType = type.getType();
-            key = type.getKey();
-            value = type.getValue();
-            message = type.getMessage();
-        } catch(JAXBException e) {
-            throw new KVException(KVConstants.ERROR_PARSER);
+            readFrom(is.read(), is);
+        } catch(SocketTimeoutException e) {
+            throw new KVException(KVConstants.ERROR_SOCKET_TIMEOUT);
         } catch(IOException e) {
             throw new KVException(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA);
         }
@@ -103,9 +124,88 @@ public class KVMessage implements Serializable {
         key = kvm.key;
         value = kvm.value;
         message = kvm.message;
+        batch = (kvm.batch == null) ? null : new ArrayList<KVMessage>(kvm.batch);
+        format = kvm.format;
     }
 
-    
+    /**
+     * Read the next message from a stream carrying several messages in a row,
+     * as on a persistent connection. The stream is left positioned just past
+     * the message when it is a binary frame; an XML message consumes the rest
+     * of the stream.
+     *
+     * @param  is InputStream to read from, typically buffered
+     * @return the next KVMessage, or null if the stream ended cleanly before
+     *         the first byte of another message
+     * @throws KVException with ERROR_PARSER, ERROR_SOCKET_TIMEOUT or
+     *         ERROR_COULD_NOT_RECEIVE_DATA, or with ERROR_INVALID_FORMAT if
+     *         the message lacks fields its type requires, in which case a
+     *         binary frame has still been read in full
+     */
+    public static KVMessage readNext(InputStream is) throws KVException {
+        try {
+            int first = is.read();
+            if(first < 0)
+                return null;
+            KVMessage kvm = new KVMessage(null, null, null, null);
+            kvm.readFrom(first, is);
+            return kvm;
+        } catch(SocketTimeoutException e) {
+            throw new KVException(KVConstants.ERROR_SOCKET_TIMEOUT);
+        } catch(IOException e) {
+            throw new KVException(KVConstants.ERROR_COULD_NOT_RECEIVE_DATA);
+        }
+    }
+
+    /**
+     * Fill in this message from the next message on an InputStream, which
+     * may be either a binary frame or an XML document. The first byte decides.
+     *
+     * @param  first the first byte of the message, already read from is
+     * @param  is InputStream to read the rest of the message from
+     * @throws KVException with ERROR_PARSER if the message cannot be parsed,
+     *         or ERROR_INVALID_FORMAT if it lacks fields its type requires
+     * @throws IOException if reading from the stream fails
+     */
+    private void readFrom(int first, InputStream is) throws KVException, IOException {
+        if(first == KVBinaryCodec.MAGIC) {
+            KVMessage kvm = KVBinaryCodec.decode(is);
+            msgType = kvm.msgType;
+            key = kvm.key;
+            value = kvm.value;
+            message = kvm.message;
+            batch = kvm.batch;
+            format = Format.BINARY;
+            return;
+        }
+        PushbackInputStream pis = new PushbackInputStream(new NoCloseInputStream(is), 1);
+        if(first >= 0)
+            pis.unread(first);
+        try {
+            KVMessageType type = unmarshal(pis);
+            msgType = type.getType();
+            key = type.getKey();
+            value = type.getValue();
+            message = type.getMessage();
+            format = Format.XML;
+            validate();
+        } catch(JAXBException e) {
+            if(e.getCause() instanceof SocketTimeoutException)
+                throw (SocketTimeoutException) e.getCause();
+            throw new KVException(KVConstants.ERROR_PARSER);
+        }
+    }
+
+    /**
+     * Get the shared JAXBContext used to marshal and unmarshal messages.
+     *
+     * @throws JAXBException if the context cannot be created
+     */
+    private static synchronized JAXBContext getJAXBContext() throws JAXBException {
+        if(jaxbContext == null)
+            jaxbContext = JAXBContext.newInstance(ObjectFactory.class);
+        return jaxbContext;
+    }
 
     /**
      * Validates and creates the KVMessageType XML root element for this KVMessage
@@ -117,7 +217,12 @@ public class KVMessage implements Serializable {
         ObjectFactory factory = new ObjectFactory();
         KVMessageType xmlStore = factory.createKVMessageType();
         xmlStore.setType(msgType);
-        if(msgType.equals(KVConstants.PUT_REQ)) {
+        if(msgType.equals(KVConstants.BATCH_REQ) || msgType.equals(KVConstants.SCAN_REQ)
+                || msgType.equals(KVConstants.RANGE_REQ)
+                || msgType.equals(KVConstants.MULTI_REQ)) {
+            /* Batches and scans have no XML form. */
+            throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+        } else if(msgType.equals(KVConstants.PUT_REQ)) {
             xmlStore.setKey(key);
             xmlStore.setValue(value);
         } else if(msgType.equals(KVConstants.RESP)) {
@@ -127,8 +232,13 @@ public class KVMessage implements Serializable {
             } else {
                 xmlStore.setMessage(message);
             }
+        } else if(msgType.equals(KVConstants.GET_REQ)
+                || msgType.equals(KVConstants.DEL_REQ)) {
+            xmlStore.setKey(key);
         } else {
+            /* 2PC messages: only the fields that are set. */
             xmlStore.setKey(key);
+            xmlStore.setMessage(message);
         }
         return factory.createKVMessage(xmlStore);
     }
@@ -162,9 +272,9 @@ public class KVMessage implements Serializable {
      * @return KVMessageType from XML
      * @throws JAXBException
      */
+    @SuppressWarnings("unchecked")
     private KVMessageType unmarshal(InputStream is) throws JAXBException {
-        JAXBContext jc = JAXBContext.newInstance(ObjectFactory.class);
-        Unmarshaller unmarshaller = jc.createUnmarshaller();
+        Unmarshaller unmarshaller = getJAXBContext().createUnmarshaller();
         return ((JAXBElement<KVMessageType>)unmarshaller.unmarshal(new NoCloseInputStream(is))).getValue();
     }
 
@@ -175,8 +285,7 @@ public class KVMessage implements Serializable {
      * @throws KVException
      */
     private void marshalTo(OutputStream os) throws JAXBException, KVException {
-        JAXBContext jc = JAXBContext.newInstance(KVMessageType.class);
-        Marshaller marshaller = jc.createMarshaller();
+        Marshaller marshaller = getJAXBContext().createMarshaller();
         marshaller.setProperty("com.sun.xml.internal.bind.xmlHeaders", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
         marshaller.setProperty(Marshaller.JAXB_FRAGMENT, true);
         marshaller.marshal(getXMLRoot(), os);
@@ -184,17 +293,22 @@ public class KVMessage implements Serializable {
     
 
     /**
-     * Send serialized version of this KVMessage over the network.
-     * You must call sock.shutdownOutput() in order to flush the OutputStream
-     * and send an EOF (so that the receiving end knows you are done sending).
-     * Do not call close on the socket. Closing a socket closes the InputStream
-     * as well as the OutputStream, preventing the receipt of a response.
+     * Generate the binary frame for this message.
      *
-     * @param  sock Socket to send XML through
-     * @throws KVException with ERROR_INVALID_FORMAT, ERROR_PARSER, or
-     *         ERROR_COULD_NOT_SEND_DATA
+     * @return the encoded frame, magic byte included
+     * @throws KVException with ERROR_INVALID_FORMAT
      */
-    public void sendMessage(Socket sock) throws KVException {
+    public byte[] toBinary() throws KVException {
+        validate();
+        return KVBinaryCodec.encode(this);
+    }
+
+    /**
+     * Check that the fields required by this message's type are present.
+     *
+     * @throws KVException with ERROR_INVALID_FORMAT if they are not
+     */
+    void validate() throws KVException {
         if(msgType == null) {
             throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
         } else if(msgType.equals(KVConstants.PUT_REQ)) {
@@ -203,14 +317,80 @@ public class KVMessage implements Serializable {
         } else if(msgType.equals(KVConstants.RESP)) {
             if(!((message != null) || (key != null && value != null)))
                 throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+        } else if(msgType.equals(KVConstants.REGISTER)) {
+            if(message == null)
+                throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+        } else if(msgType.equals(KVConstants.SCAN_REQ)) {
+            if(value == null || message == null)
+                throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+        } else if(msgType.equals(KVConstants.RANGE_REQ)) {
+            /* Both ends of the range are optional; the limit is not. */
+            if(message == null)
+                throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+        } else if(msgType.equals(KVConstants.BATCH_REQ)) {
+            if(batch == null)
+                throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+            for(KVMessage op : batch) {
+                if(!KVConstants.PUT_REQ.equals(op.msgType)
+                        && !KVConstants.DEL_REQ.equals(op.msgType))
+                    throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+                op.validate();
+            }
+        } else if(msgType.equals(KVConstants.MULTI_REQ)) {
+            if(batch == null)
+                throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+            for(KVMessage op : batch) {
+                if(!KVConstants.GET_REQ.equals(op.msgType)
+                        && !KVConstants.PUT_REQ.equals(op.msgType)
+                        && !KVConstants.RESP.equals(op.msgType))
+                    throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
+                op.validate();
+            }
+        } else if(msgType.equals(KVConstants.READY) || msgType.equals(KVConstants.ABORT)
+                || msgType.equals(KVConstants.COMMIT) || msgType.equals(KVConstants.ACK)) {
+            /* Votes, decisions and acks need no fields. */
         } else {
             if(key == null)
                 throw new KVException(KVConstants.ERROR_INVALID_FORMAT);
         }
+    }
+
+    /**
+     * Send serialized version of this KVMessage over the network.
+     * You must call sock.shutdownOutput() in order to flush the OutputStream
+     * and send an EOF (so that the receiving end knows you are done sending).
+     * Do not call close on the socket. Closing a socket closes the InputStream
+     * as well as the OutputStream, preventing the receipt of a response.
+     *
+     * @param  sock Socket to send XML through
+     * @throws KVException with ERROR_INVALID_FORMAT, ERROR_PARSER, or
+     *         ERROR_COULD_NOT_SEND_DATA
+     */
+    public void sendMessage(Socket sock) throws KVException {
+        sendMessage(sock, Format.XML);
+    }
 
+    /**
+     * Send this KVMessage over the network in the given format. XML messages
+     * are terminated by shutting down the output side of the socket; binary
+     * frames are self-delimiting and leave the socket fully open.
+     *
+     * @param  sock Socket to send the message through
+     * @param  format wire format to use
+     * @throws KVException with ERROR_INVALID_FORMAT, ERROR_PARSER, or
+     *         ERROR_COULD_NOT_SEND_DATA
+     */
+    public void sendMessage(Socket sock, Format format) throws KVException {
+        validate();
         try {
-            marshalTo(sock.getOutputStream());
-            sock.shutdownOutput();
+            if(format == Format.BINARY) {
+                OutputStream os = sock.getOutputStream();
+                os.write(KVBinaryCodec.encode(this));
+                os.flush();
+            } else {
+                marshalTo(sock.getOutputStream());
+                sock.shutdownOutput();
+            }
         } catch(JAXBException e) {
             throw new KVException(KVConstants.ERROR_PARSER);
         } catch(IOException e) {
@@ -246,6 +426,29 @@ public class KVMessage implements Serializable {
         return msgType;
     }
 
+    /**
+     * @return the wire format this message was received in, or XML for a
+     *         message that was constructed locally
+     */
+    public Format getFormat() {
+        return (format == null) ? Format.XML : format;
+    }
+
+    /**
+     * @return the operations of a BATCH_REQ or MULTI_REQ, in order, or null
+     */
+    public List<KVMessage> getBatch() {
+        return batch;
+    }
+
+    public void setBatch(List<KVMessage> batch) {
+        this.batch = batch;
+    }
+
+    void setFormat(Format format) {
+        this.format = format;
+    }
+
 
     @Override
     public String toString() {
@@ -0,0 +1,76 @@
+package kvstore;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A registry of named gauges: values such as memory use that are read on
+ * demand rather than recorded. Components register a Gauge under a dotted
+ * name, and a snapshot reads them all at once.
+ */
+public class KVMetrics {
+
+    /**
+     * A value read each time the metrics are sampled.
+     */
+    public interface Gauge {
+        /**
+         * @return the current value
+         */
+        public long get();
+    }
+
+    private final ConcurrentHashMap<String, Gauge> gauges =
+        new ConcurrentHashMap<String, Gauge>();
+
+    /**
+     * Register a gauge, replacing any gauge already registered under name.
+     *
+     * @param name dotted name of the gauge
+     * @param gauge source of the gauge's value
+     */
+    public void register(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    /**
+     * @param name dotted name of the gauge
+     */
+    public void unregister(String name) {
+        gauges.remove(name);
+    }
+
+    /**
+     * Read one gauge.
+     *
+     * @param  name dotted name of the gauge
+     * @return the gauge's current value
+     * @throws IllegalArgumentException if no gauge has that name
+     */
+    public long get(String name) {
+        Gauge gauge = gauges.get(name);
+        if(gauge == null)
+            throw new IllegalArgumentException("no gauge named " + name);
+        return gauge.get();
+    }
+
+    /**
+     * @return every gauge's current value, sorted by name
+     */
+    public Map<String, Long> snapshot() {
+        Map<String, Long> values = new TreeMap<String, Long>();
+        for(Map.Entry<String, Gauge> entry : gauges.entrySet())
+            values.put(entry.getKey(), entry.getValue().get());
+        return values;
+    }
+
+    /** One "name value" line per gauge. */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for(Map.Entry<String, Long> entry : snapshot().entrySet())
+            sb.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        return sb.toString();
+    }
+}
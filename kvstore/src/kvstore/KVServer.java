@@ -1,9 +1,23 @@
 package kvstore;
 
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
 import static kvstore.KVConstants.ERROR_OVERSIZED_KEY;
 import static kvstore.KVConstants.ERROR_OVERSIZED_VALUE;
+import static kvstore.KVConstants.ERROR_STORAGE;
 import static kvstore.KVConstants.RESP;
 
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableSet;
+import java.util.PriorityQueue;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListSet;
 import java.util.concurrent.locks.Lock;
 
 /**
@@ -14,11 +28,20 @@ import java.util.concurrent.locks.Lock;
  */
 public class KVServer implements KeyValueInterface {
 
-    private KVStore dataStore;
+    private static volatile StorageEngine.Kind defaultEngine =
+        "offheap".equalsIgnoreCase(System.getProperty("kvstore.engine"))
+            ? StorageEngine.Kind.OFF_HEAP : StorageEngine.Kind.HEAP;
+
+    private StorageEngine dataStore;
     private KVCache dataCache;
+    private final KVMetrics metrics = new KVMetrics();
+    /* Answers definite misses without the cache lock; null if disabled. */
+    private volatile CountingBloomFilter filter;
+    /* Every stored key in order, for scans; null if disabled. */
+    private volatile ConcurrentSkipListSet<String> sortedKeys;
 
-    private static final int MAX_KEY_SIZE = 256;
-    private static final int MAX_VAL_SIZE = 256 * 1024;
+    static final int MAX_KEY_SIZE = 256;
+    static final int MAX_VAL_SIZE = 256 * 1024;
 
     /**
      * Constructs a KVServer backed by a KVCache and KVStore.
@@ -28,8 +51,123 @@ public class KVServer implements KeyValueInterface {
      */
 
     public KVServer(int numSets, int maxElemsPerSet) {
-        this.dataCache = new KVCache(numSets, maxElemsPerSet);
-        this.dataStore = new KVStore();
+        this(new KVCache(numSets, maxElemsPerSet));
+    }
+
+    /**
+     * Constructs a KVServer whose cache evicts with the given policy.
+     *
+     * @param numSets the number of sets in the data cache
+     * @param maxElemsPerSet the size of each set in the data cache
+     * @param policy eviction policy for the data cache
+     */
+    public KVServer(int numSets, int maxElemsPerSet, EvictionPolicy.Kind policy) {
+        this(new KVCache(numSets, maxElemsPerSet, policy));
+    }
+
+    /**
+     * Constructs a KVServer in front of an existing cache, such as one with
+     * a byte budget, backed by a new store of the default engine. The
+     * cache's size is exported as the gauges cache.bytes and cache.entries.
+     *
+     * @param cache empty KVCache to use as the data cache
+     */
+    public KVServer(KVCache cache) {
+        this(cache, (defaultEngine == StorageEngine.Kind.HEAP)
+            ? new KVStore() : defaultEngine.create());
+    }
+
+    /**
+     * Constructs a KVServer in front of an existing cache and store. A
+     * KVStore's failed background snapshots are counted by the gauge
+     * store.snapshot_failures.
+     *
+     * @param cache empty KVCache to use as the data cache
+     * @param store StorageEngine holding the data
+     */
+    public KVServer(KVCache cache, StorageEngine store) {
+        this.dataCache = cache;
+        this.dataStore = store;
+        metrics.register("cache.bytes", new KVMetrics.Gauge() {
+            @Override
+            public long get() {
+                return dataCache.getRetainedBytes();
+            }
+        });
+        metrics.register("cache.entries", new KVMetrics.Gauge() {
+            @Override
+            public long get() {
+                return dataCache.getEntryCount();
+            }
+        });
+        if(store instanceof KVStore) {
+            final KVStore durable = (KVStore) store;
+            metrics.register("store.snapshot_failures", new KVMetrics.Gauge() {
+                @Override
+                public long get() {
+                    return durable.getSnapshotFailures();
+                }
+            });
+        }
+    }
+
+    /**
+     * Set the engine that stores KVServers built from now on use. The
+     * default is HEAP, or OFF_HEAP if the system property kvstore.engine is
+     * "offheap".
+     *
+     * @param kind engine for new servers
+     */
+    public static void setDefaultEngine(StorageEngine.Kind kind) {
+        defaultEngine = kind;
+    }
+
+    /**
+     * @return the engine new servers store their data in
+     */
+    public static StorageEngine.Kind getDefaultEngine() {
+        return defaultEngine;
+    }
+
+    /**
+     * @return gauges describing this server
+     */
+    public KVMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Put a counting Bloom filter in front of the store, so that gets,
+     * dels and hasKey for keys the server does not hold are answered
+     * without taking the cache lock or looking in the store. The filter is
+     * filled from the keys already stored. Call this before the server is
+     * shared between threads.
+     *
+     * @param expectedKeys number of keys the filter is sized for; more only
+     *        raises the false positive rate
+     * @param falsePositiveRate chance that a missing key still has to be
+     *        looked up, once expectedKeys are stored
+     */
+    public void enableFilter(int expectedKeys, double falsePositiveRate) {
+        CountingBloomFilter f = new CountingBloomFilter(expectedKeys, falsePositiveRate);
+        for(String key : dataStore.keys())
+            f.add(key);
+        filter = f;
+    }
+
+    /**
+     * Keep every stored key in a sorted index as well, so that a scan or
+     * prefix costs the page it returns rather than a pass over every key.
+     * The index is filled from the keys already stored. Call this before
+     * the server is shared between threads; calling it again does nothing.
+     */
+    public synchronized void enableSortedIndex() {
+        if(sortedKeys != null)
+            return;
+        ConcurrentSkipListSet<String> index = new ConcurrentSkipListSet<String>();
+        for(String key : dataStore.keys())
+            index.add(key);
+        sortedKeys = index;
     }
 
     /**
@@ -37,7 +175,8 @@ public class KVServer implements KeyValueInterface {
      *
      * @param  key String key
      * @param  value String value
-     * @throws KVException if key or value is too long
+     * @throws KVException if key or value is too long, or with ERROR_STORAGE
+     *         if a durable store could not log the write
      */
     @Override
     public void put(String key, String value) throws KVException {
@@ -47,16 +186,99 @@ public class KVServer implements KeyValueInterface {
             throw new KVException(ERROR_OVERSIZED_VALUE);
         dataCache.getLock(key).lock();
         try {
-            dataCache.put(key, value);
-            dataStore.put(key, value);
+            putLocked(key, value);
         } finally {
             dataCache.getLock(key).unlock();            
         }
     }
 
+    /**
+     * Performs puts for several keys, taking the lock of each cache set
+     * once for all of the keys in it. Each key succeeds or fails on its
+     * own; a failed key leaves the others written.
+     *
+     * @param  entries keys and values to put
+     * @return the keys that could not be put and why; empty if all were
+     */
+    public Map<String, KVException> putAll(Map<String, String> entries) {
+        Map<String, KVException> failed = new HashMap<String, KVException>();
+        List<String> keys = new ArrayList<String>();
+        for(Map.Entry<String, String> e : entries.entrySet()) {
+            if(e.getKey().length() > MAX_KEY_SIZE)
+                failed.put(e.getKey(), new KVException(ERROR_OVERSIZED_KEY));
+            else if(e.getValue().length() > MAX_VAL_SIZE)
+                failed.put(e.getKey(), new KVException(ERROR_OVERSIZED_VALUE));
+            else
+                keys.add(e.getKey());
+        }
+        for(Map.Entry<Lock, List<String>> set : bySet(keys).entrySet()) {
+            set.getKey().lock();
+            try {
+                for(String key : set.getValue()) {
+                    try {
+                        putLocked(key, entries.get(key));
+                    } catch(KVException e) {
+                        failed.put(key, e);
+                    }
+                }
+            } finally {
+                set.getKey().unlock();
+            }
+        }
+        return failed;
+    }
+
+    /**
+     * Writes key to the store and then the cache. The caller holds the
+     * key's lock.
+     *
+     * @throws KVException with ERROR_STORAGE if a durable store could not
+     *         log the write
+     */
+    private void putLocked(String key, String value) throws KVException {
+        CountingBloomFilter f = filter;
+        /* Every write to the store holds this lock, so the check is exact. */
+        boolean fresh = f != null && dataStore.lookup(key) == null;
+        try {
+            dataStore.put(key, value);
+        } catch(KVStore.StorageException e) {
+            throw new KVException(ERROR_STORAGE);
+        }
+        /* Lock-free readers see the value only once it is in the store. */
+        dataCache.put(key, value);
+        if(fresh)
+            f.add(key);
+        NavigableSet<String> index = sortedKeys;
+        if(index != null)
+            index.add(key);
+    }
+
+    /**
+     * @return keys grouped by the lock of their cache set, each group in
+     *         the order given
+     */
+    private Map<Lock, List<String>> bySet(Collection<String> keys) {
+        Map<Lock, List<String>> sets = new LinkedHashMap<Lock, List<String>>();
+        for(String key : keys) {
+            Lock lock = dataCache.getLock(key);
+            List<String> set = sets.get(lock);
+            if(set == null) {
+                set = new ArrayList<String>();
+                sets.put(lock, set);
+            }
+            set.add(key);
+        }
+        return sets;
+    }
+
     /**
      * Performs get request.
      * Checks cache first. Updates cache if not in cache but located in store.
+     * A cache hit is served from the set's published snapshot without taking
+     * its lock. Writers update the store before the cache, under the lock,
+     * so a hit never returns a value the store does not hold nor one older
+     * than the last completed write, and a miss falls back to the locked
+     * path unless the filter rules the key out.
      *
      * @param  key String key
      * @return String value associated with key
@@ -64,6 +286,11 @@ public class KVServer implements KeyValueInterface {
      */
     @Override
     public String get(String key) throws KVException {
+        String cached = dataCache.getOptimistic(key);
+        if(cached != null)
+            return cached;
+        if(!mightContain(key))
+            throw new KVException(ERROR_NO_SUCH_KEY);
         dataCache.getLock(key).lock();
         try {
             String value = dataCache.get(key);
@@ -77,6 +304,77 @@ public class KVServer implements KeyValueInterface {
         }
     }
 
+    /**
+     * Performs get request like get, but a missing key is answered with
+     * null rather than an exception.
+     *
+     * @param  key String key
+     * @return String value associated with key, or null if there is none
+     */
+    @Override
+    public String lookup(String key) {
+        String cached = dataCache.getOptimistic(key);
+        if(cached != null)
+            return cached;
+        if(!mightContain(key))
+            return null;
+        dataCache.getLock(key).lock();
+        try {
+            return lookupLocked(key);
+        } finally {
+            dataCache.getLock(key).unlock();
+        }
+    }
+
+    /**
+     * Performs gets for several keys like lookup. Keys the cache holds are
+     * served without a lock; for the rest, the lock of each cache set is
+     * taken once for all of the keys in it.
+     *
+     * @param  keys keys to get
+     * @return the keys found and their values; missing keys are left out
+     */
+    public Map<String, String> lookupAll(Collection<String> keys) {
+        Map<String, String> found = new HashMap<String, String>();
+        List<String> misses = new ArrayList<String>();
+        for(String key : keys) {
+            String cached = dataCache.getOptimistic(key);
+            if(cached != null)
+                found.put(key, cached);
+            else if(mightContain(key))
+                misses.add(key);
+        }
+        for(Map.Entry<Lock, List<String>> set : bySet(misses).entrySet()) {
+            set.getKey().lock();
+            try {
+                for(String key : set.getValue()) {
+                    String value = lookupLocked(key);
+                    if(value != null)
+                        found.put(key, value);
+                }
+            } finally {
+                set.getKey().unlock();
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Reads key from the cache, or from the store into the cache. The
+     * caller holds the key's lock.
+     *
+     * @return the value of key, or null if there is none
+     */
+    private String lookupLocked(String key) {
+        String value = dataCache.get(key);
+        if(value == null) {
+            value = dataStore.lookup(key);
+            if(value != null)
+                dataCache.put(key, value);
+        }
+        return value;
+    }
+
     /**
      * Performs del request.
      *
@@ -85,15 +383,156 @@ public class KVServer implements KeyValueInterface {
      */
     @Override
     public void del(String key) throws KVException {
+        if(!mightContain(key))
+            throw new KVException(ERROR_NO_SUCH_KEY);
         dataCache.getLock(key).lock();
         try {
             dataCache.del(key);
             dataStore.del(key);
+            CountingBloomFilter f = filter;
+            if(f != null)
+                f.remove(key);
+            NavigableSet<String> index = sortedKeys;
+            if(index != null)
+                index.remove(key);
         } finally {
             dataCache.getLock(key).unlock();
         }
     }
 
+    /**
+     * Performs del request like del, but a missing key is reported rather
+     * than thrown.
+     *
+     * @param  key String key
+     * @return false if key does not exist in store
+     * @throws KVException with ERROR_STORAGE if a durable store could not
+     *         log the delete
+     */
+    @Override
+    public boolean remove(String key) throws KVException {
+        if(!mightContain(key))
+            return false;
+        dataCache.getLock(key).lock();
+        try {
+            dataCache.del(key);
+            boolean removed = dataStore.remove(key);
+            CountingBloomFilter f = filter;
+            if(removed && f != null)
+                f.remove(key);
+            NavigableSet<String> index = sortedKeys;
+            if(removed && index != null)
+                index.remove(key);
+            return removed;
+        } finally {
+            dataCache.getLock(key).unlock();
+        }
+    }
+
+    /**
+     * Return the first keys from startKey up to endKey, in the order of
+     * String.compareTo, with their values. This is the order of the keys'
+     * UTF-8 bytes except among characters outside the Basic Multilingual
+     * Plane. With a sorted index this costs the page returned; without one
+     * it is a pass over every key, and another for each page left short by
+     * keys deleted during the last. Values are read without filling the
+     * cache, and a key written during the scan may or may not be seen. The
+     * page holds limit keys unless fewer are left in the range.
+     *
+     * @param  startKey first key of the range, or null to start at the
+     *         smallest key
+     * @param  endKey key just past the range, or null for no end
+     * @param  limit most keys to return; a caller pages through a longer
+     *         range by starting the next call just past the last key
+     * @return at most limit keys in the range and their values
+     */
+    public SortedMap<String, String> scan(String startKey, String endKey, int limit) {
+        if(limit < 1)
+            throw new IllegalArgumentException("limit must be positive");
+        SortedMap<String, String> page = new TreeMap<String, String>();
+        NavigableSet<String> index = sortedKeys;
+        if(index != null) {
+            NavigableSet<String> range = index;
+            if(startKey != null)
+                range = range.tailSet(startKey, true);
+            if(endKey != null)
+                range = range.headSet(endKey, false);
+            for(String key : range) {
+                if(page.size() == limit)
+                    break;
+                String value = peek(key);
+                if(value != null)
+                    page.put(key, value);
+            }
+            return page;
+        }
+
+        /* Keys deleted during a pass leave the page short: pass again after it. */
+        String after = null;
+        while(true) {
+            int wanted = limit - page.size();
+            /* The smallest wanted keys in the range, largest on top. */
+            PriorityQueue<String> smallest = new PriorityQueue<String>(Math.min(wanted, 1024),
+                Collections.<String>reverseOrder());
+            for(String key : dataStore.keys()) {
+                if(after != null ? key.compareTo(after) <= 0
+                        : startKey != null && key.compareTo(startKey) < 0)
+                    continue;
+                if(endKey != null && key.compareTo(endKey) >= 0)
+                    continue;
+                if(smallest.size() == wanted && key.compareTo(smallest.peek()) >= 0)
+                    continue;
+                smallest.add(key);
+                if(smallest.size() > wanted)
+                    smallest.poll();
+            }
+            if(smallest.isEmpty())
+                return page;
+            after = smallest.peek();
+            for(String key : smallest) {
+                String value = peek(key);
+                if(value != null)
+                    page.put(key, value);
+            }
+            if(smallest.size() < wanted || page.size() == limit)
+                return page;
+        }
+    }
+
+    /**
+     * Return the first keys that start with prefix, with their values, as
+     * scan does.
+     *
+     * @param  prefix start shared by every key returned; "" matches all
+     * @param  limit most keys to return
+     * @return at most limit keys with the prefix and their values
+     */
+    public SortedMap<String, String> prefix(String prefix, int limit) {
+        return scan(prefix, prefixEnd(prefix), limit);
+    }
+
+    /**
+     * @return the smallest key greater than every key that starts with
+     *         prefix, or null if there is none
+     */
+    static String prefixEnd(String prefix) {
+        int end = prefix.length();
+        while(end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE)
+            end--;
+        if(end == 0)
+            return null;
+        return prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+    }
+
+    /**
+     * @return the current value of key, from the cache if it is there and
+     *         otherwise from the store, without filling the cache
+     */
+    private String peek(String key) {
+        String cached = dataCache.getOptimistic(key);
+        return (cached != null) ? cached : dataStore.lookup(key);
+    }
+
     /**
      * Check if the server has a given key. This is used for TPC operations
      * that need to check whether or not a transaction can be performed but
@@ -103,12 +542,15 @@ public class KVServer implements KeyValueInterface {
      * @param key key to check for membership in store
      */
     public boolean hasKey(String key) {
-        try {
-            dataStore.get(key);
-        } catch(KVException e) {
-            return false;
-        }
-        return true;
+        return mightContain(key) && dataStore.lookup(key) != null;
+    }
+
+    /**
+     * @return false if the filter rules key out
+     */
+    private boolean mightContain(String key) {
+        CountingBloomFilter f = filter;
+        return f == null || f.mightContain(key);
     }
 
     /** This method is purely for convenience and will not be tested. */
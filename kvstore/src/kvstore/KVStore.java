@@ -1,13 +1,32 @@
 package kvstore;
 
 import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+import static kvstore.KVConstants.ERROR_STORAGE;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.io.OutputStream;
 import java.io.FileOutputStream;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map.Entry;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
 import javax.xml.bind.JAXBContext;
 import javax.xml.bind.JAXBElement;
@@ -22,11 +41,63 @@ import kvstore.xml.ObjectFactory;
 /**
  * This is a basic key-value store. Ideally this would go to disk, or some other
  * backing store.
+ *
+ * A store constructed with a directory does go to disk. Every put and del is
+ * appended to a write-ahead log (files wal.N, one RecordLog per generation)
+ * before it is applied. Once a generation grows past the snapshot threshold,
+ * the store switches to a new generation and streams a snapshot of the map
+ * to the file snapshot, recording the first generation that is not covered
+ * by it; older generations are then deleted. Reopening the directory loads
+ * the snapshot and replays the logs after it.
+ *
+ * The snapshot is taken while writes continue, so it may already contain
+ * some writes from the generations after it. Replaying those again is
+ * harmless, since each key ends up with its last logged value.
  */
-public class KVStore implements KeyValueInterface {
+public class KVStore implements StorageEngine {
+
+    /** Start a snapshot once the current log generation is this large. */
+    public static final long DEFAULT_SNAPSHOT_BYTES = 64L * 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int SNAPSHOT_MAGIC = 0x4B565331;
+    private static final String SNAPSHOT = "snapshot";
+    private static final String WAL_PREFIX = "wal.";
+    private static final byte OP_PUT = 1;
+    private static final byte OP_DEL = 2;
+    private static final byte OP_CLEAR = 3;
+    private static final int STRIPES = 64;
+
+    /**
+     * Thrown by put when a durable store cannot log the write. put has no
+     * checked exceptions, so KVServer converts this to ERROR_STORAGE.
+     */
+    public static class StorageException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        public StorageException(Throwable cause) {
+            super(ERROR_STORAGE, cause);
+        }
+    }
 
     public ConcurrentHashMap<String, String> store;
 
+    /* Durable mode only; dir is null for an in-memory store. */
+    private File dir;
+    private RecordLog.FsyncPolicy policy;
+    private RecordLog wal;
+    private long generation;
+    private volatile long snapshotBytes = DEFAULT_SNAPSHOT_BYTES;
+    private volatile boolean snapshotting = false;
+    private final AtomicLong snapshotFailures = new AtomicLong();
+    /* Why the last background snapshot failed, until one succeeds. */
+    private volatile KVException snapshotError;
+    /* Writers share it; switching generations takes it exclusively. */
+    private final ReentrantReadWriteLock walLock = new ReentrantReadWriteLock();
+    /* Orders the log records and map updates for each key. */
+    private final Object[] stripes = new Object[STRIPES];
+    private final Object snapshotLock = new Object();
+
     /**
      * Construct a new KVStore.
      */
@@ -34,8 +105,42 @@ public class KVStore implements KeyValueInterface {
         resetStore();
     }
 
+    /**
+     * Construct a durable KVStore kept in a directory, recovering whatever a
+     * previous store left there.
+     *
+     * @param  dir directory for the log and snapshot; created if missing
+     * @param  policy when log records are forced to disk
+     * @throws KVException with ERROR_STORAGE if the directory cannot be used
+     *         or a snapshot in it is damaged
+     */
+    public KVStore(String dir, RecordLog.FsyncPolicy policy) throws KVException {
+        resetStore();
+        this.dir = new File(dir);
+        this.policy = policy;
+        for(int i = 0; i < STRIPES; i++)
+            stripes[i] = new Object();
+        try {
+            if(!this.dir.isDirectory() && !this.dir.mkdirs())
+                throw new IOException("cannot create " + dir);
+            recover();
+        } catch(IOException e) {
+            throw new KVException(ERROR_STORAGE);
+        }
+    }
+
     public void resetStore() {
-        this.store = new ConcurrentHashMap<String, String>();
+        if(wal == null) {
+            this.store = new ConcurrentHashMap<String, String>();
+            return;
+        }
+        walLock.writeLock().lock();
+        try {
+            log(OP_CLEAR, null, null);
+            this.store = new ConcurrentHashMap<String, String>();
+        } finally {
+            walLock.writeLock().unlock();
+        }
     }
 
     /**
@@ -46,7 +151,20 @@ public class KVStore implements KeyValueInterface {
      */
     @Override
     public void put(String key, String value) {
-        store.put(key, value);
+        if(dir == null) {
+            store.put(key, value);
+            return;
+        }
+        walLock.readLock().lock();
+        try {
+            synchronized(stripe(key)) {
+                log(OP_PUT, key, value);
+                store.put(key, value);
+            }
+        } finally {
+            walLock.readLock().unlock();
+        }
+        maybeSnapshot();
     }
 
     /**
@@ -64,6 +182,17 @@ public class KVStore implements KeyValueInterface {
         return retVal;
     }
 
+    /**
+     * Retrieve the value corresponding to the provided key.
+     *
+     * @param  key String key
+     * @return the value, or null if key does not exist in store
+     */
+    @Override
+    public String lookup(String key) {
+        return this.store.get(key);
+    }
+
     /**
      * Delete the value corresponding to the provided key.
      *
@@ -72,12 +201,328 @@ public class KVStore implements KeyValueInterface {
      */
     @Override
     public void del(String key) throws KVException {
-        if(key != null) {
-            if (!this.store.containsKey(key)) {
-                KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
-                throw new KVException(msg);
+        if(key != null && !remove(key)) {
+            KVMessage msg = new KVMessage(KVConstants.RESP, ERROR_NO_SUCH_KEY);
+            throw new KVException(msg);
+        }
+    }
+
+    /**
+     * Delete the value corresponding to the provided key.
+     *
+     * @param  key String key
+     * @return false if key does not exist in store
+     * @throws KVException with ERROR_STORAGE if a durable store could not log
+     *         the delete
+     */
+    @Override
+    public boolean remove(String key) throws KVException {
+        if(dir == null)
+            return this.store.remove(key) != null;
+        boolean removed;
+        walLock.readLock().lock();
+        try {
+            synchronized(stripe(key)) {
+                if (!this.store.containsKey(key))
+                    return false;
+                log(OP_DEL, key, null);
+                removed = this.store.remove(key) != null;
+            }
+        } catch(StorageException e) {
+            throw new KVException(ERROR_STORAGE);
+        } finally {
+            walLock.readLock().unlock();
+        }
+        maybeSnapshot();
+        return removed;
+    }
+
+    @Override
+    public Iterable<String> keys() {
+        return store.keySet();
+    }
+
+    @Override
+    public long size() {
+        return store.size();
+    }
+
+    private Object stripe(String key) {
+        return stripes[(key.hashCode() & 0x7fffffff) % STRIPES];
+    }
+
+    /**
+     * Set how large a log generation may grow before a snapshot is taken in
+     * the background.
+     *
+     * @param bytes log size that triggers a snapshot
+     */
+    public void setSnapshotThreshold(long bytes) {
+        snapshotBytes = bytes;
+    }
+
+    private void log(byte op, String key, String value) {
+        ByteArrayOutputStream record = new ByteArrayOutputStream(
+            16 + ((key == null) ? 0 : key.length()) + ((value == null) ? 0 : value.length()));
+        record.write(op);
+        KVBinaryCodec.writeField(record, key);
+        KVBinaryCodec.writeField(record, value);
+        byte[] bytes = record.toByteArray();
+        try {
+            wal.append(bytes, 0, bytes.length);
+        } catch(IOException e) {
+            throw new StorageException(e);
+        }
+    }
+
+    private void apply(byte[] record) throws IOException {
+        try {
+            int[] pos = { 1 };
+            String key = KVBinaryCodec.readField(record, pos, record.length);
+            String value = KVBinaryCodec.readField(record, pos, record.length);
+            switch(record[0]) {
+            case OP_PUT:
+                store.put(key, value);
+                break;
+            case OP_DEL:
+                store.remove(key);
+                break;
+            case OP_CLEAR:
+                store.clear();
+                break;
+            default:
+                throw new IOException("unknown log record");
+            }
+        } catch(KVException e) {
+            throw new IOException("malformed log record");
+        }
+    }
+
+    private void maybeSnapshot() {
+        if(snapshotting || wal.size() < snapshotBytes)
+            return;
+        synchronized(snapshotLock) {
+            if(snapshotting)
+                return;
+            snapshotting = true;
+        }
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    snapshot();
+                    snapshotError = null;
+                } catch(KVException e) {
+                    /* The log still holds every write; it just keeps growing. */
+                    snapshotFailures.incrementAndGet();
+                    snapshotError = e;
+                    System.out.println("Snapshot failed: " + e.toString());
+                } finally {
+                    snapshotting = false;
+                }
+            }
+        }, "KVStore-snapshot");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * @return number of snapshots started in the background that failed
+     */
+    public long getSnapshotFailures() {
+        return snapshotFailures.get();
+    }
+
+    /**
+     * @return why the last background snapshot failed, or null if it
+     *         succeeded or none has run
+     */
+    public KVException getSnapshotError() {
+        return snapshotError;
+    }
+
+    /**
+     * Switch to a new log generation and write a snapshot that makes the
+     * older generations unnecessary, then delete them. Writes continue while
+     * the snapshot is written.
+     *
+     * @throws KVException with ERROR_STORAGE if the snapshot cannot be written
+     */
+    public void snapshot() throws KVException {
+        if(dir == null)
+            return;
+        synchronized(snapshotLock) {
+            try {
+                RecordLog old;
+                long covered;
+                walLock.writeLock().lock();
+                try {
+                    old = wal;
+                    covered = generation + 1;
+                    wal = new RecordLog(walFile(covered), policy, null);
+                    generation = covered;
+                } finally {
+                    walLock.writeLock().unlock();
+                }
+                old.close();
+                writeSnapshot(covered);
+                for(long gen : generations()) {
+                    if(gen < covered)
+                        walFile(gen).delete();
+                }
+            } catch(IOException e) {
+                throw new KVException(ERROR_STORAGE);
+            }
+        }
+    }
+
+    /* Stream the map to snapshot.tmp, force it, and rename it into place. */
+    private void writeSnapshot(long firstGeneration) throws IOException {
+        File tmp = new File(dir, SNAPSHOT + ".tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                new BufferedOutputStream(fos, 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(SNAPSHOT_MAGIC);
+            out.writeLong(firstGeneration);
+            long count = 0;
+            for(Entry<String, String> e : store.entrySet()) {
+                writeString(out, e.getKey());
+                writeString(out, e.getValue());
+                count++;
+            }
+            out.writeInt(-1);
+            out.writeLong(count);
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        Files.move(tmp.toPath(), new File(dir, SNAPSHOT).toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        RecordLog.syncDirectory(dir);
+    }
+
+    private static void writeString(DataOutputStream out, String s) throws IOException {
+        byte[] bytes = s.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * @return first log generation the snapshot does not cover, or 0 if
+     *         there is no snapshot
+     */
+    private long readSnapshot() throws IOException {
+        File f = new File(dir, SNAPSHOT);
+        if(!f.exists())
+            return 0;
+        CheckedInputStream checked = new CheckedInputStream(
+            new BufferedInputStream(new FileInputStream(f), 1 << 16), new CRC32());
+        DataInputStream in = new DataInputStream(checked);
+        try {
+            if(in.readInt() != SNAPSHOT_MAGIC)
+                throw new IOException("not a snapshot");
+            long firstGeneration = in.readLong();
+            long count = 0;
+            byte[] buf = new byte[256];
+            int len;
+            while((len = in.readInt()) >= 0) {
+                buf = readBytes(in, buf, len);
+                String key = new String(buf, 0, len, UTF8);
+                len = in.readInt();
+                buf = readBytes(in, buf, len);
+                store.put(key, new String(buf, 0, len, UTF8));
+                count++;
+            }
+            if(in.readLong() != count)
+                throw new IOException("snapshot truncated");
+            long crc = checked.getChecksum().getValue();
+            if(in.readLong() != crc)
+                throw new IOException("snapshot corrupt");
+            return firstGeneration;
+        } catch(EOFException e) {
+            throw new IOException("snapshot truncated");
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in, byte[] buf, int len)
+            throws IOException {
+        if(len < 0 || len > RecordLog.MAX_RECORD_SIZE)
+            throw new IOException("snapshot corrupt");
+        if(len > buf.length)
+            buf = new byte[Math.max(len, buf.length * 2)];
+        in.readFully(buf, 0, len);
+        return buf;
+    }
+
+    /* Load the snapshot, replay later generations, and open a new one. */
+    private void recover() throws IOException {
+        long first = readSnapshot();
+        RecordLog.Visitor replay = new RecordLog.Visitor() {
+            @Override
+            public void record(byte[] payload) throws IOException {
+                apply(payload);
+            }
+        };
+        long last = first;
+        for(long gen : generations()) {
+            if(gen < first) {
+                walFile(gen).delete();
+                continue;
+            }
+            RecordLog.replay(walFile(gen), replay);
+            last = gen;
+        }
+        generation = last + 1;
+        wal = new RecordLog(walFile(generation), policy, null);
+    }
+
+    /**
+     * @return generations of the log files in the directory, in order
+     */
+    private List<Long> generations() {
+        List<Long> gens = new ArrayList<Long>();
+        String[] names = dir.list();
+        if(names != null) {
+            for(String name : names) {
+                if(!name.startsWith(WAL_PREFIX))
+                    continue;
+                try {
+                    gens.add(Long.parseLong(name.substring(WAL_PREFIX.length())));
+                } catch(NumberFormatException e) {}
+            }
+        }
+        Collections.sort(gens);
+        return gens;
+    }
+
+    private File walFile(long gen) {
+        return new File(dir, WAL_PREFIX + gen);
+    }
+
+    /**
+     * Force the log to disk and close it. A durable store cannot be used
+     * after close; an in-memory store is unaffected.
+     *
+     * @throws KVException with ERROR_STORAGE if the log cannot be forced
+     */
+    public void close() throws KVException {
+        if(dir == null)
+            return;
+        synchronized(snapshotLock) {
+            walLock.writeLock().lock();
+            try {
+                wal.close();
+            } catch(IOException e) {
+                throw new KVException(ERROR_STORAGE);
+            } finally {
+                walLock.writeLock().unlock();
             }
-            this.store.remove(key);
         }
     }
 
@@ -30,4 +30,23 @@ public interface KeyValueInterface {
      */
     public void del(String key) throws KVException;
 
+    /**
+     * Retrieve the object corresponding to the provided key, without
+     * treating a missing key as an error
+     * @param key is the object used to index into the store
+     * @return the value corresponding to the provided key, or null if there
+     *         is none
+     * @throws KVException if there is an error when looking up the object store
+     */
+    public String lookup(String key) throws KVException;
+
+    /**
+     * Delete the object corresponding to the provided key, without treating
+     * a missing key as an error
+     * @param key is the object used to index into the store
+     * @return false if there was no such key
+     * @throws KVException if there is an error when deleting from the store
+     */
+    public boolean remove(String key) throws KVException;
+
 }
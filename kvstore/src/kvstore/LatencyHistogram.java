@@ -0,0 +1,138 @@
+package kvstore;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free histogram of latencies with microsecond resolution. Values
+ * below 8us get a bucket each; above that, every power of two is split into
+ * eight buckets, so a percentile is accurate to within 12.5%.
+ *
+ * Old samples fade out: once decayAt samples have been recorded every
+ * bucket is halved, so the histogram follows a slave whose latency changes
+ * instead of being pinned by its history.
+ */
+public class LatencyHistogram {
+
+    /** Samples recorded before the counts are halved, by default. */
+    public static final int DEFAULT_DECAY_AT = 1 << 14;
+
+    private static final int SUB_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BITS;
+    /* Latencies are capped at 2^40us, about twelve days. */
+    private static final int MAX_EXPONENT = 40;
+    private static final int BUCKETS = SUB_BUCKETS * (MAX_EXPONENT - SUB_BITS + 2);
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong total = new AtomicLong();
+    private final AtomicBoolean decaying = new AtomicBoolean();
+    private final long decayAt;
+
+    /**
+     * Creates a histogram that halves its counts every DEFAULT_DECAY_AT
+     * samples.
+     */
+    public LatencyHistogram() {
+        this(DEFAULT_DECAY_AT);
+    }
+
+    /**
+     * @param decayAt number of samples at which every count is halved
+     */
+    public LatencyHistogram(long decayAt) {
+        if(decayAt < 2)
+            throw new IllegalArgumentException("decayAt must be at least 2");
+        this.decayAt = decayAt;
+    }
+
+    /**
+     * Record one latency.
+     *
+     * @param nanos the latency in nanoseconds; negative counts as zero
+     */
+    public void record(long nanos) {
+        counts.incrementAndGet(bucket(Math.max(0, nanos) / 1000));
+        if(total.incrementAndGet() >= decayAt)
+            decay();
+    }
+
+    private void decay() {
+        if(!decaying.compareAndSet(false, true))
+            return;
+        try {
+            if(total.get() < decayAt)
+                return;
+            long removed = 0;
+            for(int i = 0; i < BUCKETS; i++) {
+                while(true) {
+                    long n = counts.get(i);
+                    if(counts.compareAndSet(i, n, n - n / 2)) {
+                        removed += n / 2;
+                        break;
+                    }
+                }
+            }
+            total.addAndGet(-removed);
+        } finally {
+            decaying.set(false);
+        }
+    }
+
+    /**
+     * @return number of samples the histogram currently holds
+     */
+    public long count() {
+        return total.get();
+    }
+
+    /**
+     * @param  p fraction of samples, between 0 and 1
+     * @param  unit unit of the result
+     * @return the smallest latency at least fraction p of the samples do not
+     *         exceed, rounded up to the end of its bucket, or 0 if there are
+     *         no samples
+     */
+    public long percentile(double p, TimeUnit unit) {
+        long n = 0;
+        long[] snapshot = new long[BUCKETS];
+        for(int i = 0; i < BUCKETS; i++) {
+            snapshot[i] = counts.get(i);
+            n += snapshot[i];
+        }
+        if(n == 0)
+            return 0;
+        long rank = Math.max(1, (long) Math.ceil(p * n));
+        long seen = 0;
+        int i = 0;
+        for(; i < BUCKETS - 1; i++) {
+            seen += snapshot[i];
+            if(seen >= rank)
+                break;
+        }
+        return unit.convert(upperBound(i) * 1000, TimeUnit.NANOSECONDS);
+    }
+
+    static int bucket(long micros) {
+        if(micros < SUB_BUCKETS)
+            return (int) micros;
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if(exponent > MAX_EXPONENT)
+            return BUCKETS - 1;
+        int sub = (int) (micros >>> (exponent - SUB_BITS)) & (SUB_BUCKETS - 1);
+        return SUB_BUCKETS * (exponent - SUB_BITS + 1) + sub;
+    }
+
+    /**
+     * @return the largest latency in microseconds that falls in a bucket
+     */
+    static long upperBound(int bucket) {
+        if(bucket < SUB_BUCKETS)
+            return bucket;
+        int exponent = bucket / SUB_BUCKETS + SUB_BITS - 1;
+        long sub = bucket % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BITS);
+        return ((SUB_BUCKETS + sub) << (exponent - SUB_BITS)) + width - 1;
+    }
+}
@@ -0,0 +1,698 @@
+package kvstore;
+
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+import static kvstore.KVConstants.ERROR_STORAGE;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A StorageEngine kept in memory-mapped files, so that opening a store
+ * costs the same however much it holds, and the OS page cache serves as its
+ * read cache.
+ *
+ * The file index holds a header and a fixed array of buckets, each the
+ * offset of the first record in its chain. The file data holds the
+ * records, each laid out as
+ *
+ *   long next | int hash | int keyLength | int valueLength | key | value
+ *
+ * with key and value in UTF-8. data is mapped in chunks, and a record never
+ * straddles two. Offset 0 is never a record, so it ends a chain. A put
+ * appends a new record and links it in place of the old one; a del unlinks
+ * the record. Dead records are not reclaimed, only counted (see
+ * getGarbageBytes).
+ *
+ * Every change is first appended to a redo log (files redo.N) as the exact
+ * bytes it writes to the two files, and only then made to the mapped
+ * memory. Once a log generation grows past the checkpoint threshold the
+ * mapped files are forced to disk and a new generation is started; older
+ * ones are deleted. Opening a store replays whatever generations remain,
+ * which restores any page the OS had only partly written. With
+ * FsyncPolicy.ALWAYS this survives losing power; with the others it
+ * survives the process dying, since the OS still holds the writes.
+ *
+ * Writers take turns on a lock of their own, which readers never take, and
+ * append their redo entries and force the files at checkpoints under it
+ * alone. Reads share a second lock, which a writer holds exclusively only
+ * while it copies an entry that is already logged into the mapped memory,
+ * so a read never waits for an fsync.
+ */
+public class MappedStore implements StorageEngine {
+
+    /** 2^20 buckets: an 8MB index. */
+    public static final int DEFAULT_BUCKET_BITS = 20;
+    /** 64MB chunks of data. */
+    public static final int DEFAULT_CHUNK_BITS = 26;
+    /** Start a new log generation once the current one is this large. */
+    public static final long DEFAULT_CHECKPOINT_BYTES = 64L * 1024 * 1024;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String INDEX = "index";
+    private static final String DATA = "data";
+    private static final String REDO_PREFIX = "redo.";
+    private static final int MAGIC = 0x4B564D31;
+
+    /* Header fields, at these offsets in index. */
+    private static final int H_MAGIC = 0;
+    private static final int H_BUCKET_BITS = 4;
+    private static final int H_CHUNK_BITS = 8;
+    private static final int H_DATA_END = 16;
+    private static final int H_COUNT = 24;
+    private static final int H_GARBAGE = 32;
+    private static final int HEADER_BYTES = 64;
+
+    /* Record fields, at these offsets from the start of a record. */
+    private static final int R_NEXT = 0;
+    private static final int R_HASH = 8;
+    private static final int R_KEY_LENGTH = 12;
+    private static final int R_VALUE_LENGTH = 16;
+    private static final int RECORD_HEADER = 20;
+
+    /* Which file a redo entry writes to. */
+    private static final byte TO_INDEX = 0;
+    private static final byte TO_DATA = 1;
+
+    private static final int KEYS_PER_BATCH = 1024;
+
+    private final File dir;
+    private final RecordLog.FsyncPolicy policy;
+    /* Taken by readers, and by a writer only while it changes the maps. */
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    /* Orders writers; guards redo, generation and every change to the maps. */
+    private final ReentrantLock writers = new ReentrantLock();
+    private volatile long checkpointBytes = DEFAULT_CHECKPOINT_BYTES;
+
+    private RandomAccessFile indexFile;
+    private RandomAccessFile dataFile;
+    private MappedByteBuffer index;
+    private final List<MappedByteBuffer> chunks = new ArrayList<MappedByteBuffer>();
+    private int bucketBits;
+    private int chunkBits;
+    private RecordLog redo;
+    private long generation;
+
+    /**
+     * Open the store in a directory, creating an empty one with the default
+     * dimensions if there is none.
+     *
+     * @param  dir directory for the store; created if missing
+     * @param  policy when redo log records are forced to disk
+     * @throws KVException with ERROR_STORAGE if the store cannot be opened
+     */
+    public MappedStore(String dir, RecordLog.FsyncPolicy policy) throws KVException {
+        this(dir, policy, DEFAULT_BUCKET_BITS, DEFAULT_CHUNK_BITS);
+    }
+
+    /**
+     * Open the store in a directory, creating an empty one if there is
+     * none. An existing store keeps the dimensions it was created with.
+     *
+     * @param  dir directory for the store; created if missing
+     * @param  policy when redo log records are forced to disk
+     * @param  bucketBits log2 of the number of buckets, at most 27
+     * @param  chunkBits log2 of the size of a data chunk, 20 to 30; no record
+     *         may be larger than a chunk
+     * @throws KVException with ERROR_STORAGE if the store cannot be opened
+     */
+    public MappedStore(String dir, RecordLog.FsyncPolicy policy, int bucketBits,
+            int chunkBits) throws KVException {
+        if(bucketBits < 1 || bucketBits > 27)
+            throw new IllegalArgumentException("bucketBits must be 1 to 27");
+        if(chunkBits < 20 || chunkBits > 30)
+            throw new IllegalArgumentException("chunkBits must be 20 to 30");
+        this.dir = new File(dir);
+        this.policy = policy;
+        try {
+            if(!this.dir.isDirectory() && !this.dir.mkdirs())
+                throw new IOException("cannot create " + dir);
+            open(bucketBits, chunkBits);
+        } catch(IOException e) {
+            closeFiles();
+            throw new KVException(ERROR_STORAGE);
+        }
+    }
+
+    private void open(int newBucketBits, int newChunkBits) throws IOException {
+        indexFile = new RandomAccessFile(new File(dir, INDEX), "rw");
+        dataFile = new RandomAccessFile(new File(dir, DATA), "rw");
+        boolean fresh = indexFile.length() < HEADER_BYTES;
+        if(!fresh) {
+            index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+            int magic = index.getInt(H_MAGIC);
+            /* A store that was never finished being created is empty. */
+            fresh = (magic == 0);
+            if(!fresh && magic != MAGIC)
+                throw new IOException("not a store");
+        }
+        if(fresh) {
+            bucketBits = newBucketBits;
+            chunkBits = newChunkBits;
+            dataFile.setLength(0);
+            for(long gen : generations())
+                redoFile(gen).delete();
+            indexFile.setLength(0);
+            indexFile.setLength(HEADER_BYTES + (8L << bucketBits));
+            mapIndex();
+            index.putInt(H_BUCKET_BITS, bucketBits);
+            index.putInt(H_CHUNK_BITS, chunkBits);
+            /* Offset 0 ends a chain, so no record may start there. */
+            index.putLong(H_DATA_END, 8);
+            index.force();
+            index.putInt(H_MAGIC, MAGIC);
+            index.force();
+        } else {
+            bucketBits = index.getInt(H_BUCKET_BITS);
+            chunkBits = index.getInt(H_CHUNK_BITS);
+            if(indexFile.length() != HEADER_BYTES + (8L << bucketBits))
+                throw new IOException("index truncated");
+            mapIndex();
+        }
+
+        RecordLog.Visitor replay = new RecordLog.Visitor() {
+            @Override
+            public void record(byte[] payload) throws IOException {
+                apply(payload);
+            }
+        };
+        long last = 0;
+        for(long gen : generations()) {
+            RecordLog.replay(redoFile(gen), replay);
+            last = gen;
+        }
+        ensureMapped(index.getLong(H_DATA_END));
+        generation = last + 1;
+        checkpoint();
+    }
+
+    private void mapIndex() throws IOException {
+        index = indexFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+            indexFile.length());
+    }
+
+    /* Map data up to end, growing the file a chunk at a time. */
+    private void ensureMapped(long end) throws IOException {
+        long chunkSize = 1L << chunkBits;
+        while((long) chunks.size() * chunkSize < end) {
+            long start = (long) chunks.size() * chunkSize;
+            if(dataFile.length() < start + chunkSize)
+                dataFile.setLength(start + chunkSize);
+            chunks.add(dataFile.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                start, chunkSize));
+        }
+    }
+
+    /**
+     * Set how large a redo log generation may grow before the mapped files
+     * are forced to disk and a new one is started. Recovery replays at most
+     * about this much log.
+     *
+     * @param bytes log size that triggers a checkpoint
+     */
+    public void setCheckpointThreshold(long bytes) {
+        checkpointBytes = bytes;
+    }
+
+    /**
+     * Insert key, value pair into the store.
+     *
+     * @param  key String key
+     * @param  value String value
+     * @throws KVStore.StorageException if the change cannot be logged, or
+     *         the record would not fit in a chunk
+     */
+    @Override
+    public void put(String key, String value) {
+        byte[] keyBytes = key.getBytes(UTF8);
+        byte[] valueBytes = value.getBytes(UTF8);
+        int h = hash(key);
+        int size = RECORD_HEADER + keyBytes.length + valueBytes.length;
+        if(size > (1L << chunkBits))
+            throw new KVStore.StorageException(new IOException("record larger than a chunk"));
+        writers.lock();
+        try {
+            long bucket = bucket(h);
+            long prev = 0;
+            long cur = index.getLong((int) bucket);
+            while(cur != 0 && !matches(cur, h, keyBytes)) {
+                prev = cur;
+                cur = data(cur).getLong(pos(cur) + R_NEXT);
+            }
+
+            long end = index.getLong(H_DATA_END);
+            long off = end;
+            long chunkSize = 1L << chunkBits;
+            if((off & (chunkSize - 1)) + size > chunkSize)
+                off = (off | (chunkSize - 1)) + 1;
+            long garbage = index.getLong(H_GARBAGE) + (off - end);
+            long count = index.getLong(H_COUNT);
+            long next;
+            if(cur != 0) {
+                next = data(cur).getLong(pos(cur) + R_NEXT);
+                garbage += recordSize(cur);
+            } else {
+                next = index.getLong((int) bucket);
+                count++;
+            }
+
+            Redo change = new Redo();
+            change.record(off, next, h, keyBytes, valueBytes);
+            if(cur != 0 && prev != 0)
+                change.putLong(TO_DATA, prev + R_NEXT, off);
+            else
+                change.putLong(TO_INDEX, bucket, off);
+            change.putLong(TO_INDEX, H_DATA_END, off + size);
+            change.putLong(TO_INDEX, H_COUNT, count);
+            change.putLong(TO_INDEX, H_GARBAGE, garbage);
+            commit(change);
+        } finally {
+            writers.unlock();
+        }
+    }
+
+    /**
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    @Override
+    public String get(String key) throws KVException {
+        String value = lookup(key);
+        if(value == null)
+            throw new KVException(ERROR_NO_SUCH_KEY);
+        return value;
+    }
+
+    /**
+     * @return the value, or null if key does not exist in store
+     */
+    @Override
+    public String lookup(String key) {
+        byte[] keyBytes = key.getBytes(UTF8);
+        int h = hash(key);
+        lock.readLock().lock();
+        try {
+            long cur = index.getLong((int) bucket(h));
+            while(cur != 0) {
+                if(matches(cur, h, keyBytes)) {
+                    ByteBuffer chunk = data(cur);
+                    int p = pos(cur);
+                    return read(chunk, p + RECORD_HEADER + chunk.getInt(p + R_KEY_LENGTH),
+                        chunk.getInt(p + R_VALUE_LENGTH));
+                }
+                cur = data(cur).getLong(pos(cur) + R_NEXT);
+            }
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in
+     *         store, or ERROR_STORAGE if the delete cannot be logged
+     */
+    @Override
+    public void del(String key) throws KVException {
+        if(!remove(key))
+            throw new KVException(ERROR_NO_SUCH_KEY);
+    }
+
+    /**
+     * @return false if key does not exist in store
+     * @throws KVException with ERROR_STORAGE if the delete cannot be logged
+     */
+    @Override
+    public boolean remove(String key) throws KVException {
+        byte[] keyBytes = key.getBytes(UTF8);
+        int h = hash(key);
+        writers.lock();
+        try {
+            long bucket = bucket(h);
+            long prev = 0;
+            long cur = index.getLong((int) bucket);
+            while(cur != 0 && !matches(cur, h, keyBytes)) {
+                prev = cur;
+                cur = data(cur).getLong(pos(cur) + R_NEXT);
+            }
+            if(cur == 0)
+                return false;
+            long next = data(cur).getLong(pos(cur) + R_NEXT);
+            Redo change = new Redo();
+            if(prev != 0)
+                change.putLong(TO_DATA, prev + R_NEXT, next);
+            else
+                change.putLong(TO_INDEX, bucket, next);
+            change.putLong(TO_INDEX, H_COUNT, index.getLong(H_COUNT) - 1);
+            change.putLong(TO_INDEX, H_GARBAGE, index.getLong(H_GARBAGE) + recordSize(cur));
+            commit(change);
+            return true;
+        } catch(KVStore.StorageException e) {
+            throw new KVException(ERROR_STORAGE);
+        } finally {
+            writers.unlock();
+        }
+    }
+
+    /**
+     * @return the keys, copied out a batch of buckets at a time
+     */
+    @Override
+    public Iterable<String> keys() {
+        return new Iterable<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                return new KeyIterator();
+            }
+        };
+    }
+
+    @Override
+    public long size() {
+        lock.readLock().lock();
+        try {
+            return index.getLong(H_COUNT);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return bytes of data taken by records that were overwritten or
+     *         deleted, or skipped at the end of a chunk
+     */
+    public long getGarbageBytes() {
+        lock.readLock().lock();
+        try {
+            return index.getLong(H_GARBAGE);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Force the mapped files to disk and start a new redo log generation,
+     * deleting the older ones.
+     *
+     * @throws KVException with ERROR_STORAGE if the files cannot be forced
+     */
+    public void sync() throws KVException {
+        writers.lock();
+        try {
+            checkpoint();
+        } catch(IOException e) {
+            throw new KVException(ERROR_STORAGE);
+        } finally {
+            writers.unlock();
+        }
+    }
+
+    /**
+     * Force the files to disk, delete the redo log, and close them. The
+     * store cannot be used after close.
+     *
+     * @throws KVException with ERROR_STORAGE if the files cannot be forced
+     */
+    @Override
+    public void close() throws KVException {
+        writers.lock();
+        lock.writeLock().lock();
+        try {
+            if(index == null)
+                return;
+            index.force();
+            for(MappedByteBuffer chunk : chunks)
+                chunk.force();
+            if(redo != null)
+                redo.close();
+            /* Everything is on disk, so the next open has nothing to replay. */
+            for(long gen : generations())
+                redoFile(gen).delete();
+        } catch(IOException e) {
+            throw new KVException(ERROR_STORAGE);
+        } finally {
+            closeFiles();
+            lock.writeLock().unlock();
+            writers.unlock();
+        }
+    }
+
+    private void closeFiles() {
+        index = null;
+        chunks.clear();
+        try {
+            if(indexFile != null)
+                indexFile.close();
+        } catch(IOException e) {}
+        try {
+            if(dataFile != null)
+                dataFile.close();
+        } catch(IOException e) {}
+    }
+
+    @Override
+    public String toString() {
+        return "MappedStore[" + dir + ", keys=" + size() + "]";
+    }
+
+    /*
+     * Caller holds writers, so nothing changes the maps while they are
+     * forced, and reads carry on.
+     */
+    private void checkpoint() throws IOException {
+        index.force();
+        for(MappedByteBuffer chunk : chunks)
+            chunk.force();
+        if(redo != null)
+            redo.close();
+        redo = new RecordLog(redoFile(generation), policy, null);
+        for(long gen : generations()) {
+            if(gen < generation)
+                redoFile(gen).delete();
+        }
+        generation++;
+    }
+
+    /*
+     * Log a change, then make it. Caller holds writers; reads wait only
+     * for the change to be copied in, not for it to be logged.
+     */
+    private void commit(Redo change) {
+        byte[] payload = change.bytes();
+        try {
+            redo.append(payload, 0, payload.length);
+            lock.writeLock().lock();
+            try {
+                apply(payload);
+            } finally {
+                lock.writeLock().unlock();
+            }
+            if(redo.size() >= checkpointBytes)
+                checkpoint();
+        } catch(IOException e) {
+            throw new KVStore.StorageException(e);
+        }
+    }
+
+    /* Make the writes a redo entry lists. */
+    private void apply(byte[] payload) throws IOException {
+        ByteBuffer in = ByteBuffer.wrap(payload);
+        while(in.hasRemaining()) {
+            byte target = in.get();
+            long off = in.getLong();
+            int length = in.getInt();
+            if(length < 0 || length > in.remaining())
+                throw new IOException("malformed redo entry");
+            ByteBuffer src = in.slice();
+            src.limit(length);
+            in.position(in.position() + length);
+            ByteBuffer dst;
+            if(target == TO_INDEX) {
+                if(off < 0 || off + length > index.capacity())
+                    throw new IOException("malformed redo entry");
+                dst = index.duplicate();
+                dst.position((int) off);
+            } else if(target == TO_DATA) {
+                if(off <= 0)
+                    throw new IOException("malformed redo entry");
+                ensureMapped(off + length);
+                dst = data(off).duplicate();
+                dst.position(pos(off));
+                if(length > dst.remaining())
+                    throw new IOException("malformed redo entry");
+            } else {
+                throw new IOException("malformed redo entry");
+            }
+            dst.put(src);
+        }
+    }
+
+    private long bucket(int h) {
+        return HEADER_BYTES + 8L * (h & ((1 << bucketBits) - 1));
+    }
+
+    private ByteBuffer data(long off) {
+        return chunks.get((int) (off >>> chunkBits));
+    }
+
+    private int pos(long off) {
+        return (int) (off & ((1L << chunkBits) - 1));
+    }
+
+    private long recordSize(long off) {
+        ByteBuffer chunk = data(off);
+        int p = pos(off);
+        return RECORD_HEADER + chunk.getInt(p + R_KEY_LENGTH) + chunk.getInt(p + R_VALUE_LENGTH);
+    }
+
+    private boolean matches(long off, int h, byte[] key) {
+        ByteBuffer chunk = data(off);
+        int p = pos(off);
+        if(chunk.getInt(p + R_HASH) != h || chunk.getInt(p + R_KEY_LENGTH) != key.length)
+            return false;
+        p += RECORD_HEADER;
+        for(int i = 0; i < key.length; i++) {
+            if(chunk.get(p + i) != key[i])
+                return false;
+        }
+        return true;
+    }
+
+    private static String read(ByteBuffer chunk, int p, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer dup = chunk.duplicate();
+        dup.position(p);
+        dup.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    /* The MurmurHash3 32-bit finalizer; String.hashCode is stable across JVMs. */
+    private static int hash(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    /**
+     * @return generations of the redo files in the directory, in order
+     */
+    private List<Long> generations() {
+        List<Long> gens = new ArrayList<Long>();
+        String[] names = dir.list();
+        if(names != null) {
+            for(String name : names) {
+                if(!name.startsWith(REDO_PREFIX))
+                    continue;
+                try {
+                    gens.add(Long.parseLong(name.substring(REDO_PREFIX.length())));
+                } catch(NumberFormatException e) {}
+            }
+        }
+        Collections.sort(gens);
+        return gens;
+    }
+
+    private File redoFile(long gen) {
+        return new File(dir, REDO_PREFIX + gen);
+    }
+
+    /**
+     * The writes one change makes, each laid out as
+     *
+     *   byte file | long offset | int length | bytes
+     */
+    private static class Redo {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private final DataOutputStream out = new DataOutputStream(bytes);
+
+        void putLong(byte target, long off, long value) {
+            try {
+                out.writeByte(target);
+                out.writeLong(off);
+                out.writeInt(8);
+                out.writeLong(value);
+            } catch(IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        void record(long off, long next, int h, byte[] key, byte[] value) {
+            try {
+                out.writeByte(TO_DATA);
+                out.writeLong(off);
+                out.writeInt(RECORD_HEADER + key.length + value.length);
+                out.writeLong(next);
+                out.writeInt(h);
+                out.writeInt(key.length);
+                out.writeInt(value.length);
+                out.write(key);
+                out.write(value);
+            } catch(IOException e) {
+                throw new AssertionError(e);
+            }
+        }
+
+        byte[] bytes() {
+            return bytes.toByteArray();
+        }
+    }
+
+    private class KeyIterator implements Iterator<String> {
+        private long nextBucket = 0;
+        private Iterator<String> current = null;
+
+        @Override
+        public boolean hasNext() {
+            while(current == null || !current.hasNext()) {
+                List<String> batch = new ArrayList<String>();
+                lock.readLock().lock();
+                try {
+                    long buckets = 1L << bucketBits;
+                    if(nextBucket >= buckets)
+                        return false;
+                    while(nextBucket < buckets && batch.size() < KEYS_PER_BATCH) {
+                        long cur = index.getLong((int) bucket((int) nextBucket++));
+                        while(cur != 0) {
+                            ByteBuffer chunk = data(cur);
+                            int p = pos(cur);
+                            batch.add(read(chunk, p + RECORD_HEADER, chunk.getInt(p + R_KEY_LENGTH)));
+                            cur = chunk.getLong(p + R_NEXT);
+                        }
+                    }
+                } finally {
+                    lock.readLock().unlock();
+                }
+                current = batch.iterator();
+            }
+            return true;
+        }
+
+        @Override
+        public String next() {
+            if(!hasNext())
+                throw new NoSuchElementException();
+            return current.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package kvstore;
+
+/**
+ * Interface for handlers that work on parsed requests rather than sockets.
+ * Used by servers that do their own I/O and only hand complete requests to
+ * the handler, such as NioSocketServer.
+ */
+public interface MessageHandler {
+
+    /**
+     * Carries out a request and returns the response to send back. Must not
+     * block on network I/O, and must turn errors into an error response
+     * rather than throwing.
+     *
+     * @param request parsed KVMessage from a client
+     * @return KVMessage to send back to the client
+     */
+    public KVMessage process(KVMessage request);
+
+}
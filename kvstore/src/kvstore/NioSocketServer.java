@@ -0,0 +1,423 @@
+package kvstore;
+
+import static kvstore.KVConstants.ERROR_INVALID_FORMAT;
+import static kvstore.KVConstants.ERROR_PARSER;
+import static kvstore.KVConstants.ERROR_SERVER_FAILURE;
+import static kvstore.KVConstants.RESP;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A SocketServer that does all of its network I/O on one selector thread.
+ * Connections are accepted and read without blocking; complete requests are
+ * parsed straight out of each connection's ByteBuffer and only then handed to
+ * a MessageHandler on the thread pool. An idle or slow client therefore costs
+ * a buffer rather than a thread.
+ *
+ * Binary clients may pipeline any number of frames on one connection. Their
+ * requests are processed one at a time and answered in order; a request whose
+ * handler throws is answered with ERROR_SERVER_FAILURE. A frame that cannot
+ * be decoded is answered with ERROR_PARSER and its connection closed; a
+ * failure on one connection never stops the others being served. A
+ * connection is not read while MAX_PENDING requests or OUT_HIGH_WATER bytes
+ * of responses are queued, so a client that stops reading cannot grow the
+ * server's memory.
+ * XML clients are served as before: the request runs until the client
+ * half-closes, gets one response, and the connection is closed once that
+ * response is written.
+ */
+public class NioSocketServer extends SocketServer {
+
+    /* Stop reading from a connection with this many requests queued. */
+    public static final int MAX_PENDING = 1024;
+
+    /* Stop reading from a connection with this many response bytes unsent. */
+    public static final int OUT_HIGH_WATER = 1024 * 1024;
+
+    private static final int INITIAL_BUFFER = 8 * 1024;
+
+    private final ThreadPool workers;
+    private MessageHandler messageHandler;
+    private ServerSocketChannel channel;
+    private Selector selector;
+
+    /* Work that must run on the selector thread, such as interest changes. */
+    private final ConcurrentLinkedQueue<Runnable> selectorTasks =
+        new ConcurrentLinkedQueue<Runnable>();
+
+    /**
+     * Construct a NioSocketServer listening on the port passed in.
+     *
+     * @param hostname hostname to bind to
+     * @param port port on which to listen for connections, 0 for any
+     * @param workers number of threads that run requests
+     */
+    public NioSocketServer(String hostname, int port, int workers) {
+        super(hostname, port);
+        this.workers = new ThreadPool(workers);
+    }
+
+    /**
+     * Set the handler that requests are dispatched to.
+     *
+     * @param handler logic for servicing a request
+     */
+    public void setMessageHandler(MessageHandler handler) {
+        this.messageHandler = handler;
+    }
+
+    /**
+     * Add the network handler for this socket server. It must also be a
+     * MessageHandler, since this server never hands out sockets.
+     *
+     * @param handler is logic for servicing a request
+     */
+    @Override
+    public void addHandler(NetworkHandler handler) {
+        if(!(handler instanceof MessageHandler))
+            throw new IllegalArgumentException("handler must be a MessageHandler");
+        super.addHandler(handler);
+        setMessageHandler((MessageHandler) handler);
+    }
+
+    /**
+     * Opens a non-blocking ServerSocketChannel and binds it to an endpoint.
+     *
+     * @throws IOException if unable to create and bind the channel
+     */
+    @Override
+    public void connect() throws IOException {
+        selector = Selector.open();
+        channel = ServerSocketChannel.open();
+        channel.configureBlocking(false);
+        channel.socket().bind(
+            new InetSocketAddress(InetAddress.getByName(hostname), port));
+        server = channel.socket();
+        if(port == 0)
+            port = server.getLocalPort();
+        channel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Run the selector loop until stop() is called. Returns within TIMEOUT
+     * milliseconds of a call to stop(), closing every connection.
+     *
+     * @throws IOException if the selector fails
+     */
+    @Override
+    public void start() throws IOException {
+        try {
+            while(!stopped) {
+                selector.select(TIMEOUT);
+                Runnable task;
+                while((task = selectorTasks.poll()) != null)
+                    task.run();
+                Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+                while(it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if(!key.isValid())
+                        continue;
+                    try {
+                        if(key.isAcceptable())
+                            accept();
+                        if(key.isValid() && key.isReadable())
+                            ((Connection) key.attachment()).read();
+                        if(key.isValid() && key.isWritable())
+                            ((Connection) key.attachment()).write();
+                    } catch(IOException e) {
+                        if(key.attachment() != null)
+                            ((Connection) key.attachment()).close();
+                    } catch(RuntimeException e) {
+                        /* A bug reached by one client costs only its connection. */
+                        System.out.println("Connection failed: " + e.toString());
+                        if(key.attachment() != null)
+                            ((Connection) key.attachment()).close();
+                    }
+                }
+            }
+        } finally {
+            for(SelectionKey key : selector.keys()) {
+                try {
+                    key.channel().close();
+                } catch(IOException e) {}
+            }
+            selector.close();
+        }
+    }
+
+    private void accept() throws IOException {
+        SocketChannel sc;
+        while((sc = channel.accept()) != null) {
+            sc.configureBlocking(false);
+            sc.socket().setTcpNoDelay(true);
+            SelectionKey key = sc.register(selector, SelectionKey.OP_READ);
+            key.attach(new Connection(sc, key));
+        }
+    }
+
+    /**
+     * Runs a task on the selector thread at its next wakeup.
+     */
+    private void onSelectorThread(Runnable task) {
+        selectorTasks.add(task);
+        selector.wakeup();
+    }
+
+    /**
+     * Per-connection state. Everything except the pending queue and the busy
+     * flag is only touched by the selector thread.
+     */
+    private class Connection {
+        private final SocketChannel sc;
+        private final SelectionKey key;
+        private ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER);
+        private final LinkedList<ByteBuffer> out = new LinkedList<ByteBuffer>();
+        private long outBytes = 0;
+        private boolean started = false;
+        private boolean xml = false;
+        private boolean inputClosed = false;
+
+        /* Guarded by this. */
+        private final LinkedList<KVMessage> pending = new LinkedList<KVMessage>();
+        private boolean busy = false;
+
+        Connection(SocketChannel sc, SelectionKey key) {
+            this.sc = sc;
+            this.key = key;
+        }
+
+        void read() throws IOException {
+            while((key.interestOps() & SelectionKey.OP_READ) != 0) {
+                if(!in.hasRemaining()) {
+                    parse();
+                    if(!in.hasRemaining())
+                        grow();
+                }
+                int n = sc.read(in);
+                if(n < 0) {
+                    inputClosed = true;
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+                    break;
+                }
+                if(n == 0)
+                    break;
+            }
+            parse();
+            closeIfDone();
+        }
+
+        private void grow() throws IOException {
+            if(in.capacity() > KVBinaryCodec.MAX_FRAME_SIZE)
+                throw new IOException("request too large");
+            ByteBuffer bigger = ByteBuffer.allocate(in.capacity() * 2);
+            in.flip();
+            bigger.put(in);
+            in = bigger;
+        }
+
+        private void parse() {
+            in.flip();
+            try {
+                if(!started && in.hasRemaining()) {
+                    started = true;
+                    xml = (in.get(0) & 0xff) != KVBinaryCodec.MAGIC;
+                }
+                if(xml) {
+                    /* An XML request ends only when the client half-closes. */
+                    if(inputClosed) {
+                        byte[] doc = new byte[in.remaining()];
+                        in.get(doc);
+                        enqueue(parseXML(doc));
+                    }
+                    return;
+                }
+                while(in.hasRemaining()) {
+                    KVMessage msg;
+                    try {
+                        msg = KVBinaryCodec.decode(in);
+                    } catch(KVException e) {
+                        if(!ERROR_INVALID_FORMAT.equals(e.getMessage()))
+                            throw e;
+                        /* The frame was consumed; answer it in its turn. */
+                        msg = e.getKVMessage();
+                        msg.setFormat(KVMessage.Format.BINARY);
+                    }
+                    if(msg == null)
+                        break;
+                    enqueue(msg);
+                }
+            } catch(KVException e) {
+                hangUp(e.getKVMessage());
+            } catch(RuntimeException e) {
+                hangUp(new KVMessage(RESP, ERROR_PARSER));
+            } finally {
+                in.compact();
+            }
+        }
+
+        /* Framing is lost; answer with the error and hang up. */
+        private void hangUp(KVMessage error) {
+            in.clear().flip();
+            inputClosed = true;
+            queueWrite(error, KVMessage.Format.BINARY);
+        }
+
+        private KVMessage parseXML(byte[] doc) {
+            try {
+                KVMessage msg = KVMessage.readNext(new ByteArrayInputStream(doc));
+                return (msg == null) ? new KVMessage(RESP, ERROR_PARSER) : msg;
+            } catch(KVException e) {
+                return e.getKVMessage();
+            }
+        }
+
+        private synchronized boolean busy() {
+            return busy || !pending.isEmpty();
+        }
+
+        private void enqueue(KVMessage msg) {
+            boolean submit;
+            synchronized(this) {
+                pending.add(msg);
+                submit = !busy;
+                busy = true;
+                if(pending.size() >= MAX_PENDING)
+                    key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            }
+            if(submit)
+                dispatch();
+        }
+
+        private void dispatch() {
+            try {
+                workers.addJob(new Runnable() {
+                    @Override
+                    public void run() {
+                        drain();
+                    }
+                });
+            } catch(InterruptedException e) {}
+        }
+
+        /* Runs on a worker: answer queued requests in arrival order. */
+        private void drain() {
+            while(true) {
+                final KVMessage req;
+                synchronized(this) {
+                    req = pending.poll();
+                    if(req == null) {
+                        busy = false;
+                        break;
+                    }
+                }
+                final KVMessage resp = answer(req);
+                onSelectorThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        if(!key.isValid())
+                            return;
+                        queueWrite(resp, req.getFormat());
+                    }
+                });
+            }
+            onSelectorThread(new Runnable() {
+                @Override
+                public void run() {
+                    closeIfDone();
+                }
+            });
+        }
+
+        /* Every request gets a response, even if its handler throws. */
+        private KVMessage answer(KVMessage req) {
+            /* A client never sends a RESP; one queued here is the error for
+             * a request that could not be parsed. */
+            if(RESP.equals(req.getMsgType()))
+                return req;
+            try {
+                return messageHandler.process(req);
+            } catch(RuntimeException e) {
+                System.out.println("Request failed: " + e.toString());
+                return new KVMessage(RESP, ERROR_SERVER_FAILURE);
+            }
+        }
+
+        /* Selector thread only. */
+        private void queueWrite(KVMessage resp, KVMessage.Format format) {
+            try {
+                byte[] bytes = (format == KVMessage.Format.BINARY)
+                    ? resp.toBinary() : resp.toXML().getBytes("UTF-8");
+                out.add(ByteBuffer.wrap(bytes));
+                outBytes += bytes.length;
+            } catch(Exception e) {
+                close();
+                return;
+            }
+            try {
+                write();
+            } catch(IOException e) {
+                close();
+            }
+        }
+
+        void write() throws IOException {
+            while(!out.isEmpty()) {
+                ByteBuffer buf = out.getFirst();
+                sc.write(buf);
+                if(buf.hasRemaining())
+                    break;
+                outBytes -= buf.capacity();
+                out.removeFirst();
+            }
+            if(!key.isValid())
+                return;
+            if(out.isEmpty())
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+            else
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE);
+            /* A client that does not read its responses gets no more read. */
+            if(outBytes >= OUT_HIGH_WATER)
+                key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+            else
+                resumeReading();
+            closeIfDone();
+        }
+
+        /* Read again unless input is over or requests or responses are
+         * backed up. */
+        private void resumeReading() {
+            if(inputClosed)
+                return;
+            synchronized(this) {
+                if(pending.size() >= MAX_PENDING)
+                    return;
+            }
+            key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+        }
+
+        /* Close once the client is done sending and everything is answered. */
+        private void closeIfDone() {
+            if(key.isValid() && inputClosed && out.isEmpty() && !busy())
+                close();
+        }
+
+        void close() {
+            key.cancel();
+            try {
+                sc.close();
+            } catch(IOException e) {}
+        }
+    }
+}
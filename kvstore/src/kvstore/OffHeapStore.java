@@ -0,0 +1,574 @@
+package kvstore;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A StorageEngine that keeps keys and values outside the Java heap, so the
+ * garbage collector never has to trace or copy them however much data is
+ * stored.
+ *
+ * Keys are spread over segments, each guarded by a read-write lock. A
+ * segment appends records of the form
+ *
+ *   hash | keyLength | valueLength | key | value
+ *
+ * (three ints, then UTF-8 bytes) to fixed-size slabs of direct memory, and
+ * finds them through an open-addressing table held in two primitive arrays:
+ * the key's hash, and a reference made of the slab's number and the
+ * record's offset in it. Overwriting or deleting a key leaves its old
+ * record behind as garbage. Once less than half of a full slab is live,
+ * its live records are copied to the slab being filled and the slab is
+ * freed; a few freed slabs are kept for reuse. Each compaction copies at
+ * most half a slab, so no write ever pauses for longer than that.
+ *
+ * A record larger than a slab gets a slab of its own, freed when the record
+ * is.
+ */
+public class OffHeapStore implements StorageEngine {
+
+    public static final int DEFAULT_SLAB_BYTES = 4 * 1024 * 1024;
+    public static final int DEFAULT_SEGMENTS = 16;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int HEADER = 12;
+    private static final int INITIAL_CAPACITY = 64;
+    /* Freed slabs each segment keeps instead of returning them. */
+    private static final int FREE_SLABS_KEPT = 2;
+    /* refs[] entries: 0 is an empty slot, TOMBSTONE a deleted one. */
+    private static final long TOMBSTONE = -1;
+
+    private final Segment[] segments;
+    private final int slabBytes;
+    private final long maxBytes;
+    /* Bytes of direct memory held, including freed slabs kept for reuse. */
+    private final AtomicLong allocated = new AtomicLong();
+
+    /**
+     * Construct a store with no limit on its size.
+     */
+    public OffHeapStore() {
+        this(Long.MAX_VALUE, DEFAULT_SLAB_BYTES, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * @param maxBytes most direct memory the store may hold; a put that
+     *        needs more fails
+     * @param slabBytes size of each slab
+     * @param segments number of independently locked segments, a power of
+     *        two
+     */
+    public OffHeapStore(long maxBytes, int slabBytes, int segments) {
+        if(slabBytes < 1024)
+            throw new IllegalArgumentException("slabBytes must be at least 1024");
+        if(segments < 1 || segments > 256 || Integer.bitCount(segments) != 1)
+            throw new IllegalArgumentException("segments must be a power of two up to 256");
+        this.maxBytes = maxBytes;
+        this.slabBytes = slabBytes;
+        this.segments = new Segment[segments];
+        for(int i = 0; i < segments; i++)
+            this.segments[i] = new Segment();
+    }
+
+    /**
+     * Insert key, value pair into the store.
+     *
+     * @param  key String key
+     * @param  value String value
+     * @throws KVStore.StorageException if the store is full
+     */
+    @Override
+    public void put(String key, String value) {
+        int h = hash(key);
+        byte[] keyBytes = key.getBytes(UTF8);
+        byte[] valueBytes = value.getBytes(UTF8);
+        Segment segment = segmentFor(h);
+        segment.lock.writeLock().lock();
+        try {
+            segment.put(h, keyBytes, valueBytes);
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    @Override
+    public String get(String key) throws KVException {
+        String value = lookup(key);
+        if(value == null)
+            throw new KVException(KVConstants.ERROR_NO_SUCH_KEY);
+        return value;
+    }
+
+    /**
+     * @return the value, or null if key does not exist in store
+     */
+    @Override
+    public String lookup(String key) {
+        int h = hash(key);
+        byte[] keyBytes = key.getBytes(UTF8);
+        Segment segment = segmentFor(h);
+        segment.lock.readLock().lock();
+        try {
+            int slot = segment.find(h, keyBytes);
+            return (slot < 0) ? null : segment.value(segment.refs[slot]);
+        } finally {
+            segment.lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @throws KVException with ERROR_NO_SUCH_KEY if key does not exist in store
+     */
+    @Override
+    public void del(String key) throws KVException {
+        if(!remove(key))
+            throw new KVException(KVConstants.ERROR_NO_SUCH_KEY);
+    }
+
+    /**
+     * @return false if key does not exist in store
+     */
+    @Override
+    public boolean remove(String key) {
+        int h = hash(key);
+        byte[] keyBytes = key.getBytes(UTF8);
+        Segment segment = segmentFor(h);
+        segment.lock.writeLock().lock();
+        try {
+            return segment.remove(h, keyBytes);
+        } finally {
+            segment.lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return the keys, copied out one segment at a time
+     */
+    @Override
+    public Iterable<String> keys() {
+        return new Iterable<String>() {
+            @Override
+            public Iterator<String> iterator() {
+                return new KeyIterator();
+            }
+        };
+    }
+
+    @Override
+    public long size() {
+        long n = 0;
+        for(Segment segment : segments)
+            n += segment.count;
+        return n;
+    }
+
+    /**
+     * @return bytes of direct memory the store holds
+     */
+    public long getAllocatedBytes() {
+        return allocated.get();
+    }
+
+    /**
+     * @return bytes taken by the records of keys still in the store
+     */
+    public long getLiveBytes() {
+        long n = 0;
+        for(Segment segment : segments)
+            n += segment.liveBytes;
+        return n;
+    }
+
+    /**
+     * Remove every key and give up all slabs.
+     */
+    public void clear() {
+        for(Segment segment : segments) {
+            segment.lock.writeLock().lock();
+            try {
+                segment.reset();
+            } finally {
+                segment.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /**
+     * Same as clear; the store stays usable.
+     */
+    @Override
+    public void close() {
+        clear();
+    }
+
+    @Override
+    public String toString() {
+        return "OffHeapStore[keys=" + size() + ", live=" + getLiveBytes()
+            + ", allocated=" + getAllocatedBytes() + "]";
+    }
+
+    private Segment segmentFor(int h) {
+        return segments[(h >>> 24) & (segments.length - 1)];
+    }
+
+    /* The MurmurHash3 32-bit finalizer. */
+    private static int hash(String key) {
+        int h = key.hashCode();
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        h *= 0xc2b2ae35;
+        h ^= h >>> 16;
+        return h;
+    }
+
+    private static final class Slab {
+        final int id;
+        final ByteBuffer buf;
+        /* Bytes appended so far, and how many of them are still live. */
+        int used = 0;
+        int live = 0;
+
+        Slab(int id, ByteBuffer buf) {
+            this.id = id;
+            this.buf = buf;
+        }
+    }
+
+    /**
+     * One lock's worth of keys. Reads hold the read lock, everything else
+     * the write lock.
+     */
+    private final class Segment {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        int[] hashes;
+        long[] refs;
+        volatile int count;
+        int tombstones;
+        volatile long liveBytes;
+        /* Indexed by slab number; 0 is never used, so no ref is 0. */
+        Slab[] slabs;
+        int nextID;
+        final ArrayDeque<Integer> freeIDs = new ArrayDeque<Integer>();
+        final ArrayDeque<ByteBuffer> freeBuffers = new ArrayDeque<ByteBuffer>();
+        /* The slab records are appended to. */
+        Slab head;
+
+        Segment() {
+            reset();
+        }
+
+        void reset() {
+            if(slabs != null) {
+                long held = 0;
+                for(Slab slab : slabs) {
+                    if(slab != null)
+                        held += slab.buf.capacity();
+                }
+                for(ByteBuffer buf : freeBuffers)
+                    held += buf.capacity();
+                allocated.addAndGet(-held);
+            }
+            hashes = new int[INITIAL_CAPACITY];
+            refs = new long[INITIAL_CAPACITY];
+            count = 0;
+            tombstones = 0;
+            liveBytes = 0;
+            slabs = new Slab[8];
+            nextID = 1;
+            freeIDs.clear();
+            freeBuffers.clear();
+            head = null;
+        }
+
+        /**
+         * @return slot holding key, or -1
+         */
+        int find(int h, byte[] key) {
+            int mask = refs.length - 1;
+            for(int i = h & mask; ; i = (i + 1) & mask) {
+                long ref = refs[i];
+                if(ref == 0)
+                    return -1;
+                if(ref != TOMBSTONE && hashes[i] == h && keyEquals(ref, key))
+                    return i;
+            }
+        }
+
+        /**
+         * @return slot whose reference is ref, or -1 if the record is dead
+         */
+        int slotOf(int h, long ref) {
+            int mask = refs.length - 1;
+            for(int i = h & mask; refs[i] != 0; i = (i + 1) & mask) {
+                if(refs[i] == ref)
+                    return i;
+            }
+            return -1;
+        }
+
+        void put(int h, byte[] key, byte[] value) {
+            long ref = append(h, key, value);
+            int slot = find(h, key);
+            if(slot >= 0) {
+                long old = refs[slot];
+                refs[slot] = ref;
+                release(old);
+                return;
+            }
+            if((count + tombstones + 1) * 4L > refs.length * 3L)
+                rehash();
+            int mask = refs.length - 1;
+            int i = h & mask;
+            while(refs[i] != 0 && refs[i] != TOMBSTONE)
+                i = (i + 1) & mask;
+            if(refs[i] == TOMBSTONE)
+                tombstones--;
+            hashes[i] = h;
+            refs[i] = ref;
+            count++;
+        }
+
+        boolean remove(int h, byte[] key) {
+            int slot = find(h, key);
+            if(slot < 0)
+                return false;
+            long old = refs[slot];
+            refs[slot] = TOMBSTONE;
+            tombstones++;
+            count--;
+            release(old);
+            return true;
+        }
+
+        /* Grow to twice the live keys, dropping tombstones. */
+        void rehash() {
+            int capacity = INITIAL_CAPACITY;
+            while(capacity < (count + 1) * 2)
+                capacity *= 2;
+            int[] oldHashes = hashes;
+            long[] oldRefs = refs;
+            hashes = new int[capacity];
+            refs = new long[capacity];
+            tombstones = 0;
+            int mask = capacity - 1;
+            for(int j = 0; j < oldRefs.length; j++) {
+                long ref = oldRefs[j];
+                if(ref == 0 || ref == TOMBSTONE)
+                    continue;
+                int i = oldHashes[j] & mask;
+                while(refs[i] != 0)
+                    i = (i + 1) & mask;
+                hashes[i] = oldHashes[j];
+                refs[i] = ref;
+            }
+        }
+
+        /**
+         * @return reference to a new record
+         * @throws KVStore.StorageException if no slab can be had for it
+         */
+        long append(int h, byte[] key, byte[] value) {
+            int size = HEADER + key.length + value.length;
+            Slab slab;
+            if(size > slabBytes) {
+                slab = newSlab(size);
+            } else {
+                if(head == null || head.buf.capacity() - head.used < size) {
+                    Slab full = head;
+                    head = newSlab(slabBytes);
+                    /* Garbage left while it was the head is only seen now. */
+                    if(full != null && full.live * 2L < full.buf.capacity())
+                        compact(full);
+                    if(head.buf.capacity() - head.used < size)
+                        head = newSlab(slabBytes);
+                }
+                slab = head;
+            }
+            int off = slab.used;
+            ByteBuffer buf = slab.buf;
+            buf.putInt(off, h);
+            buf.putInt(off + 4, key.length);
+            buf.putInt(off + 8, value.length);
+            ByteBuffer dup = buf.duplicate();
+            dup.position(off + HEADER);
+            dup.put(key);
+            dup.put(value);
+            slab.used += size;
+            slab.live += size;
+            liveBytes += size;
+            return ((long) slab.id << 32) | off;
+        }
+
+        /* Account for a record that is no longer reachable. */
+        void release(long ref) {
+            Slab slab = slabs[(int) (ref >>> 32)];
+            int off = (int) ref;
+            int size = HEADER + slab.buf.getInt(off + 4) + slab.buf.getInt(off + 8);
+            slab.live -= size;
+            liveBytes -= size;
+            if(slab != head && slab.live * 2L < slab.buf.capacity())
+                compact(slab);
+        }
+
+        /*
+         * Move the live records out of slab and free it. If no slab can be
+         * had for them, stop; the rest are moved when the slab next loses a
+         * record.
+         */
+        void compact(Slab slab) {
+            ByteBuffer buf = slab.buf;
+            int off = 0;
+            while(off < slab.used) {
+                int h = buf.getInt(off);
+                int size = HEADER + buf.getInt(off + 4) + buf.getInt(off + 8);
+                int slot = slotOf(h, ((long) slab.id << 32) | off);
+                if(slot >= 0) {
+                    if(head == null || head.buf.capacity() - head.used < size) {
+                        Slab next = tryNewSlab(slabBytes);
+                        if(next == null)
+                            return;
+                        head = next;
+                    }
+                    ByteBuffer src = buf.duplicate();
+                    src.limit(off + size).position(off);
+                    ByteBuffer dst = head.buf.duplicate();
+                    dst.position(head.used);
+                    dst.put(src);
+                    refs[slot] = ((long) head.id << 32) | head.used;
+                    head.used += size;
+                    head.live += size;
+                    slab.live -= size;
+                }
+                off += size;
+            }
+            slabs[slab.id] = null;
+            freeIDs.push(slab.id);
+            if(buf.capacity() == slabBytes && freeBuffers.size() < FREE_SLABS_KEPT)
+                freeBuffers.push(buf);
+            else
+                allocated.addAndGet(-buf.capacity());
+        }
+
+        /**
+         * @throws KVStore.StorageException if the store may not grow
+         */
+        Slab newSlab(int capacity) {
+            Slab slab = tryNewSlab(capacity);
+            if(slab == null)
+                throw new KVStore.StorageException(new OutOfMemoryError("store is full"));
+            return slab;
+        }
+
+        /**
+         * @return a new slab, or null if the store may not grow
+         */
+        Slab tryNewSlab(int capacity) {
+            ByteBuffer buf = (capacity == slabBytes) ? freeBuffers.poll() : null;
+            if(buf == null) {
+                if(allocated.addAndGet(capacity) > maxBytes) {
+                    allocated.addAndGet(-capacity);
+                    return null;
+                }
+                try {
+                    buf = ByteBuffer.allocateDirect(capacity);
+                } catch(OutOfMemoryError e) {
+                    allocated.addAndGet(-capacity);
+                    return null;
+                }
+            }
+            int id = freeIDs.isEmpty() ? nextID++ : freeIDs.pop();
+            if(id >= slabs.length)
+                slabs = Arrays.copyOf(slabs, slabs.length * 2);
+            Slab slab = new Slab(id, buf);
+            slabs[id] = slab;
+            return slab;
+        }
+
+        boolean keyEquals(long ref, byte[] key) {
+            ByteBuffer buf = slabs[(int) (ref >>> 32)].buf;
+            int off = (int) ref;
+            if(buf.getInt(off + 4) != key.length)
+                return false;
+            off += HEADER;
+            for(int i = 0; i < key.length; i++) {
+                if(buf.get(off + i) != key[i])
+                    return false;
+            }
+            return true;
+        }
+
+        String value(long ref) {
+            ByteBuffer buf = slabs[(int) (ref >>> 32)].buf;
+            int off = (int) ref;
+            int keyLength = buf.getInt(off + 4);
+            return read(buf, off + HEADER + keyLength, buf.getInt(off + 8));
+        }
+
+        String key(long ref) {
+            ByteBuffer buf = slabs[(int) (ref >>> 32)].buf;
+            int off = (int) ref;
+            return read(buf, off + HEADER, buf.getInt(off + 4));
+        }
+
+        List<String> keys() {
+            lock.readLock().lock();
+            try {
+                List<String> keys = new ArrayList<String>(count);
+                for(long ref : refs) {
+                    if(ref != 0 && ref != TOMBSTONE)
+                        keys.add(key(ref));
+                }
+                return keys;
+            } finally {
+                lock.readLock().unlock();
+            }
+        }
+    }
+
+    private static String read(ByteBuffer buf, int off, int length) {
+        byte[] bytes = new byte[length];
+        ByteBuffer dup = buf.duplicate();
+        dup.position(off);
+        dup.get(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private class KeyIterator implements Iterator<String> {
+        private int next = 0;
+        private Iterator<String> current = null;
+
+        @Override
+        public boolean hasNext() {
+            while(current == null || !current.hasNext()) {
+                if(next == segments.length)
+                    return false;
+                current = segments[next++].keys().iterator();
+            }
+            return true;
+        }
+
+        @Override
+        public String next() {
+            if(!hasNext())
+                throw new NoSuchElementException();
+            return current.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -0,0 +1,413 @@
+package kvstore;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only file of binary records. Each record is framed as
+ *
+ *   int length | int crc32(payload) | payload
+ *
+ * so a reader can tell where a record ends and whether it was written
+ * completely. A crash can only leave a torn record at the end of the file;
+ * opening the log replays every intact record and cuts the file back to the
+ * end of the last one.
+ *
+ * Appends use group commit. Concurrent appenders copy their records into a
+ * shared buffer, and whichever of them gets there first writes the whole
+ * batch with one write and, if the FsyncPolicy calls for it, one fsync on
+ * behalf of the rest.
+ */
+public class RecordLog implements Closeable {
+
+    /**
+     * When appended records are forced to stable storage.
+     */
+    public enum FsyncPolicy {
+        /** append() returns once the record is on disk. */
+        ALWAYS,
+        /** append() returns once the OS has the record; fsync on a timer. */
+        BATCHED,
+        /** append() returns once the OS has the record; never fsync. */
+        NONE
+    }
+
+    /**
+     * Receives records as a log is replayed.
+     */
+    public interface Visitor {
+        /**
+         * @param  payload the record's payload
+         * @throws IOException to stop the replay
+         */
+        public void record(byte[] payload) throws IOException;
+    }
+
+    /** Records larger than this are refused, and treated as corrupt on replay. */
+    public static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+    /** How often BATCHED forces the log to disk, in milliseconds. */
+    public static final long DEFAULT_BATCH_MILLIS = 10;
+
+    private static final int HEADER_SIZE = 8;
+
+    private final File file;
+    private final FsyncPolicy policy;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+    private Thread syncer;
+
+    /* Everything below is guarded by lock. */
+    private final Object lock = new Object();
+    private Batch pending = new Batch();
+    private Batch spare = new Batch();
+    private long appended = 0;
+    private long written = 0;
+    private long synced = 0;
+    private long size;
+    private boolean flushing = false;
+    private boolean closed = false;
+    private IOException failure = null;
+
+    /**
+     * Opens a log for appending, creating it if it does not exist.
+     *
+     * @param  file the log file
+     * @param  policy when to fsync
+     * @param  replay receives every intact record already in the file, in
+     *         order, before the log is opened; may be null
+     * @throws IOException if the file cannot be read or opened, or replay
+     *         throws
+     */
+    public RecordLog(File file, FsyncPolicy policy, Visitor replay) throws IOException {
+        this(file, policy, replay, DEFAULT_BATCH_MILLIS);
+    }
+
+    /**
+     * Opens a log for appending, creating it if it does not exist.
+     *
+     * @param  file the log file
+     * @param  policy when to fsync
+     * @param  replay receives every intact record already in the file, in
+     *         order, before the log is opened; may be null
+     * @param  batchMillis fsync interval for the BATCHED policy
+     * @throws IOException if the file cannot be read or opened, or replay
+     *         throws
+     */
+    public RecordLog(File file, FsyncPolicy policy, Visitor replay, long batchMillis)
+            throws IOException {
+        this.file = file;
+        this.policy = policy;
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+        try {
+            size = scan(channel, replay);
+            if(size < channel.size()) {
+                channel.truncate(size);
+                channel.force(true);
+            }
+            channel.position(size);
+        } catch(IOException e) {
+            raf.close();
+            throw e;
+        }
+        if(policy == FsyncPolicy.BATCHED)
+            startSyncer(batchMillis);
+    }
+
+    /**
+     * Replays the intact records of a log file without opening it for
+     * appending. A missing file has no records.
+     *
+     * @param  file the log file
+     * @param  visitor receives each record in order
+     * @return length of the intact prefix of the file
+     * @throws IOException if the file cannot be read or visitor throws
+     */
+    public static long replay(File file, Visitor visitor) throws IOException {
+        if(!file.exists())
+            return 0;
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            return scan(in.getChannel(), visitor);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Forces a directory's entries to disk, so a file just created or
+     * renamed into it survives a crash. Platforms that cannot open a
+     * directory, such as Windows, persist renames themselves.
+     *
+     * @param  dir the directory
+     * @throws IOException if the directory was opened but could not be forced
+     */
+    public static void syncDirectory(File dir) throws IOException {
+        FileChannel ch;
+        try {
+            ch = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+        } catch(IOException e) {
+            return;
+        }
+        try {
+            ch.force(true);
+        } finally {
+            ch.close();
+        }
+    }
+
+    private static long scan(FileChannel ch, Visitor visitor) throws IOException {
+        long end = ch.size();
+        long pos = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        CRC32 crc = new CRC32();
+        while(end - pos >= HEADER_SIZE) {
+            header.clear();
+            readFully(ch, header, pos);
+            header.flip();
+            int length = header.getInt();
+            int checksum = header.getInt();
+            if(length < 0 || length > MAX_RECORD_SIZE || length > end - pos - HEADER_SIZE)
+                break;
+            byte[] payload = new byte[length];
+            readFully(ch, ByteBuffer.wrap(payload), pos + HEADER_SIZE);
+            crc.reset();
+            crc.update(payload, 0, length);
+            if((int) crc.getValue() != checksum)
+                break;
+            if(visitor != null)
+                visitor.record(payload);
+            pos += HEADER_SIZE + length;
+        }
+        return pos;
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer buf, long pos)
+            throws IOException {
+        while(buf.hasRemaining()) {
+            int n = ch.read(buf, pos);
+            if(n < 0)
+                throw new EOFException();
+            pos += n;
+        }
+    }
+
+    /**
+     * Appends a record, returning once it is as durable as the FsyncPolicy
+     * requires.
+     *
+     * @param  payload record contents
+     * @throws IOException if the record cannot be written, now or by an
+     *         earlier failed write; the log refuses appends after a failure
+     */
+    public void append(byte[] payload) throws IOException {
+        append(payload, 0, payload.length);
+    }
+
+    /**
+     * Appends a record, returning once it is as durable as the FsyncPolicy
+     * requires.
+     *
+     * @param  payload array holding the record contents
+     * @param  off offset of the first byte of the record
+     * @param  len length of the record
+     * @throws IOException if the record cannot be written, now or by an
+     *         earlier failed write; the log refuses appends after a failure
+     */
+    public void append(byte[] payload, int off, int len) throws IOException {
+        if(len > MAX_RECORD_SIZE)
+            throw new IOException("record too large");
+        long seq;
+        synchronized(lock) {
+            checkUsable();
+            pending.add(payload, off, len);
+            size += HEADER_SIZE + len;
+            seq = ++appended;
+        }
+        commit(seq, policy == FsyncPolicy.ALWAYS);
+    }
+
+    /**
+     * Forces every record appended so far to disk, whatever the policy.
+     *
+     * @throws IOException if the records cannot be written or forced
+     */
+    public void sync() throws IOException {
+        long seq;
+        synchronized(lock) {
+            checkUsable();
+            seq = appended;
+        }
+        commit(seq, true);
+    }
+
+    /**
+     * @return bytes in the log, including records still being written
+     */
+    public long size() {
+        synchronized(lock) {
+            return size;
+        }
+    }
+
+    /**
+     * @return the log file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    private void checkUsable() throws IOException {
+        if(closed)
+            throw new IOException("log is closed");
+        if(failure != null)
+            throw new IOException("log failed earlier", failure);
+    }
+
+    /**
+     * Wait until record seq has been written (and forced, if force is set),
+     * writing the pending batch ourselves if no one else is.
+     */
+    private void commit(long seq, boolean force) throws IOException {
+        Batch batch;
+        long batchEnd;
+        synchronized(lock) {
+            while(true) {
+                if(failure != null)
+                    throw new IOException("log write failed", failure);
+                if(force ? synced >= seq : written >= seq)
+                    return;
+                if(!flushing)
+                    break;
+                try {
+                    lock.wait();
+                } catch(InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            flushing = true;
+            batch = pending;
+            pending = spare;
+            spare = null;
+            batchEnd = appended;
+        }
+        IOException error = null;
+        try {
+            ByteBuffer buf = ByteBuffer.wrap(batch.buf, 0, batch.len);
+            while(buf.hasRemaining())
+                channel.write(buf);
+            if(force)
+                channel.force(false);
+        } catch(IOException e) {
+            error = e;
+        }
+        synchronized(lock) {
+            batch.len = 0;
+            spare = batch;
+            flushing = false;
+            if(error == null) {
+                written = batchEnd;
+                if(force)
+                    synced = batchEnd;
+            } else {
+                failure = error;
+            }
+            lock.notifyAll();
+        }
+        if(error != null)
+            throw error;
+    }
+
+    private void startSyncer(final long millis) {
+        syncer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while(true) {
+                    try {
+                        Thread.sleep(millis);
+                        synchronized(lock) {
+                            if(closed || failure != null)
+                                return;
+                            if(synced == appended)
+                                continue;
+                        }
+                        sync();
+                    } catch(InterruptedException e) {
+                        return;
+                    } catch(IOException e) {
+                        return;
+                    }
+                }
+            }
+        }, "RecordLog-sync-" + file.getName());
+        syncer.setDaemon(true);
+        syncer.start();
+    }
+
+    /**
+     * Forces every appended record to disk and closes the file. Later
+     * appends fail.
+     *
+     * @throws IOException if the final write or fsync fails
+     */
+    @Override
+    public void close() throws IOException {
+        boolean healthy;
+        synchronized(lock) {
+            if(closed)
+                return;
+            healthy = (failure == null);
+        }
+        try {
+            if(healthy)
+                sync();
+        } finally {
+            synchronized(lock) {
+                closed = true;
+            }
+            if(syncer != null)
+                syncer.interrupt();
+            raf.close();
+        }
+    }
+
+    /**
+     * Framed records waiting to be written.
+     */
+    private static class Batch {
+        byte[] buf = new byte[4096];
+        int len = 0;
+        private final CRC32 crc = new CRC32();
+
+        void add(byte[] payload, int off, int n) {
+            int need = len + HEADER_SIZE + n;
+            if(need > buf.length) {
+                byte[] bigger = new byte[Math.max(need, buf.length * 2)];
+                System.arraycopy(buf, 0, bigger, 0, len);
+                buf = bigger;
+            }
+            crc.reset();
+            crc.update(payload, off, n);
+            putInt(n);
+            putInt((int) crc.getValue());
+            System.arraycopy(payload, off, buf, len, n);
+            len += n;
+        }
+
+        private void putInt(int v) {
+            buf[len++] = (byte) (v >>> 24);
+            buf[len++] = (byte) (v >>> 16);
+            buf[len++] = (byte) (v >>> 8);
+            buf[len++] = (byte) v;
+        }
+    }
+}
@@ -0,0 +1,390 @@
+package kvstore;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+/**
+ * An append-only log kept in fixed-size segment files named base.0, base.1,
+ * and so on, each memory-mapped in full. Records are framed as in RecordLog,
+ *
+ *   int length | int crc32(payload) | payload
+ *
+ * and a zero header marks the end of the data in a segment. A record that
+ * does not fit in the rest of a segment starts the next one, which is only
+ * created after the previous one has been forced to disk.
+ *
+ * Every record has a position: its segment number in the high 32 bits and
+ * its offset in the low 32. Opening a log at a position reads only the
+ * segments from there on, so a caller that checkpoints its state and
+ * remembers where the log stood can skip everything before it and delete
+ * the segments it no longer needs with truncateBefore().
+ *
+ * As with RecordLog, concurrent appenders share one force of the mapping.
+ */
+public class SegmentedLog implements Closeable {
+
+    /**
+     * Receives records as a log is replayed.
+     */
+    public interface Visitor {
+        /**
+         * @param  position position of the record
+         * @param  payload the record's payload
+         * @throws IOException to stop the replay
+         */
+        public void record(long position, byte[] payload) throws IOException;
+    }
+
+    /** Size of each segment file. */
+    public static final int DEFAULT_SEGMENT_SIZE = 64 * 1024 * 1024;
+
+    private static final int HEADER_SIZE = 8;
+
+    private final String base;
+    private final int segmentSize;
+    private final boolean force;
+    /* Segment files by number; the last one is being appended to. */
+    private final TreeMap<Long, File> segments = new TreeMap<Long, File>();
+
+    /* Everything below is guarded by lock. */
+    private final Object lock = new Object();
+    private long segment;
+    private MappedByteBuffer map;
+    private int offset;
+    private final CRC32 crc = new CRC32();
+    private long appended = 0;
+    private long synced = 0;
+    private boolean forcing = false;
+    private boolean closed = false;
+
+    /**
+     * Opens a log, replaying every intact record at or after position from.
+     * Segments before from are ignored, and the log is created if there are
+     * none. Records after a torn or corrupt one are discarded.
+     *
+     * @param  base path prefix of the segment files
+     * @param  segmentSize size of each segment, at most 1GB
+     * @param  force whether append() forces records to disk before returning
+     * @param  from position to replay from
+     * @param  replay receives each record in order; may be null
+     * @throws IOException if a segment cannot be read or created, or replay
+     *         throws
+     */
+    public SegmentedLog(String base, int segmentSize, boolean force, long from,
+            Visitor replay) throws IOException {
+        if(segmentSize <= HEADER_SIZE || segmentSize > (1 << 30))
+            throw new IllegalArgumentException("invalid segment size");
+        this.base = base;
+        this.segmentSize = segmentSize;
+        this.force = force;
+        findSegments();
+        recover(from, replay);
+    }
+
+    /**
+     * @return the position a record at segment and offset has
+     */
+    public static long position(long segment, int offset) {
+        return (segment << 32) | (offset & 0xffffffffL);
+    }
+
+    /**
+     * @return the segment number of a position
+     */
+    public static long segmentOf(long position) {
+        return position >>> 32;
+    }
+
+    private static int offsetOf(long position) {
+        return (int) position;
+    }
+
+    private void findSegments() {
+        File dir = new File(base).getAbsoluteFile().getParentFile();
+        String prefix = new File(base).getName() + ".";
+        String[] names = dir.list();
+        if(names == null)
+            return;
+        for(String name : names) {
+            if(!name.startsWith(prefix))
+                continue;
+            try {
+                long n = Long.parseLong(name.substring(prefix.length()));
+                if(n >= 0)
+                    segments.put(n, new File(dir, name));
+            } catch(NumberFormatException e) {}
+        }
+    }
+
+    private void recover(long from, Visitor replay) throws IOException {
+        long first = segmentOf(from);
+        int start = offsetOf(from);
+        boolean intact = true;
+        segment = first;
+        offset = start;
+        for(Map.Entry<Long, File> e : segments.tailMap(first).entrySet()) {
+            long n = e.getKey();
+            if(!intact || n != segment && n != segment + 1) {
+                /* Past the end of the log: left by a crash while rolling. */
+                e.getValue().delete();
+                continue;
+            }
+            MappedByteBuffer buf = map(e.getValue());
+            int end = scan(buf, n, (n == first) ? start : 0, replay);
+            segment = n;
+            offset = end;
+            map = buf;
+            /* A segment ends cleanly in zeros or when the next record won't fit. */
+            if(end + HEADER_SIZE <= segmentSize && buf.getInt(end) != 0)
+                intact = false;
+        }
+        segments.tailMap(segment, false).clear();
+        if(map == null)
+            map = map(segmentFile(segment));
+        clearTail();
+    }
+
+    /**
+     * @return offset just past the last intact record in the segment
+     */
+    private int scan(MappedByteBuffer buf, long n, int pos, Visitor visitor)
+            throws IOException {
+        CRC32 check = new CRC32();
+        while(segmentSize - pos >= HEADER_SIZE) {
+            int length = buf.getInt(pos);
+            int checksum = buf.getInt(pos + 4);
+            if(length <= 0 || length > segmentSize - pos - HEADER_SIZE)
+                break;
+            byte[] payload = new byte[length];
+            ByteBuffer dup = buf.duplicate();
+            dup.position(pos + HEADER_SIZE);
+            dup.get(payload);
+            check.reset();
+            check.update(payload, 0, length);
+            if((int) check.getValue() != checksum)
+                break;
+            if(visitor != null)
+                visitor.record(position(n, pos), payload);
+            pos += HEADER_SIZE + length;
+        }
+        return pos;
+    }
+
+    /*
+     * Pages of a mapping can reach the disk in any order, so a crash may
+     * leave intact-looking records after a torn one. Zero whatever follows
+     * the last record so it can never be read back after newer records.
+     * Clean tails are only read, which keeps sparse pages unallocated.
+     */
+    private void clearTail() {
+        int pos = offset;
+        while(pos < segmentSize && map.get(pos) == 0)
+            pos++;
+        if(pos == segmentSize)
+            return;
+        ByteBuffer dup = map.duplicate();
+        dup.position(offset);
+        byte[] zeros = new byte[64 * 1024];
+        while(dup.hasRemaining())
+            dup.put(zeros, 0, Math.min(zeros.length, dup.remaining()));
+        map.force();
+    }
+
+    private File segmentFile(long n) {
+        File f = segments.get(n);
+        if(f == null) {
+            f = new File(base + "." + n);
+            segments.put(n, f);
+        }
+        return f;
+    }
+
+    private MappedByteBuffer map(File f) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        try {
+            if(raf.length() != segmentSize)
+                raf.setLength(segmentSize);
+            return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * Replays the records from position from up to, but not including,
+     * position to. Both must be record boundaries no later than end().
+     *
+     * @param  from position of the first record
+     * @param  to position to stop at
+     * @param  visitor receives each record in order
+     * @throws IOException if a segment cannot be read or visitor throws
+     */
+    public void read(long from, final long to, final Visitor visitor)
+            throws IOException {
+        Map<Long, File> range;
+        synchronized(lock) {
+            range = new TreeMap<Long, File>(
+                segments.subMap(segmentOf(from), true, segmentOf(to), true));
+        }
+        Visitor bounded = new Visitor() {
+            @Override
+            public void record(long position, byte[] payload) throws IOException {
+                if(position < to)
+                    visitor.record(position, payload);
+            }
+        };
+        for(Map.Entry<Long, File> e : range.entrySet()) {
+            long n = e.getKey();
+            scan(map(e.getValue()), n, (n == segmentOf(from)) ? offsetOf(from) : 0,
+                bounded);
+        }
+    }
+
+    /**
+     * Appends a record, returning once it is on disk if the log forces.
+     *
+     * @param  payload record contents, not empty
+     * @return position of the record
+     * @throws IOException if the record is too large for a segment or a new
+     *         segment cannot be created
+     */
+    public long append(byte[] payload) throws IOException {
+        int len = payload.length;
+        if(len == 0 || len > segmentSize - HEADER_SIZE)
+            throw new IOException("record size out of range");
+        long position;
+        long seq;
+        synchronized(lock) {
+            if(closed)
+                throw new IOException("log is closed");
+            if(segmentSize - offset < HEADER_SIZE + len)
+                roll();
+            crc.reset();
+            crc.update(payload, 0, len);
+            ByteBuffer dup = map.duplicate();
+            dup.position(offset + HEADER_SIZE);
+            dup.put(payload);
+            map.putInt(offset + 4, (int) crc.getValue());
+            map.putInt(offset, len);
+            position = position(segment, offset);
+            offset += HEADER_SIZE + len;
+            seq = ++appended;
+        }
+        if(force)
+            commit(seq);
+        return position;
+    }
+
+    /* Called with lock held. */
+    private void roll() throws IOException {
+        map.force();
+        synced = appended;
+        MappedByteBuffer next = map(segmentFile(segment + 1));
+        segment++;
+        map = next;
+        offset = 0;
+    }
+
+    private void commit(long seq) throws IOException {
+        MappedByteBuffer target;
+        long end;
+        synchronized(lock) {
+            while(true) {
+                if(synced >= seq)
+                    return;
+                if(!forcing)
+                    break;
+                try {
+                    lock.wait();
+                } catch(InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            forcing = true;
+            target = map;
+            end = appended;
+        }
+        try {
+            target.force();
+        } finally {
+            synchronized(lock) {
+                forcing = false;
+                if(end > synced)
+                    synced = end;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Forces every record appended so far to disk.
+     *
+     * @throws IOException if interrupted while waiting for another force
+     */
+    public void sync() throws IOException {
+        long seq;
+        synchronized(lock) {
+            seq = appended;
+        }
+        commit(seq);
+    }
+
+    /**
+     * @return position the next record will have, unless it starts a new
+     *         segment
+     */
+    public long end() {
+        synchronized(lock) {
+            return position(segment, offset);
+        }
+    }
+
+    /**
+     * @return bytes of segment space from position to the end of the log
+     */
+    public long bytesSince(long position) {
+        synchronized(lock) {
+            return (segment - segmentOf(position)) * segmentSize
+                + offset - offsetOf(position);
+        }
+    }
+
+    /**
+     * Delete the segments that hold nothing at or after position.
+     *
+     * @param position first position that must be kept
+     */
+    public void truncateBefore(long position) {
+        synchronized(lock) {
+            Map<Long, File> old = segments.headMap(
+                Math.min(segmentOf(position), segment));
+            for(File f : old.values())
+                f.delete();
+            old.clear();
+        }
+    }
+
+    /**
+     * Forces the log to disk. Later appends fail.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized(lock) {
+            if(closed)
+                return;
+        }
+        sync();
+        synchronized(lock) {
+            closed = true;
+        }
+    }
+}
@@ -1,19 +1,51 @@
 package kvstore;
 
+import static kvstore.KVConstants.BATCH_REQ;
 import static kvstore.KVConstants.DEL_REQ;
+import static kvstore.KVConstants.ERROR_INVALID_FORMAT;
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+import static kvstore.KVConstants.ERROR_REPLY_TOO_LARGE;
+import static kvstore.KVConstants.ERROR_SERVER_BUSY;
 import static kvstore.KVConstants.GET_REQ;
+import static kvstore.KVConstants.MULTI_REQ;
 import static kvstore.KVConstants.PUT_REQ;
+import static kvstore.KVConstants.RANGE_REQ;
 import static kvstore.KVConstants.RESP;
 import static kvstore.KVConstants.SUCCESS;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.Socket;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 /**
  * This NetworkHandler will asynchronously handle the socket connections.
  * Uses a thread pool to ensure that none of its methods are blocking.
+ * Because it serves range requests, it turns on the KVServer's sorted
+ * index, so each page costs its own keys rather than a pass over the store.
  */
-public class ServerClientHandler implements NetworkHandler {
+public class ServerClientHandler implements NetworkHandler, MessageHandler {
+
+    /** Most keys in one page of a range. */
+    public static final int RANGE_PAGE_KEYS = 1024;
+
+    /**
+     * Characters of keys and values after which a page of a range ends.
+     * Well under a frame, even if the last value is a maximal one.
+     */
+    public static final int RANGE_PAGE_CHARS = 512 * 1024;
+
+    /**
+     * Characters of values after which the gets of a multi request are
+     * answered with ERROR_REPLY_TOO_LARGE, for the same reason.
+     */
+    public static final int MULTI_REPLY_CHARS = 512 * 1024;
 
     public KVServer kvServer;
     public ThreadPool threadPool;
@@ -36,9 +68,28 @@ public class ServerClientHandler implements NetworkHandler {
      */
     public ServerClientHandler(KVServer kvServer, int connections) {
         this.kvServer = kvServer;
+        kvServer.enableSortedIndex();
         threadPool = new ThreadPool(connections);
     }
 
+    /**
+     * Constructs a ServerClientHandler whose ThreadPool queues at most
+     * backlog connections waiting for a thread. What happens to connections
+     * beyond that is decided by policy; under REJECT the client is sent
+     * ERROR_SERVER_BUSY.
+     *
+     * @param kvServer KVServer to carry out requests
+     * @param connections number of threads in threadPool to service requests
+     * @param backlog maximum number of connections waiting for a thread
+     * @param policy what to do with a connection when the backlog is full
+     */
+    public ServerClientHandler(KVServer kvServer, int connections, int backlog,
+            ThreadPool.RejectionPolicy policy) {
+        this.kvServer = kvServer;
+        kvServer.enableSortedIndex();
+        threadPool = new ThreadPool(connections, backlog, policy);
+    }
+
     /**
      * Creates a job to service the request for a socket and enqueues that job
      * in the thread pool. Ignore any InterruptedExceptions.
@@ -49,40 +100,222 @@ public class ServerClientHandler implements NetworkHandler {
     public void handle(final Socket client) {
         System.out.println("Ready to handle request...");
         try {
-            threadPool.addJob(new Runnable() {
+            threadPool.addJob(new ThreadPool.RejectableJob() {
                 @Override
                 public void run() {
                     handleRequest(client);
                 }
+
+                @Override
+                public void reject() {
+                    refuse(client);
+                }
             });
         } catch(InterruptedException e) {}
     }
     
+    /**
+     * Tells a client the server is too busy to take its connection, then
+     * closes it. The error is sent in XML since the request is never read.
+     *
+     * @param client Socket connected to the client with the request
+     */
+    private void refuse(Socket client) {
+        try {
+            new KVMessage(RESP, ERROR_SERVER_BUSY).sendMessage(client);
+        } catch(KVException e) {
+        } finally {
+            try {
+                client.close();
+            } catch(IOException e) {}
+        }
+    }
+
+    /**
+     * Services the requests on a connection. A client speaking XML sends one
+     * request and half-closes, so it gets one response. A client speaking the
+     * binary format may send any number of frames, possibly pipelined; they
+     * are answered in order until the client closes its side. Responses are
+     * only flushed once no further request is already waiting to be read, so
+     * a pipelined burst is answered with few writes. A binary frame missing
+     * fields its type requires is answered with ERROR_INVALID_FORMAT in its
+     * turn. Other errors raised before a request could be parsed are
+     * reported in XML, which every client reads.
+     *
+     * @param client Socket connected to the client with the request
+     */
     public void handleRequest(Socket client) {
         System.out.println("Handling request...");
         try {
-            KVMessage msg = new KVMessage(client);
-            if(msg.getMsgType().equals(GET_REQ)) {
-                String key = msg.getKey();
-                String value = kvServer.get(key);
-                msg = new KVMessage(RESP);
-                msg.setKey(key);
-                msg.setValue(value);
-                msg.sendMessage(client);
-            } else if(msg.getMsgType().equals(PUT_REQ)) {
-                kvServer.put(msg.getKey(), msg.getValue());
-                (new KVMessage(RESP, SUCCESS)).sendMessage(client);
-            } else if(msg.getMsgType().equals(DEL_REQ)) {
-                kvServer.del(msg.getKey());
-                (new KVMessage(RESP, SUCCESS)).sendMessage(client);
+            InputStream in = new BufferedInputStream(client.getInputStream());
+            OutputStream out = new BufferedOutputStream(client.getOutputStream());
+            while(true) {
+                in.mark(1);
+                boolean binary = (in.read() == KVBinaryCodec.MAGIC);
+                in.reset();
+                KVMessage resp;
+                try {
+                    KVMessage msg = KVMessage.readNext(in);
+                    if(msg == null)
+                        break;
+                    resp = process(msg);
+                } catch(KVException e) {
+                    /* The invalid frame was read in full, so carry on. */
+                    if(!binary || !ERROR_INVALID_FORMAT.equals(e.getMessage()))
+                        throw e;
+                    resp = e.getKVMessage();
+                }
+                if(!binary) {
+                    resp.sendMessage(client, KVMessage.Format.XML);
+                    break;
+                }
+                out.write(resp.toBinary());
+                if(in.available() == 0)
+                    out.flush();
             }
+            out.flush();
         } catch (KVException e) {
             System.out.println("Faulty request: " + e.toString());
             try {
                 e.getKVMessage().sendMessage(client);
             } catch(KVException s) {}
+        } catch (IOException e) {
+            System.out.println("Connection failed: " + e.toString());
+        } finally {
+            try {
+                client.close();
+            } catch(IOException e) {}
         }
         System.out.println("Request handled.");
     }
 
+    /**
+     * Carries out one request against the KVServer. Missing keys are
+     * answered without going through a KVException.
+     *
+     * @param  msg request KVMessage
+     * @return the response to send back; errors become an error response
+     */
+    @Override
+    public KVMessage process(KVMessage msg) {
+        try {
+            if(GET_REQ.equals(msg.getMsgType())) {
+                String key = msg.getKey();
+                String value = kvServer.lookup(key);
+                if(value == null)
+                    return new KVMessage(RESP, ERROR_NO_SUCH_KEY);
+                KVMessage resp = new KVMessage(RESP);
+                resp.setKey(key);
+                resp.setValue(value);
+                return resp;
+            } else if(PUT_REQ.equals(msg.getMsgType())) {
+                kvServer.put(msg.getKey(), msg.getValue());
+                return new KVMessage(RESP, SUCCESS);
+            } else if(DEL_REQ.equals(msg.getMsgType())) {
+                if(!kvServer.remove(msg.getKey()))
+                    return new KVMessage(RESP, ERROR_NO_SUCH_KEY);
+                return new KVMessage(RESP, SUCCESS);
+            } else if(RANGE_REQ.equals(msg.getMsgType())) {
+                return range(msg);
+            } else if(MULTI_REQ.equals(msg.getMsgType())) {
+                return multi(msg);
+            }
+            return new KVMessage(RESP, ERROR_INVALID_FORMAT);
+        } catch (KVException e) {
+            System.out.println("Faulty request: " + e.toString());
+            return e.getKVMessage();
+        }
+    }
+
+    /**
+     * Answer a range request with its first page. The request's key is the
+     * first key of the range, its value the key just past it (either may be
+     * null for no bound) and its message the most keys wanted. The page is
+     * a BATCH_REQ of puts in key order. Its key is the cursor: the start
+     * key for the request for the next page, or null once the range is
+     * exhausted or the limit met.
+     */
+    private KVMessage range(KVMessage msg) throws KVException {
+        int limit;
+        try {
+            limit = Integer.parseInt(msg.getMessage());
+        } catch(NumberFormatException e) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        if(limit < 1)
+            throw new KVException(ERROR_INVALID_FORMAT);
+        int wanted = Math.min(limit, RANGE_PAGE_KEYS);
+
+        List<KVMessage> ops = new ArrayList<KVMessage>();
+        String last = null;
+        long chars = 0;
+        boolean full = false;
+        for(Map.Entry<String, String> e
+                : kvServer.scan(msg.getKey(), msg.getValue(), wanted).entrySet()) {
+            if(chars >= RANGE_PAGE_CHARS) {
+                full = true;
+                break;
+            }
+            last = e.getKey();
+            ops.add(new KVMessage(PUT_REQ, last, e.getValue(), null));
+            chars += last.length() + e.getValue().length();
+        }
+        full |= ops.size() == wanted && wanted < limit;
+        /* No key sorts between a key and the key with a NUL appended. */
+        KVMessage page = new KVMessage(BATCH_REQ, full ? last + '\0' : null, null, null);
+        page.setBatch(ops);
+        return page;
+    }
+
+    /**
+     * Answer a multi request with one RESP per operation, in order: the key
+     * and value for a get that found its key, and otherwise the key and
+     * SUCCESS or the error. The puts are carried out first, so the gets
+     * see them. Both take the lock of each cache set once, however many of
+     * the keys fall in it. If the same key is put twice, the later value
+     * is kept.
+     */
+    private KVMessage multi(KVMessage msg) throws KVException {
+        List<KVMessage> ops = msg.getBatch();
+        if(ops == null)
+            throw new KVException(ERROR_INVALID_FORMAT);
+        Map<String, String> puts = new LinkedHashMap<String, String>();
+        List<String> gets = new ArrayList<String>();
+        for(KVMessage op : ops) {
+            if(op.getKey() == null)
+                continue;
+            if(PUT_REQ.equals(op.getMsgType()) && op.getValue() != null)
+                puts.put(op.getKey(), op.getValue());
+            else if(GET_REQ.equals(op.getMsgType()))
+                gets.add(op.getKey());
+        }
+        Map<String, KVException> failed = kvServer.putAll(puts);
+        Map<String, String> found = kvServer.lookupAll(gets);
+
+        List<KVMessage> results = new ArrayList<KVMessage>(ops.size());
+        long chars = 0;
+        for(KVMessage op : ops) {
+            String key = op.getKey();
+            String error = ERROR_INVALID_FORMAT;
+            if(key == null) {
+                /* Nothing to answer for. */
+            } else if(PUT_REQ.equals(op.getMsgType()) && op.getValue() != null) {
+                KVException e = failed.get(key);
+                error = (e == null) ? SUCCESS : e.getKVMessage().getMessage();
+            } else if(GET_REQ.equals(op.getMsgType())) {
+                String value = found.get(key);
+                if(value != null && chars < MULTI_REPLY_CHARS) {
+                    results.add(new KVMessage(RESP, key, value, null));
+                    chars += value.length();
+                    continue;
+                }
+                error = (value == null) ? ERROR_NO_SUCH_KEY : ERROR_REPLY_TOO_LARGE;
+            }
+            results.add(new KVMessage(RESP, key, null, error));
+        }
+        KVMessage reply = new KVMessage(MULTI_REQ);
+        reply.setBatch(results);
+        return reply;
+    }
+
 }
@@ -0,0 +1,60 @@
+package kvstore;
+
+/**
+ * The backing store behind a KVServer's cache. Implementations must be safe
+ * to call from many threads at once; KVServer additionally never runs two
+ * writes to the same key at the same time.
+ */
+public interface StorageEngine extends KeyValueInterface {
+
+    /**
+     * Same as KeyValueInterface.lookup; a store's lookup cannot fail.
+     */
+    @Override
+    public String lookup(String key);
+
+    /**
+     * @return the keys in the store. Iteration is weakly consistent: it
+     *         never fails because of concurrent writes, and may or may not
+     *         reflect them.
+     */
+    public Iterable<String> keys();
+
+    /**
+     * @return number of keys in the store
+     */
+    public long size();
+
+    /**
+     * Release whatever the store holds outside the heap.
+     *
+     * @throws KVException with ERROR_STORAGE if pending writes could not be
+     *         saved
+     */
+    public void close() throws KVException;
+
+    /**
+     * The engines a KVServer can be built with.
+     */
+    public enum Kind {
+        /** KVStore: a ConcurrentHashMap of Strings. */
+        HEAP {
+            @Override
+            public StorageEngine create() {
+                return new KVStore();
+            }
+        },
+        /** OffHeapStore: UTF-8 records in direct buffers. */
+        OFF_HEAP {
+            @Override
+            public StorageEngine create() {
+                return new OffHeapStore();
+            }
+        };
+
+        /**
+         * @return a new, empty engine of this kind
+         */
+        public abstract StorageEngine create();
+    }
+}
@@ -30,7 +30,8 @@ public class TPCClientHandler implements NetworkHandler {
      * @param connections number of threads in threadPool to service requests
      */
     public TPCClientHandler(TPCMaster tpcMaster, int connections) {
-        // implement me
+        this.tpcMaster = tpcMaster;
+        this.threadPool = new ThreadPool(connections);
     }
 
     /**
@@ -40,10 +41,53 @@ public class TPCClientHandler implements NetworkHandler {
      * @param client Socket connected to the client with the request
      */
     @Override
-    public void handle(Socket client) {
-        // implement me
+    public void handle(final Socket client) {
+        try {
+            threadPool.addJob(new Runnable() {
+                @Override
+                public void run() {
+                    serve(client);
+                }
+            });
+        } catch(InterruptedException e) {}
+    }
+
+    /**
+     * Reads one request from a client, carries it out through the master and
+     * replies in the format the request arrived in.
+     *
+     * @param client Socket connected to the client with the request
+     */
+    private void serve(Socket client) {
+        KVMessage.Format format = KVMessage.Format.XML;
+        try {
+            KVMessage msg = new KVMessage(client);
+            format = msg.getFormat();
+            KVMessage resp;
+            String type = msg.getMsgType();
+            if(GET_REQ.equals(type)) {
+                resp = new KVMessage(RESP);
+                resp.setKey(msg.getKey());
+                resp.setValue(tpcMaster.handleGet(msg));
+            } else if(PUT_REQ.equals(type) || DEL_REQ.equals(type)) {
+                tpcMaster.handleTPCRequest(msg, PUT_REQ.equals(type));
+                resp = new KVMessage(RESP, SUCCESS);
+            } else if(BATCH_REQ.equals(type)) {
+                tpcMaster.handleTPCBatch(msg);
+                resp = new KVMessage(RESP, SUCCESS);
+            } else {
+                throw new KVException(ERROR_INVALID_FORMAT);
+            }
+            resp.sendMessage(client, format);
+        } catch(KVException e) {
+            try {
+                e.getKVMessage().sendMessage(client, format);
+            } catch(KVException s) {}
+        } finally {
+            try {
+                client.close();
+            } catch(IOException e) {}
+        }
     }
-    
-    // implement me
 
 }
@@ -1,17 +1,87 @@
 package kvstore;
 
+import static kvstore.KVConstants.ABORT;
+import static kvstore.KVConstants.BATCH_REQ;
+import static kvstore.KVConstants.COMMIT;
+import static kvstore.KVConstants.DEL_REQ;
+import static kvstore.KVConstants.PUT_REQ;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
 
+/**
+ * The 2PC log of a slave. Each entry is one KVMessage in the binary frame
+ * format, stored as a checksummed record in a memory-mapped SegmentedLog
+ * (files logPath.0, logPath.1, ...), so logging an entry writes just that
+ * entry and forces it to disk. Concurrent transactions share forces through
+ * the log's group commit.
+ *
+ * Once the log has grown by the checkpoint threshold, a background
+ * checkpoint folds the committed puts into the file logPath.ckpt, together
+ * with the position the log must be replayed from, and deletes the segments
+ * before that position. Restarting then reads the checkpoint and only the
+ * log written since, however long the slave has been up.
+ *
+ * The master tags each put and del, and the decision for it, with a version
+ * in the message field. The log remembers the version of every key it has
+ * applied, deletes included, so a late or repeated write older than what a
+ * key already holds is ignored, and a decision is only paired with the
+ * request of the same version. Untagged entries apply unconditionally.
+ *
+ * A batch of puts and dels is logged as one entry. Its decision carries its
+ * version but no key, and committing it applies every operation in it, in
+ * order. Since they share the batch's version, a write is only ignored when
+ * its version is strictly older. An operation may carry a version of its
+ * own instead, as those copied to a slave joining the ring do.
+ */
 public class TPCLog {
 
+    /** Checkpoint once this much log has been written since the last one. */
+    public static final long DEFAULT_CHECKPOINT_BYTES = 64L * 1024 * 1024;
+
+    private static final int CHECKPOINT_MAGIC = 0x54504331;
+
     private String logPath;
     private KVServer kvServer;
-    private ArrayList<KVMessage> entries;
+    private volatile KVMessage lastEntry;
+
+    private final int segmentSize;
+    private SegmentedLog log;
+    /* Position the log is replayed from, recorded in the checkpoint. */
+    private volatile long marker = 0;
+    private volatile long checkpointBytes = DEFAULT_CHECKPOINT_BYTES;
+    private volatile boolean checkpointing = false;
+    private final AtomicLong checkpointFailures = new AtomicLong();
+    /* Why the last background checkpoint failed, until one succeeds. */
+    private volatile KVStore.StorageException checkpointError;
+    private final Object checkpointLock = new Object();
+    /* Version of each key's last applied put or del, in key order. */
+    private final ConcurrentSkipListMap<String, Long> versions =
+        new ConcurrentSkipListMap<String, Long>();
+    /* Requests logged since the log was opened that await a decision. */
+    private volatile Replay open = new Replay();
+    private final Object[] applyLocks = new Object[64];
 
     /**
      * Constructs a TPCLog to log KVMessages from the master.
@@ -20,21 +90,66 @@ public class TPCLog {
      * @param kvServer reference to the KVServer of this slave
      */
     public TPCLog(String logPath, KVServer kvServer) throws KVException {
+        this(logPath, kvServer, SegmentedLog.DEFAULT_SEGMENT_SIZE);
+    }
+
+    /**
+     * Constructs a TPCLog whose segment files have the given size.
+     *
+     * @param logPath path prefix of the log files for this server
+     * @param kvServer reference to the KVServer of this slave
+     * @param segmentSize size of each segment file
+     */
+    TPCLog(String logPath, KVServer kvServer, int segmentSize) throws KVException {
         this.logPath = logPath;
         this.kvServer = kvServer;
-        this.entries = new ArrayList<KVMessage>();
+        this.segmentSize = segmentSize;
+        for(int i = 0; i < applyLocks.length; i++)
+            applyLocks[i] = new Object();
         rebuildServer();
     }
 
     /**
-     * Add an entry to the log and flush the entire log to disk.
-     * You do not have to efficiently append entries onto the log stored on disk.
+     * Add an entry to the log and force it to disk.
      *
      * @param entry KVMessage to write to the log
+     * @throws KVStore.StorageException if the entry could not be made durable
      */
     public void appendAndFlush(KVMessage entry) {
-        entries.add(entry);
-        flushToDisk();
+        byte[] record;
+        try {
+            record = KVBinaryCodec.encode(entry);
+        } catch(KVException e) {
+            throw new IllegalArgumentException("cannot log message", e);
+        }
+        try {
+            long position = log.append(record);
+            Replay tracker = open;
+            synchronized(tracker) {
+                tracker.entry(position, entry);
+            }
+            lastEntry = entry;
+        } catch(IOException e) {
+            throw new KVStore.StorageException(e);
+        }
+        if(COMMIT.equals(entry.getMsgType()) || ABORT.equals(entry.getMsgType()))
+            maybeCheckpoint();
+    }
+
+    /**
+     * Find the logged request a decision settles: the undecided put or del
+     * of the decision's key with the same version, the undecided batch of
+     * that version for a decision without a key, or for a decision with
+     * neither, the last request logged.
+     *
+     * @param  decision a COMMIT or ABORT
+     * @return the request, or null if the decision settles nothing
+     */
+    public KVMessage pendingFor(KVMessage decision) {
+        Replay tracker = open;
+        synchronized(tracker) {
+            return tracker.pendingFor(decision);
+        }
     }
 
     /**
@@ -43,72 +158,470 @@ public class TPCLog {
      * @return last entry put into the log
      */
     public KVMessage getLastEntry() {
-        if (entries.size() > 0) {
-            return entries.get(entries.size() - 1);
-        }
-        return null;
+        return lastEntry;
     }
 
     /**
-     * Load log from persistent storage at logPath.
+     * Open the log at logPath, noting its last entry, without touching the
+     * KVServer. A missing log is an empty one.
+     *
+     * @throws KVStore.StorageException if the log cannot be opened
      */
-    @SuppressWarnings("unchecked")
     public void loadFromDisk() {
-        ObjectInputStream inputStream = null;
+        try {
+            load(null);
+        } catch(IOException e) {
+            throw new KVStore.StorageException(e);
+        }
+    }
 
+    /**
+     * Force every logged entry to disk. appendAndFlush already does this.
+     *
+     * @throws KVStore.StorageException if the log cannot be forced
+     */
+    public void flushToDisk() {
         try {
-            inputStream = new ObjectInputStream(new FileInputStream(logPath));
-            entries = (ArrayList<KVMessage>) inputStream.readObject();
-        } catch (Exception e) {
-        } finally {
-            // if log did not exist, creating empty entries list
-            if (entries == null) {
-                entries = new ArrayList<KVMessage>();
+            log.sync();
+        } catch(IOException e) {
+            throw new KVStore.StorageException(e);
+        }
+    }
+
+    /**
+     * Apply a committed put or del to the KVServer, unless the key already
+     * holds a newer version.
+     *
+     * @param  request the PUT_REQ or DEL_REQ to apply
+     * @return whether it was applied
+     * @throws KVException if an error occurs in KVServer
+     */
+    public boolean apply(KVMessage request) throws KVException {
+        String key = request.getKey();
+        long version = versionOf(request);
+        synchronized(applyLocks[(key.hashCode() & 0x7fffffff) % applyLocks.length]) {
+            Long current = versions.get(key);
+            if(version != 0 && current != null && version < current)
+                return false;
+            if(PUT_REQ.equals(request.getMsgType())) {
+                kvServer.put(key, request.getValue());
+            } else {
+                kvServer.remove(key);
             }
+            if(version != 0)
+                versions.put(key, version);
+            return true;
+        }
+    }
 
-            try {
-                if (inputStream != null) {
-                    inputStream.close();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
+    /**
+     * @return the puts and dels a request consists of: a batch's operations,
+     *         each tagged with the batch's version unless it carries its
+     *         own, or the request itself
+     */
+    public static List<KVMessage> operations(KVMessage request) {
+        if(!BATCH_REQ.equals(request.getMsgType()))
+            return Collections.singletonList(request);
+        List<KVMessage> ops = new ArrayList<KVMessage>(request.getBatch().size());
+        for(KVMessage op : request.getBatch()) {
+            if(versionOf(op) != 0) {
+                ops.add(op);
+                continue;
             }
+            KVMessage tagged = new KVMessage(op);
+            tagged.setMessage(request.getMessage());
+            ops.add(tagged);
         }
+        return ops;
     }
 
     /**
-     * Writes the log to persistent storage at logPath.
+     * @return version of the last put or del applied to key, or 0 if none
+     *         was tagged
      */
-    public void flushToDisk() {
-        ObjectOutputStream outputStream = null;
+    public long getVersion(String key) {
+        Long version = versions.get(key);
+        return (version == null) ? 0 : version;
+    }
 
+    /**
+     * @return every key a versioned put or del has been applied to, live
+     *         or deleted, in key order; a view that follows later writes
+     */
+    public SortedSet<String> versionedKeys() {
+        return Collections.unmodifiableSortedSet(versions.navigableKeySet());
+    }
+
+    /**
+     * @return the versioned keys that sort after key, or all of them if key
+     *         is null; a view like versionedKeys()
+     */
+    public SortedSet<String> versionedKeysAfter(String key) {
+        if(key == null)
+            return versionedKeys();
+        return Collections.unmodifiableSortedSet(versions.navigableKeySet().tailSet(key, false));
+    }
+
+    /**
+     * @return the version a put, del or decision is tagged with, or 0
+     */
+    public static long versionOf(KVMessage msg) {
+        String tag = msg.getMessage();
+        if(tag == null)
+            return 0;
         try {
-            outputStream = new ObjectOutputStream(new FileOutputStream(logPath));
-            outputStream.writeObject(entries);
-        } catch (Exception e) {
-            e.printStackTrace();
-        } finally {
-            try {
-                if (outputStream != null) {
-                    outputStream.flush();
-                    outputStream.close();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            return Long.parseLong(tag);
+        } catch(NumberFormatException e) {
+            return 0;
         }
     }
 
+    /**
+     * @return whether decision settles request: their versions agree, or the
+     *         decision carries none
+     */
+    public static boolean decides(KVMessage decision, KVMessage request) {
+        long version = versionOf(decision);
+        return version == 0 || version == versionOf(request);
+    }
+
+    /**
+     * Set how much log may be written before a checkpoint is taken.
+     *
+     * @param bytes log growth that triggers a checkpoint
+     */
+    public void setCheckpointThreshold(long bytes) {
+        checkpointBytes = bytes;
+    }
+
     /**
      * Load log and rebuild KVServer by iterating over log entries. You do not
-     * need to restore the previous cache state (i.e. ignore GETS).
+     * need to restore the previous cache state (i.e. ignore GETS). The puts in
+     * the checkpoint are applied first, then the log after it is read one
+     * entry at a time; a put or del is applied when its commit is read.
      *
      * @throws KVException if an error occurs in KVServer (though we expect none)
      */
     public void rebuildServer() throws KVException {
-        loadFromDisk();
+        final KVException[] error = new KVException[1];
+        Replay replay = new Replay() {
+            @Override
+            void commit(KVMessage request) {
+                if(error[0] != null)
+                    return;
+                try {
+                    apply(request);
+                } catch(KVException e) {
+                    error[0] = e;
+                }
+            }
+        };
+        try {
+            load(replay);
+        } catch(IOException e) {
+            throw new KVStore.StorageException(e);
+        }
+        if(error[0] != null)
+            throw error[0];
+    }
+
+    /* Read the checkpoint into replay, if any, then open the log after it. */
+    private void load(final Replay replay) throws IOException {
+        synchronized(checkpointLock) {
+            if(log != null)
+                log.close();
+            new File(logPath + ".ckpt.tmp").delete();
+            lastEntry = null;
+            marker = readCheckpoint(replay);
+            final Replay tracker = new Replay();
+            log = new SegmentedLog(logPath, segmentSize, true, marker,
+                new SegmentedLog.Visitor() {
+                    @Override
+                    public void record(long position, byte[] payload)
+                            throws IOException {
+                        KVMessage entry = decode(payload);
+                        if(replay != null)
+                            replay.entry(position, entry);
+                        tracker.entry(position, entry);
+                        lastEntry = entry;
+                    }
+                });
+            open = tracker;
+        }
+    }
+
+    private void maybeCheckpoint() {
+        if(checkpointing || log.bytesSince(marker) < checkpointBytes)
+            return;
+        synchronized(this) {
+            if(checkpointing)
+                return;
+            checkpointing = true;
+        }
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    checkpoint();
+                    checkpointError = null;
+                } catch(KVStore.StorageException e) {
+                    /* The log still holds every entry; it just keeps growing. */
+                    checkpointFailures.incrementAndGet();
+                    checkpointError = e;
+                    System.out.println("Checkpoint failed: " + e.toString());
+                } finally {
+                    checkpointing = false;
+                }
+            }
+        }, "TPCLog-checkpoint");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * @return number of checkpoints started in the background that failed
+     */
+    public long getCheckpointFailures() {
+        return checkpointFailures.get();
+    }
+
+    /**
+     * @return why the last background checkpoint failed, or null if it
+     *         succeeded or none has run
+     */
+    public KVStore.StorageException getCheckpointError() {
+        return checkpointError;
+    }
+
+    /**
+     * Fold the log written since the last checkpoint into a new one and
+     * delete the segments it makes unnecessary. Logging continues meanwhile.
+     * A transaction still waiting for its decision stays in the log.
+     *
+     * @throws KVStore.StorageException if the checkpoint cannot be written
+     */
+    public void checkpoint() {
+        synchronized(checkpointLock) {
+            try {
+                long end = log.end();
+                final Map<String, KVMessage> live = new LinkedHashMap<String, KVMessage>();
+                Replay state = new Replay() {
+                    @Override
+                    void commit(KVMessage request) {
+                        String key = request.getKey();
+                        long version = versionOf(request);
+                        KVMessage prior = live.get(key);
+                        if(version != 0 && prior != null && version < versionOf(prior))
+                            return;
+                        live.remove(key);
+                        /* A versioned del stays as a tombstone. */
+                        if(PUT_REQ.equals(request.getMsgType()) || version != 0)
+                            live.put(key, request);
+                    }
+                };
+                readCheckpoint(state);
+                log.read(marker, end, state);
+                long next = state.firstPending(end);
+                writeCheckpoint(next, state.decision, live);
+                marker = next;
+                log.truncateBefore(next);
+            } catch(IOException e) {
+                throw new KVStore.StorageException(e);
+            }
+        }
+    }
+
+    /*
+     * The checkpoint file holds the magic number, the replay position, the
+     * last decision before it (or a zero length), then a length-prefixed
+     * frame for each committed put or versioned del, a -1, the count and a
+     * CRC32 of the lot.
+     */
+    private void writeCheckpoint(long position, KVMessage decision,
+            Map<String, KVMessage> live) throws IOException {
+        File tmp = new File(logPath + ".ckpt.tmp");
+        FileOutputStream fos = new FileOutputStream(tmp);
+        try {
+            CheckedOutputStream checked = new CheckedOutputStream(
+                new BufferedOutputStream(fos, 1 << 16), new CRC32());
+            DataOutputStream out = new DataOutputStream(checked);
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeLong(position);
+            writeFrame(out, decision);
+            for(KVMessage request : live.values())
+                writeFrame(out, request);
+            out.writeInt(-1);
+            out.writeLong(live.size());
+            out.writeLong(checked.getChecksum().getValue());
+            out.flush();
+            fos.getFD().sync();
+        } finally {
+            fos.close();
+        }
+        File ckpt = new File(logPath + ".ckpt").getAbsoluteFile();
+        Files.move(tmp.toPath(), ckpt.toPath(),
+            StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        RecordLog.syncDirectory(ckpt.getParentFile());
+    }
+
+    private static void writeFrame(DataOutputStream out, KVMessage msg)
+            throws IOException {
+        if(msg == null) {
+            out.writeInt(0);
+            return;
+        }
+        try {
+            byte[] frame = KVBinaryCodec.encode(msg);
+            out.writeInt(frame.length);
+            out.write(frame);
+        } catch(KVException e) {
+            throw new IOException("cannot encode log entry");
+        }
+    }
+
+    /**
+     * Feed the checkpoint's puts and dels to replay as committed transactions.
+     *
+     * @return position to replay the log from, or 0 with no checkpoint
+     */
+    private long readCheckpoint(Replay replay) throws IOException {
+        File f = new File(logPath + ".ckpt");
+        if(!f.exists())
+            return 0;
+        CheckedInputStream checked = new CheckedInputStream(
+            new BufferedInputStream(new FileInputStream(f), 1 << 16), new CRC32());
+        DataInputStream in = new DataInputStream(checked);
+        try {
+            if(in.readInt() != CHECKPOINT_MAGIC)
+                throw new IOException("not a checkpoint");
+            long position = in.readLong();
+            int len = in.readInt();
+            if(len > 0) {
+                lastEntry = readFrame(in, len);
+                if(replay != null)
+                    replay.decision = lastEntry;
+            }
+            long count = 0;
+            while((len = in.readInt()) >= 0) {
+                KVMessage request = readFrame(in, len);
+                if(replay != null)
+                    replay.commit(request);
+                count++;
+            }
+            if(in.readLong() != count)
+                throw new IOException("checkpoint truncated");
+            long crc = checked.getChecksum().getValue();
+            if(in.readLong() != crc)
+                throw new IOException("checkpoint corrupt");
+            return position;
+        } catch(EOFException e) {
+            throw new IOException("checkpoint truncated");
+        } finally {
+            in.close();
+        }
+    }
 
-        // implement me
+    private static KVMessage readFrame(DataInputStream in, int len) throws IOException {
+        if(len > KVBinaryCodec.MAX_FRAME_SIZE + 8)
+            throw new IOException("checkpoint corrupt");
+        byte[] frame = new byte[len];
+        in.readFully(frame);
+        return decode(frame);
     }
 
+    private static KVMessage decode(byte[] payload) throws IOException {
+        try {
+            KVMessage entry = KVBinaryCodec.decode(ByteBuffer.wrap(payload));
+            if(entry == null)
+                throw new IOException("truncated log entry");
+            return entry;
+        } catch(KVException e) {
+            throw new IOException("malformed log entry");
+        }
+    }
+
+    /**
+     * Walks log entries, pairing each put, del or batch with the decision
+     * that settles it. Versioned requests on different keys may be undecided
+     * at the same time; a request without a version replaces every undecided
+     * one, as the master then runs one transaction at a time. A decision
+     * for some other version was delivered late and settles nothing.
+     *
+     * Undecided puts and dels are found by their key, batches by their
+     * version; a decision naming neither settles the last request.
+     */
+    private static class Replay implements SegmentedLog.Visitor {
+        final Map<Object, KVMessage> pending = new LinkedHashMap<Object, KVMessage>();
+        final Map<Object, Long> positions = new LinkedHashMap<Object, Long>();
+        KVMessage last;
+        KVMessage decision;
+
+        @Override
+        public void record(long position, byte[] payload) throws IOException {
+            entry(position, decode(payload));
+        }
+
+        void entry(long position, KVMessage entry) {
+            String type = entry.getMsgType();
+            if(PUT_REQ.equals(type) || DEL_REQ.equals(type) || BATCH_REQ.equals(type)) {
+                if(versionOf(entry) == 0) {
+                    pending.clear();
+                    positions.clear();
+                }
+                Object id = id(entry);
+                pending.remove(id);
+                positions.remove(id);
+                pending.put(id, entry);
+                positions.put(id, position);
+                last = entry;
+            } else if(COMMIT.equals(type) || ABORT.equals(type)) {
+                KVMessage request = pendingFor(entry);
+                if(request == null)
+                    return;
+                pending.remove(id(request));
+                positions.remove(id(request));
+                if(request == last)
+                    last = null;
+                if(COMMIT.equals(type)) {
+                    for(KVMessage op : operations(request))
+                        commit(op);
+                }
+                decision = entry;
+            }
+        }
+
+        KVMessage pendingFor(KVMessage decision) {
+            String key = decision.getKey();
+            long version = versionOf(decision);
+            KVMessage request;
+            if(key != null) {
+                request = pending.get(key);
+            } else {
+                request = (version != 0) ? pending.get(version) : null;
+                if(request == null)
+                    request = last;
+            }
+            if(request == null || pending.get(id(request)) != request)
+                return null;
+            return decides(decision, request) ? request : null;
+        }
+
+        static Object id(KVMessage request) {
+            if(BATCH_REQ.equals(request.getMsgType()))
+                return versionOf(request);
+            return request.getKey();
+        }
+
+        /**
+         * @return position of the oldest undecided request, or end if none
+         */
+        long firstPending(long end) {
+            long first = end;
+            for(long position : positions.values())
+                first = Math.min(first, position);
+            return first;
+        }
+
+        void commit(KVMessage request) {}
+    }
 }
@@ -2,10 +2,54 @@ package kvstore;
 
 import static kvstore.KVConstants.*;
 
+import java.io.IOException;
 import java.net.Socket;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * Coordinates the slaves. Each key is stored on its first replicas slaves
+ * around the hash ring. A put or del is committed once writeQuorum of them
+ * vote for it, and a get with a read quorum above one asks every replica,
+ * waits for readQuorum answers and returns the newest, writing it back in
+ * the background to any replica found holding an older version.
+ *
+ * Transactions on different keys run concurrently; those on keys that share
+ * a lock stripe wait for one another. Each phase sends its message to every
+ * replica at once.
+ *
+ * Every put and del is tagged with a version from a clock on the master, in
+ * the message field of the binary messages the master and slaves exchange.
+ * The defaults, two replicas written by both and read from the first that
+ * has the key, are the behavior described in the spec.
+ *
+ * With a read quorum of one, a get asks the first replica and only asks
+ * the next if the first does not have the key, fails, or has not answered
+ * within the hedge percentile of its recent read latencies. The first
+ * answer with the key wins and the reads still running are cancelled.
+ *
+ * A slave that registers for the first time once data has been written
+ * joins in the background. Writes to keys it will hold are sent to it as
+ * well, the keys it takes over are copied to it from the slaves already on
+ * the ring, and then it is put on the ring while no write is in progress.
+ * Until then reads go to the old replicas. If the keys cannot all be copied
+ * it stays off the ring and the migration is tried again later. Progress is
+ * exported through getMetrics().
+ *
+ * Gets read through masterCache. Concurrent misses on one key share a
+ * single read of the replicas, and a commit updates the cache and marks any
+ * read of its key still in flight as stale, under the cache set's lock, so
+ * a read that started before the commit never caches the older value, and
+ * gets waiting on that read look again rather than return it. Hits, misses
+ * and shared misses are exported through getMetrics().
+ */
 public class TPCMaster {
 
     public int numSlaves;
@@ -13,6 +57,78 @@ public class TPCMaster {
 
     public static final int TIMEOUT = 3000;
 
+    /** Tokens per slave by default: one, at the slave's ID. */
+    public static final int DEFAULT_VNODES = 1;
+
+    /** Replicas each key is stored on by default. */
+    public static final int DEFAULT_REPLICAS = 2;
+
+    /** Replicas that must answer a get by default. */
+    public static final int DEFAULT_READ_QUORUM = 1;
+
+    /** Replicas that must vote to commit a put or del by default. */
+    public static final int DEFAULT_WRITE_QUORUM = 2;
+
+    /** Percentile of a slave's read latency after which a get is hedged. */
+    public static final double DEFAULT_HEDGE_PERCENTILE = 0.95;
+
+    /* Reads a slave must have answered before its histogram sets the hedge. */
+    private static final int HEDGE_MIN_SAMPLES = 32;
+
+    /* Hedge delay for a slave with too few samples. */
+    private static final int UNTRAINED_HEDGE_MILLIS = 50;
+
+    /* Threads sending messages to replicas in parallel. */
+    private static final int FANOUT_THREADS = 32;
+
+    /* Transactions and cache fills on keys in one stripe run one at a time. */
+    private static final int KEY_STRIPES = 256;
+
+    /* Pause between rounds of resending a decision. */
+    private static final int RETRY_MILLIS = 100;
+
+    /* Tries at scanning or copying a page before a migration gives up. */
+    private static final int MIGRATION_ATTEMPTS = 5;
+
+    /* Pause before a migration that gave up is started again. */
+    private static final int MIGRATION_RETRY_MILLIS = 1000;
+
+    private final ConsistentHashRing ring;
+
+    private volatile int replicas = DEFAULT_REPLICAS;
+    private volatile int readQuorum = DEFAULT_READ_QUORUM;
+    private volatile int writeQuorum = DEFAULT_WRITE_QUORUM;
+    private volatile double hedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+    /* Read latency of each slave, by ID. */
+    private final ConcurrentHashMap<Long, LatencyHistogram> latencies =
+        new ConcurrentHashMap<Long, LatencyHistogram>();
+    private final AtomicLong hedgedReads = new AtomicLong();
+    private final AtomicLong clock = new AtomicLong();
+    private final Lock[] keyLocks = new Lock[KEY_STRIPES];
+    /* Reads of the replicas on behalf of cache misses, by key. */
+    private final ConcurrentHashMap<String, Fill> fills =
+        new ConcurrentHashMap<String, Fill>();
+    private final AtomicLong cacheHits = new AtomicLong();
+    private final AtomicLong cacheMisses = new AtomicLong();
+    private final AtomicLong sharedMisses = new AtomicLong();
+    private final KVMetrics metrics = new KVMetrics();
+    /* Created on first use. */
+    private final Object poolLock = new Object();
+    private ThreadPool fanout;
+    private ThreadPool repairers;
+    private ThreadPool migrator;
+
+    /* Set by the first write. Until then new slaves join the ring at once. */
+    private volatile boolean written = false;
+    /* The slave being moved onto the ring, or null. */
+    private volatile Joining joining;
+    /* New slaves waiting for or in migration, by ID; guarded by itself. */
+    private final Map<Long, TPCSlaveInfo> arriving = new LinkedHashMap<Long, TPCSlaveInfo>();
+    /* The migration in progress or the last one to finish. */
+    private volatile Joining lastMigration;
+    private final AtomicLong migrations = new AtomicLong();
+    private final AtomicLong migrationFailures = new AtomicLong();
+
     /**
      * Creates TPCMaster, expecting numSlaves slave servers to eventually register
      *
@@ -20,20 +136,230 @@ public class TPCMaster {
      * @param cache KVCache to cache results on master
      */
     public TPCMaster(int numSlaves, KVCache cache) {
+        this(numSlaves, cache, DEFAULT_VNODES);
+    }
+
+    /**
+     * Creates TPCMaster whose slaves each own vnodes points on the hash ring.
+     * More points even out how much of the key space each slave gets.
+     *
+     * @param numSlaves number of slave servers expected to register
+     * @param cache KVCache to cache results on master
+     * @param vnodes number of ring tokens per slave
+     */
+    public TPCMaster(int numSlaves, KVCache cache, int vnodes) {
         this.numSlaves = numSlaves;
         this.masterCache = cache;
-        // implement me
+        this.ring = new ConsistentHashRing(vnodes);
+        for(int i = 0; i < KEY_STRIPES; i++)
+            keyLocks[i] = new ReentrantLock();
+        metrics.register("cache.hits", new KVMetrics.Gauge() {
+            @Override
+            public long get() {
+                return cacheHits.get();
+            }
+        });
+        metrics.register("cache.misses", new KVMetrics.Gauge() {
+            @Override
+            public long get() {
+                return cacheMisses.get();
+            }
+        });
+        metrics.register("cache.shared_misses", new KVMetrics.Gauge() {
+            @Override
+            public long get() {
+                return sharedMisses.get();
+            }
+        });
+        metrics.register("reads.hedged", new KVMetrics.Gauge() {
+            @Override
+            public long get() {
+                return hedgedReads.get();
+            }
+        });
+        metrics.register("migration.active", new KVMetrics.Gauge() {
+            @Override
+            public long get() {
+                return (joining != null) ? 1 : 0;
+            }
+        });
+        metrics.register("migration.completed", new KVMetrics.Gauge() {
+            @Override
+            public long get() {
+                return migrations.get();
+            }
+        });
+        metrics.register("migration.failed_scans", new KVMetrics.Gauge() {
+            @Override
+            public long get() {
+                return migrationFailures.get();
+            }
+        });
+        metrics.register("migration.progress_pct", new KVMetrics.Gauge() {
+            @Override
+            public long get() {
+                Joining j = lastMigration;
+                return (j == null) ? 100 : j.progress();
+            }
+        });
+        metrics.register("migration.keys", new KVMetrics.Gauge() {
+            @Override
+            public long get() {
+                Joining j = lastMigration;
+                return (j == null) ? 0 : j.keys.get();
+            }
+        });
+        metrics.register("migration.bytes", new KVMetrics.Gauge() {
+            @Override
+            public long get() {
+                Joining j = lastMigration;
+                return (j == null) ? 0 : j.bytes.get();
+            }
+        });
+        metrics.register("migration.keys_per_sec", new KVMetrics.Gauge() {
+            @Override
+            public long get() {
+                Joining j = lastMigration;
+                return (j == null) ? 0 : j.keysPerSecond();
+            }
+        });
+    }
+
+    /**
+     * @return counters of gets served from the cache (cache.hits), sent to
+     *         the replicas (cache.misses), and misses that waited on another
+     *         get's read of the same key instead (cache.shared_misses),
+     *         and of reads sent to a further replica because the ones
+     *         before it were slow (reads.hedged); and the state of the
+     *         migration in progress, or the last one (migration.*)
+     */
+    public KVMetrics getMetrics() {
+        return metrics;
+    }
+
+    private static int stripe(String key) {
+        return (key.hashCode() & 0x7fffffff) % KEY_STRIPES;
+    }
+
+    private Lock keyLock(String key) {
+        return keyLocks[stripe(key)];
+    }
+
+    /**
+     * Set how many replicas hold each key and how many of them make a
+     * quorum. A read and write quorum that add up to more than replicas
+     * always overlap, so every get sees the latest committed write.
+     *
+     * @param replicas number of slaves each key is stored on
+     * @param readQuorum replicas that must answer a get
+     * @param writeQuorum replicas that must vote to commit a put or del
+     */
+    public void setQuorum(int replicas, int readQuorum, int writeQuorum) {
+        if(readQuorum < 1 || readQuorum > replicas
+                || writeQuorum < 1 || writeQuorum > replicas)
+            throw new IllegalArgumentException("quorum out of range");
+        this.replicas = replicas;
+        this.readQuorum = readQuorum;
+        this.writeQuorum = writeQuorum;
+    }
+
+    public int getReplicas() {
+        return replicas;
+    }
+
+    public int getReadQuorum() {
+        return readQuorum;
+    }
+
+    public int getWriteQuorum() {
+        return writeQuorum;
+    }
+
+    /**
+     * Set how slow a replica may be before a get also asks the next one:
+     * the given percentile of that replica's recent read latencies.
+     *
+     * @param percentile fraction between 0 and 1; 1 hedges only reads
+     *        slower than any seen lately
+     */
+    public void setHedgePercentile(double percentile) {
+        if(!(percentile > 0 && percentile <= 1))
+            throw new IllegalArgumentException("percentile out of range");
+        this.hedgePercentile = percentile;
+    }
+
+    public double getHedgePercentile() {
+        return hedgePercentile;
+    }
+
+    /**
+     * @return the read latencies of a slave, created empty if there are none
+     */
+    public LatencyHistogram getLatency(TPCSlaveInfo slave) {
+        LatencyHistogram histogram = latencies.get(slave.getSlaveID());
+        if(histogram == null) {
+            latencies.putIfAbsent(slave.getSlaveID(), new LatencyHistogram());
+            histogram = latencies.get(slave.getSlaveID());
+        }
+        return histogram;
+    }
+
+    /**
+     * @return how long to wait on a read from slave before hedging, in nanos
+     */
+    private long hedgeDelay(TPCSlaveInfo slave) {
+        LatencyHistogram histogram = getLatency(slave);
+        if(histogram.count() < HEDGE_MIN_SAMPLES)
+            return TimeUnit.MILLISECONDS.toNanos(UNTRAINED_HEDGE_MILLIS);
+        return histogram.percentile(hedgePercentile, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * @return a version later than every one handed out before: the clock in
+     *         the high bits, a counter in the low 16
+     */
+    long nextVersion() {
+        long now = System.currentTimeMillis() << 16;
+        while(true) {
+            long last = clock.get();
+            long next = Math.max(now, last + 1);
+            if(clock.compareAndSet(last, next))
+                return next;
+        }
     }
 
     /**
      * Registers a slave. Drop registration request if numSlaves already
      * registered. Note that a slave re-registers under the same slaveID when
-     * it comes back online.
+     * it comes back online. The pooled connections to the slave it replaces
+     * are closed.
+     *
+     * Once anything has been written, a new slave is not put on the ring
+     * right away but migrated there in the background.
      *
      * @param slave the slaveInfo to be registered
      */
     public void registerSlave(TPCSlaveInfo slave) {
-        // implement me
+        long id = slave.getSlaveID();
+        TPCSlaveInfo old = ring.get(id);
+        if(old == null && written) {
+            synchronized(arriving) {
+                if(arriving.containsKey(id)) {
+                    arriving.put(id, slave);
+                    Joining j = joining;
+                    if(j != null && j.id == id)
+                        j.slave = slave;
+                    return;
+                }
+                if(ring.size() + arriving.size() >= numSlaves)
+                    return;
+                arriving.put(id, slave);
+            }
+            migrateLater(id);
+            return;
+        }
+        if(ring.add(slave, numSlaves) && old != null && old != slave)
+            old.closeIdle();
     }
 
     /**
@@ -83,8 +409,7 @@ public class TPCMaster {
      * @return SlaveInfo of first replica
      */
     public TPCSlaveInfo findFirstReplica(String key) {
-        // implement me
-        return null;
+        return ring.primary(key);
     }
 
     /**
@@ -94,16 +419,27 @@ public class TPCMaster {
      * @return SlaveInfo of successor replica
      */
     public TPCSlaveInfo findSuccessor(TPCSlaveInfo firstReplica) {
-        // implement me
-        return null;
+        return ring.successor(firstReplica);
+    }
+
+    /**
+     * Find the distinct slaves that hold a key, primary first. With several
+     * vnodes per slave, a key's second replica depends on where the key
+     * falls, not only on its primary, so use this rather than findSuccessor.
+     *
+     * @param key String to map to slave server replicas
+     * @param n number of replicas wanted
+     * @return up to n slaves, fewer if not enough are registered
+     */
+    public TPCSlaveInfo[] findReplicas(String key, int n) {
+        return ring.replicas(key, n);
     }
 
     /**
      * @return The number of slaves currently registered.
      */
     public int getNumRegisteredSlaves() {
-        // implement me
-        return -1;
+        return ring.size();
     }
 
     /**
@@ -111,8 +447,14 @@ public class TPCMaster {
      * @return The requested TPCSlaveInfo if present, otherwise null.
      */
     public TPCSlaveInfo getSlave(long slaveId) {
-        // implement me
-        return null;
+        return ring.get(slaveId);
+    }
+
+    /**
+     * @return the hash ring the slaves are placed on
+     */
+    public ConsistentHashRing getRing() {
+        return ring;
     }
 
     /**
@@ -120,15 +462,405 @@ public class TPCMaster {
      * contains the bulk of the two-phase commit logic. It performs phase 1
      * and phase 2 with appropriate timeouts and retries.
      *
-     * See the spec for details on the expected behavior.
+     * See the spec for details on the expected behavior. Only transactions
+     * on keys in the same lock stripe are serialized.
      *
      * @param msg KVMessage corresponding to the transaction for this TPC request
      * @param isPutReq boolean to distinguish put and del requests
      * @throws KVException if the operation cannot be carried out for any reason
      */
-    public synchronized void handleTPCRequest(KVMessage msg, boolean isPutReq)
+    public void handleTPCRequest(KVMessage msg, boolean isPutReq)
+            throws KVException {
+        String key = msg.getKey();
+        String value = isPutReq ? msg.getValue() : null;
+        if(key == null || key.isEmpty())
+            throw new KVException(ERROR_INVALID_KEY);
+        if(isPutReq && (value == null || value.isEmpty()))
+            throw new KVException(ERROR_INVALID_VALUE);
+        written = true;
+        Lock lock = keyLock(key);
+        lock.lock();
+        try {
+            TPCSlaveInfo[] targets = findReplicas(key, replicas);
+            twoPhaseCommit(withJoining(targets, key), targets,
+                isPutReq ? PUT_REQ : DEL_REQ, key, value, nextVersion(), writeQuorum);
+            committed(key, value);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Perform a batch of puts and dels as one 2PC transaction: either every
+     * operation takes effect, in order, or none does. Operations are grouped
+     * by the replica set of their key. Each slave is sent one request with
+     * all the operations it holds a replica for, and the batch commits if
+     * every group reaches the write quorum.
+     *
+     * @param msg BATCH_REQ carrying the operations
+     * @throws KVException if the batch cannot be carried out for any reason,
+     *         in which case none of it is
+     */
+    public void handleTPCBatch(KVMessage msg) throws KVException {
+        List<KVMessage> ops = msg.getBatch();
+        if(ops == null)
+            throw new KVException(ERROR_INVALID_FORMAT);
+        TreeSet<Integer> stripes = new TreeSet<Integer>();
+        for(KVMessage op : ops) {
+            boolean put = PUT_REQ.equals(op.getMsgType());
+            if(!put && !DEL_REQ.equals(op.getMsgType()))
+                throw new KVException(ERROR_INVALID_FORMAT);
+            if(op.getKey() == null || op.getKey().isEmpty())
+                throw new KVException(ERROR_INVALID_KEY);
+            if(put && (op.getValue() == null || op.getValue().isEmpty()))
+                throw new KVException(ERROR_INVALID_VALUE);
+            stripes.add(stripe(op.getKey()));
+        }
+        if(ops.isEmpty())
+            return;
+        written = true;
+
+        /* Lock in stripe order, so overlapping batches cannot deadlock. */
+        for(int i : stripes)
+            keyLocks[i].lock();
+        try {
+            long version = nextVersion();
+            Map<Long, TPCSlaveInfo> slaves = new LinkedHashMap<Long, TPCSlaveInfo>();
+            Map<Long, List<KVMessage>> slaveOps = new HashMap<Long, List<KVMessage>>();
+            Map<String, TPCSlaveInfo[]> groups = new LinkedHashMap<String, TPCSlaveInfo[]>();
+            for(KVMessage op : ops) {
+                TPCSlaveInfo[] targets = findReplicas(op.getKey(), replicas);
+                StringBuilder group = new StringBuilder();
+                KVMessage copy = new KVMessage(op.getMsgType());
+                copy.setKey(op.getKey());
+                copy.setValue(op.getValue());
+                for(TPCSlaveInfo slave : targets) {
+                    long id = slave.getSlaveID();
+                    group.append(id).append(',');
+                    if(!slaves.containsKey(id)) {
+                        slaves.put(id, slave);
+                        slaveOps.put(id, new ArrayList<KVMessage>());
+                    }
+                    slaveOps.get(id).add(copy);
+                }
+                if(!groups.containsKey(group.toString()))
+                    groups.put(group.toString(), targets);
+                TPCSlaveInfo extra = joiningReplica(op.getKey());
+                if(extra != null) {
+                    long id = extra.getSlaveID();
+                    if(!slaves.containsKey(id)) {
+                        slaves.put(id, extra);
+                        slaveOps.put(id, new ArrayList<KVMessage>());
+                    }
+                    slaveOps.get(id).add(copy);
+                }
+            }
+            TPCSlaveInfo[] targets = slaves.values().toArray(new TPCSlaveInfo[slaves.size()]);
+            KVMessage[] requests = new KVMessage[targets.length];
+            for(int i = 0; i < targets.length; i++) {
+                requests[i] = new KVMessage(BATCH_REQ, Long.toString(version));
+                requests[i].setBatch(slaveOps.get(targets[i].getSlaveID()));
+                /* Refuse a batch too large to send before phase 1 starts. */
+                KVBinaryCodec.encode(requests[i]);
+            }
+            twoPhaseCommit(targets, requests, new ArrayList<TPCSlaveInfo[]>(groups.values()),
+                null, version, writeQuorum);
+
+            for(KVMessage op : ops) {
+                boolean put = PUT_REQ.equals(op.getMsgType());
+                committed(op.getKey(), put ? op.getValue() : null);
+            }
+        } finally {
+            for(int i : stripes.descendingSet())
+                keyLocks[i].unlock();
+        }
+    }
+
+    /**
+     * Bring the cache up to a committed put, or del if value is null, and
+     * keep any read of the key in flight from caching what it found.
+     */
+    private void committed(String key, String value) {
+        Lock cacheLock = masterCache.getLock(key);
+        cacheLock.lock();
+        try {
+            if(value != null) {
+                masterCache.put(key, value);
+            } else {
+                masterCache.del(key);
+            }
+            /* Gets from now on start a read of their own. */
+            Fill fill = fills.remove(key);
+            if(fill != null)
+                fill.stale = true;
+        } finally {
+            cacheLock.unlock();
+        }
+    }
+
+    /**
+     * Run one single-key transaction on slaves, committing it if quorum of
+     * group vote ready. Slaves outside group are sent it but do not vote.
+     *
+     * @throws KVException with the reason a slave voted to abort, or
+     *         ERROR_NO_QUORUM if too few slaves could be reached
+     */
+    private void twoPhaseCommit(TPCSlaveInfo[] slaves, TPCSlaveInfo[] group,
+            String type, String key, String value, long version, int quorum)
+            throws KVException {
+        KVMessage request = new KVMessage(type);
+        request.setKey(key);
+        request.setValue(value);
+        request.setMessage(Long.toString(version));
+        KVMessage[] requests = new KVMessage[slaves.length];
+        Arrays.fill(requests, request);
+        List<TPCSlaveInfo[]> groups = new ArrayList<TPCSlaveInfo[]>();
+        groups.add(group);
+        twoPhaseCommit(slaves, requests, groups, key, version, quorum);
+    }
+
+    /**
+     * Run one transaction. Phase 1 sends each slave its request, all at
+     * once; the transaction commits if in every group, quorum slaves vote
+     * ready. Phase 2 sends the decision and retries until in every group as
+     * many slaves as the quorum, or as voted, have acknowledged it. The
+     * others get it from a background thread, which keeps trying until each
+     * one has.
+     *
+     * @param  slaves the slaves taking part, each once
+     * @param  requests the request for each slave
+     * @param  groups the replica sets whose quorums must all be reached
+     * @param  key key the decision is tagged with, null for a batch
+     * @throws KVException with the reason a slave voted to abort, or
+     *         ERROR_NO_QUORUM if too few slaves could be reached
+     */
+    private void twoPhaseCommit(TPCSlaveInfo[] slaves, KVMessage[] requests,
+            List<TPCSlaveInfo[]> groups, String key, long version, int quorum)
             throws KVException {
-        // implement me
+        KVMessage[] votes = exchangeAll(slaves, requests);
+        Set<Long> voted = new HashSet<Long>();
+        Set<Long> ready = new HashSet<Long>();
+        String reason = null;
+        for(int i = 0; i < slaves.length; i++) {
+            KVMessage vote = votes[i];
+            if(vote == null)
+                continue;
+            voted.add(slaves[i].getSlaveID());
+            if(READY.equals(vote.getMsgType())) {
+                ready.add(slaves[i].getSlaveID());
+            } else if(reason == null) {
+                reason = (vote.getMessage() != null) ? vote.getMessage()
+                    : ERROR_INVALID_FORMAT;
+            }
+        }
+
+        boolean commit = true;
+        int[] needed = new int[groups.size()];
+        for(int g = 0; g < needed.length; g++) {
+            if(count(groups.get(g), ready) < quorum)
+                commit = false;
+            needed[g] = Math.min(quorum, count(groups.get(g), voted));
+        }
+        KVMessage decision = new KVMessage(commit ? COMMIT : ABORT);
+        decision.setKey(key);
+        decision.setMessage(Long.toString(version));
+        deliver(slaves, groups, needed, decision);
+        if(!commit)
+            throw new KVException((reason != null) ? reason : ERROR_NO_QUORUM);
+    }
+
+    /**
+     * @return how many of group's slaves are in ids
+     */
+    private static int count(TPCSlaveInfo[] group, Set<Long> ids) {
+        int n = 0;
+        for(TPCSlaveInfo slave : group) {
+            if(ids.contains(slave.getSlaveID()))
+                n++;
+        }
+        return n;
+    }
+
+    /**
+     * Send a decision to slaves until needed[g] slaves of each group g have
+     * acknowledged it, then hand the rest to a background thread.
+     */
+    private void deliver(TPCSlaveInfo[] slaves, List<TPCSlaveInfo[]> groups,
+            int[] needed, KVMessage decision) {
+        Map<Long, TPCSlaveInfo> unacked = new LinkedHashMap<Long, TPCSlaveInfo>();
+        for(TPCSlaveInfo slave : slaves)
+            unacked.put(slave.getSlaveID(), slave);
+        Set<Long> acked = new HashSet<Long>();
+        while(true) {
+            acked.addAll(sendDecision(unacked, decision));
+            if(unacked.isEmpty())
+                break;
+            boolean done = true;
+            for(int g = 0; g < needed.length; g++) {
+                if(count(groups.get(g), acked) < needed[g])
+                    done = false;
+            }
+            if(done)
+                break;
+            try {
+                Thread.sleep(RETRY_MILLIS);
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if(!unacked.isEmpty())
+            deliverLater(unacked, decision);
+    }
+
+    /**
+     * Try once to send a decision to every slave in unacked at once,
+     * removing those that acknowledge it. A slave that has re-registered is
+     * sent it at its new address.
+     *
+     * @return IDs of the slaves that acknowledged
+     */
+    private List<Long> sendDecision(Map<Long, TPCSlaveInfo> unacked,
+            KVMessage decision) {
+        TPCSlaveInfo[] targets = new TPCSlaveInfo[unacked.size()];
+        int i = 0;
+        for(TPCSlaveInfo slave : unacked.values()) {
+            TPCSlaveInfo current = ring.get(slave.getSlaveID());
+            targets[i++] = (current != null) ? current : slave;
+        }
+        KVMessage[] acks = exchangeAll(targets, decision);
+        List<Long> acked = new ArrayList<Long>();
+        for(i = 0; i < acks.length; i++) {
+            if(acks[i] != null && ACK.equals(acks[i].getMsgType())) {
+                unacked.remove(targets[i].getSlaveID());
+                acked.add(targets[i].getSlaveID());
+            }
+        }
+        return acked;
+    }
+
+    /**
+     * Keep resending a decision to slaves that have not acknowledged it.
+     * A slave that never comes back keeps its thread waiting, as the
+     * master would itself if the decision were needed.
+     */
+    private void deliverLater(final Map<Long, TPCSlaveInfo> unacked,
+            final KVMessage decision) {
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while(!unacked.isEmpty()) {
+                    try {
+                        Thread.sleep(TIMEOUT);
+                    } catch(InterruptedException e) {
+                        return;
+                    }
+                    sendDecision(unacked, decision);
+                }
+            }
+        }, "TPCMaster-decision");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Send one message to every target at once and wait for all the replies.
+     *
+     * @return each target's reply, or null where the exchange failed
+     */
+    private KVMessage[] exchangeAll(TPCSlaveInfo[] targets, KVMessage msg) {
+        KVMessage[] msgs = new KVMessage[targets.length];
+        Arrays.fill(msgs, msg);
+        return exchangeAll(targets, msgs);
+    }
+
+    /**
+     * Send each target its message, all at once, and wait for all the
+     * replies. The calling thread talks to the first target itself.
+     *
+     * @return each target's reply, or null where the exchange failed
+     */
+    private KVMessage[] exchangeAll(final TPCSlaveInfo[] targets,
+            final KVMessage[] msgs) {
+        final KVMessage[] replies = new KVMessage[targets.length];
+        if(targets.length == 0)
+            return replies;
+        final CountDownLatch done = new CountDownLatch(targets.length - 1);
+        for(int i = 1; i < targets.length; i++) {
+            final int k = i;
+            try {
+                fanout().addJob(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            replies[k] = exchange(targets[k], msgs[k]);
+                        } catch(KVException e) {
+                        } finally {
+                            done.countDown();
+                        }
+                    }
+                });
+            } catch(InterruptedException e) {
+                done.countDown();
+            }
+        }
+        try {
+            replies[0] = exchange(targets[0], msgs[0]);
+        } catch(KVException e) {}
+        try {
+            done.await();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return replies;
+    }
+
+    /**
+     * Send a message to a slave in the binary format and read its reply.
+     */
+    private KVMessage exchange(TPCSlaveInfo slave, KVMessage msg) throws KVException {
+        return exchange(slave, msg, null);
+    }
+
+    /**
+     * Send a message as part of an attempt that another thread may cancel
+     * by closing its socket. The message goes over a pooled connection if
+     * there is one. The slave may have closed that connection while it sat
+     * in the pool, which shows as a failure to send or an empty reply, so
+     * then the message is sent once more on a new connection.
+     */
+    private KVMessage exchange(TPCSlaveInfo slave, KVMessage msg, Attempt attempt)
+            throws KVException {
+        try {
+            return exchange(slave, msg, attempt, false);
+        } catch(KVException e) {
+            String error = e.getKVMessage().getMessage();
+            if(attempt != null && attempt.isCancelled()
+                    || !ERROR_COULD_NOT_SEND_DATA.equals(error)
+                    && !ERROR_COULD_NOT_RECEIVE_DATA.equals(error)
+                    && !ERROR_PARSER.equals(error))
+                throw e;
+            return exchange(slave, msg, attempt, true);
+        }
+    }
+
+    private KVMessage exchange(TPCSlaveInfo slave, KVMessage msg, Attempt attempt,
+            boolean fresh) throws KVException {
+        Socket sock = slave.acquire(TIMEOUT, fresh);
+        boolean reusable = false;
+        try {
+            if(attempt != null)
+                attempt.started(sock);
+            msg.sendMessage(sock, KVMessage.Format.BINARY);
+            KVMessage resp = new KVMessage(sock, TIMEOUT);
+            reusable = true;
+            return resp;
+        } finally {
+            /* Once back in the pool, the socket is no longer the attempt's to close. */
+            if(attempt != null && !attempt.finish())
+                reusable = false;
+            slave.release(sock, reusable);
+        }
     }
 
     /**
@@ -140,14 +872,642 @@ public class TPCMaster {
      * - If secondary succeeded, return value
      * - If secondary failed, return KVExceptions from both replicas
      *
+     * With a read quorum above one, every replica is asked at once and the
+     * newest of the first readQuorum answers wins instead. A get that misses
+     * while another get of the same key is reading the replicas waits for
+     * and returns that read's outcome, unless a put or del of the key has
+     * committed meanwhile, in which case it looks again.
+     *
      * @param msg KVMessage containing key to get
      * @return value corresponding to the Key
      * @throws KVException with ERROR_NO_SUCH_KEY if unable to get
      *         the value from either slave for any reason
      */
     public String handleGet(KVMessage msg) throws KVException {
-        // implement me
+        String key = msg.getKey();
+        if(key == null || key.isEmpty())
+            throw new KVException(ERROR_NO_SUCH_KEY);
+        String value = cached(key);
+        if(value != null) {
+            cacheHits.incrementAndGet();
+            return value;
+        }
+        while(true) {
+            Fill fill = new Fill();
+            Fill leader = fills.putIfAbsent(key, fill);
+            if(leader == null)
+                return fill(key, fill);
+            sharedMisses.incrementAndGet();
+            leader.await();
+            if(!leader.stale)
+                return leader.result();
+            /* A commit overtook that read, perhaps before this get began. */
+            value = cached(key);
+            if(value != null)
+                return value;
+        }
+    }
+
+    /**
+     * Read key from the replicas for every get that joins fill, and cache
+     * what was found unless a commit has made it stale meanwhile.
+     */
+    private String fill(String key, Fill fill) throws KVException {
+        cacheMisses.incrementAndGet();
+        try {
+            /* A commit since the first look has already filled the cache. */
+            String value = cached(key);
+            if(value == null) {
+                TPCSlaveInfo[] targets = findReplicas(key, replicas);
+                int quorum = readQuorum;
+                Reply best = (quorum == 1) ? readHedged(targets, key)
+                    : readQuorum(targets, key, quorum);
+                if(best == null || best.value == null)
+                    throw new KVException(ERROR_NO_SUCH_KEY);
+                value = best.value;
+                Lock cacheLock = masterCache.getLock(key);
+                cacheLock.lock();
+                try {
+                    if(!fill.stale)
+                        masterCache.put(key, value);
+                } finally {
+                    cacheLock.unlock();
+                }
+            }
+            fill.value = value;
+            return value;
+        } catch(KVException e) {
+            fill.error = e;
+            throw e;
+        } finally {
+            fills.remove(key, fill);
+            fill.done.countDown();
+        }
+    }
+
+    /**
+     * @return the cached value, or null; a hit is read without locking
+     *         unless a writer is busy with the key's set
+     */
+    private String cached(String key) {
+        String value = masterCache.getOptimistic(key);
+        if(value != null)
+            return value;
+        Lock lock = masterCache.getLock(key);
+        lock.lock();
+        try {
+            return masterCache.get(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ask the replicas in order, starting the next when the last one asked
+     * fails, does not have the key, or is slower than its hedge delay.
+     *
+     * @return the first answer that has the key, or null if none does
+     */
+    private Reply readHedged(final TPCSlaveInfo[] targets, final String key) {
+        final BlockingQueue<Reply> replies = new LinkedBlockingQueue<Reply>();
+        List<Attempt> attempts = new ArrayList<Attempt>();
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(2 * TIMEOUT);
+        int started = 0;
+        int received = 0;
+        try {
+            while(received < targets.length) {
+                long wait = deadline - System.nanoTime();
+                if(started == received) {
+                    /* Every read so far has come back empty: ask the next now. */
+                    attempts.add(readLater(targets[started++], key, replies));
+                }
+                if(started < targets.length)
+                    wait = Math.min(wait, hedgeDelay(targets[started - 1]));
+                Reply reply = replies.poll(Math.max(0, wait), TimeUnit.NANOSECONDS);
+                if(reply == null) {
+                    if(System.nanoTime() - deadline >= 0)
+                        return null;
+                    hedgedReads.incrementAndGet();
+                    attempts.add(readLater(targets[started++], key, replies));
+                    continue;
+                }
+                received++;
+                if(reply.value != null)
+                    return reply;
+            }
+            return null;
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } finally {
+            for(Attempt attempt : attempts)
+                attempt.cancel();
+        }
+    }
+
+    /**
+     * Start reading a key from a slave on the fanout pool. A failed read
+     * is reported as an answer without a value.
+     */
+    private Attempt readLater(final TPCSlaveInfo slave, final String key,
+            final BlockingQueue<Reply> replies) {
+        final Attempt attempt = new Attempt();
+        try {
+            fanout().addJob(new Runnable() {
+                @Override
+                public void run() {
+                    Reply reply;
+                    try {
+                        reply = read(slave, key, attempt);
+                    } catch(KVException e) {
+                        reply = new Reply(slave, null, -1);
+                    }
+                    replies.add(reply);
+                }
+            });
+        } catch(InterruptedException e) {
+            replies.add(new Reply(slave, null, -1));
+        }
+        return attempt;
+    }
+
+    /**
+     * Ask every replica at once and wait for quorum answers.
+     *
+     * @return the newest answer, or null if too few replicas answered in time
+     */
+    private Reply readQuorum(TPCSlaveInfo[] targets, final String key, int quorum) {
+        final BlockingQueue<Reply> replies = new LinkedBlockingQueue<Reply>();
+        for(final TPCSlaveInfo slave : targets) {
+            try {
+                fanout().addJob(new Runnable() {
+                    @Override
+                    public void run() {
+                        Reply reply;
+                        try {
+                            reply = read(slave, key);
+                        } catch(KVException e) {
+                            reply = new Reply(slave, null, -1);
+                        }
+                        replies.add(reply);
+                    }
+                });
+            } catch(InterruptedException e) {
+                replies.add(new Reply(slave, null, -1));
+            }
+        }
+        List<Reply> answers = new ArrayList<Reply>();
+        int received = collect(replies, answers, quorum, targets.length);
+        if(answers.size() < quorum)
+            return null;
+        Reply best = newest(answers);
+        repairLater(key, best, answers, replies, targets.length - received);
+        return best;
+    }
+
+    /**
+     * Take replies until wanted have answered, expected have arrived or
+     * twice the timeout has passed, enough for a connect and a read.
+     *
+     * @return number of replies taken, failed ones included
+     */
+    private static int collect(BlockingQueue<Reply> replies, List<Reply> answers,
+            int wanted, int expected) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(2 * TIMEOUT);
+        int received = 0;
+        try {
+            while(answers.size() < wanted && received < expected) {
+                long left = deadline - System.nanoTime();
+                Reply reply = replies.poll(left, TimeUnit.NANOSECONDS);
+                if(reply == null)
+                    break;
+                received++;
+                if(reply.version >= 0)
+                    answers.add(reply);
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return received;
+    }
+
+    /**
+     * @return the answer with the highest version, preferring one that has
+     *         a value among equals
+     */
+    private static Reply newest(List<Reply> answers) {
+        Reply best = null;
+        for(Reply reply : answers) {
+            if(best == null || reply.version > best.version
+                    || reply.version == best.version && best.value == null)
+                best = reply;
+        }
+        return best;
+    }
+
+    /**
+     * Wait in the background for the replicas that have not answered yet,
+     * then bring every replica that answered with an older version up to
+     * best. Each repair is a transaction on that one replica, at best's
+     * version, so it loses to anything written since.
+     */
+    private void repairLater(final String key, final Reply best,
+            final List<Reply> answers, final BlockingQueue<Reply> replies,
+            final int outstanding) {
+        if(best.version <= 0)
+            return;
+        try {
+            repairers().addJob(new Runnable() {
+                @Override
+                public void run() {
+                    collect(replies, answers, Integer.MAX_VALUE, outstanding);
+                    for(Reply reply : answers) {
+                        if(reply.version < best.version)
+                            repair(reply, key, best);
+                    }
+                }
+            });
+        } catch(InterruptedException e) {}
+    }
+
+    private void repair(Reply stale, String key, Reply best) {
+        if(best.value == null && stale.value == null)
+            return;
+        String type = (best.value != null) ? PUT_REQ : DEL_REQ;
+        Lock lock = keyLock(key);
+        lock.lock();
+        try {
+            TPCSlaveInfo[] target = { stale.slave };
+            twoPhaseCommit(target, target, type, key, best.value, best.version, 1);
+        } catch(KVException e) {
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Ask one slave for a key.
+     *
+     * @return its value and version; no value if the slave does not have it
+     * @throws KVException if the slave could not be asked or answered with
+     *         an error
+     */
+    private Reply read(TPCSlaveInfo slave, String key) throws KVException {
+        return read(slave, key, null);
+    }
+
+    /**
+     * Ask one slave for a key as a cancellable attempt, recording how long
+     * it took to answer in the slave's latency histogram.
+     */
+    private Reply read(TPCSlaveInfo slave, String key, Attempt attempt)
+            throws KVException {
+        KVMessage request = new KVMessage(GET_REQ);
+        request.setKey(key);
+        long start = System.nanoTime();
+        KVMessage resp = exchange(slave, request, attempt);
+        getLatency(slave).record(System.nanoTime() - start);
+        String value = resp.getValue();
+        long version = TPCLog.versionOf(resp);
+        if(value == null && version == 0 && !ERROR_NO_SUCH_KEY.equals(resp.getMessage()))
+            throw new KVException((resp.getMessage() != null) ? resp.getMessage()
+                : ERROR_INVALID_FORMAT);
+        return new Reply(slave, value, version);
+    }
+
+    private ThreadPool fanout() {
+        synchronized(poolLock) {
+            if(fanout == null)
+                fanout = new ThreadPool(FANOUT_THREADS);
+            return fanout;
+        }
+    }
+
+    private ThreadPool repairers() {
+        synchronized(poolLock) {
+            if(repairers == null)
+                repairers = new ThreadPool(1);
+            return repairers;
+        }
+    }
+
+    private ThreadPool migrator() {
+        synchronized(poolLock) {
+            if(migrator == null)
+                migrator = new ThreadPool(1);
+            return migrator;
+        }
+    }
+
+    /**
+     * @return the slave joining the ring if it is to hold a replica of key,
+     *         or null
+     */
+    private TPCSlaveInfo joiningReplica(String key) {
+        Joining j = joining;
+        if(j == null)
+            return null;
+        for(TPCSlaveInfo slave : j.next.replicas(key, replicas)) {
+            if(slave.getSlaveID() == j.id)
+                return j.slave;
+        }
         return null;
     }
 
+    /**
+     * @return targets, followed by the joining slave if it is to hold key
+     */
+    private TPCSlaveInfo[] withJoining(TPCSlaveInfo[] targets, String key) {
+        TPCSlaveInfo extra = joiningReplica(key);
+        if(extra == null)
+            return targets;
+        TPCSlaveInfo[] all = Arrays.copyOf(targets, targets.length + 1);
+        all[targets.length] = extra;
+        return all;
+    }
+
+    private void lockAllKeys() {
+        for(Lock lock : keyLocks)
+            lock.lock();
+    }
+
+    private void unlockAllKeys() {
+        for(int i = keyLocks.length - 1; i >= 0; i--)
+            keyLocks[i].unlock();
+    }
+
+    private void migrateLater(final long id) {
+        try {
+            migrator().addJob(new Runnable() {
+                @Override
+                public void run() {
+                    migrate(id);
+                }
+            });
+        } catch(InterruptedException e) {
+            synchronized(arriving) {
+                arriving.remove(id);
+            }
+        }
+    }
+
+    /**
+     * Bring a new slave onto the ring. Writes to the keys it will hold are
+     * sent to it as well from here on; once every write begun before that
+     * has finished, each slave on the ring is scanned for those keys and
+     * they are copied to the new slave in batches. Each key keeps its
+     * version, so a copy never overwrites a newer write. Finally the slave
+     * is put on the ring with every key lock held, so no write sees it
+     * half joined.
+     *
+     * If a slave cannot be scanned or the copies cannot be committed, the
+     * new slave would be missing keys it is to serve, so it stays off the
+     * ring and the migration is started again from the beginning later.
+     */
+    private void migrate(long id) {
+        Joining j;
+        synchronized(arriving) {
+            TPCSlaveInfo slave = arriving.get(id);
+            j = new Joining(slave, ring.with(slave));
+            joining = j;
+            lastMigration = j;
+        }
+        lockAllKeys();
+        unlockAllKeys();
+
+        StringBuilder arcs = new StringBuilder();
+        for(long[] arc : j.next.arcs(id, replicas)) {
+            if(arcs.length() > 0)
+                arcs.append(',');
+            arcs.append(arc[0]).append(':').append(arc[1]);
+        }
+        List<TPCSlaveInfo> sources = ring.slaves();
+        j.sources = sources.size();
+        for(TPCSlaveInfo source : sources) {
+            if(arcs.length() > 0 && !copyFrom(source.getSlaveID(), j, arcs.toString())) {
+                migrationFailures.incrementAndGet();
+                synchronized(arriving) {
+                    joining = null;
+                }
+                if(pause(MIGRATION_RETRY_MILLIS)) {
+                    migrateLater(id);
+                } else {
+                    synchronized(arriving) {
+                        arriving.remove(id);
+                    }
+                }
+                return;
+            }
+            j.scanned.incrementAndGet();
+        }
+
+        lockAllKeys();
+        try {
+            synchronized(arriving) {
+                ring.add(j.slave, numSlaves);
+                arriving.remove(id);
+                joining = null;
+            }
+        } finally {
+            unlockAllKeys();
+        }
+        j.finished = System.nanoTime();
+        migrations.incrementAndGet();
+    }
+
+    /**
+     * Copy the keys a slave holds on arcs to the joining slave, a page at
+     * a time, retrying a page that fails.
+     *
+     * @return false if a page could not be scanned or copied
+     */
+    private boolean copyFrom(long sourceID, Joining j, String arcs) {
+        String cursor = null;
+        do {
+            KVMessage scan = new KVMessage(SCAN_REQ, cursor, arcs,
+                Integer.toString(ring.getVirtualNodes()));
+            KVMessage page = null;
+            for(int attempt = 0; page == null && attempt < MIGRATION_ATTEMPTS; attempt++) {
+                TPCSlaveInfo source = ring.get(sourceID);
+                try {
+                    KVMessage reply = exchange(source, scan);
+                    if(BATCH_REQ.equals(reply.getMsgType()) && reply.getBatch() != null)
+                        page = reply;
+                } catch(KVException e) {}
+                if(page == null && !pause())
+                    return false;
+            }
+            if(page == null || !copy(j, page.getBatch()))
+                return false;
+            cursor = page.getKey();
+        } while(cursor != null);
+        return true;
+    }
+
+    /**
+     * Commit a page of versioned puts on the joining slave.
+     *
+     * @return false if every attempt failed
+     */
+    private boolean copy(Joining j, List<KVMessage> ops) {
+        if(ops.isEmpty())
+            return true;
+        for(int attempt = 0; attempt < MIGRATION_ATTEMPTS; attempt++) {
+            long version = nextVersion();
+            KVMessage batch = new KVMessage(BATCH_REQ, Long.toString(version));
+            batch.setBatch(ops);
+            TPCSlaveInfo[] target = { j.slave };
+            try {
+                twoPhaseCommit(target, new KVMessage[] { batch },
+                    Collections.singletonList(target), null, version, 1);
+                long bytes = 0;
+                for(KVMessage op : ops)
+                    bytes += op.getKey().length() + op.getValue().length();
+                j.keys.addAndGet(ops.size());
+                j.bytes.addAndGet(bytes);
+                return true;
+            } catch(KVException e) {
+                if(!pause())
+                    return false;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return false if interrupted
+     */
+    private static boolean pause() {
+        return pause(RETRY_MILLIS);
+    }
+
+    private static boolean pause(int millis) {
+        try {
+            Thread.sleep(millis);
+            return true;
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    /**
+     * A slave being migrated onto the ring, the ring it will make, and how
+     * far the migration has got.
+     */
+    private static class Joining {
+        final long id;
+        /* Replaced if the slave registers again meanwhile. */
+        volatile TPCSlaveInfo slave;
+        final ConsistentHashRing next;
+        final long started = System.nanoTime();
+        volatile long finished = 0;
+        volatile int sources = 0;
+        final AtomicLong scanned = new AtomicLong();
+        final AtomicLong keys = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+
+        Joining(TPCSlaveInfo slave, ConsistentHashRing next) {
+            this.id = slave.getSlaveID();
+            this.slave = slave;
+            this.next = next;
+        }
+
+        long progress() {
+            if(finished != 0)
+                return 100;
+            return (sources == 0) ? 0 : scanned.get() * 100 / sources;
+        }
+
+        long keysPerSecond() {
+            long end = (finished != 0) ? finished : System.nanoTime();
+            long nanos = Math.max(1, end - started);
+            return keys.get() * 1000000000L / nanos;
+        }
+    }
+
+    /**
+     * One read of the replicas for a cache miss, shared by every get of the
+     * key that misses while it runs. Stale is set under the cache set's
+     * lock once a commit to the key overtakes the read; value and error are
+     * published by counting down done.
+     */
+    private static class Fill {
+        final CountDownLatch done = new CountDownLatch(1);
+        volatile boolean stale;
+        String value;
+        KVException error;
+
+        void await() throws KVException {
+            try {
+                done.await();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new KVException(ERROR_NO_SUCH_KEY);
+            }
+        }
+
+        String result() throws KVException {
+            if(error != null)
+                throw error;
+            return value;
+        }
+    }
+
+    /**
+     * A request to one slave that may be abandoned. Cancelling closes the
+     * request's socket, which fails its pending send or read at once.
+     */
+    private static class Attempt {
+        private Socket sock;
+        private boolean cancelled;
+
+        synchronized void started(Socket sock) throws KVException {
+            if(cancelled) {
+                try {
+                    sock.close();
+                } catch(IOException e) {}
+                throw new KVException(ERROR_COULD_NOT_RECEIVE_DATA);
+            }
+            this.sock = sock;
+        }
+
+        synchronized boolean isCancelled() {
+            return cancelled;
+        }
+
+        /**
+         * @return false if the attempt was cancelled
+         */
+        synchronized boolean finish() {
+            sock = null;
+            return !cancelled;
+        }
+
+        synchronized void cancel() {
+            cancelled = true;
+            if(sock != null) {
+                try {
+                    sock.close();
+                } catch(IOException e) {}
+            }
+        }
+    }
+
+    /**
+     * A replica's answer to a get. The value is null if the replica does not
+     * have the key, and the version is -1 if it did not answer.
+     */
+    private static class Reply {
+        final TPCSlaveInfo slave;
+        final String value;
+        final long version;
+
+        Reply(TPCSlaveInfo slave, String value, long version) {
+            this.slave = slave;
+            this.value = value;
+            this.version = version;
+        }
+    }
+
 }
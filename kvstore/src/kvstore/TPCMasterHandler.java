@@ -2,10 +2,29 @@ package kvstore;
 
 import static kvstore.KVConstants.*;
 
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Implements NetworkHandler to handle 2PC operation requests from the Master/
  * Coordinator Server
+ *
+ * Each request is answered in the format it arrived in. The master speaks the
+ * binary format, which carries every field: puts and dels arrive tagged with
+ * a version, and a get is answered with the version of what this slave holds,
+ * including a delete, so the master can tell which replica is newest.
+ *
+ * The master keeps binary connections open between requests, so a
+ * connection is served until the master closes it. An idle connection
+ * holds one of the handler's threads, and it is given up as soon as
+ * another connection is waiting for a thread, or after IDLE_MILLIS.
  */
 public class TPCMasterHandler implements NetworkHandler {
 
@@ -14,7 +33,26 @@ public class TPCMasterHandler implements NetworkHandler {
     public TPCLog tpcLog;
     public ThreadPool threadpool;
 
-    // implement me
+    /** Port the master accepts registrations on. */
+    public static final int MASTER_REGISTRATION_PORT = 9090;
+
+    /** Longest a connection is kept open without a request. */
+    public static final int IDLE_MILLIS = 60000;
+
+    /* How often an idle connection checks for other connections waiting. */
+    private static final int IDLE_POLL_MILLIS = 20;
+
+    /** Most keys in one page of a scan. */
+    public static final int SCAN_PAGE_KEYS = 1024;
+
+    /** Size of the keys and values after which a page of a scan ends. */
+    public static final int SCAN_PAGE_BYTES = 1024 * 1024;
+
+    /*
+     * Serialize the votes and decisions for a key, so a decision meets its
+     * own request. Transactions on other keys go ahead meanwhile.
+     */
+    private final Object[] keyLocks = new Object[64];
 
     /**
      * Constructs a TPCMasterHandler with one connection in its ThreadPool
@@ -41,6 +79,13 @@ public class TPCMasterHandler implements NetworkHandler {
         this.kvServer = kvServer;
         this.tpcLog = log;
         this.threadpool = new ThreadPool(connections);
+        for(int i = 0; i < keyLocks.length; i++)
+            keyLocks[i] = new Object();
+    }
+
+    private Object keyLock(String key) {
+        int h = (key == null) ? 0 : key.hashCode();
+        return keyLocks[(h & 0x7fffffff) % keyLocks.length];
     }
 
     /**
@@ -57,7 +102,19 @@ public class TPCMasterHandler implements NetworkHandler {
      */
     public void registerWithMaster(String masterHostname, SocketServer server)
             throws KVException {
-        // implement me
+        String info = slaveID + "@" + server.getHostname() + ":" + server.getPort();
+        TPCSlaveInfo master = new TPCSlaveInfo(
+            "0@" + masterHostname + ":" + MASTER_REGISTRATION_PORT);
+        Socket sock = master.connectHost(TPCMaster.TIMEOUT);
+        try {
+            new KVMessage(REGISTER, info).sendMessage(sock);
+            KVMessage resp = new KVMessage(sock, TPCMaster.TIMEOUT);
+            if(!RESP.equals(resp.getMsgType())
+                    || !(SUCCESSFULLY_REGISTERED + info).equals(resp.getMessage()))
+                throw new KVException(ERROR_INVALID_FORMAT);
+        } finally {
+            master.closeHost(sock);
+        }
     }
 
     /**
@@ -67,7 +124,258 @@ public class TPCMasterHandler implements NetworkHandler {
      * @param master Socket connected to the master with the request
      */
     @Override
-    public void handle(Socket master) {
-        // implement me
+    public void handle(final Socket master) {
+        try {
+            threadpool.addJob(new Runnable() {
+                @Override
+                public void run() {
+                    serve(master);
+                }
+            });
+        } catch(InterruptedException e) {}
+    }
+
+    /**
+     * Reads requests from the master, carries each out and replies, until
+     * the master closes the connection. An XML request is the only one on
+     * its connection.
+     *
+     * @param master Socket connected to the master with the request
+     */
+    private void serve(Socket master) {
+        KVMessage.Format format = KVMessage.Format.XML;
+        try {
+            InputStream in = new BufferedInputStream(master.getInputStream());
+            do {
+                master.setSoTimeout(TPCMaster.TIMEOUT);
+                KVMessage msg = KVMessage.readNext(in);
+                if(msg == null)
+                    break;
+                format = msg.getFormat();
+                KVMessage resp;
+                try {
+                    resp = process(msg);
+                } catch(KVException e) {
+                    resp = e.getKVMessage();
+                }
+                resp.sendMessage(master, format);
+            } while(format == KVMessage.Format.BINARY && awaitRequest(master, in));
+        } catch(KVException e) {
+            try {
+                e.getKVMessage().sendMessage(master, format);
+            } catch(KVException s) {}
+        } catch(IOException e) {
+        } finally {
+            try {
+                master.close();
+            } catch(IOException e) {}
+        }
+    }
+
+    /**
+     * Wait for the first byte of another request on an open connection.
+     *
+     * @return false if the master closed the connection, it has been idle
+     *         too long, or another connection is waiting for a thread
+     */
+    private boolean awaitRequest(Socket master, InputStream in) throws IOException {
+        long idleSince = System.nanoTime();
+        master.setSoTimeout(IDLE_POLL_MILLIS);
+        while(true) {
+            in.mark(1);
+            try {
+                if(in.read() < 0)
+                    return false;
+                in.reset();
+                return true;
+            } catch(SocketTimeoutException e) {
+                if(threadpool.getQueueDepth() > 0
+                        || System.nanoTime() - idleSince > IDLE_MILLIS * 1000000L)
+                    return false;
+            }
+        }
+    }
+
+    /**
+     * @return the reply to a request from the master
+     */
+    KVMessage process(KVMessage msg) throws KVException {
+        String type = msg.getMsgType();
+        if(GET_REQ.equals(type))
+            return get(msg);
+        if(PUT_REQ.equals(type) || DEL_REQ.equals(type) || BATCH_REQ.equals(type))
+            return vote(msg);
+        if(COMMIT.equals(type) || ABORT.equals(type))
+            return decide(msg);
+        if(SCAN_REQ.equals(type))
+            return scan(msg);
+        throw new KVException(ERROR_INVALID_FORMAT);
+    }
+
+    /**
+     * Answer a scan with the next page of live keys on the requested arcs
+     * of the ring, after the key in the request if there is one, in key
+     * order. The value holds the arcs as start:end pairs separated by
+     * commas, and the message the number of vnodes per slave, which decides
+     * where a key sits. The page is a BATCH_REQ of puts, each tagged with
+     * the key's version; its key is the last key in the page, or null once
+     * the scan is complete.
+     */
+    private KVMessage scan(KVMessage msg) throws KVException {
+        int vnodes;
+        List<long[]> arcs = new ArrayList<long[]>();
+        try {
+            vnodes = Integer.parseInt(msg.getMessage());
+            for(String arc : msg.getValue().split(",")) {
+                String[] ends = arc.split(":");
+                if(ends.length != 2)
+                    throw new KVException(ERROR_INVALID_FORMAT);
+                arcs.add(new long[] { Long.parseLong(ends[0]), Long.parseLong(ends[1]) });
+            }
+        } catch(NumberFormatException e) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        if(vnodes < 1)
+            throw new KVException(ERROR_INVALID_FORMAT);
+
+        /*
+         * Walk the keys past the cursor in key order, so a page costs the
+         * keys it passes over and a whole scan a single pass.
+         */
+        List<KVMessage> ops = new ArrayList<KVMessage>();
+        String last = null;
+        int count = 0;
+        long bytes = 0;
+        boolean complete = true;
+        for(String key : tpcLog.versionedKeysAfter(msg.getKey())) {
+            if(count == SCAN_PAGE_KEYS || bytes >= SCAN_PAGE_BYTES) {
+                complete = false;
+                break;
+            }
+            long position = ConsistentHashRing.position(key, vnodes);
+            boolean wanted = false;
+            for(long[] arc : arcs)
+                wanted |= ConsistentHashRing.inArc(position, arc[0], arc[1]);
+            if(!wanted)
+                continue;
+            last = key;
+            count++;
+            /*
+             * A write applies its value before its version, so the value
+             * is never older than the version it is sent with.
+             */
+            long version = tpcLog.getVersion(key);
+            String value = kvServer.lookup(key);
+            if(value == null)
+                continue;
+            ops.add(new KVMessage(PUT_REQ, key, value, Long.toString(version)));
+            bytes += key.length() + value.length();
+        }
+        KVMessage page = new KVMessage(BATCH_REQ, complete ? null : last, null, null);
+        page.setBatch(ops);
+        return page;
+    }
+
+    /**
+     * A binary get for a key this slave has deleted is answered with no
+     * value and the delete's version; one it never had is ERROR_NO_SUCH_KEY.
+     */
+    private KVMessage get(KVMessage msg) {
+        String key = msg.getKey();
+        boolean binary = msg.getFormat() == KVMessage.Format.BINARY;
+        KVMessage resp = new KVMessage(RESP);
+        resp.setKey(key);
+        String value = kvServer.lookup(key);
+        long version = binary ? tpcLog.getVersion(key) : 0;
+        if(value == null && version == 0)
+            return new KVMessage(RESP, ERROR_NO_SUCH_KEY);
+        resp.setValue(value);
+        if(version != 0)
+            resp.setMessage(Long.toString(version));
+        return resp;
+    }
+
+    /**
+     * Phase 1: log the request, then vote to commit it if this slave could
+     * carry it out. A batch is logged as one entry and voted on as a whole.
+     */
+    private KVMessage vote(KVMessage msg) throws KVException {
+        String error = BATCH_REQ.equals(msg.getMsgType()) ? checkBatch(msg)
+            : check(msg, null);
+        synchronized(keyLock(msg.getKey())) {
+            tpcLog.appendAndFlush(msg);
+        }
+        KVMessage vote;
+        if(error == null) {
+            vote = new KVMessage(READY);
+        } else {
+            vote = new KVMessage(ABORT, error);
+        }
+        vote.setKey(msg.getKey());
+        return vote;
+    }
+
+    /**
+     * @return why this slave cannot carry out every operation of a batch in
+     *         order, or null
+     */
+    private String checkBatch(KVMessage batch) {
+        if(batch.getBatch() == null)
+            return ERROR_INVALID_FORMAT;
+        /* Whether each key the batch has touched so far exists after it. */
+        Map<String, Boolean> exists = new HashMap<String, Boolean>();
+        for(KVMessage op : batch.getBatch()) {
+            String error = check(op, exists);
+            if(error != null)
+                return error;
+            exists.put(op.getKey(), PUT_REQ.equals(op.getMsgType()));
+        }
+        return null;
+    }
+
+    /**
+     * @param  exists keys written earlier in the same batch, or null
+     * @return why this slave cannot carry out a put or del, or null
+     */
+    private String check(KVMessage msg, Map<String, Boolean> exists) {
+        String key = msg.getKey();
+        if(key == null || key.isEmpty())
+            return ERROR_INVALID_KEY;
+        if(key.length() > KVServer.MAX_KEY_SIZE)
+            return ERROR_OVERSIZED_KEY;
+        if(PUT_REQ.equals(msg.getMsgType())) {
+            String value = msg.getValue();
+            if(value == null || value.isEmpty())
+                return ERROR_INVALID_VALUE;
+            if(value.length() > KVServer.MAX_VAL_SIZE)
+                return ERROR_OVERSIZED_VALUE;
+        } else if(!DEL_REQ.equals(msg.getMsgType())) {
+            return ERROR_INVALID_FORMAT;
+        } else if((exists != null && exists.containsKey(key))
+                ? !exists.get(key) : !kvServer.hasKey(key)) {
+            return ERROR_NO_SUCH_KEY;
+        }
+        return null;
+    }
+
+    /**
+     * Phase 2: log the decision for the pending request and, on commit, apply
+     * it. A decision repeated by the master, or one for a request this slave
+     * has moved past, is only acknowledged.
+     */
+    private KVMessage decide(KVMessage msg) throws KVException {
+        synchronized(keyLock(msg.getKey())) {
+            KVMessage request = tpcLog.pendingFor(msg);
+            if(request != null) {
+                tpcLog.appendAndFlush(msg);
+                if(COMMIT.equals(msg.getMsgType())) {
+                    for(KVMessage op : TPCLog.operations(request))
+                        tpcLog.apply(op);
+                }
+            }
+        }
+        KVMessage ack = new KVMessage(ACK);
+        ack.setKey(msg.getKey());
+        return ack;
     }
 }
@@ -42,9 +42,41 @@ public class TPCRegistrationHandler implements NetworkHandler {
      * @param slave Socket connected to the slave with the request
      */
     @Override
-    public void handle(Socket slave) {
-        // implement me
+    public void handle(final Socket slave) {
+        try {
+            threadpool.addJob(new Runnable() {
+                @Override
+                public void run() {
+                    register(slave);
+                }
+            });
+        } catch(InterruptedException e) {}
+    }
+
+    /**
+     * Reads a registration request from a slave, adds the slave to the
+     * master, and confirms with "Successfully registered" followed by the
+     * slave's info string. Anything else is answered with an error.
+     *
+     * @param slave Socket connected to the slave with the request
+     */
+    private void register(Socket slave) {
+        try {
+            KVMessage msg = new KVMessage(slave);
+            if(!REGISTER.equals(msg.getMsgType()))
+                throw new KVException(ERROR_INVALID_FORMAT);
+            TPCSlaveInfo info = new TPCSlaveInfo(msg.getMessage());
+            master.registerSlave(info);
+            new KVMessage(RESP, SUCCESSFULLY_REGISTERED + msg.getMessage())
+                .sendMessage(slave);
+        } catch(KVException e) {
+            try {
+                e.getKVMessage().sendMessage(slave);
+            } catch(KVException s) {}
+        } finally {
+            try {
+                slave.close();
+            } catch(IOException e) {}
+        }
     }
-    
-    // implement me
 }
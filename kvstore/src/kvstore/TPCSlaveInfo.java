@@ -4,17 +4,44 @@ import static kvstore.KVConstants.*;
 
 import java.io.IOException;
 import java.net.*;
+import java.util.ArrayDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.*;
 
 /**
  * Data structure to maintain information about SlaveServers
+ *
+ * Also keeps a pool of connections to the slave for binary requests, which
+ * leave a connection open once the reply has been read. acquire() hands out
+ * the most recently returned connection that is still healthy, or connects
+ * a new one, and release() gives it back. Connections idle for longer than
+ * the pool's idle time are closed rather than reused, and at most
+ * maxInFlight connections are handed out at once. A pooled connection the
+ * slave has since closed cannot be told apart without blocking, so callers
+ * must expect the first send or read on a reused one to fail, and retry on
+ * a fresh connection, as TPCMaster.exchange does.
  */
 public class TPCSlaveInfo {
 
+    private static final Pattern INFO = Pattern.compile("^(-?\\d+)@(.+):(\\d+)$");
+
+    /** Idle connections kept per slave by default. */
+    public static final int DEFAULT_MAX_IDLE = 8;
+
+    /** Connections handed out at once per slave by default. */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 64;
+
+    /** How long a connection may sit in the pool by default. */
+    public static final int DEFAULT_IDLE_MILLIS = 30000;
+
     public long slaveID;
     public String hostname;
     public int port;
 
+    /* Created on first use. */
+    private Pool pool;
+
     /**
      * Construct a TPCSlaveInfo to represent a slave server.
      *
@@ -22,7 +49,20 @@ public class TPCSlaveInfo {
      * @throws KVException ERROR_INVALID_FORMAT if info string is invalid
      */
     public TPCSlaveInfo(String info) throws KVException {
-        // implement me
+        if(info == null)
+            throw new KVException(ERROR_INVALID_FORMAT);
+        Matcher m = INFO.matcher(info);
+        if(!m.matches())
+            throw new KVException(ERROR_INVALID_FORMAT);
+        try {
+            slaveID = Long.parseLong(m.group(1));
+            hostname = m.group(2);
+            port = Integer.parseInt(m.group(3));
+        } catch(NumberFormatException e) {
+            throw new KVException(ERROR_INVALID_FORMAT);
+        }
+        if(port > 65535)
+            throw new KVException(ERROR_INVALID_FORMAT);
     }
 
     public long getSlaveID() {
@@ -45,8 +85,111 @@ public class TPCSlaveInfo {
      *         or ERROR_COULD_NOT_CONNECT
      */
     public Socket connectHost(int timeout) throws KVException {
-        // implement me
-        return null;
+        Socket sock;
+        try {
+            sock = new Socket();
+        } catch(Exception e) {
+            throw new KVException(ERROR_COULD_NOT_CREATE_SOCKET);
+        }
+        try {
+            sock.connect(new InetSocketAddress(hostname, port), timeout);
+            sock.setSoTimeout(timeout);
+            return sock;
+        } catch(SocketTimeoutException e) {
+            closeHost(sock);
+            throw new KVException(ERROR_SOCKET_TIMEOUT);
+        } catch(IOException e) {
+            closeHost(sock);
+            throw new KVException(ERROR_COULD_NOT_CONNECT);
+        } catch(IllegalArgumentException e) {
+            closeHost(sock);
+            throw new KVException(ERROR_COULD_NOT_CREATE_SOCKET);
+        }
+    }
+
+    /**
+     * Set the limits of this slave's connection pool, before it is first
+     * used.
+     *
+     * @param maxIdle connections kept open for reuse
+     * @param maxInFlight connections that may be handed out at once
+     * @param idleMillis time after which an unused connection is closed
+     * @throws IllegalStateException if a connection has been acquired
+     */
+    public final synchronized void setPoolLimits(int maxIdle, int maxInFlight,
+            int idleMillis) {
+        if(maxIdle < 0 || maxInFlight < 1 || idleMillis < 0)
+            throw new IllegalArgumentException("invalid pool limits");
+        if(pool != null)
+            throw new IllegalStateException("pool already in use");
+        pool = new Pool(maxIdle, maxInFlight, idleMillis);
+    }
+
+    private synchronized Pool pool() {
+        if(pool == null)
+            pool = new Pool(DEFAULT_MAX_IDLE, DEFAULT_MAX_IN_FLIGHT, DEFAULT_IDLE_MILLIS);
+        return pool;
+    }
+
+    /**
+     * Take a connection to the slave from the pool, or connect a new one.
+     * Every socket acquired must be handed back through release().
+     *
+     * @param  timeout connect and read timeout, and the longest to wait for
+     *         a connection when maxInFlight are already out, in milliseconds
+     * @param  fresh whether to connect a new socket even if one is idle
+     * @return Socket connected to the slave, with timeout set
+     * @throws KVException ERROR_SOCKET_TIMEOUT if no connection became
+     *         available in time, or any error connectHost throws
+     */
+    public final Socket acquire(int timeout, boolean fresh) throws KVException {
+        Pool p = pool();
+        try {
+            if(!p.permits.tryAcquire(timeout, TimeUnit.MILLISECONDS))
+                throw new KVException(ERROR_SOCKET_TIMEOUT);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new KVException(ERROR_SOCKET_TIMEOUT);
+        }
+        try {
+            Socket sock = fresh ? null : p.takeIdle();
+            if(sock == null) {
+                sock = connectHost(timeout);
+                sock.setTcpNoDelay(true);
+            }
+            sock.setSoTimeout(timeout);
+            return sock;
+        } catch(SocketException e) {
+            p.permits.release();
+            throw new KVException(ERROR_COULD_NOT_CONNECT);
+        } catch(KVException e) {
+            p.permits.release();
+            throw e;
+        } catch(RuntimeException e) {
+            p.permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Hand back a socket from acquire().
+     *
+     * @param sock the socket
+     * @param reusable whether the socket is between messages and may carry
+     *        another request; if not, it is closed
+     */
+    public final void release(Socket sock, boolean reusable) {
+        Pool p = pool();
+        if(!reusable || !p.putIdle(sock))
+            closeHost(sock);
+        p.permits.release();
+    }
+
+    /**
+     * Close every idle connection to the slave.
+     */
+    public final void closeIdle() {
+        pool().closeIdle();
     }
 
     /**
@@ -56,6 +199,117 @@ public class TPCSlaveInfo {
      * @param sock Socket to be closed
      */
     public void closeHost(Socket sock) {
-        // implement me
+        try {
+            sock.close();
+        } catch(IOException e) {}
+    }
+
+    @Override
+    public String toString() {
+        return slaveID + "@" + hostname + ":" + port;
+    }
+
+    /**
+     * Connections to one slave. Idle sockets are kept most recently used
+     * first, so under light load the oldest ones age out.
+     */
+    private static class Pool {
+        final int maxIdle;
+        final long idleNanos;
+        final Semaphore permits;
+        /* Guarded by this. */
+        private final ArrayDeque<Idle> idle = new ArrayDeque<Idle>();
+
+        Pool(int maxIdle, int maxInFlight, int idleMillis) {
+            this.maxIdle = maxIdle;
+            this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMillis);
+            this.permits = new Semaphore(maxInFlight);
+        }
+
+        /**
+         * @return the most recently returned healthy idle socket, or null
+         */
+        Socket takeIdle() {
+            while(true) {
+                Idle entry;
+                synchronized(this) {
+                    entry = idle.pollFirst();
+                }
+                if(entry == null)
+                    return null;
+                if(!entry.expired(idleNanos) && healthy(entry.sock))
+                    return entry.sock;
+                close(entry.sock);
+            }
+        }
+
+        /**
+         * @return false if the pool is full and the socket was not kept
+         */
+        boolean putIdle(Socket sock) {
+            if(!healthy(sock))
+                return false;
+            Idle expired = null;
+            synchronized(this) {
+                if(idle.size() >= maxIdle) {
+                    /* Make room only by dropping the oldest once it has expired. */
+                    Idle oldest = idle.peekLast();
+                    if(oldest == null || !oldest.expired(idleNanos))
+                        return false;
+                    expired = idle.pollLast();
+                }
+                idle.addFirst(new Idle(sock));
+            }
+            if(expired != null)
+                close(expired.sock);
+            return true;
+        }
+
+        void closeIdle() {
+            ArrayDeque<Idle> all;
+            synchronized(this) {
+                all = new ArrayDeque<Idle>(idle);
+                idle.clear();
+            }
+            for(Idle entry : all)
+                close(entry.sock);
+        }
+
+        /**
+         * A pooled socket is healthy if it is open and nothing is waiting to
+         * be read on it, which would be the stray tail of a reply. This is
+         * only a cheap filter: available() is also 0 once the slave has
+         * closed its end, and a socket cannot be read without blocking, so
+         * a peer that hung up is found when the next exchange on the socket
+         * fails and is retried on a fresh connection (TPCMaster.exchange).
+         */
+        private static boolean healthy(Socket sock) {
+            try {
+                return sock.isConnected() && !sock.isClosed() && !sock.isInputShutdown()
+                    && !sock.isOutputShutdown() && sock.getInputStream().available() == 0;
+            } catch(IOException e) {
+                return false;
+            }
+        }
+
+        private static void close(Socket sock) {
+            try {
+                sock.close();
+            } catch(IOException e) {}
+        }
+    }
+
+    /** A socket in the pool and when it was put there. */
+    private static class Idle {
+        final Socket sock;
+        final long since = System.nanoTime();
+
+        Idle(Socket sock) {
+            this.sock = sock;
+        }
+
+        boolean expired(long idleNanos) {
+            return System.nanoTime() - since > idleNanos;
+        }
     }
 }
@@ -1,26 +1,128 @@
 package kvstore;
 
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * A fixed-size pool of worker threads fed from a blocking queue. Idle workers
+ * park inside the queue and are handed jobs directly by addJob, so waking one
+ * costs a signal rather than an interrupt and a thrown exception.
+ *
+ * The queue may be bounded. When it is full, the RejectionPolicy decides what
+ * addJob does with the extra job: turn it away, run it on the calling thread,
+ * or block the caller until a slot frees up. The pool also keeps running
+ * totals of how long jobs wait in the queue and how long they run.
+ *
+ * A pool can instead run in VIRTUAL mode, where every job gets its own
+ * virtual thread and there are no workers or queue at all. A handler blocked
+ * on a slow socket then costs a few kilobytes rather than a pool thread. The
+ * mode is fixed when a pool is built, from the process-wide default set with
+ * setDefaultMode() or the kvstore.threads system property ("pooled" or
+ * "virtual"). On a JVM without virtual threads, VIRTUAL quietly falls back
+ * to POOLED.
+ */
 public class ThreadPool {
 
+    /**
+     * What addJob does when the queue is full.
+     */
+    public enum RejectionPolicy {
+        /** Refuse the job; see addJob. */
+        REJECT,
+        /** Run the job on the thread that called addJob. */
+        CALLER_RUNS,
+        /** Block the caller until there is room in the queue. */
+        BLOCK
+    }
+
+    /**
+     * How a pool runs its jobs.
+     */
+    public enum ExecutionMode {
+        /** A fixed set of worker threads fed from a queue. */
+        POOLED,
+        /** One new virtual thread per job. */
+        VIRTUAL
+    }
+
+    /**
+     * A job that knows how to tell its requester it was turned away, for
+     * example by sending back an error KVMessage.
+     */
+    public interface RejectableJob extends Runnable {
+        /**
+         * Called on the submitting thread instead of run() when the pool
+         * refuses the job.
+         */
+        public void reject();
+    }
+
+    /* Thread.startVirtualThread, looked up reflectively; null if unusable. */
+    private static final Method START_VIRTUAL = findStartVirtual();
+
+    private static volatile ExecutionMode defaultMode =
+        "virtual".equalsIgnoreCase(System.getProperty("kvstore.threads"))
+            ? ExecutionMode.VIRTUAL : ExecutionMode.POOLED;
+
     /* Array of threads in the threadpool */
     public Thread threads[];
-    public ConcurrentLinkedQueue<Runnable> jobs;
-    public ConcurrentLinkedQueue<WorkerThread> idle;
+    public BlockingQueue<Runnable> jobs;
 
+    private final RejectionPolicy policy;
+    private final ExecutionMode mode;
+    /* Virtual threads started and not yet finished. */
+    private final AtomicInteger live = new AtomicInteger();
+    private volatile boolean shutdown = false;
+
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicLong submitted = new AtomicLong();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong waitNanos = new AtomicLong();
+    private final AtomicLong maxWaitNanos = new AtomicLong();
+    private final AtomicLong runNanos = new AtomicLong();
 
     /**
-     * Constructs a Threadpool with a certain number of threads.
+     * Constructs a Threadpool with a certain number of threads and an
+     * unbounded queue.
      *
      * @param size number of threads in the thread pool
      */
     public ThreadPool(int size) {
+        this(size, 0, RejectionPolicy.BLOCK);
+    }
+
+    /**
+     * Constructs a Threadpool with a certain number of threads and a queue
+     * holding at most capacity jobs that are waiting for a thread. In VIRTUAL
+     * mode none of these apply, since every job starts immediately.
+     *
+     * @param size number of threads in the thread pool
+     * @param capacity maximum number of queued jobs, or 0 for no limit
+     * @param policy what to do with a job that arrives when the queue is full
+     */
+    public ThreadPool(int size, int capacity, RejectionPolicy policy) {
+        if(size < 1 || capacity < 0)
+            throw new IllegalArgumentException("invalid pool dimensions");
+        this.policy = policy;
+        this.mode = (defaultMode == ExecutionMode.VIRTUAL && START_VIRTUAL != null)
+            ? ExecutionMode.VIRTUAL : ExecutionMode.POOLED;
+        if(mode == ExecutionMode.VIRTUAL)
+            size = 0;
         threads = new Thread[size];
-        jobs = new ConcurrentLinkedQueue<Runnable>();
-        idle = new ConcurrentLinkedQueue<WorkerThread>();
+        if(capacity > 0)
+            jobs = new ArrayBlockingQueue<Runnable>(capacity);
+        else
+            jobs = new LinkedBlockingQueue<Runnable>();
         for(int i = 0; i < size; i++) {
             threads[i] = new WorkerThread(this);
+            threads[i].setDaemon(true);
             threads[i].start();
         }
     }
@@ -30,34 +132,303 @@ public class ThreadPool {
      * thread is available, the thread will retrieve a job from this queue if
      * if one exists and start processing it.
      *
+     * If the queue is full the pool's RejectionPolicy applies. A job that is
+     * refused, either by REJECT or because the pool has been shut down, has
+     * its reject() method called if it is a RejectableJob; any other job makes
+     * addJob throw RejectedExecutionException.
+     *
      * @param r job that has to be executed
-     * @throws InterruptedException if thread is interrupted while in blocked
-     *         state. Your implementation may or may not actually throw this.
+     * @throws InterruptedException if thread is interrupted while blocked
+     *         waiting for room in the queue under the BLOCK policy
      */
     public void addJob(Runnable r) throws InterruptedException {
-        jobs.add(r);
-        if(!idle.isEmpty())
-            idle.poll().interrupt();
+        if(shutdown) {
+            reject(r);
+            return;
+        }
+        Job job = new Job(r);
+        if(mode == ExecutionMode.VIRTUAL) {
+            submitted.incrementAndGet();
+            startVirtual(job);
+            return;
+        }
+        if(jobs.offer(job)) {
+            queued(job, r);
+            return;
+        }
+        switch(policy) {
+        case BLOCK:
+            jobs.put(job);
+            queued(job, r);
+            break;
+        case CALLER_RUNS:
+            submitted.incrementAndGet();
+            job.run();
+            break;
+        default:
+            reject(r);
+        }
+    }
+
+    /*
+     * Count a queued job, unless the pool shut down meanwhile and the
+     * workers may already have drained the queue and exited. Then the job
+     * is taken back and refused; if a worker got to it first, it runs.
+     */
+    private void queued(Job job, Runnable r) {
+        if(shutdown && jobs.remove(job)) {
+            reject(r);
+            return;
+        }
+        submitted.incrementAndGet();
+    }
+
+    private void startVirtual(final Job job) {
+        live.incrementAndGet();
+        Runnable body = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    job.run();
+                } catch(RuntimeException e) {
+                } finally {
+                    if(live.decrementAndGet() == 0) {
+                        synchronized(ThreadPool.this) {
+                            ThreadPool.this.notifyAll();
+                        }
+                    }
+                }
+            }
+        };
+        try {
+            START_VIRTUAL.invoke(null, body);
+        } catch(Exception e) {
+            new Thread(body).start();
+        }
+    }
+
+    /* Probe once, since Java 19 and 20 throw unless preview is enabled. */
+    private static Method findStartVirtual() {
+        try {
+            Method m = Thread.class.getMethod("startVirtualThread", Runnable.class);
+            m.invoke(null, new Runnable() {
+                @Override
+                public void run() {}
+            });
+            return m;
+        } catch(Exception e) {
+            return null;
+        }
+    }
+
+    /**
+     * Sets the mode for pools built from now on. Servers call this once at
+     * startup, before creating their handlers.
+     *
+     * @param mode execution mode for new pools
+     */
+    public static void setDefaultMode(ExecutionMode mode) {
+        defaultMode = mode;
+    }
+
+    /**
+     * @return the mode new pools are asked to use
+     */
+    public static ExecutionMode getDefaultMode() {
+        return defaultMode;
+    }
+
+    /**
+     * @return true if this JVM can run jobs on virtual threads
+     */
+    public static boolean virtualThreadsSupported() {
+        return START_VIRTUAL != null;
+    }
+
+    /**
+     * @return the mode this pool actually runs in
+     */
+    public ExecutionMode getMode() {
+        return mode;
+    }
+
+    private void reject(Runnable r) {
+        rejected.incrementAndGet();
+        if(r instanceof RejectableJob) {
+            ((RejectableJob) r).reject();
+            return;
+        }
+        throw new RejectedExecutionException("thread pool is full or shut down");
     }
 
     /**
      * Block until a job is present in the queue and retrieve the job
-     * @return A runnable task that has to be executed
+     *
+     * @param t the worker asking
+     * @return A runnable task that has to be executed, or null once the pool
+     *         is shut down and the queue has drained
      * @throws InterruptedException if thread is interrupted while in blocked
-     *         state. Your implementation may or may not actually throw this.
+     *         state.
      */
     public Runnable getJob(WorkerThread t) throws InterruptedException {
-        Runnable ret;
-        ret = null;
-        while((ret = jobs.poll()) == null)
+        /* Once shut down, drain what is left without parking. */
+        synchronized(t) {
+            if(shutdown)
+                return jobs.poll();
+            t.parked = true;
+        }
+        try {
+            return jobs.take();
+        } catch(InterruptedException e) {
+            if(!shutdown)
+                throw e;
+            return jobs.poll();
+        } finally {
+            synchronized(t) {
+                t.parked = false;
+                /* A wakeup that came too late must not reach the job. */
+                Thread.interrupted();
+            }
+        }
+    }
+
+    /**
+     * Stop accepting jobs. Jobs already queued still run, after which the
+     * worker threads exit.
+     */
+    public void shutdown() {
+        shutdown = true;
+        /* Wake the workers parked on an empty queue, and only those. */
+        for(Thread t : threads) {
+            WorkerThread worker = (WorkerThread) t;
+            synchronized(worker) {
+                if(worker.parked)
+                    worker.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Wait for the worker threads, or in VIRTUAL mode every running job, to
+     * finish after shutdown().
+     *
+     * @param  timeout maximum time to wait
+     * @param  unit unit of timeout
+     * @return true if every worker exited in time
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit)
+            throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        for(Thread t : threads) {
+            long left = deadline - System.nanoTime();
+            if(left > 0)
+                TimeUnit.NANOSECONDS.timedJoin(t, left);
+            if(t.isAlive())
+                return false;
+        }
+        synchronized(this) {
+            long left;
+            while(live.get() > 0 && (left = deadline - System.nanoTime()) > 0)
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        return live.get() == 0;
+    }
+
+    /**
+     * @return true once shutdown() has been called
+     */
+    public boolean isShutdown() {
+        return shutdown;
+    }
+
+    /**
+     * @return number of jobs waiting for a thread, always 0 in VIRTUAL mode
+     */
+    public int getQueueDepth() {
+        return jobs.size();
+    }
+
+    /**
+     * @return number of jobs currently running
+     */
+    public int getActiveCount() {
+        return active.get();
+    }
+
+    /**
+     * @return number of jobs accepted by addJob
+     */
+    public long getSubmittedJobs() {
+        return submitted.get();
+    }
+
+    /**
+     * @return number of jobs that have finished running
+     */
+    public long getCompletedJobs() {
+        return completed.get();
+    }
+
+    /**
+     * @return number of jobs turned away by addJob
+     */
+    public long getRejectedJobs() {
+        return rejected.get();
+    }
+
+    /**
+     * @return mean time between addJob and the start of run() over completed
+     *         jobs, in nanoseconds
+     */
+    public long getMeanWaitNanos() {
+        long n = completed.get();
+        return (n == 0) ? 0 : waitNanos.get() / n;
+    }
+
+    /**
+     * @return longest time any job spent waiting in the queue, in nanoseconds
+     */
+    public long getMaxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    /**
+     * @return mean running time of completed jobs, in nanoseconds
+     */
+    public long getMeanRunNanos() {
+        long n = completed.get();
+        return (n == 0) ? 0 : runNanos.get() / n;
+    }
+
+    /**
+     * A queued job, stamped with the time it was submitted.
+     */
+    private class Job implements Runnable {
+        private final Runnable task;
+        private final long queuedAt = System.nanoTime();
+
+        Job(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            long wait = start - queuedAt;
+            active.incrementAndGet();
             try {
-                idle.add(t);
-                t.sleep(60000);
-            } catch(InterruptedException e) {
+                task.run();
             } finally {
-                idle.remove(t);
+                active.decrementAndGet();
+                runNanos.addAndGet(System.nanoTime() - start);
+                waitNanos.addAndGet(wait);
+                long max;
+                while(wait > (max = maxWaitNanos.get())
+                        && !maxWaitNanos.compareAndSet(max, wait));
+                completed.incrementAndGet();
             }
-        return ret;
+        }
     }
 
     /**
@@ -66,6 +437,8 @@ public class ThreadPool {
     public class WorkerThread extends Thread {
 
         public ThreadPool threadPool;
+        /* Waiting in getJob for a job; guarded by this. */
+        private boolean parked = false;
 
         /**
          * Constructs a thread for this particular ThreadPool.
@@ -77,14 +450,18 @@ public class ThreadPool {
         }
 
         /**
-         * Scan for and execute tasks.
+         * Scan for and execute tasks until the pool shuts down.
          */
         @Override
         public void run() {
-            while(true)
+            while(true) {
                 try {
-                    getJob(this).run();
+                    Runnable job = getJob(this);
+                    if(job == null)
+                        return;
+                    job.run();
                 } catch(Exception e) {}
+            }
         }
     }
 }
@@ -229,6 +229,16 @@ public class TestUtils {
             delegate.del(internifunker(key));
         }
 
+        @Override
+        public String lookup(String key) throws KVException {
+            return internifunker(delegate.lookup(internifunker(key)));
+        }
+
+        @Override
+        public boolean remove(String key) throws KVException {
+            return delegate.remove(internifunker(key));
+        }
+
         public static String internifunker(String s) {
             return (s == null) ? null : new String(s); // Hopefully reliable
         }
@@ -259,6 +269,16 @@ public class TestUtils {
             delegate.del(internifier(key));
         }
 
+        @Override
+        public String lookup(String key) throws KVException {
+            return internifier(delegate.lookup(internifier(key)));
+        }
+
+        @Override
+        public boolean remove(String key) throws KVException {
+            return delegate.remove(internifier(key));
+        }
+
         public static String internifier(String s) {
             return (s == null) ? null : s.intern(); // Uncertain reliability
         }
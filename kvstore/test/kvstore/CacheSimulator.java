@@ -0,0 +1,138 @@
+package kvstore;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Trace-driven simulator for KVCache eviction policies. Replays a key trace
+ * against a cache per policy, reading each key and putting it on a miss, and
+ * reports the hit ratio. The old first-unreferenced rule, which never clears
+ * reference bits, is included for comparison.
+ *
+ * With no arguments it runs synthetic traces: a Zipf-skewed working set, the
+ * same with periodic one-off scans, and a loop slightly bigger than the cache.
+ * Given a file, it replays that file, one key per line.
+ *
+ * Run with: ant runbench -Dbench=CacheSimulator [-Dbenchargs="trace.txt sets size"]
+ */
+public class CacheSimulator {
+
+    static final int NUM_SETS = 16;
+    static final int SET_SIZE = 64;
+    static final int TRACE_LENGTH = 400000;
+
+    public static void main(String[] args) throws Exception {
+        int sets = (args.length > 1) ? Integer.parseInt(args[1]) : NUM_SETS;
+        int size = (args.length > 2) ? Integer.parseInt(args[2]) : SET_SIZE;
+        int capacity = sets * size;
+
+        List<String[]> traces = new ArrayList<String[]>();
+        List<String> names = new ArrayList<String>();
+        if (args.length > 0) {
+            traces.add(load(args[0]));
+            names.add(args[0]);
+        } else {
+            traces.add(zipf(capacity * 16, 0.9, TRACE_LENGTH, 0));
+            names.add("zipf 0.9");
+            traces.add(zipf(capacity * 16, 0.9, TRACE_LENGTH, capacity * 4));
+            names.add("zipf 0.9 + scans");
+            traces.add(loop(capacity + capacity / 4, TRACE_LENGTH));
+            names.add("loop 1.25x");
+        }
+
+        System.out.format("cache: %d sets x %d entries%n", sets, size);
+        System.out.format("%-18s %8s", "trace", "legacy");
+        for (EvictionPolicy.Kind kind : EvictionPolicy.Kind.values()) {
+            System.out.format(" %8s", kind);
+        }
+        System.out.println();
+        for (int t = 0; t < traces.size(); t++) {
+            String[] trace = traces.get(t);
+            System.out.format("%-18s %7.2f%%", names.get(t),
+                replay(new KVCacheBenchmark.ListCache(sets, size), trace));
+            for (EvictionPolicy.Kind kind : EvictionPolicy.Kind.values()) {
+                System.out.format(" %7.2f%%", replay(new KVCache(sets, size, kind), trace));
+            }
+            System.out.println();
+        }
+    }
+
+    /**
+     * @return percentage of reads that hit
+     */
+    static double replay(KeyValueInterface cache, String[] trace) throws KVException {
+        long hits = 0;
+        for (String key : trace) {
+            if (cache.get(key) != null) {
+                hits++;
+            } else {
+                cache.put(key, key);
+            }
+        }
+        return 100.0 * hits / trace.length;
+    }
+
+    /**
+     * Keys drawn from a Zipf distribution over n keys. If scanEvery is
+     * positive, a run of scanEvery / 4 never-repeated keys is inserted after
+     * every scanEvery requests.
+     */
+    static String[] zipf(int n, double skew, int length, int scanEvery) {
+        double[] cdf = new double[n];
+        double sum = 0;
+        for (int i = 0; i < n; i++) {
+            sum += 1 / Math.pow(i + 1, skew);
+            cdf[i] = sum;
+        }
+        Random rand = new Random(162);
+        String[] trace = new String[length];
+        int scanned = 0;
+        for (int i = 0; i < length; i++) {
+            if (scanEvery > 0 && i % scanEvery >= scanEvery - scanEvery / 4) {
+                trace[i] = "scan" + scanned++;
+                continue;
+            }
+            double u = rand.nextDouble() * sum;
+            int lo = 0, hi = n - 1;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (cdf[mid] < u) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            trace[i] = "key" + lo;
+        }
+        return trace;
+    }
+
+    static String[] loop(int n, int length) {
+        String[] trace = new String[length];
+        for (int i = 0; i < length; i++) {
+            trace[i] = "key" + (i % n);
+        }
+        return trace;
+    }
+
+    static String[] load(String path) throws IOException {
+        List<String> keys = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new FileReader(path));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                if (!line.isEmpty()) {
+                    keys.add(line);
+                }
+            }
+        } finally {
+            in.close();
+        }
+        return keys.toArray(new String[keys.size()]);
+    }
+}
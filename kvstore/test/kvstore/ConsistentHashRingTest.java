@@ -0,0 +1,115 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutQuick;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class ConsistentHashRingTest {
+
+    static final int SLAVES = 8;
+    static final int KEYS = 100000;
+
+    private static ConsistentHashRing ring(int vnodes) throws KVException {
+        ConsistentHashRing ring = new ConsistentHashRing(vnodes);
+        Random rand = new Random(162);
+        for(int i = 0; i < SLAVES; i++)
+            ring.add(new TPCSlaveInfo(rand.nextLong() + "@localhost:" + (9000 + i)), SLAVES);
+        return ring;
+    }
+
+    /**
+     * @return largest number of keys on one slave over the mean
+     */
+    private static double imbalance(ConsistentHashRing ring) {
+        Map<Long, Integer> load = new HashMap<Long, Integer>();
+        for(int i = 0; i < KEYS; i++) {
+            long id = ring.primary("key" + i).getSlaveID();
+            Integer n = load.get(id);
+            load.put(id, (n == null) ? 1 : n + 1);
+        }
+        int max = 0;
+        for(int n : load.values())
+            max = Math.max(max, n);
+        return max / ((double) KEYS / SLAVES);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Virtual nodes spread keys evenly over slaves")
+    public void virtualNodesBalanceLoad() throws KVException {
+        ConsistentHashRing single = ring(1);
+        ConsistentHashRing spread = ring(256);
+        double before = imbalance(single);
+        double after = imbalance(spread);
+        System.out.format("max/mean load: 1 vnode %.2f, 256 vnodes %.2f%n", before, after);
+        assertTrue("imbalance " + after, after < 1.25);
+        assertTrue(after < before);
+
+        double total = 0;
+        for(double share : spread.ownership().values()) {
+            assertTrue(share < 1.25 / SLAVES);
+            total += share;
+        }
+        assertEquals(1.0, total, 1e-9);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Replicas are distinct and re-registering replaces a slave")
+    public void replicasAreDistinct() throws KVException {
+        ConsistentHashRing ring = ring(64);
+        for(int i = 0; i < 1000; i++) {
+            TPCSlaveInfo[] replicas = ring.replicas("key" + i, 2);
+            assertEquals(2, replicas.length);
+            assertSame(ring.primary("key" + i), replicas[0]);
+            assertNotSame(replicas[0], replicas[1]);
+        }
+
+        TPCSlaveInfo old = ring.primary("key0");
+        TPCSlaveInfo moved = new TPCSlaveInfo(old.getSlaveID() + "@otherhost:1");
+        assertTrue(ring.add(moved, SLAVES));
+        assertEquals(SLAVES, ring.size());
+        assertSame(moved, ring.primary("key0"));
+        assertTrue(!ring.add(new TPCSlaveInfo("42@localhost:1"), SLAVES));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A slave's arcs cover exactly the keys it holds a replica of")
+    public void arcsCoverReplicaKeys() throws KVException {
+        ConsistentHashRing ring = ring(64);
+        TPCSlaveInfo joiner = new TPCSlaveInfo("7@localhost:1");
+        ConsistentHashRing next = ring.with(joiner);
+        assertEquals(SLAVES, ring.size());
+        assertEquals(SLAVES + 1, next.size());
+        List<long[]> arcs = next.arcs(7, 2);
+        for(int i = 0; i < 10000; i++) {
+            String key = "key" + i;
+            boolean held = false;
+            for(TPCSlaveInfo slave : next.replicas(key, 2))
+                held |= (slave == joiner);
+            long position = ConsistentHashRing.position(key, next.getVirtualNodes());
+            boolean covered = false;
+            for(long[] arc : arcs)
+                covered |= ConsistentHashRing.inArc(position, arc[0], arc[1]);
+            assertEquals(key, held, covered);
+        }
+    }
+
+}
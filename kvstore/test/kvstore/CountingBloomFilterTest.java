@@ -0,0 +1,81 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutQuick;
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class CountingBloomFilterTest {
+
+    static final int KEYS = 10000;
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Held keys are never ruled out and removed keys mostly are")
+    public void noFalseNegatives() {
+        CountingBloomFilter filter = new CountingBloomFilter(KEYS, 0.01);
+        for(int i = 0; i < KEYS; i++)
+            filter.add("key" + i);
+        for(int i = 0; i < KEYS; i += 2)
+            filter.remove("key" + i);
+        int positives = 0;
+        for(int i = 0; i < KEYS; i++) {
+            if(i % 2 == 1)
+                assertTrue(filter.mightContain("key" + i));
+            else if(filter.mightContain("key" + i))
+                positives++;
+        }
+        for(int i = 0; i < KEYS; i++) {
+            if(filter.mightContain("other" + i))
+                positives++;
+        }
+        /* Half full, so well under the 1% the filter was sized for. */
+        assertTrue("false positives " + positives, positives < KEYS * 3 / 2 / 100);
+
+        for(int i = 0; i < KEYS; i += 2)
+            filter.add("key" + i);
+        for(int i = 0; i < KEYS; i++)
+            assertTrue(filter.mightContain("key" + i));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A filtered KVServer reports misses without exceptions")
+    public void serverMissPath() throws KVException {
+        KVServer server = new KVServer(4, 4);
+        server.put("before", "1");
+        server.enableFilter(100, 0.01);
+        assertEquals("1", server.lookup("before"));
+        assertNull(server.lookup("missing"));
+        assertFalse(server.remove("missing"));
+        assertFalse(server.hasKey("missing"));
+
+        server.put("after", "2");
+        server.put("after", "3");
+        assertTrue(server.hasKey("after"));
+        assertTrue(server.remove("after"));
+        assertFalse(server.hasKey("after"));
+        assertNull(server.lookup("after"));
+        try {
+            server.get("after");
+            fail("get of a removed key succeeded");
+        } catch(KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        server.put("after", "4");
+        assertEquals("4", server.get("after"));
+        server.del("before");
+        assertNull(server.lookup("before"));
+    }
+}
@@ -6,7 +6,9 @@ import static kvstore.Utils.assertKVExceptionEquals;
 import static kvstore.Utils.*;
 import static org.junit.Assert.*;
 
+import java.util.ArrayList;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Random;
 
 import kvstore.Utils.ErrorLogger;
@@ -20,4 +22,47 @@ import autograder.AGCategories.AG_PROJ3_CODE;
 
 public class EndToEndTest extends EndToEndTemplate {
 
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Pipelined requests on one connection are answered in order")
+    public void pipelinedRequestsOnOneConnection() throws KVException {
+        KVConnection conn = client.openConnection(8);
+        try {
+            List<KVMessage> requests = new ArrayList<KVMessage>();
+            for (int i = 0; i < 100; i++) {
+                KVMessage put = new KVMessage(PUT_REQ);
+                put.setKey("key" + i);
+                put.setValue("value" + i);
+                requests.add(put);
+            }
+            KVMessage get = new KVMessage(GET_REQ);
+            get.setKey("key42");
+            requests.add(get);
+            KVMessage miss = new KVMessage(GET_REQ);
+            miss.setKey("nokey");
+            requests.add(miss);
+
+            List<KVMessage> responses = conn.pipeline(requests);
+            assertEquals(requests.size(), responses.size());
+            for (int i = 0; i < 100; i++) {
+                assertEquals(SUCCESS, responses.get(i).getMessage());
+            }
+            assertEquals("value42", responses.get(100).getValue());
+            assertEquals(ERROR_NO_SUCH_KEY, responses.get(101).getMessage());
+
+            conn.del("key7");
+            assertEquals("value8", conn.get("key8"));
+        } finally {
+            conn.close();
+        }
+        try {
+            client.get("key7");
+            fail("deleted key should be gone");
+        } catch (KVException e) {
+            assertKVExceptionEquals(ERROR_NO_SUCH_KEY, e);
+        }
+        assertEquals("value9", client.get("key9"));
+    }
+
 }
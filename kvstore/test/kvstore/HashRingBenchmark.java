@@ -0,0 +1,72 @@
+package kvstore;
+
+import java.util.Random;
+
+/**
+ * Measures the cost of finding a key's replicas on the ring, and how evenly
+ * the keys spread, as the number of slaves and vnodes per slave grows.
+ *
+ * Run with: ant runbench -Dbench=HashRingBenchmark [-Dbenchargs=lookups]
+ */
+public class HashRingBenchmark {
+
+    static final int[] SLAVES = { 4, 16, 64 };
+    static final int[] VNODES = { 1, 16, 128, 512 };
+    static final int KEYS = 100000;
+
+    public static void main(String[] args) throws Exception {
+        int lookups = (args.length > 0) ? Integer.parseInt(args[0]) : 2000000;
+        String[] keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "key" + i;
+        }
+
+        System.out.format("%8s %8s %12s %12s %10s%n", "slaves", "vnodes",
+            "primary ns", "2 replicas ns", "max/mean");
+        for (int slaves : SLAVES) {
+            for (int vnodes : VNODES) {
+                ConsistentHashRing ring = new ConsistentHashRing(vnodes);
+                Random rand = new Random(slaves);
+                for (int i = 0; i < slaves; i++) {
+                    ring.add(new TPCSlaveInfo(rand.nextLong() + "@localhost:" + i), slaves);
+                }
+                primary(ring, keys, lookups / 10);
+                double primary = primary(ring, keys, lookups);
+                replicas(ring, keys, lookups / 10);
+                double replicas = replicas(ring, keys, lookups);
+                double maxShare = 0;
+                for (double share : ring.ownership().values()) {
+                    maxShare = Math.max(maxShare, share);
+                }
+                System.out.format("%8d %8d %12.1f %12.1f %10.2f%n", slaves, vnodes,
+                    primary, replicas, maxShare * slaves);
+            }
+        }
+    }
+
+    static double primary(ConsistentHashRing ring, String[] keys, int n) {
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            sink += ring.primary(keys[i % keys.length]).getPort();
+        }
+        long elapsed = System.nanoTime() - start;
+        if (sink == 42) {
+            System.out.print("");
+        }
+        return elapsed / (double) n;
+    }
+
+    static double replicas(ConsistentHashRing ring, String[] keys, int n) {
+        long sink = 0;
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            sink += ring.replicas(keys[i % keys.length], 2).length;
+        }
+        long elapsed = System.nanoTime() - start;
+        if (sink == 42) {
+            System.out.print("");
+        }
+        return elapsed / (double) n;
+    }
+}
@@ -0,0 +1,126 @@
+package kvstore;
+
+import java.util.List;
+import java.util.Random;
+
+import kvstore.xml.KVCacheEntry;
+import kvstore.xml.KVSetType;
+
+/**
+ * Compares KVCache with the JAXB-backed storage it replaced, single-threaded,
+ * as sets grow. The workload reads random keys from a key space twice the
+ * size of the cache and puts every miss, so about half the operations evict.
+ *
+ * Run with: ant runbench -Dbench=KVCacheBenchmark [-Dbenchargs=ops]
+ */
+public class KVCacheBenchmark {
+
+    static final int[] SET_SIZES = { 16, 128, 1024, 8192 };
+    static final int NUM_SETS = 4;
+
+    /**
+     * The previous KVCache storage: a list of JAXB entries per set, with the
+     * reference bit kept as a string.
+     */
+    static class ListCache implements KeyValueInterface {
+        final KVSetType[] sets;
+        final int maxElemsPerSet;
+
+        ListCache(int numSets, int maxElemsPerSet) {
+            this.maxElemsPerSet = maxElemsPerSet;
+            sets = new KVSetType[numSets];
+            for (int i = 0; i < numSets; i++) {
+                sets[i] = new KVSetType();
+            }
+        }
+
+        List<KVCacheEntry> set(String key) {
+            return sets[(key.hashCode() & 0x7fffffff) % sets.length].getCacheEntry();
+        }
+
+        @Override
+        public String get(String key) {
+            for (KVCacheEntry entry : set(key)) {
+                if (entry.getKey().equals(key)) {
+                    entry.setIsReferenced("true");
+                    return entry.getValue();
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void put(String key, String value) {
+            List<KVCacheEntry> set = set(key);
+            KVCacheEntry firstUnref = null;
+            for (KVCacheEntry entry : set) {
+                if (entry.getKey().equals(key)) {
+                    entry.setValue(value);
+                    return;
+                } else if (firstUnref == null && !entry.getIsReferenced().equals("true")) {
+                    firstUnref = entry;
+                }
+            }
+            KVCacheEntry newEntry = new KVCacheEntry();
+            newEntry.setKey(key);
+            newEntry.setValue(value);
+            newEntry.setIsReferenced("false");
+            if (set.size() >= maxElemsPerSet) {
+                if (firstUnref == null)
+                    set.remove(0);
+                else
+                    set.remove(firstUnref);
+            }
+            set.add(newEntry);
+        }
+
+        @Override
+        public void del(String key) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String lookup(String key) {
+            return get(key);
+        }
+
+        @Override
+        public boolean remove(String key) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int ops = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+
+        System.out.format("%10s %12s %12s %8s%n", "set size", "list ns/op",
+            "flat ns/op", "speedup");
+        for (int size : SET_SIZES) {
+            int n = Math.max(2000, ops * 16 / size);
+            String[] keys = new String[NUM_SETS * size * 2];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = "key" + i;
+            }
+            run(new ListCache(NUM_SETS, size), keys, n);
+            run(new KVCache(NUM_SETS, size), keys, n);
+            double list = run(new ListCache(NUM_SETS, size), keys, n);
+            double flat = run(new KVCache(NUM_SETS, size), keys, n);
+            System.out.format("%10d %12.0f %12.0f %7.1fx%n", size, list, flat, list / flat);
+        }
+    }
+
+    /**
+     * @return mean nanoseconds per get-or-put
+     */
+    static double run(KeyValueInterface cache, String[] keys, int n) throws KVException {
+        Random rand = new Random(42);
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            String key = keys[rand.nextInt(keys.length)];
+            if (cache.get(key) == null) {
+                cache.put(key, key);
+            }
+        }
+        return (System.nanoTime() - start) / (double) n;
+    }
+}
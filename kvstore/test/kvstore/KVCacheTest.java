@@ -8,6 +8,16 @@ import static autograder.TestUtils.kTimeoutQuick;
 import autograder.AGCategories.AGTestDetails;
 import autograder.AGCategories.AG_PROJ3_CODE;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
 import org.junit.*;
 import org.junit.experimental.categories.Category;
 
@@ -254,4 +264,307 @@ public class KVCacheTest {
         assertEquals(cache.get("woah"), null);
         System.out.println(cache.toXML());
     }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Lock-free reads see puts, replaces and dels")
+    public void optimisticGetTracksWrites() {
+        KVCache cache = new KVCache(2, 3);
+        assertEquals(null, cache.getOptimistic("2"));
+        cache.put("2", "hi");
+        assertEquals("hi", cache.getOptimistic("2"));
+        cache.put("2", "again");
+        assertEquals("again", cache.getOptimistic("2"));
+        assertEquals(null, cache.getOptimistic("1"));
+        cache.del("2");
+        assertEquals(null, cache.getOptimistic("2"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Lock-free reads give entries a second chance")
+    public void optimisticGetSetsReferenceBit() {
+        KVCache cache = new KVCache(2, 3);
+        cache.put("2", "hi");
+        cache.put("4", "there");
+        cache.put("6", "testing");
+        assertEquals("hi", cache.getOptimistic("2"));
+        cache.put("8", "new");
+        assertEquals("hi", cache.getOptimistic("2"));
+        assertEquals(null, cache.getOptimistic("4"));
+        assertEquals("testing", cache.getOptimistic("6"));
+        assertEquals("new", cache.getOptimistic("8"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "CLOCK clears reference bits as it sweeps")
+    public void clockClearsReferenceBits() {
+        KVCache cache = new KVCache(1, 3);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        cache.get("a");
+        cache.get("b");
+        cache.get("c");
+        cache.put("d", "4");
+        /* Every bit was cleared on the way round, so a second miss evicts b. */
+        cache.put("e", "5");
+        assertEquals(null, cache.get("a"));
+        assertEquals(null, cache.get("b"));
+        assertEquals("3", cache.get("c"));
+        assertEquals("4", cache.get("d"));
+        assertEquals("5", cache.get("e"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "LRU evicts the least recently used entry")
+    public void lruEvictsLeastRecentlyUsed() {
+        KVCache cache = new KVCache(1, 3, EvictionPolicy.Kind.LRU);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        cache.get("a");
+        cache.put("d", "4");
+        assertEquals(null, cache.get("b"));
+        cache.get("c");
+        cache.put("e", "5");
+        assertEquals(null, cache.get("a"));
+        assertEquals("3", cache.get("c"));
+        assertEquals("4", cache.get("d"));
+        assertEquals("5", cache.get("e"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "LFU evicts the least frequently used entry")
+    public void lfuEvictsLeastFrequentlyUsed() {
+        KVCache cache = new KVCache(1, 3, EvictionPolicy.Kind.LFU);
+        cache.put("a", "1");
+        cache.put("b", "2");
+        cache.put("c", "3");
+        cache.get("a");
+        cache.get("a");
+        cache.get("c");
+        cache.put("d", "4");
+        assertEquals(null, cache.get("b"));
+        assertEquals("1", cache.get("a"));
+        assertEquals("3", cache.get("c"));
+        assertEquals("4", cache.get("d"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "TinyLFU keeps popular keys through a scan")
+    public void tinyLfuResistsScans() {
+        KVCache cache = new KVCache(1, 100, EvictionPolicy.Kind.TINY_LFU);
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 50; i++) {
+                if (cache.get("hot" + i) == null) {
+                    cache.put("hot" + i, "v");
+                }
+            }
+        }
+        for (int i = 0; i < 500; i++) {
+            cache.put("scan" + i, "v");
+        }
+        int hits = 0;
+        for (int i = 0; i < 50; i++) {
+            if (cache.get("hot" + i) != null) {
+                hits++;
+            }
+        }
+        assertTrue("only " + hits + " hot keys survived", hits >= 45);
+        assertEquals(100, cache.getCacheSetSize(0));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "A byte budget evicts until large values fit")
+    public void byteBudgetEvictsBySize() {
+        long entry = KVCache.entrySize("k0", "0123456789");
+        KVCache cache = new KVCache(1, 10, EvictionPolicy.Kind.CLOCK, 3 * entry, 0);
+        cache.put("k0", "0123456789");
+        cache.put("k1", "0123456789");
+        cache.put("k2", "0123456789");
+        assertEquals(3 * entry, cache.getRetainedBytes());
+        /* Bigger than any one entry, so two of them have to go. */
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 50; i++) {
+            sb.append('x');
+        }
+        String big = sb.toString();
+        assertTrue(KVCache.entrySize("k3", big) > entry);
+        cache.put("k3", big);
+        assertEquals(2, cache.getCacheSetSize(0));
+        assertEquals(null, cache.get("k0"));
+        assertEquals(null, cache.get("k1"));
+        assertEquals("0123456789", cache.get("k2"));
+        assertEquals(big, cache.get("k3"));
+        assertTrue(cache.getRetainedBytes() <= 3 * entry);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Values over the threshold are never cached")
+    public void oversizedEntriesBypassCache() {
+        KVCache cache = new KVCache(1, 10, EvictionPolicy.Kind.CLOCK, 0, 200);
+        cache.put("small", "v");
+        cache.put("key", "v");
+        StringBuilder big = new StringBuilder();
+        for (int i = 0; i < 100; i++) {
+            big.append('x');
+        }
+        cache.put("key", big.toString());
+        assertEquals(null, cache.get("key"));
+        assertEquals("v", cache.get("small"));
+        assertEquals(1, cache.getEntryCount());
+        assertEquals(KVCache.entrySize("small", "v"), cache.getRetainedBytes());
+        cache.del("small");
+        assertEquals(0, cache.getRetainedBytes());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "Every cached key is found through churn and hash collisions")
+    public void lookupsFindEveryEntry() {
+        /* "Aa" and "BB" share a hash, so these sixteen keys all collide. */
+        List<String> universe = new ArrayList<String>();
+        for (int i = 0; i < 16; i++) {
+            StringBuilder key = new StringBuilder();
+            for (int bit = 0; bit < 4; bit++) {
+                key.append(((i >> bit) & 1) == 0 ? "Aa" : "BB");
+            }
+            universe.add(key.toString());
+        }
+        for (int i = 0; i < 48; i++) {
+            universe.add("key" + i);
+        }
+        for (EvictionPolicy.Kind kind : EvictionPolicy.Kind.values()) {
+            KVCache cache = new KVCache(1, 16, kind);
+            Map<String, String> latest = new HashMap<String, String>();
+            Random rand = new Random(7);
+            for (int op = 0; op < 5000; op++) {
+                String key = universe.get(rand.nextInt(universe.size()));
+                if (rand.nextInt(3) == 0) {
+                    cache.del(key);
+                    assertNull(cache.get(key));
+                } else {
+                    cache.put(key, "v" + op);
+                    latest.put(key, "v" + op);
+                    assertEquals("v" + op, cache.getOptimistic(key));
+                }
+                int found = 0;
+                for (String k : universe) {
+                    String value = cache.get(k);
+                    if (value != null) {
+                        assertEquals(latest.get(k), value);
+                        found++;
+                    }
+                }
+                assertEquals(cache.getEntryCount(), found);
+            }
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "A late lock-free hit never makes LRU evict an empty slot")
+    public void lruIgnoresHitsOnEmptySlots() throws InterruptedException {
+        concurrentHitsAndEvictions(EvictionPolicy.Kind.LRU);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1, desc = "A late lock-free hit never makes TinyLFU evict an empty slot")
+    public void tinyLfuIgnoresHitsOnEmptySlots() throws InterruptedException {
+        concurrentHitsAndEvictions(EvictionPolicy.Kind.TINY_LFU);
+    }
+
+    /**
+     * Hits an entry's slot after it was removed, as a reader that passed
+     * its seqlock check just before a writer emptied the slot would, then
+     * races lock-free readers against a writer that keeps evicting. The set
+     * must stay consistent throughout.
+     */
+    private void concurrentHitsAndEvictions(EvictionPolicy.Kind kind)
+            throws InterruptedException {
+        EvictionPolicy policy = kind.create(4);
+        for (int slot = 0; slot < 4; slot++) {
+            policy.onInsert(slot, slot);
+        }
+        policy.onRemove(1);
+        policy.onHit(1, 1);
+        /* Once every entry is more recent, the empty slot looks oldest. */
+        policy.onHit(0, 0);
+        policy.onHit(2, 2);
+        policy.onHit(3, 3);
+        assertTrue(policy.victim(9) != 1);
+
+        final KVCache cache = new KVCache(1, 8, kind);
+        final int keys = 64;
+        final AtomicBoolean done = new AtomicBoolean();
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        Thread[] readers = new Thread[4];
+        for (int t = 0; t < readers.length; t++) {
+            final int seed = t;
+            readers[t] = new Thread() {
+                @Override
+                public void run() {
+                    Random rand = new Random(seed);
+                    try {
+                        while (!done.get()) {
+                            String key = "k" + rand.nextInt(keys);
+                            String value = cache.getOptimistic(key);
+                            if (value != null && !value.equals("v" + key)) {
+                                throw new AssertionError(key + " read " + value);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            };
+            readers[t].start();
+        }
+        Random rand = new Random(8);
+        try {
+            for (int i = 0; i < 200000; i++) {
+                String key = "k" + rand.nextInt(keys);
+                cache.getLock(key).lock();
+                try {
+                    if (rand.nextInt(4) == 0) {
+                        cache.del(key);
+                    } else {
+                        cache.put(key, "v" + key);
+                    }
+                } finally {
+                    cache.getLock(key).unlock();
+                }
+            }
+        } finally {
+            done.set(true);
+            for (Thread reader : readers) {
+                reader.join();
+            }
+        }
+        assertNull(failure.get());
+
+        KVCache.CacheSet set = cache.sets[0];
+        Set<Integer> free = new HashSet<Integer>();
+        for (int i = 0; i < set.freeCount; i++) {
+            assertTrue(free.add(set.free[i]));
+            assertNull(set.keys.get(set.free[i]));
+        }
+        Set<String> held = new HashSet<String>();
+        for (int slot = 0; slot < set.capacity; slot++) {
+            String key = set.keys.get(slot);
+            if (key != null) {
+                assertTrue(held.add(key));
+            }
+        }
+        assertEquals(set.capacity, set.freeCount + set.size);
+        assertEquals(held.size(), set.size);
+    }
 }
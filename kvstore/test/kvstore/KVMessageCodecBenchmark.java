@@ -0,0 +1,115 @@
+package kvstore;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.URL;
+
+/**
+ * Microbenchmark comparing the XML and binary KVMessage formats on the
+ * message shapes in resources/example-msgs. Each iteration sends a message
+ * into an in-memory socket and parses it back out, which is the per-request
+ * codec work a server and client pay between them.
+ *
+ * Run with: ant runbench -Dbench=KVMessageCodecBenchmark [-Dbenchargs=N]
+ */
+public class KVMessageCodecBenchmark {
+
+    static final String[] SHAPES = {
+        "getreq.txt", "putreq.txt", "delreq.txt", "getresp.txt",
+        "putresp.txt", "errorresp.txt", "gobears_maxkey.txt",
+        "gobears_maxvalue.txt"
+    };
+
+    /**
+     * Socket stand-in that reads from a byte array and records what is
+     * written to it.
+     */
+    static class MemorySocket extends Socket {
+        private final InputStream in;
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+        MemorySocket(byte[] input) {
+            in = new ByteArrayInputStream(input);
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return in;
+        }
+
+        @Override
+        public OutputStream getOutputStream() {
+            return out;
+        }
+
+        @Override
+        public void setSoTimeout(int timeout) {}
+
+        @Override
+        public void shutdownOutput() {}
+    }
+
+    public static void main(String[] args) throws Exception {
+        int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 2000;
+
+        System.out.format("%-22s %10s %10s %12s %12s %8s%n", "shape",
+            "xml bytes", "bin bytes", "xml ns/op", "bin ns/op", "speedup");
+        for (String shape : SHAPES) {
+            KVMessage msg = new KVMessage(new MemorySocket(load(shape)));
+            byte[] xml = send(msg, KVMessage.Format.XML);
+            byte[] bin = send(msg, KVMessage.Format.BINARY);
+
+            /* Scale the large shapes down so every row takes similar time. */
+            int n = Math.max(10, iterations * 200 / Math.max(200, xml.length / 8));
+            roundTrip(msg, KVMessage.Format.XML, n / 4 + 1);
+            roundTrip(msg, KVMessage.Format.BINARY, n / 4 + 1);
+            long xmlNs = roundTrip(msg, KVMessage.Format.XML, n);
+            long binNs = roundTrip(msg, KVMessage.Format.BINARY, n);
+
+            System.out.format("%-22s %10d %10d %12d %12d %7.1fx%n", shape,
+                xml.length, bin.length, xmlNs, binNs, (double) xmlNs / binNs);
+        }
+    }
+
+    /**
+     * Send and re-parse a message n times.
+     *
+     * @return mean nanoseconds per round trip
+     */
+    static long roundTrip(KVMessage msg, KVMessage.Format format, int n)
+            throws KVException {
+        long start = System.nanoTime();
+        for (int i = 0; i < n; i++) {
+            byte[] wire = send(msg, format);
+            new KVMessage(new MemorySocket(wire));
+        }
+        return (System.nanoTime() - start) / n;
+    }
+
+    static byte[] send(KVMessage msg, KVMessage.Format format) throws KVException {
+        MemorySocket sock = new MemorySocket(new byte[0]);
+        msg.sendMessage(sock, format);
+        return sock.out.toByteArray();
+    }
+
+    static byte[] load(String name) throws IOException {
+        URL location = ClassLoader.getSystemResource(name);
+        InputStream is = new FileInputStream(location.getPath());
+        try {
+            ByteArrayOutputStream os = new ByteArrayOutputStream();
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = is.read(buf)) > 0) {
+                os.write(buf, 0, n);
+            }
+            return os.toByteArray();
+        } finally {
+            is.close();
+        }
+    }
+}
@@ -8,6 +8,7 @@ import static org.mockito.Mockito.*;
 
 import java.io.*;
 import java.net.Socket;
+import java.nio.ByteBuffer;
 
 import javax.xml.parsers.*;
 
@@ -198,6 +199,137 @@ public class KVMessageTest {
         }
     }
 
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Binary frames must round-trip every field without half-closing")
+    public void binaryRoundTripsPutReq() throws Exception {
+        KVMessage kvm = new KVMessage(PUT_REQ);
+        kvm.setKey("k\u00e9y");
+        kvm.setValue("v\u4e2dalue");
+        Socket out = mock(Socket.class);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        when(out.getOutputStream()).thenReturn(bytes);
+        kvm.sendMessage(out, KVMessage.Format.BINARY);
+        verify(out, never()).shutdownOutput();
+
+        sock = mock(Socket.class);
+        when(sock.getInputStream()).thenReturn(new ByteArrayInputStream(bytes.toByteArray()));
+        KVMessage parsed = new KVMessage(sock);
+        assertEquals(PUT_REQ, parsed.getMsgType());
+        assertEquals("k\u00e9y", parsed.getKey());
+        assertEquals("v\u4e2dalue", parsed.getValue());
+        assertNull(parsed.getMessage());
+        assertEquals(KVMessage.Format.BINARY, parsed.getFormat());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Consecutive binary frames on one stream must parse one at a time")
+    public void binaryFramesAreSelfDelimiting() throws Exception {
+        KVMessage first = new KVMessage(RESP, SUCCESS);
+        KVMessage second = new KVMessage(GET_REQ);
+        second.setKey("foo");
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(first.toBinary());
+        bytes.write(second.toBinary());
+
+        sock = mock(Socket.class);
+        when(sock.getInputStream()).thenReturn(new ByteArrayInputStream(bytes.toByteArray()));
+        assertEquals(SUCCESS, new KVMessage(sock).getMessage());
+        assertEquals("foo", new KVMessage(sock).getKey());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Truncated binary frames must fail to receive")
+    public void truncatedBinaryFrameFails() throws Exception {
+        KVMessage kvm = new KVMessage(DEL_REQ);
+        kvm.setKey("foo");
+        byte[] frame = kvm.toBinary();
+        sock = mock(Socket.class);
+        when(sock.getInputStream()).thenReturn(
+            new ByteArrayInputStream(frame, 0, frame.length - 1));
+        try {
+            new KVMessage(sock);
+            fail("expected truncated frame to be rejected");
+        } catch (KVException e) {
+            assertEquals(ERROR_COULD_NOT_RECEIVE_DATA, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Binary frames with an unknown type must fail to parse")
+    public void unknownBinaryTypeFails() throws Exception {
+        byte[] frame = { (byte) KVBinaryCodec.MAGIC, 4, 99, 0, 0, 0 };
+        sock = mock(Socket.class);
+        when(sock.getInputStream()).thenReturn(new ByteArrayInputStream(frame));
+        try {
+            new KVMessage(sock);
+            fail("expected unknown type to be rejected");
+        } catch (KVException e) {
+            assertEquals(ERROR_PARSER, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Binary frames missing required fields fail validation but are consumed")
+    public void invalidBinaryFrameIsSkipped() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        bytes.write(KVBinaryCodec.encode(new KVMessage(PUT_REQ, "foo", null, null)));
+        bytes.write(KVBinaryCodec.encode(new KVMessage(PUT_REQ, null, "bar", null)));
+        KVMessage valid = new KVMessage(GET_REQ);
+        valid.setKey("foo");
+        bytes.write(valid.toBinary());
+
+        InputStream in = new ByteArrayInputStream(bytes.toByteArray());
+        for (int i = 0; i < 2; i++) {
+            try {
+                KVMessage.readNext(in);
+                fail("expected a put without a key or value to be rejected");
+            } catch (KVException e) {
+                assertEquals(ERROR_INVALID_FORMAT, e.getKVMessage().getMessage());
+            }
+        }
+        assertEquals("foo", KVMessage.readNext(in).getKey());
+        assertNull(KVMessage.readNext(in));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Binary batches with a negative or oversized count must fail to parse")
+    public void badBinaryBatchCountFails() throws Exception {
+        byte batch = 10;
+        byte[][] frames = {
+            /* A five-byte varint count of -1. */
+            { (byte) KVBinaryCodec.MAGIC, 9, batch, 0, 0, 0,
+                (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f },
+            /* A count of 100 with no operations after it. */
+            { (byte) KVBinaryCodec.MAGIC, 5, batch, 0, 0, 0, 100 }
+        };
+        for (byte[] frame : frames) {
+            try {
+                KVMessage.readNext(new ByteArrayInputStream(frame));
+                fail("expected a bad operation count to be rejected");
+            } catch (KVException e) {
+                assertEquals(ERROR_PARSER, e.getKVMessage().getMessage());
+            }
+            try {
+                KVBinaryCodec.decode(ByteBuffer.wrap(frame));
+                fail("expected a bad operation count to be rejected");
+            } catch (KVException e) {
+                assertEquals(ERROR_PARSER, e.getKVMessage().getMessage());
+            }
+        }
+    }
+
     /* ----------------------- BEGIN HELPER METHODS ------------------------ */
 
     /* Definitely don't make the parse code available to students */
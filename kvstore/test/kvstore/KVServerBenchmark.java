@@ -0,0 +1,205 @@
+package kvstore;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Throughput benchmark for KVServer under read/write mixes. Every thread
+ * hammers a small key space that fits in the cache, so reads are nearly all
+ * hits and contention on the cache sets dominates. Each mix is run against
+ * KVServer and against a copy of the old fully locked read path, at 1 to 64
+ * threads.
+ *
+ * A second run measures lookups of keys the server does not hold: get,
+ * which throws for each of them, against lookup, and lookup with the
+ * negative filter enabled.
+ *
+ * Run with: ant runbench -Dbench=KVServerBenchmark [-Dbenchargs=millis]
+ */
+public class KVServerBenchmark {
+
+    static final int[] THREADS = { 1, 2, 4, 8, 16, 32, 64 };
+    static final int[] READ_PERCENT = { 95, 50 };
+    static final int NUM_SETS = 16;
+    static final int SET_SIZE = 64;
+    static final int KEYS = 512;
+
+    /**
+     * KVServer.get as it was before cache hits became lock-free.
+     */
+    static class LockedServer implements KeyValueInterface {
+        final KVCache cache = new KVCache(NUM_SETS, SET_SIZE);
+        final KVStore store = new KVStore();
+
+        @Override
+        public void put(String key, String value) {
+            cache.getLock(key).lock();
+            try {
+                cache.put(key, value);
+                store.put(key, value);
+            } finally {
+                cache.getLock(key).unlock();
+            }
+        }
+
+        @Override
+        public String get(String key) throws KVException {
+            cache.getLock(key).lock();
+            try {
+                String value = cache.get(key);
+                if (value == null) {
+                    value = store.get(key);
+                    cache.put(key, value);
+                }
+                return value;
+            } finally {
+                cache.getLock(key).unlock();
+            }
+        }
+
+        @Override
+        public void del(String key) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public String lookup(String key) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean remove(String key) {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        long millis = (args.length > 0) ? Long.parseLong(args[0]) : 500;
+
+        for (int reads : READ_PERCENT) {
+            System.out.format("%n%d%% reads, %d%% writes (ops/ms)%n", reads, 100 - reads);
+            System.out.format("%8s %12s %12s %8s%n", "threads", "locked", "kvserver", "ratio");
+            for (int threads : THREADS) {
+                double locked = run(new LockedServer(), threads, reads, millis);
+                double server = run(new KVServer(NUM_SETS, SET_SIZE), threads, reads, millis);
+                System.out.format("%8d %12.0f %12.0f %7.2fx%n",
+                    threads, locked, server, server / locked);
+            }
+        }
+
+        System.out.format("%nmisses (ops/ms)%n");
+        System.out.format("%8s %12s %12s %12s%n", "threads", "get", "lookup", "filtered");
+        for (int threads : THREADS) {
+            double thrown = misses(new KVServer(NUM_SETS, SET_SIZE), threads, true, millis);
+            double looked = misses(new KVServer(NUM_SETS, SET_SIZE), threads, false, millis);
+            KVServer filtered = new KVServer(NUM_SETS, SET_SIZE);
+            filtered.enableFilter(KEYS, 0.01);
+            double skipped = misses(filtered, threads, false, millis);
+            System.out.format("%8d %12.0f %12.0f %12.0f%n", threads, thrown, looked, skipped);
+        }
+    }
+
+    /**
+     * @param  thrown whether to miss through get and its exception rather
+     *         than lookup
+     * @return lookups of missing keys per millisecond across all threads
+     */
+    static double misses(final KVServer kv, int threads, final boolean thrown,
+            final long millis) throws Exception {
+        final String[] missing = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            kv.put("key" + i, "value" + i);
+            missing[i] = "missing" + i;
+        }
+        final AtomicLong ops = new AtomicLong();
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long[] deadline = new long[1];
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random rand = new Random(seed);
+                    long n = 0;
+                    try {
+                        go.await();
+                        while (System.nanoTime() < deadline[0]) {
+                            for (int i = 0; i < 256; i++) {
+                                String key = missing[rand.nextInt(KEYS)];
+                                if (thrown) {
+                                    try {
+                                        kv.get(key);
+                                    } catch (KVException e) {}
+                                } else {
+                                    kv.lookup(key);
+                                }
+                            }
+                            n += 256;
+                        }
+                    } catch (InterruptedException e) {
+                    } finally {
+                        ops.addAndGet(n);
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        long start = System.nanoTime();
+        deadline[0] = start + millis * 1000000L;
+        go.countDown();
+        done.await();
+        return ops.get() / ((System.nanoTime() - start) / 1e6);
+    }
+
+    /**
+     * @return operations per millisecond across all threads
+     */
+    static double run(final KeyValueInterface kv, int threads, final int readPercent,
+            final long millis) throws Exception {
+        final String[] keys = new String[KEYS];
+        for (int i = 0; i < KEYS; i++) {
+            keys[i] = "key" + i;
+            kv.put(keys[i], "value" + i);
+        }
+        final AtomicLong ops = new AtomicLong();
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(threads);
+        final long[] deadline = new long[1];
+        for (int t = 0; t < threads; t++) {
+            final int seed = t;
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Random rand = new Random(seed);
+                    long n = 0;
+                    try {
+                        go.await();
+                        while (System.nanoTime() < deadline[0]) {
+                            for (int i = 0; i < 256; i++) {
+                                String key = keys[rand.nextInt(KEYS)];
+                                if (rand.nextInt(100) < readPercent) {
+                                    kv.get(key);
+                                } else {
+                                    kv.put(key, "v" + i);
+                                }
+                            }
+                            n += 256;
+                        }
+                    } catch (Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        ops.addAndGet(n);
+                        done.countDown();
+                    }
+                }
+            }).start();
+        }
+        long start = System.nanoTime();
+        deadline[0] = start + millis * 1000000L;
+        go.countDown();
+        done.await();
+        return ops.get() / ((System.nanoTime() - start) / 1e6);
+    }
+}
@@ -0,0 +1,117 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutQuick;
+import static kvstore.KVConstants.DEL_REQ;
+import static kvstore.KVConstants.ERROR_INVALID_FORMAT;
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+import static kvstore.KVConstants.ERROR_OVERSIZED_KEY;
+import static kvstore.KVConstants.ERROR_OVERSIZED_VALUE;
+import static kvstore.KVConstants.ERROR_REPLY_TOO_LARGE;
+import static kvstore.KVConstants.GET_REQ;
+import static kvstore.KVConstants.MULTI_REQ;
+import static kvstore.KVConstants.PUT_REQ;
+import static kvstore.KVConstants.RESP;
+import static kvstore.KVConstants.SUCCESS;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class KVServerMultiTest {
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "putAll and lookupAll report each key on its own")
+    public void serverPerKeyResults() throws KVException {
+        KVServer server = new KVServer(4, 2);
+        server.enableFilter(100, 0.01);
+        server.put("old", "0");
+        String longKey = new String(new char[KVServer.MAX_KEY_SIZE + 1]).replace('\0', 'k');
+        String longValue = new String(new char[KVServer.MAX_VAL_SIZE + 1]);
+
+        Map<String, String> entries = new LinkedHashMap<String, String>();
+        for(int i = 0; i < 50; i++)
+            entries.put("key" + i, "value" + i);
+        entries.put(longKey, "v");
+        entries.put("big", longValue);
+        Map<String, KVException> failed = server.putAll(entries);
+        assertEquals(2, failed.size());
+        assertEquals(ERROR_OVERSIZED_KEY, failed.get(longKey).getKVMessage().getMessage());
+        assertEquals(ERROR_OVERSIZED_VALUE, failed.get("big").getKVMessage().getMessage());
+
+        List<String> keys = new ArrayList<String>(entries.keySet());
+        keys.add("old");
+        keys.add("missing");
+        Map<String, String> found = server.lookupAll(keys);
+        assertEquals(51, found.size());
+        for(int i = 0; i < 50; i++)
+            assertEquals("value" + i, found.get("key" + i));
+        assertEquals("0", found.get("old"));
+        assertNull(found.get("missing"));
+        assertNull(server.lookup("big"));
+        assertEquals("value7", server.get("key7"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A multi request is answered with one result per operation, in order")
+    public void handlerAnswersInOrder() throws KVException {
+        KVServer server = new KVServer(4, 2);
+        ServerClientHandler handler = new ServerClientHandler(server);
+        String large = new String(new char[KVServer.MAX_VAL_SIZE]).replace('\0', 'x');
+        server.put("large0", large);
+        server.put("large1", large);
+        server.put("large2", large);
+
+        List<KVMessage> ops = Arrays.asList(
+            new KVMessage(PUT_REQ, "a", "1", null),
+            new KVMessage(GET_REQ, "a", null, null),
+            new KVMessage(GET_REQ, "missing", null, null),
+            new KVMessage(PUT_REQ, "b", new String(new char[KVServer.MAX_VAL_SIZE + 1]), null),
+            new KVMessage(GET_REQ, "large0", null, null),
+            new KVMessage(GET_REQ, "large1", null, null),
+            new KVMessage(GET_REQ, "large2", null, null));
+        KVMessage request = new KVMessage(MULTI_REQ);
+        request.setBatch(ops);
+        request = KVBinaryCodec.decode(ByteBuffer.wrap(request.toBinary()));
+        KVMessage reply = handler.process(request);
+        reply = KVBinaryCodec.decode(ByteBuffer.wrap(reply.toBinary()));
+
+        assertEquals(MULTI_REQ, reply.getMsgType());
+        List<KVMessage> results = reply.getBatch();
+        assertEquals(ops.size(), results.size());
+        String[] messages = { SUCCESS, null, ERROR_NO_SUCH_KEY, ERROR_OVERSIZED_VALUE,
+            null, null, ERROR_REPLY_TOO_LARGE };
+        for(int i = 0; i < ops.size(); i++) {
+            assertEquals(RESP, results.get(i).getMsgType());
+            assertEquals(ops.get(i).getKey(), results.get(i).getKey());
+            assertEquals("result " + i, messages[i], results.get(i).getMessage());
+        }
+        assertEquals("1", results.get(1).getValue());
+        assertEquals(large, results.get(5).getValue());
+        assertEquals("1", server.get("a"));
+
+        /* A del has no place in a multi request, so the frame is refused. */
+        request.setBatch(Arrays.asList(new KVMessage(DEL_REQ, "a", null, null)));
+        try {
+            KVBinaryCodec.decode(ByteBuffer.wrap(KVBinaryCodec.encode(request)));
+            fail("a multi request with a del was decoded");
+        } catch(KVException e) {
+            assertEquals(ERROR_INVALID_FORMAT, e.getMessage());
+        }
+    }
+}
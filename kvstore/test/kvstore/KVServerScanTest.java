@@ -0,0 +1,156 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutQuick;
+import static kvstore.KVConstants.BATCH_REQ;
+import static kvstore.KVConstants.RANGE_REQ;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class KVServerScanTest {
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Scans and prefixes agree with a sorted map, with or without an index")
+    public void matchesSortedMap() throws KVException {
+        KVServer indexed = new KVServer(4, 4);
+        KVServer plain = new KVServer(4, 4);
+        indexed.put("early", "0");
+        indexed.enableSortedIndex();
+        plain.put("early", "0");
+        TreeMap<String, String> expected = new TreeMap<String, String>();
+        expected.put("early", "0");
+        Random rand = new Random(24);
+        String[] prefixes = { "", "a", "ab", "b\uffff", "c" };
+        for(int i = 0; i < 3000; i++) {
+            String key = prefixes[rand.nextInt(prefixes.length)] + rand.nextInt(200);
+            if(rand.nextInt(4) == 0) {
+                assertEquals(expected.remove(key) != null, indexed.remove(key));
+                plain.remove(key);
+            } else {
+                indexed.put(key, "v" + i);
+                plain.put(key, "v" + i);
+                expected.put(key, "v" + i);
+            }
+        }
+
+        for(KVServer server : Arrays.asList(indexed, plain)) {
+            assertEquals(expected, server.scan(null, null, Integer.MAX_VALUE));
+            assertEquals(expected.subMap("a1", "b"), server.scan("a1", "b", 10000));
+            SortedMap<String, String> first = server.scan("ab", null, 7);
+            assertEquals(7, first.size());
+            assertEquals(expected.tailMap("ab").firstKey(), first.firstKey());
+            assertEquals(expected.subMap("ab", true, first.lastKey(), true), first);
+            for(String prefix : prefixes) {
+                SortedMap<String, String> matches = new TreeMap<String, String>();
+                for(String key : expected.keySet()) {
+                    if(key.startsWith(prefix))
+                        matches.put(key, expected.get(key));
+                }
+                assertEquals(matches, server.prefix(prefix, 10000));
+            }
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Range pages follow their cursors through every key exactly once")
+    public void pagesCoverRange() throws KVException {
+        KVServer server = new KVServer(4, 4);
+        server.enableSortedIndex();
+        ServerClientHandler handler = new ServerClientHandler(server);
+        TreeMap<String, String> expected = new TreeMap<String, String>();
+        String large = new String(new char[200 * 1024]).replace('\0', 'x');
+        for(int i = 0; i < 3000; i++) {
+            String value = (i % 100 == 0) ? large : "v" + i;
+            server.put("key" + i, value);
+            expected.put("key" + i, value);
+        }
+        server.put("key1\0", "nul");
+        expected.put("key1\0", "nul");
+
+        int limit = 2500;
+        SortedMap<String, String> seen = new TreeMap<String, String>();
+        String cursor = "key1";
+        int pages = 0;
+        do {
+            KVMessage request = new KVMessage(RANGE_REQ, cursor, "key9",
+                Integer.toString(limit - seen.size()));
+            request = KVBinaryCodec.decode(ByteBuffer.wrap(KVBinaryCodec.encode(request)));
+            KVMessage page = handler.process(request);
+            page = KVBinaryCodec.decode(ByteBuffer.wrap(page.toBinary()));
+            assertEquals(BATCH_REQ, page.getMsgType());
+            for(KVMessage op : page.getBatch())
+                assertEquals(null, seen.put(op.getKey(), op.getValue()));
+            cursor = page.getKey();
+            pages++;
+        } while(cursor != null);
+
+        SortedMap<String, String> range = expected.subMap("key1", "key9");
+        assertEquals(limit, seen.size());
+        assertEquals(range.firstKey(), seen.firstKey());
+        assertEquals(range.headMap(seen.lastKey() + '\0'), seen);
+        /* Three pages of keys, and more where the large values fill them. */
+        assertTrue("pages " + pages, pages > 3);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Keys deleted during a scan neither shorten a page nor end a range")
+    public void deletedKeysKeepPagesFull() throws KVException {
+        KVServer plain = new KVServer(new KVCache(4, 4), new DeletingStore());
+        KVServer server = new KVServer(new KVCache(4, 4), new DeletingStore());
+        TreeMap<String, String> expected = new TreeMap<String, String>();
+        for(int i = 0; i < 3000; i++) {
+            plain.put("key" + i, "v" + i);
+            server.put("key" + i, "v" + i);
+            expected.put("key" + i, "v" + i);
+        }
+        /* The handler's index is built from the keys listed, deleted ones too. */
+        ServerClientHandler handler = new ServerClientHandler(server);
+
+        SortedMap<String, String> first = plain.scan("key1", null, 100);
+        assertEquals(100, first.size());
+        assertEquals(expected.subMap("key1", true, first.lastKey(), true), first);
+
+        SortedMap<String, String> seen = new TreeMap<String, String>();
+        String cursor = null;
+        do {
+            KVMessage page = handler.process(new KVMessage(RANGE_REQ, cursor, null,
+                Integer.toString(expected.size())));
+            for(KVMessage op : page.getBatch())
+                assertEquals(null, seen.put(op.getKey(), op.getValue()));
+            cursor = page.getKey();
+        } while(cursor != null);
+        assertEquals(expected, seen);
+    }
+
+    /* Lists, after each key, one that was deleted before it could be read. */
+    static class DeletingStore extends KVStore {
+        @Override
+        public Iterable<String> keys() {
+            List<String> keys = new ArrayList<String>();
+            for(String key : super.keys()) {
+                keys.add(key);
+                keys.add(key + "~");
+            }
+            return keys;
+        }
+    }
+}
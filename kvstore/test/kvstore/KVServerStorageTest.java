@@ -0,0 +1,58 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutQuick;
+import static kvstore.KVConstants.ERROR_STORAGE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class KVServerStorageTest {
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A write the store refuses is never visible through the cache")
+    public void failedWriteIsNeverRead() throws KVException {
+        final KVCache cache = new KVCache(4, 4);
+        StorageEngine store = new KVStore() {
+            @Override
+            public void put(String key, String value) {
+                /* Lock-free readers must not see the value before the store has it. */
+                assertNotEquals(value, cache.getOptimistic(key));
+                if (value.startsWith("bad"))
+                    throw new KVStore.StorageException(new IOException("disk full"));
+                super.put(key, value);
+            }
+        };
+        KVServer server = new KVServer(cache, store);
+
+        try {
+            server.put("key", "bad");
+            fail("a refused write should fail");
+        } catch (KVException e) {
+            assertEquals(ERROR_STORAGE, e.getKVMessage().getMessage());
+        }
+        assertNull(cache.getOptimistic("key"));
+        assertNull(server.lookup("key"));
+
+        Map<String, KVException> failed =
+            server.putAll(Collections.singletonMap("other", "bad too"));
+        assertEquals(ERROR_STORAGE, failed.get("other").getKVMessage().getMessage());
+        assertNull(cache.getOptimistic("other"));
+
+        server.put("key", "good");
+        assertEquals("good", cache.getOptimistic("key"));
+        assertEquals("good", server.get("key"));
+    }
+}
@@ -0,0 +1,115 @@
+package kvstore;
+
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * Measures the durable KVStore: write throughput under each FsyncPolicy,
+ * and how long a store takes to reopen from its log alone and from a
+ * snapshot plus a shorter log. ALWAYS runs with several writer threads so
+ * group commit can share each fsync between them.
+ *
+ * Run with: ant runbench -Dbench=KVStoreBenchmark [-Dbenchargs="keys [dir]"]
+ * The default is 1M keys; pass 10000000 for the large run, with enough heap.
+ */
+public class KVStoreBenchmark {
+
+    static final int WRITERS = 8;
+    /* ALWAYS is bounded by fsync latency, so it gets fewer operations. */
+    static final int ALWAYS_OPS = 20000;
+
+    public static void main(String[] args) throws Exception {
+        int keys = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        File base = (args.length > 1) ? new File(args[1])
+            : new File(System.getProperty("java.io.tmpdir"));
+
+        System.out.format("%-10s %8s %10s %12s%n", "policy", "threads", "ops", "ops/sec");
+        for (RecordLog.FsyncPolicy policy : RecordLog.FsyncPolicy.values()) {
+            int ops = (policy == RecordLog.FsyncPolicy.ALWAYS) ? ALWAYS_OPS : keys;
+            int[] threads = (policy == RecordLog.FsyncPolicy.ALWAYS)
+                ? new int[] { 1, WRITERS } : new int[] { 1 };
+            for (int t : threads) {
+                File dir = newDir(base);
+                KVStore store = new KVStore(dir.getPath(), policy);
+                double rate = write(store, ops, t);
+                store.close();
+                delete(dir);
+                System.out.format("%-10s %8d %10d %12.0f%n", policy, t, ops, rate);
+            }
+        }
+
+        File dir = newDir(base);
+        KVStore store = new KVStore(dir.getPath(), RecordLog.FsyncPolicy.NONE);
+        store.setSnapshotThreshold(Long.MAX_VALUE);
+        write(store, keys, 1);
+        store.close();
+        System.out.format("%nrecovery of %d keys%n", keys);
+        System.out.format("%-22s %10d ms%n", "log only", reopen(dir));
+
+        store = new KVStore(dir.getPath(), RecordLog.FsyncPolicy.NONE);
+        store.setSnapshotThreshold(Long.MAX_VALUE);
+        store.snapshot();
+        for (int i = 0; i < keys / 10; i++) {
+            store.put("key" + i, "updated" + i);
+        }
+        store.close();
+        System.out.format("%-22s %10d ms%n", "snapshot + 10% log", reopen(dir));
+        delete(dir);
+    }
+
+    /**
+     * @return puts per second across all threads
+     */
+    static double write(final KVStore store, final int ops, int threads)
+            throws InterruptedException {
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int first = t;
+            final int stride = threads;
+            writers[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = first; i < ops; i += stride) {
+                        store.put("key" + i, "value" + i);
+                    }
+                }
+            };
+        }
+        long start = System.nanoTime();
+        for (Thread w : writers) {
+            w.start();
+        }
+        for (Thread w : writers) {
+            w.join();
+        }
+        return ops / ((System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * @return milliseconds taken to open the store in dir
+     */
+    static long reopen(File dir) throws KVException {
+        System.gc();
+        long start = System.nanoTime();
+        KVStore store = new KVStore(dir.getPath(), RecordLog.FsyncPolicy.NONE);
+        long millis = (System.nanoTime() - start) / 1000000;
+        store.close();
+        return millis;
+    }
+
+    static File newDir(File base) throws IOException {
+        File dir = File.createTempFile("kvbench", "", base);
+        dir.delete();
+        return dir;
+    }
+
+    static void delete(File dir) {
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files) {
+                f.delete();
+            }
+        }
+        dir.delete();
+    }
+}
@@ -9,6 +9,7 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.StringReader;
 
@@ -16,6 +17,7 @@ import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
 
+import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.experimental.categories.Category;
@@ -32,11 +34,28 @@ public class KVStoreTest {
 
     KVStore store;
 
+    File dir;
+
     @Before
     public void setupStore() {
         store = new KVStore();
     }
 
+    @After
+    public void removeDir() {
+        if(dir != null) {
+            for(File f : dir.listFiles())
+                f.delete();
+            dir.delete();
+        }
+    }
+
+    private String tempDir() throws IOException {
+        dir = File.createTempFile("kvstore", "");
+        dir.delete();
+        return dir.getPath();
+    }
+
     @Test(timeout = kTimeoutQuick)
     @Category(AG_PROJ3_CODE.class)
     @AGTestDetails(points = 1,
@@ -48,4 +67,85 @@ public class KVStoreTest {
         assertEquals(val, store.get(key));
     }
 
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Durable store recovers puts and dels from its log")
+    public void durableStoreRecoversFromLog() throws Exception {
+        String path = tempDir();
+        KVStore durable = new KVStore(path, RecordLog.FsyncPolicy.NONE);
+        durable.put("a", "1");
+        durable.put("b", "2");
+        durable.put("a", "3");
+        durable.del("b");
+        durable.close();
+
+        durable = new KVStore(path, RecordLog.FsyncPolicy.NONE);
+        assertEquals("3", durable.get("a"));
+        try {
+            durable.get("b");
+            fail("deleted key came back");
+        } catch(KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        durable.close();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Durable store recovers from a snapshot plus later log")
+    public void durableStoreRecoversFromSnapshot() throws Exception {
+        String path = tempDir();
+        KVStore durable = new KVStore(path, RecordLog.FsyncPolicy.ALWAYS);
+        for(int i = 0; i < 100; i++)
+            durable.put("key" + i, "old" + i);
+        durable.snapshot();
+        durable.put("key7", "new7");
+        durable.del("key8");
+        durable.close();
+        assertTrue(new File(dir, "snapshot").exists());
+        assertTrue(!new File(dir, "wal.1").exists());
+
+        durable = new KVStore(path, RecordLog.FsyncPolicy.ALWAYS);
+        assertEquals("old0", durable.get("key0"));
+        assertEquals("new7", durable.get("key7"));
+        assertEquals("old99", durable.get("key99"));
+        try {
+            durable.get("key8");
+            fail("deleted key came back");
+        } catch(KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        durable.close();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Durable store records a background snapshot that fails")
+    public void durableStoreRecordsSnapshotFailure() throws Exception {
+        String path = tempDir();
+        KVStore durable = new KVStore(path, RecordLog.FsyncPolicy.NONE);
+        /* A directory in the way of snapshot.tmp makes every snapshot fail. */
+        File blocker = new File(dir, "snapshot.tmp");
+        assertTrue(blocker.mkdir());
+        durable.setSnapshotThreshold(1);
+        durable.put("a", "1");
+        for(int i = 0; i < 500 && durable.getSnapshotFailures() == 0; i++)
+            Thread.sleep(10);
+        assertEquals(1, durable.getSnapshotFailures());
+        assertNotNull(durable.getSnapshotError());
+        assertEquals("1", durable.get("a"));
+
+        assertTrue(blocker.delete());
+        durable.snapshot();
+        durable.put("b", "2");
+        for(int i = 0; i < 500 && durable.getSnapshotError() != null; i++)
+            Thread.sleep(10);
+        assertNull(durable.getSnapshotError());
+        assertEquals(1, durable.getSnapshotFailures());
+        durable.close();
+    }
+
 }
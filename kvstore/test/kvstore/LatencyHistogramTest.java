@@ -0,0 +1,51 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutQuick;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class LatencyHistogramTest {
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Percentiles are within a bucket's width of the exact value")
+    public void percentilesWithinBucket() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        assertEquals(0, histogram.percentile(0.5, TimeUnit.MICROSECONDS));
+        for(int i = 1; i <= 1000; i++)
+            histogram.record(TimeUnit.MICROSECONDS.toNanos(i));
+        assertEquals(1000, histogram.count());
+        long p50 = histogram.percentile(0.5, TimeUnit.MICROSECONDS);
+        long p99 = histogram.percentile(0.99, TimeUnit.MICROSECONDS);
+        assertTrue(p50 >= 500 && p50 <= 500 * 9 / 8 + 1);
+        assertTrue(p99 >= 990 && p99 <= 990 * 9 / 8 + 1);
+        assertEquals(7, histogram.percentile(0.007, TimeUnit.MICROSECONDS));
+        for(long micros = 0; micros < (1L << 20); micros = micros * 5 / 4 + 1) {
+            long upper = LatencyHistogram.upperBound(LatencyHistogram.bucket(micros));
+            assertTrue(upper >= micros && upper <= micros * 9 / 8 + 1);
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Old samples fade out so percentiles follow a change in latency")
+    public void decayFollowsChange() {
+        LatencyHistogram histogram = new LatencyHistogram(100);
+        for(int i = 0; i < 1000; i++)
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(1));
+        assertTrue(histogram.count() < 100);
+        for(int i = 0; i < 200; i++)
+            histogram.record(TimeUnit.MILLISECONDS.toNanos(100));
+        assertTrue(histogram.percentile(0.5, TimeUnit.MILLISECONDS) >= 100);
+    }
+}
@@ -0,0 +1,73 @@
+package kvstore;
+
+import java.io.File;
+
+/**
+ * Compares how long a store of each size takes to reopen: the durable
+ * KVStore, which rebuilds its map from a snapshot and log, against
+ * MappedStore, which maps its files and replays at most one checkpoint's
+ * worth of redo log. Also reports write throughput and a pass of reads
+ * over the reopened stores.
+ *
+ * Run with: ant runbench -Dbench=MappedStoreBenchmark [-Dbenchargs="keys [dir]"]
+ * The default is 1M keys of 100 bytes.
+ */
+public class MappedStoreBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        int keys = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+        File base = (args.length > 1) ? new File(args[1])
+            : new File(System.getProperty("java.io.tmpdir"));
+        String value = new String(new char[100]).replace('\0', 'v');
+
+        System.out.format("%d keys of %d bytes%n", keys, value.length());
+        System.out.format("%-10s %12s %12s %12s%n", "engine", "puts/sec", "reopen ms", "gets/sec");
+
+        File dir = KVStoreBenchmark.newDir(base);
+        KVStore heap = new KVStore(dir.getPath(), RecordLog.FsyncPolicy.NONE);
+        double puts = write(heap, keys, value);
+        heap.snapshot();
+        heap.close();
+        long start = System.nanoTime();
+        heap = new KVStore(dir.getPath(), RecordLog.FsyncPolicy.NONE);
+        long reopen = (System.nanoTime() - start) / 1000000;
+        System.out.format("%-10s %12.0f %12d %12.0f%n", "kvstore", puts, reopen, read(heap, keys));
+        heap.close();
+        KVStoreBenchmark.delete(dir);
+
+        dir = KVStoreBenchmark.newDir(base);
+        MappedStore mapped = new MappedStore(dir.getPath(), RecordLog.FsyncPolicy.NONE);
+        puts = write(mapped, keys, value);
+        mapped.close();
+        start = System.nanoTime();
+        mapped = new MappedStore(dir.getPath(), RecordLog.FsyncPolicy.NONE);
+        reopen = (System.nanoTime() - start) / 1000000;
+        System.out.format("%-10s %12.0f %12d %12.0f%n", "mapped", puts, reopen, read(mapped, keys));
+        mapped.close();
+        KVStoreBenchmark.delete(dir);
+    }
+
+    /**
+     * @return puts per second
+     */
+    static double write(StorageEngine store, int keys, String value) throws KVException {
+        long start = System.nanoTime();
+        for (int i = 0; i < keys; i++) {
+            store.put("key" + i, value);
+        }
+        return keys / ((System.nanoTime() - start) / 1e9);
+    }
+
+    /**
+     * @return gets per second over every key once
+     */
+    static double read(StorageEngine store, int keys) {
+        long start = System.nanoTime();
+        for (int i = 0; i < keys; i++) {
+            if (store.lookup("key" + i) == null) {
+                throw new IllegalStateException("lost key" + i);
+            }
+        }
+        return keys / ((System.nanoTime() - start) / 1e9);
+    }
+}
@@ -0,0 +1,184 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutQuick;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class MappedStoreTest {
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("mappedstore").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        File[] files = dir.listFiles();
+        if(files != null) {
+            for(File f : files)
+                f.delete();
+        }
+        dir.delete();
+    }
+
+    private MappedStore open() throws KVException {
+        return new MappedStore(dir.getPath(), RecordLog.FsyncPolicy.NONE, 4, 20);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "The mapped store agrees with a map, across a reopen")
+    public void matchesMapAcrossReopen() throws KVException {
+        MappedStore store = open();
+        store.setCheckpointThreshold(64 * 1024);
+        Map<String, String> expected = new HashMap<String, String>();
+        Random rand = new Random(23);
+        for(int i = 0; i < 5000; i++) {
+            String key = "kéy" + rand.nextInt(300);
+            if(rand.nextInt(3) == 0) {
+                assertEquals(expected.remove(key) != null, store.remove(key));
+            } else {
+                String value = "välue" + i + new String(new char[rand.nextInt(2000)]);
+                store.put(key, value);
+                expected.put(key, value);
+            }
+        }
+        store.close();
+
+        store = open();
+        assertEquals(expected.size(), store.size());
+        for(Map.Entry<String, String> e : expected.entrySet())
+            assertEquals(e.getValue(), store.get(e.getKey()));
+        Set<String> keys = new HashSet<String>();
+        for(String key : store.keys())
+            keys.add(key);
+        assertEquals(expected.keySet(), keys);
+        assertNull(store.lookup("missing"));
+        assertTrue(store.getGarbageBytes() > 0);
+        store.close();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "The redo log restores writes the mapped files never got")
+    public void redoRestoresLostPages() throws Exception {
+        MappedStore store = open();
+        for(int i = 0; i < 100; i++)
+            store.put("key" + i, "old" + i);
+        store.sync();
+        File saved = new File(dir, "saved");
+        saved.mkdir();
+        for(String name : new String[] { "index", "data" })
+            Files.copy(new File(dir, name).toPath(), new File(saved, name).toPath());
+
+        for(int i = 0; i < 100; i += 2)
+            store.put("key" + i, "new" + i);
+        for(int i = 1; i < 100; i += 4)
+            store.del("key" + i);
+        store.put("extra", "value");
+
+        /* Crash, losing every page written since the checkpoint. */
+        for(String name : new String[] { "index", "data" }) {
+            Files.copy(new File(saved, name).toPath(), new File(dir, name).toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+            new File(saved, name).delete();
+        }
+        saved.delete();
+
+        MappedStore recovered = open();
+        for(int i = 0; i < 100; i++) {
+            String expected = (i % 2 == 0) ? "new" + i : (i % 4 == 1) ? null : "old" + i;
+            assertEquals(expected, recovered.lookup("key" + i));
+        }
+        assertEquals("value", recovered.lookup("extra"));
+        assertEquals(76, recovered.size());
+        recovered.close();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Reads see whole writes while writers log and checkpoint")
+    public void concurrentWritersAndReaders() throws Exception {
+        final MappedStore store = new MappedStore(dir.getPath(),
+            RecordLog.FsyncPolicy.ALWAYS, 4, 20);
+        store.setCheckpointThreshold(16 * 1024);
+        final int rounds = 200;
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for(int t = 0; t < 4; t++) {
+            final int writer = t;
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for(int i = 0; i < rounds; i++) {
+                            store.put("key" + (i % 20), "w" + writer + "-" + (i % 20) + "-" + i);
+                            if(i % 7 == 0)
+                                store.remove("key" + (i % 20));
+                        }
+                    } catch(Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+            threads.add(new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        for(int i = 0; i < 20 * rounds; i++) {
+                            String value = store.lookup("key" + (i % 20));
+                            if(value != null && !value.matches("w\\d-" + (i % 20) + "-\\d+"))
+                                throw new AssertionError("key" + (i % 20) + " read " + value);
+                        }
+                    } catch(Throwable e) {
+                        failure.compareAndSet(null, e);
+                    }
+                }
+            }));
+        }
+        for(Thread thread : threads)
+            thread.start();
+        for(Thread thread : threads)
+            thread.join();
+        if(failure.get() != null)
+            throw new AssertionError(failure.get());
+
+        Map<String, String> expected = new HashMap<String, String>();
+        for(int i = 0; i < 20; i++) {
+            String value = store.lookup("key" + i);
+            if(value != null)
+                expected.put("key" + i, value);
+        }
+        assertEquals(expected.size(), store.size());
+        store.close();
+        MappedStore reopened = open();
+        for(int i = 0; i < 20; i++)
+            assertEquals(expected.get("key" + i), reopened.lookup("key" + i));
+        reopened.close();
+    }
+}
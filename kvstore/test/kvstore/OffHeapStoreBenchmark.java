@@ -0,0 +1,78 @@
+package kvstore;
+
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Compares the heap KVStore with OffHeapStore: the time to load a data set,
+ * then the throughput of a mix of overwrites and reads over it, and how
+ * much of that time the garbage collector took. The larger the data set,
+ * the more the heap store pays for the collector tracing and copying it.
+ *
+ * Run with: ant runbench -Dbench=OffHeapStoreBenchmark
+ *           [-Dbenchargs="keys valueBytes"]
+ * The default is 200000 keys of 4KB. Give the JVM enough heap for the heap
+ * store and enough -XX:MaxDirectMemorySize for the other.
+ */
+public class OffHeapStoreBenchmark {
+
+    static final int OPS = 1000000;
+
+    public static void main(String[] args) throws Exception {
+        int keys = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+        int valueBytes = (args.length > 1) ? Integer.parseInt(args[1]) : 4096;
+
+        System.out.format("%d keys of %d bytes, %d ops at 20%% writes%n",
+            keys, valueBytes, OPS);
+        System.out.format("%-10s %10s %12s %10s %10s%n",
+            "engine", "load ms", "ops/sec", "gc ms", "gc count");
+        run("heap", new KVStore(), keys, valueBytes);
+        System.gc();
+        run("offheap", new OffHeapStore(), keys, valueBytes);
+    }
+
+    static void run(String name, StorageEngine store, int keys, int valueBytes)
+            throws KVException {
+        char[] chars = new char[valueBytes];
+        Arrays.fill(chars, 'v');
+
+        long start = System.nanoTime();
+        for (int i = 0; i < keys; i++) {
+            /* A fresh copy each time, as a value read off the network is. */
+            store.put("key" + i, new String(chars));
+        }
+        long loadMillis = (System.nanoTime() - start) / 1000000;
+
+        long[] gcBefore = gc();
+        Random rand = new Random(22);
+        start = System.nanoTime();
+        for (int i = 0; i < OPS; i++) {
+            String key = "key" + rand.nextInt(keys);
+            if (rand.nextInt(5) == 0) {
+                store.put(key, new String(chars));
+            } else {
+                store.lookup(key);
+            }
+        }
+        double seconds = (System.nanoTime() - start) / 1e9;
+        long[] gcAfter = gc();
+        System.out.format("%-10s %10d %12.0f %10d %10d%n", name, loadMillis,
+            OPS / seconds, gcAfter[0] - gcBefore[0], gcAfter[1] - gcBefore[1]);
+        store.close();
+    }
+
+    /**
+     * @return total collection time in ms and number of collections so far
+     */
+    static long[] gc() {
+        long time = 0;
+        long count = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            time += Math.max(0, bean.getCollectionTime());
+            count += Math.max(0, bean.getCollectionCount());
+        }
+        return new long[] { time, count };
+    }
+}
@@ -0,0 +1,95 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutQuick;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class OffHeapStoreTest {
+
+    static final int SLAB = 4096;
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "The off-heap store agrees with a map through puts and removes")
+    public void matchesMap() throws KVException {
+        OffHeapStore store = new OffHeapStore(Long.MAX_VALUE, SLAB, 4);
+        Map<String, String> expected = new HashMap<String, String>();
+        Random rand = new Random(22);
+        for(int i = 0; i < 20000; i++) {
+            String key = "kéy" + rand.nextInt(500);
+            if(rand.nextInt(3) == 0) {
+                assertEquals(expected.remove(key) != null, store.remove(key));
+            } else {
+                StringBuilder value = new StringBuilder();
+                int length = rand.nextInt(200);
+                for(int j = 0; j < length; j++)
+                    value.append((char) ('a' + rand.nextInt(0x3000)));
+                store.put(key, value.toString());
+                expected.put(key, value.toString());
+            }
+        }
+        String large = new String(new char[3 * SLAB]).replace('\0', '€');
+        store.put("large", large);
+        expected.put("large", large);
+
+        assertEquals(expected.size(), store.size());
+        for(Map.Entry<String, String> e : expected.entrySet())
+            assertEquals(e.getValue(), store.get(e.getKey()));
+        Set<String> keys = new HashSet<String>();
+        for(String key : store.keys())
+            keys.add(key);
+        assertEquals(expected.keySet(), keys);
+        assertNull(store.lookup("missing"));
+        try {
+            store.del("missing");
+            fail("del of a missing key succeeded");
+        } catch(KVException e) {
+            assertEquals(KVConstants.ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Compaction bounds the store's memory and the limit is enforced")
+    public void compactsAndLimits() {
+        OffHeapStore store = new OffHeapStore(64 * SLAB, SLAB, 1);
+        for(int round = 0; round < 100; round++) {
+            for(int i = 0; i < 50; i++)
+                store.put("key" + i, "value" + round + "-" + i);
+        }
+        assertEquals(50, store.size());
+        assertTrue(store.getAllocatedBytes() <= 4 * SLAB);
+        assertTrue(store.getLiveBytes() < SLAB);
+        assertEquals("value99-7", store.lookup("key7"));
+
+        String value = new String(new char[SLAB / 2]);
+        try {
+            for(int i = 0; i < 200; i++)
+                store.put("big" + i, value);
+            fail("the store grew past its limit");
+        } catch(KVStore.StorageException e) {
+            assertTrue(store.getAllocatedBytes() <= 64 * SLAB);
+        }
+        store.clear();
+        assertEquals(0, store.size());
+        assertEquals(0, store.getAllocatedBytes());
+        assertFalse(store.remove("key7"));
+    }
+}
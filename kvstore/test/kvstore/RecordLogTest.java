@@ -0,0 +1,99 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutQuick;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class RecordLogTest {
+
+    File file;
+
+    @Before
+    public void setupFile() throws IOException {
+        file = File.createTempFile("recordlog", ".log");
+    }
+
+    @After
+    public void removeFile() {
+        file.delete();
+    }
+
+    private List<byte[]> replay() throws IOException {
+        final List<byte[]> records = new ArrayList<byte[]>();
+        RecordLog.replay(file, new RecordLog.Visitor() {
+            @Override
+            public void record(byte[] payload) {
+                records.add(payload);
+            }
+        });
+        return records;
+    }
+
+    private void writeRecords(int n) throws IOException {
+        RecordLog log = new RecordLog(file, RecordLog.FsyncPolicy.ALWAYS, null);
+        for(int i = 0; i < n; i++)
+            log.append(("record" + i).getBytes("UTF-8"));
+        log.close();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Records appended to a log are replayed in order")
+    public void appendAndReplay() throws IOException {
+        writeRecords(3);
+        List<byte[]> records = replay();
+        assertEquals(3, records.size());
+        for(int i = 0; i < 3; i++)
+            assertArrayEquals(("record" + i).getBytes("UTF-8"), records.get(i));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Opening a log cuts off a torn record and appends after it")
+    public void tornTailIsTruncated() throws IOException {
+        writeRecords(2);
+        long intact = file.length();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        raf.setLength(intact - 3);
+        raf.close();
+
+        RecordLog log = new RecordLog(file, RecordLog.FsyncPolicy.ALWAYS, null);
+        log.append("after".getBytes("UTF-8"));
+        log.close();
+        List<byte[]> records = replay();
+        assertEquals(2, records.size());
+        assertArrayEquals("record0".getBytes("UTF-8"), records.get(0));
+        assertArrayEquals("after".getBytes("UTF-8"), records.get(1));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Replay stops at a record whose checksum does not match")
+    public void corruptRecordStopsReplay() throws IOException {
+        writeRecords(3);
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        /* Flip a payload byte of the second record. */
+        raf.seek(8 + "record0".length() + 8);
+        raf.write('X');
+        raf.close();
+        assertEquals(1, replay().size());
+    }
+
+}
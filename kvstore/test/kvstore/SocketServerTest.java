@@ -4,7 +4,10 @@ import static autograder.TestUtils.kTimeoutQuick;
 import static autograder.TestUtils.kTimeoutSlow;
 import static org.junit.Assert.*;
 
+import java.io.BufferedInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.*;
 
 import org.junit.*;
@@ -80,5 +83,153 @@ public class SocketServerTest {
         ss.stop();
     }
 
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Selector-based server serves one-shot and pipelined clients")
+    public void testNioServer() throws Exception {
+        srv = new NioSocketServer(localhostName, 0, 2);
+        srv.addHandler(new ServerClientHandler(new KVServer(2, 100)));
+        srv.connect();
+        Thread runner = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    srv.start();
+                } catch(Exception e) {
+                }
+            }
+        });
+        runner.start();
 
+        try {
+            KVClient c = new KVClient(localhostName, srv.getPort());
+            c.put("a", "1");
+            assertEquals("1", c.get("a"));
+            KVConnection conn = c.openConnection(4);
+            for (int i = 0; i < 50; i++) {
+                KVMessage put = new KVMessage(KVConstants.PUT_REQ);
+                put.setKey("k" + i);
+                put.setValue("v" + i);
+                conn.send(put);
+            }
+            for (int i = 0; i < 50; i++) {
+                assertEquals(KVConstants.SUCCESS, conn.receive().getMessage());
+            }
+            assertEquals("v49", conn.get("k49"));
+            conn.close();
+            c.del("a");
+        } catch (KVException e) {
+            fail(e.getMessage());
+        } finally {
+            srv.stop();
+        }
+        runner.join(1000);
+        assertFalse(runner.isAlive());
+    }
+
+    @Test(timeout = kTimeoutSlow)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Selector-based server answers failed requests and clients that read late")
+    public void testNioServerFailuresAndBackpressure() throws Exception {
+        final ServerClientHandler handler = new ServerClientHandler(new KVServer(2, 100));
+        final NioSocketServer nio = new NioSocketServer(localhostName, 0, 2);
+        nio.setMessageHandler(new MessageHandler() {
+            public KVMessage process(KVMessage request) {
+                if ("boom".equals(request.getKey()))
+                    throw new IllegalStateException("boom");
+                return handler.process(request);
+            }
+        });
+        nio.connect();
+        srv = nio;
+        Thread runner = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    srv.start();
+                } catch(Exception e) {
+                }
+            }
+        });
+        runner.start();
+
+        final int count = 100;
+        final String large = new String(new char[64 * 1024]).replace('\0', 'x');
+        final Socket sock = new Socket(localhostName, nio.getPort());
+        try {
+            /* Replies far past the high-water mark pile up unread. */
+            final KVMessage put = new KVMessage(KVConstants.PUT_REQ, "big", large, null);
+            Thread writer = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        OutputStream out = sock.getOutputStream();
+                        out.write(new KVMessage(KVConstants.GET_REQ, "boom", null, null).toBinary());
+                        out.write(put.toBinary());
+                        for (int i = 0; i < count; i++)
+                            out.write(new KVMessage(KVConstants.GET_REQ, "big", null, null).toBinary());
+                        out.flush();
+                    } catch(Exception e) {
+                    }
+                }
+            });
+            writer.start();
+            Thread.sleep(200);
+
+            InputStream in = new BufferedInputStream(sock.getInputStream());
+            assertEquals(KVConstants.ERROR_SERVER_FAILURE, KVMessage.readNext(in).getMessage());
+            assertEquals(KVConstants.SUCCESS, KVMessage.readNext(in).getMessage());
+            for (int i = 0; i < count; i++)
+                assertEquals(large, KVMessage.readNext(in).getValue());
+            writer.join();
+        } finally {
+            sock.close();
+            srv.stop();
+        }
+        runner.join(1000);
+        assertFalse(runner.isAlive());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Selector-based server keeps serving others after a malformed frame")
+    public void testNioServerSurvivesMalformedFrame() throws Exception {
+        srv = new NioSocketServer(localhostName, 0, 2);
+        srv.addHandler(new ServerClientHandler(new KVServer(2, 100)));
+        srv.connect();
+        Thread runner = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    srv.start();
+                } catch(Exception e) {
+                }
+            }
+        });
+        runner.start();
+
+        Socket bad = new Socket(localhostName, srv.getPort());
+        try {
+            /* A batch whose five-byte varint operation count is negative. */
+            byte[] frame = { (byte) KVBinaryCodec.MAGIC, 9, 10, 0, 0, 0,
+                (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f };
+            bad.getOutputStream().write(frame);
+            InputStream in = new BufferedInputStream(bad.getInputStream());
+            assertEquals(KVConstants.ERROR_PARSER, KVMessage.readNext(in).getMessage());
+            assertNull(KVMessage.readNext(in));
+
+            KVClient c = new KVClient(localhostName, srv.getPort());
+            c.put("a", "1");
+            assertEquals("1", c.get("a"));
+            KVConnection conn = c.openConnection(4);
+            assertEquals("1", conn.get("a"));
+            conn.close();
+        } catch (KVException e) {
+            fail(e.getMessage());
+        } finally {
+            bad.close();
+            srv.stop();
+        }
+        runner.join(1000);
+        assertFalse(runner.isAlive());
+    }
 }
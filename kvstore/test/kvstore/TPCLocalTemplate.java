@@ -0,0 +1,127 @@
+package kvstore;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+
+/**
+ * Runs a TPCMaster in the test's own process, with slaves on ephemeral
+ * ports registered with it directly. Slaves may be given a GatedKVServer
+ * so a test can hold their reads of one key while it acts on the master.
+ */
+public class TPCLocalTemplate {
+
+    static final String HOST = "localhost";
+
+    TPCMaster master;
+    List<ServerRunner> slaveRunners = new ArrayList<ServerRunner>();
+
+    @After
+    public void tearDown() throws InterruptedException {
+        for (ServerRunner slaveRunner : slaveRunners) {
+            slaveRunner.stop();
+        }
+        slaveRunners.clear();
+        master = null;
+    }
+
+    protected TPCMaster startMaster(int numSlaves) {
+        master = new TPCMaster(numSlaves, new KVCache(1, 4));
+        return master;
+    }
+
+    protected TPCSlaveInfo startSlave(long slaveID, KVServer kvs) throws Exception {
+        File temp = File.createTempFile(slaveID + "local", ".txt");
+        temp.deleteOnExit();
+        TPCLog log = new TPCLog(temp.getPath(), kvs);
+        /* Enough threads that a held read does not hold up a commit. */
+        TPCMasterHandler handler = new TPCMasterHandler(slaveID, kvs, log, 4);
+        SocketServer ss = new SocketServer(HOST, 0);
+        ss.addHandler(handler);
+        ServerRunner runner = new ServerRunner(ss, Long.toString(slaveID));
+        runner.start();
+        slaveRunners.add(runner);
+        TPCSlaveInfo slave = new TPCSlaveInfo(slaveID + "@" + HOST + ":" + ss.getPort());
+        master.registerSlave(slave);
+        return slave;
+    }
+
+    protected void put(String key, String value) throws KVException {
+        master.handleTPCRequest(new KVMessage(KVConstants.PUT_REQ, key, value, null), true);
+    }
+
+    protected void del(String key) throws KVException {
+        master.handleTPCRequest(new KVMessage(KVConstants.DEL_REQ, key, null, null), false);
+    }
+
+    protected String get(String key) throws KVException {
+        return master.handleGet(new KVMessage(KVConstants.GET_REQ, key, null, null));
+    }
+
+    /* Drop key from the master's cache, so the next get reads the slaves. */
+    protected void evict(String key) {
+        master.masterCache.getLock(key).lock();
+        try {
+            master.masterCache.del(key);
+        } finally {
+            master.masterCache.getLock(key).unlock();
+        }
+    }
+
+    /* Wait up to five seconds for a metric of the master to reach value. */
+    protected boolean awaitMetric(String name, long value) throws InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            if (master.getMetrics().get(name) >= value)
+                return true;
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    /**
+     * A KVServer whose next lookup of one key, once armed, reads the value
+     * and then waits until the gate is opened before returning it.
+     */
+    static class GatedKVServer extends KVServer {
+        private final Semaphore entered = new Semaphore(0);
+        private final CountDownLatch gate = new CountDownLatch(1);
+        private final AtomicReference<String> armed = new AtomicReference<String>();
+
+        GatedKVServer() {
+            super(100, 10);
+        }
+
+        void arm(String key) {
+            armed.set(key);
+        }
+
+        void open() {
+            gate.countDown();
+        }
+
+        boolean awaitEntered() throws InterruptedException {
+            return entered.tryAcquire(1, TimeUnit.SECONDS);
+        }
+
+        @Override
+        public String lookup(String key) {
+            String value = super.lookup(key);
+            String held = armed.get();
+            if (key.equals(held) && armed.compareAndSet(held, null)) {
+                entered.release();
+                try {
+                    gate.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return value;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package kvstore;
+
+import java.io.File;
+
+/**
+ * Measures how long a slave takes to reopen its TPCLog. A log of committed
+ * puts over a fixed key space is written straight to the segment files, then
+ * reopened twice: once replaying all of it, and once after a checkpoint,
+ * when only the checkpoint and the log written since are read. Also reports
+ * the latency of a forced append.
+ *
+ * Run with: ant runbench -Dbench=TPCLogBenchmark [-Dbenchargs="txns valueBytes keys"]
+ * The defaults write about 300MB; 10000000 transactions of 200 bytes make
+ * a multi-GB log.
+ */
+public class TPCLogBenchmark {
+
+    static final int FORCED_APPENDS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        int txns = (args.length > 0) ? Integer.parseInt(args[0]) : 2000000;
+        int valueBytes = (args.length > 1) ? Integer.parseInt(args[1]) : 100;
+        int keys = (args.length > 2) ? Integer.parseInt(args[2]) : 100000;
+
+        File base = File.createTempFile("tpcbench", ".log");
+        String path = base.getPath();
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < valueBytes; i++) {
+            value.append('v');
+        }
+
+        SegmentedLog log = new SegmentedLog(path, SegmentedLog.DEFAULT_SEGMENT_SIZE,
+            false, 0, null);
+        byte[] commit = KVBinaryCodec.encode(new KVMessage(KVConstants.COMMIT));
+        long written = 0;
+        for (int i = 0; i < txns; i++) {
+            KVMessage put = new KVMessage(KVConstants.PUT_REQ);
+            put.setKey("key" + (i % keys));
+            put.setValue(value.toString());
+            byte[] frame = KVBinaryCodec.encode(put);
+            log.append(frame);
+            log.append(commit);
+            written += frame.length + commit.length + 16;
+        }
+        log.close();
+        System.out.format("log of %d transactions, %d MB%n", txns, written >> 20);
+
+        long start = System.nanoTime();
+        TPCLog tpcLog = new TPCLog(path, new KVServer(100, 10));
+        System.out.format("%-24s %8d ms%n", "reopen, full replay",
+            (System.nanoTime() - start) / 1000000);
+
+        start = System.nanoTime();
+        tpcLog.checkpoint();
+        System.out.format("%-24s %8d ms%n", "checkpoint",
+            (System.nanoTime() - start) / 1000000);
+
+        start = System.nanoTime();
+        tpcLog = new TPCLog(path, new KVServer(100, 10));
+        System.out.format("%-24s %8d ms%n", "reopen after checkpoint",
+            (System.nanoTime() - start) / 1000000);
+
+        KVMessage put = new KVMessage(KVConstants.PUT_REQ);
+        put.setKey("key");
+        put.setValue(value.toString());
+        tpcLog.setCheckpointThreshold(Long.MAX_VALUE);
+        start = System.nanoTime();
+        for (int i = 0; i < FORCED_APPENDS; i++) {
+            tpcLog.appendAndFlush(put);
+        }
+        System.out.format("%-24s %8.1f us%n", "forced append",
+            (System.nanoTime() - start) / 1000.0 / FORCED_APPENDS);
+
+        for (File f : base.getParentFile().listFiles()) {
+            if (f.getName().startsWith(base.getName())) {
+                f.delete();
+            }
+        }
+    }
+}
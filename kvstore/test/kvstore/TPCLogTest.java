@@ -0,0 +1,228 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutQuick;
+import static kvstore.KVConstants.ABORT;
+import static kvstore.KVConstants.BATCH_REQ;
+import static kvstore.KVConstants.COMMIT;
+import static kvstore.KVConstants.DEL_REQ;
+import static kvstore.KVConstants.PUT_REQ;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class TPCLogTest {
+
+    File file;
+
+    @Before
+    public void setupFile() throws IOException {
+        file = File.createTempFile("tpclog", ".log");
+    }
+
+    @After
+    public void removeFiles() {
+        for(File f : file.getParentFile().listFiles()) {
+            if(f.getName().startsWith(file.getName()))
+                f.delete();
+        }
+    }
+
+    private static KVMessage request(String type, String key, String value) {
+        KVMessage msg = new KVMessage(type);
+        msg.setKey(key);
+        msg.setValue(value);
+        return msg;
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Rebuild applies committed puts and dels and skips aborted ones")
+    public void rebuildAppliesCommitted() throws KVException {
+        TPCLog log = new TPCLog(file.getPath(), new KVServer(4, 4));
+        log.appendAndFlush(request(PUT_REQ, "a", "1"));
+        log.appendAndFlush(new KVMessage(COMMIT));
+        log.appendAndFlush(request(PUT_REQ, "b", "2"));
+        log.appendAndFlush(new KVMessage(ABORT));
+        log.appendAndFlush(request(PUT_REQ, "c", "3"));
+        log.appendAndFlush(new KVMessage(COMMIT));
+        log.appendAndFlush(request(DEL_REQ, "c", null));
+        log.appendAndFlush(new KVMessage(COMMIT));
+        log.appendAndFlush(request(PUT_REQ, "d", "4"));
+
+        KVServer server = new KVServer(4, 4);
+        TPCLog rebuilt = new TPCLog(file.getPath(), server);
+        assertEquals("1", server.get("a"));
+        assertFalse(server.hasKey("b"));
+        assertFalse(server.hasKey("c"));
+        assertFalse(server.hasKey("d"));
+        assertEquals(PUT_REQ, rebuilt.getLastEntry().getMsgType());
+        assertEquals("d", rebuilt.getLastEntry().getKey());
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Checkpoint drops old segments and keeps state and the open transaction")
+    public void checkpointDropsOldSegments() throws KVException {
+        TPCLog log = new TPCLog(file.getPath(), new KVServer(4, 4), 1024);
+        log.setCheckpointThreshold(Long.MAX_VALUE);
+        for(int i = 0; i < 200; i++) {
+            log.appendAndFlush(request(PUT_REQ, "key" + (i % 10), "value" + i));
+            log.appendAndFlush(new KVMessage(COMMIT));
+        }
+        log.appendAndFlush(request(DEL_REQ, "key0", null));
+        log.appendAndFlush(new KVMessage(COMMIT));
+        log.appendAndFlush(request(PUT_REQ, "open", "txn"));
+        assertTrue(new File(file.getPath() + ".0").exists());
+        log.checkpoint();
+        assertFalse(new File(file.getPath() + ".0").exists());
+        assertTrue(new File(file.getPath() + ".ckpt").exists());
+
+        KVServer server = new KVServer(4, 4);
+        TPCLog rebuilt = new TPCLog(file.getPath(), server, 1024);
+        assertFalse(server.hasKey("key0"));
+        assertEquals("value199", server.get("key9"));
+        assertFalse(server.hasKey("open"));
+        assertEquals("open", rebuilt.getLastEntry().getKey());
+        rebuilt.appendAndFlush(new KVMessage(COMMIT));
+        rebuilt.checkpoint();
+
+        server = new KVServer(4, 4);
+        rebuilt = new TPCLog(file.getPath(), server, 1024);
+        assertEquals("txn", server.get("open"));
+        assertEquals("value191", server.get("key1"));
+        assertEquals(COMMIT, rebuilt.getLastEntry().getMsgType());
+    }
+
+    private static KVMessage tagged(KVMessage msg, long version) {
+        msg.setMessage(Long.toString(version));
+        return msg;
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Versioned writes older than a key's last one are ignored, also on rebuild")
+    public void versionsResolveLateWrites() throws KVException {
+        KVServer server = new KVServer(4, 4);
+        TPCLog log = new TPCLog(file.getPath(), server);
+        log.appendAndFlush(tagged(request(PUT_REQ, "a", "new"), 20));
+        log.appendAndFlush(tagged(new KVMessage(COMMIT), 20));
+        assertTrue(log.apply(tagged(request(PUT_REQ, "a", "new"), 20)));
+        log.appendAndFlush(tagged(request(PUT_REQ, "a", "old"), 10));
+        log.appendAndFlush(tagged(new KVMessage(COMMIT), 10));
+        assertFalse(log.apply(tagged(request(PUT_REQ, "a", "old"), 10)));
+        assertEquals("new", server.get("a"));
+        assertEquals(20, log.getVersion("a"));
+
+        /* A late decision for another version leaves the pending write alone. */
+        log.appendAndFlush(tagged(request(DEL_REQ, "a", null), 30));
+        log.appendAndFlush(tagged(new KVMessage(COMMIT), 25));
+        log.appendAndFlush(tagged(request(PUT_REQ, "b", "1"), 40));
+        log.appendAndFlush(tagged(new KVMessage(ABORT), 30));
+        log.appendAndFlush(tagged(new KVMessage(COMMIT), 40));
+        log.appendAndFlush(tagged(request(DEL_REQ, "b", null), 50));
+        log.appendAndFlush(tagged(new KVMessage(COMMIT), 50));
+        log.checkpoint();
+
+        server = new KVServer(4, 4);
+        TPCLog rebuilt = new TPCLog(file.getPath(), server);
+        assertEquals("new", server.get("a"));
+        assertFalse(server.hasKey("b"));
+        assertEquals(20, rebuilt.getVersion("a"));
+        assertEquals(50, rebuilt.getVersion("b"));
+        assertFalse(rebuilt.apply(tagged(request(PUT_REQ, "b", "stale"), 40)));
+        assertFalse(server.hasKey("b"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Transactions on different keys may interleave, across a checkpoint")
+    public void interleavedTransactions() throws KVException {
+        TPCLog log = new TPCLog(file.getPath(), new KVServer(4, 4), 1024);
+        log.setCheckpointThreshold(Long.MAX_VALUE);
+        log.appendAndFlush(tagged(request(PUT_REQ, "a", "1"), 1));
+        log.appendAndFlush(tagged(request(PUT_REQ, "b", "2"), 2));
+        KVMessage commitB = tagged(new KVMessage(COMMIT), 2);
+        commitB.setKey("b");
+        assertEquals("b", log.pendingFor(commitB).getKey());
+        log.appendAndFlush(commitB);
+        assertEquals(null, log.pendingFor(commitB));
+        for(int i = 0; i < 100; i++) {
+            KVMessage commit = tagged(new KVMessage(COMMIT), 10 + i);
+            commit.setKey("k" + i);
+            log.appendAndFlush(tagged(request(PUT_REQ, "k" + i, "v"), 10 + i));
+            log.appendAndFlush(commit);
+        }
+        log.checkpoint();
+        assertTrue(new File(file.getPath() + ".0").exists());
+
+        KVServer server = new KVServer(4, 4);
+        TPCLog rebuilt = new TPCLog(file.getPath(), server, 1024);
+        assertEquals("2", server.get("b"));
+        assertEquals("v", server.get("k99"));
+        assertFalse(server.hasKey("a"));
+        KVMessage commitA = tagged(new KVMessage(COMMIT), 1);
+        commitA.setKey("a");
+        KVMessage request = rebuilt.pendingFor(commitA);
+        assertEquals("1", request.getValue());
+        rebuilt.appendAndFlush(commitA);
+        rebuilt.apply(request);
+        rebuilt.checkpoint();
+        assertFalse(new File(file.getPath() + ".0").exists());
+
+        server = new KVServer(4, 4);
+        new TPCLog(file.getPath(), server, 1024);
+        assertEquals("1", server.get("a"));
+        assertEquals("2", server.get("b"));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A batch is one log entry whose commit applies all its operations")
+    public void batchCommitsAsOneEntry() throws KVException {
+        TPCLog log = new TPCLog(file.getPath(), new KVServer(4, 4));
+        List<KVMessage> ops = new ArrayList<KVMessage>();
+        ops.add(request(PUT_REQ, "a", "1"));
+        ops.add(request(PUT_REQ, "b", "2"));
+        ops.add(request(DEL_REQ, "a", null));
+        KVMessage batch = tagged(new KVMessage(BATCH_REQ), 7);
+        batch.setBatch(ops);
+        log.appendAndFlush(batch);
+        log.appendAndFlush(tagged(request(PUT_REQ, "c", "3"), 8));
+        KVMessage commit = tagged(new KVMessage(COMMIT), 7);
+        assertEquals(3, log.pendingFor(commit).getBatch().size());
+        log.appendAndFlush(commit);
+        assertEquals(PUT_REQ, log.pendingFor(tagged(new KVMessage(COMMIT), 0)).getMsgType());
+
+        KVServer server = new KVServer(4, 4);
+        TPCLog rebuilt = new TPCLog(file.getPath(), server);
+        assertFalse(server.hasKey("a"));
+        assertEquals("2", server.get("b"));
+        assertFalse(server.hasKey("c"));
+        assertEquals(7, rebuilt.getVersion("a"));
+        rebuilt.checkpoint();
+
+        server = new KVServer(4, 4);
+        new TPCLog(file.getPath(), server);
+        assertFalse(server.hasKey("a"));
+        assertEquals("2", server.get("b"));
+    }
+
+}
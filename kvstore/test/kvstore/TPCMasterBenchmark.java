@@ -0,0 +1,80 @@
+package kvstore;
+
+import java.io.File;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measures put throughput through the 2PC coordinator. Starts a master and
+ * slaves in this process, each slave with its own TPCLog on disk and its
+ * own SocketServer on localhost, then has a growing number of threads put
+ * distinct keys through TPCMaster.handleTPCRequest for a fixed time.
+ *
+ * Run with: ant runbench -Dbench=TPCMasterBenchmark [-Dbenchargs="slaves seconds"]
+ */
+public class TPCMasterBenchmark {
+
+    static final int[] THREADS = { 1, 4, 16, 64 };
+
+    public static void main(String[] args) throws Exception {
+        int slaves = (args.length > 0) ? Integer.parseInt(args[0]) : 4;
+        final int seconds = (args.length > 1) ? Integer.parseInt(args[1]) : 3;
+
+        File base = File.createTempFile("tpcmaster", ".log");
+        final TPCMaster master = new TPCMaster(slaves, new KVCache(100, 10));
+        for (int i = 0; i < slaves; i++) {
+            long id = Long.MIN_VALUE / slaves * (slaves - 2 * i);
+            KVServer kvServer = new KVServer(100, 10);
+            TPCLog log = new TPCLog(base.getPath() + "-" + i, kvServer);
+            final SocketServer ss = new SocketServer("localhost", 0);
+            ss.addHandler(new TPCMasterHandler(id, kvServer, log, 64));
+            ss.connect();
+            Thread t = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        ss.start();
+                    } catch (Exception e) {}
+                }
+            });
+            t.setDaemon(true);
+            t.start();
+            master.registerSlave(new TPCSlaveInfo(id + "@localhost:" + ss.getPort()));
+        }
+
+        for (final int threads : THREADS) {
+            final AtomicLong done = new AtomicLong();
+            final long end = System.nanoTime() + seconds * 1000000000L;
+            Thread[] workers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                final int id = t;
+                workers[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        KVMessage put = new KVMessage(KVConstants.PUT_REQ);
+                        put.setValue("value");
+                        for (int i = 0; System.nanoTime() < end; i++) {
+                            put.setKey("key-" + id + "-" + i);
+                            try {
+                                master.handleTPCRequest(put, true);
+                                done.incrementAndGet();
+                            } catch (KVException e) {}
+                        }
+                    }
+                });
+                workers[t].start();
+            }
+            for (Thread w : workers) {
+                w.join();
+            }
+            System.out.format("%3d threads %10.0f puts/s%n", threads,
+                (double) done.get() / seconds);
+        }
+
+        for (File f : base.getParentFile().listFiles()) {
+            if (f.getName().startsWith(base.getName())) {
+                f.delete();
+            }
+        }
+        System.exit(0);
+    }
+}
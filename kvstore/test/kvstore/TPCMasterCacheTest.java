@@ -0,0 +1,119 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutDefault;
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class TPCMasterCacheTest extends TPCLocalTemplate {
+
+    static final long SLAVE1 = -5000000000000000000L;
+    static final long SLAVE2 = 5000000000000000000L;
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Gets read through the master's cache and count hits and misses")
+    public void readsThroughCache() throws Exception {
+        startMaster(2);
+        startSlave(SLAVE1, new KVServer(100, 10));
+        startSlave(SLAVE2, new KVServer(100, 10));
+
+        put("key", "value");
+        assertEquals("value", get("key"));
+        assertEquals(1, master.getMetrics().get("cache.hits"));
+        assertEquals(0, master.getMetrics().get("cache.misses"));
+
+        evict("key");
+        assertEquals("value", get("key"));
+        assertEquals(1, master.getMetrics().get("cache.misses"));
+        assertEquals("value", master.masterCache.get("key"));
+        assertEquals("value", get("key"));
+        assertEquals(2, master.getMetrics().get("cache.hits"));
+
+        del("key");
+        assertNull(master.masterCache.get("key"));
+        try {
+            get("key");
+            throw new AssertionError("deleted key should be gone");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        assertEquals(2, master.getMetrics().get("cache.misses"));
+        assertEquals(0, master.getMetrics().get("cache.shared_misses"));
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Gets never return or cache a value that a commit overtook")
+    public void commitOvertakesSharedRead() throws Exception {
+        startMaster(2);
+        GatedKVServer first = new GatedKVServer();
+        GatedKVServer second = new GatedKVServer();
+        startSlave(SLAVE1, first);
+        startSlave(SLAVE2, second);
+        put("key", "old");
+        evict("key");
+
+        /* A get reads the replicas and is held there. */
+        first.arm("key");
+        second.arm("key");
+        AtomicReference<Object> leader = getLater();
+        assertTrue(first.awaitEntered() || second.awaitEntered());
+        /* Another get shares that read, and then the key is deleted. */
+        AtomicReference<Object> follower = getLater();
+        assertTrue(awaitMetric("cache.shared_misses", 1));
+        del("key");
+        /* A get that begins after the delete must not share the old read. */
+        AtomicReference<Object> after = getLater();
+        assertTrue(awaitMetric("cache.misses", 2));
+
+        first.open();
+        second.open();
+        assertEquals("old", result(leader));
+        assertEquals(ERROR_NO_SUCH_KEY, result(follower));
+        assertEquals(ERROR_NO_SUCH_KEY, result(after));
+        assertNull(master.masterCache.get("key"));
+    }
+
+    /* Run a get of key in the background. */
+    private AtomicReference<Object> getLater() {
+        final AtomicReference<Object> result = new AtomicReference<Object>();
+        Thread getter = new Thread(new Runnable() {
+            public void run() {
+                Object outcome;
+                try {
+                    outcome = get("key");
+                } catch (KVException e) {
+                    outcome = e.getKVMessage().getMessage();
+                }
+                synchronized (result) {
+                    result.set(outcome);
+                    result.notifyAll();
+                }
+            }
+        });
+        getter.setDaemon(true);
+        getter.start();
+        return result;
+    }
+
+    /* The value or error message of a get run by getLater. */
+    private Object result(AtomicReference<Object> result) throws InterruptedException {
+        synchronized (result) {
+            while (result.get() == null)
+                result.wait();
+            return result.get();
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutDefault;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class TPCMasterHedgeTest extends TPCLocalTemplate {
+
+    static final long SLAVE1 = -5000000000000000000L;
+    static final long SLAVE2 = 5000000000000000000L;
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A slow primary is hedged to the next replica and its read cancelled")
+    public void slowPrimaryIsHedged() throws Exception {
+        startMaster(2);
+        GatedKVServer first = new GatedKVServer();
+        GatedKVServer second = new GatedKVServer();
+        TPCSlaveInfo one = startSlave(SLAVE1, first);
+        startSlave(SLAVE2, second);
+        put("key", "value");
+
+        /* A primary that answers promptly is not hedged. */
+        evict("key");
+        assertEquals("value", get("key"));
+        assertEquals(0, master.getMetrics().get("reads.hedged"));
+
+        TPCSlaveInfo primary = master.findFirstReplica("key");
+        GatedKVServer slow = (primary.getSlaveID() == one.getSlaveID()) ? first : second;
+        long answered = master.getLatency(primary).count();
+        slow.arm("key");
+        evict("key");
+        assertEquals("value", get("key"));
+        assertTrue(slow.awaitEntered());
+        assertEquals(1, master.getMetrics().get("reads.hedged"));
+
+        /* The primary's read was cancelled, so its late answer is never taken. */
+        slow.open();
+        Thread.sleep(200);
+        assertEquals(answered, master.getLatency(primary).count());
+        evict("key");
+        assertEquals("value", get("key"));
+        assertEquals(answered + 1, master.getLatency(primary).count());
+        assertEquals(1, master.getMetrics().get("reads.hedged"));
+    }
+}
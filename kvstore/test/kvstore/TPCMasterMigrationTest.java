@@ -0,0 +1,62 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutSlow;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.net.ServerSocket;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class TPCMasterMigrationTest extends TPCLocalTemplate {
+
+    static final long SLAVE1 = -5000000000000000000L;
+    static final long SLAVE2 = 5000000000000000000L;
+    static final long SLAVE3 = 1000L;
+
+    @Test(timeout = kTimeoutSlow)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A new slave joins the ring only once every key it serves is copied")
+    public void failedCopyKeepsSlaveOffRing() throws Exception {
+        startMaster(3);
+        TPCSlaveInfo source = startSlave(SLAVE1, new KVServer(100, 10));
+        startSlave(SLAVE2, new KVServer(100, 10));
+        for (int i = 0; i < 300; i++) {
+            put("key" + i, "value" + i);
+        }
+
+        /* One source can no longer be reached. */
+        ServerSocket closed = new ServerSocket(0);
+        int deadPort = closed.getLocalPort();
+        closed.close();
+        master.registerSlave(new TPCSlaveInfo(SLAVE1 + "@" + HOST + ":" + deadPort));
+
+        KVServer joining = new KVServer(100, 10);
+        startSlave(SLAVE3, joining);
+        assertTrue(awaitMetric("migration.failed_scans", 1));
+        Thread.sleep(200);
+        assertEquals(2, master.getNumRegisteredSlaves());
+
+        /* Once it is back, the migration is tried again and completes. */
+        master.registerSlave(source);
+        assertTrue(awaitMetric("migration.completed", 1));
+        assertEquals(3, master.getNumRegisteredSlaves());
+        int moved = 0;
+        for (int i = 0; i < 300; i++) {
+            for (TPCSlaveInfo replica : master.findReplicas("key" + i, 2)) {
+                if (replica.getSlaveID() == SLAVE3) {
+                    assertEquals("value" + i, joining.get("key" + i));
+                    moved++;
+                }
+            }
+            evict("key" + i);
+            assertEquals("value" + i, get("key" + i));
+        }
+        assertTrue(moved > 0);
+    }
+}
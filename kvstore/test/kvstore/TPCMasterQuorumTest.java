@@ -0,0 +1,145 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutSlow;
+import static kvstore.KVConstants.ERROR_NO_QUORUM;
+import static kvstore.KVConstants.ERROR_NO_SUCH_KEY;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.net.ServerSocket;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class TPCMasterQuorumTest extends TPCLocalTemplate {
+
+    static final long SLAVE1 = -5000000000000000000L;
+    static final long SLAVE2 = 5000000000000000000L;
+    static final long SLAVE3 = 1000L;
+
+    KVServer[] servers;
+    TPCSlaveInfo[] slaves;
+
+    /* Three slaves that each hold every key. */
+    private void startThree(int readQuorum, int writeQuorum) throws Exception {
+        startThree(readQuorum, writeQuorum, new KVServer(100, 10));
+    }
+
+    private void startThree(int readQuorum, int writeQuorum, KVServer first)
+            throws Exception {
+        startMaster(3);
+        master.setQuorum(3, readQuorum, writeQuorum);
+        servers = new KVServer[] { first, new KVServer(100, 10), new KVServer(100, 10) };
+        slaves = new TPCSlaveInfo[] {
+            startSlave(SLAVE1, servers[0]),
+            startSlave(SLAVE2, servers[1]),
+            startSlave(SLAVE3, servers[2])
+        };
+    }
+
+    /* Point the master at a port nobody listens on for one slave. */
+    private void partition(long slaveID) throws Exception {
+        ServerSocket closed = new ServerSocket(0);
+        int deadPort = closed.getLocalPort();
+        closed.close();
+        master.registerSlave(new TPCSlaveInfo(slaveID + "@" + HOST + ":" + deadPort));
+    }
+
+    /* Wait up to five seconds for a slave's own copy of key to be value. */
+    private boolean awaitValue(KVServer server, String key, String value)
+            throws InterruptedException {
+        for (int i = 0; i < 500; i++) {
+            if (value == null ? !server.hasKey(key) : value.equals(server.lookup(key)))
+                return true;
+            Thread.sleep(10);
+        }
+        return false;
+    }
+
+    @Test(timeout = kTimeoutSlow)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Writes commit once the write quorum votes and abort below it")
+    public void writeQuorum() throws Exception {
+        startThree(1, 2);
+        partition(SLAVE3);
+        put("key", "value");
+        assertEquals("value", servers[0].lookup("key"));
+        assertEquals("value", servers[1].lookup("key"));
+        assertFalse(servers[2].hasKey("key"));
+
+        master.setQuorum(3, 1, 3);
+        try {
+            put("key", "other");
+            fail("put committed without a quorum");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_QUORUM, e.getKVMessage().getMessage());
+        }
+        assertEquals("value", servers[0].lookup("key"));
+        assertEquals("value", get("key"));
+    }
+
+    @Test(timeout = kTimeoutSlow)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Quorum reads return the newest version and repair older replicas")
+    public void readQuorumRepairsStaleReplica() throws Exception {
+        startThree(3, 2);
+        put("key", "old");
+        partition(SLAVE3);
+        put("key", "new");
+        master.registerSlave(slaves[2]);
+        assertEquals("old", servers[2].lookup("key"));
+
+        evict("key");
+        assertEquals("new", get("key"));
+        assertTrue(awaitValue(servers[2], "key", "new"));
+    }
+
+    @Test(timeout = kTimeoutSlow)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "The newest of the answers wins, not the first")
+    public void newestAnswerWins() throws Exception {
+        GatedKVServer held = new GatedKVServer();
+        startThree(2, 2, held);
+        put("key", "old");
+        partition(SLAVE3);
+        put("key", "new");
+        master.registerSlave(slaves[2]);
+
+        /* One fresh replica is held, so the quorum is one fresh, one stale. */
+        held.arm("key");
+        evict("key");
+        assertEquals("new", get("key"));
+        assertTrue(held.awaitEntered());
+        held.open();
+        assertTrue(awaitValue(servers[2], "key", "new"));
+    }
+
+    @Test(timeout = kTimeoutSlow)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A newer delete beats an older value and is repaired onto it")
+    public void readQuorumRepairsDelete() throws Exception {
+        startThree(3, 2);
+        put("key", "value");
+        partition(SLAVE3);
+        del("key");
+        master.registerSlave(slaves[2]);
+        assertEquals("value", servers[2].lookup("key"));
+
+        try {
+            get("key");
+            fail("deleted key should be gone");
+        } catch (KVException e) {
+            assertEquals(ERROR_NO_SUCH_KEY, e.getKVMessage().getMessage());
+        }
+        assertTrue(awaitValue(servers[2], "key", null));
+    }
+}
@@ -0,0 +1,86 @@
+package kvstore;
+
+import static autograder.TestUtils.kTimeoutQuick;
+import static kvstore.KVConstants.ERROR_SOCKET_TIMEOUT;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import autograder.AGCategories.AGTestDetails;
+import autograder.AGCategories.AG_PROJ3_CODE;
+
+public class TPCSlaveInfoTest {
+
+    private ServerSocket server;
+    private TPCSlaveInfo slave;
+
+    @Before
+    public void setUp() throws Exception {
+        /* Connections complete against the backlog without being accepted. */
+        server = new ServerSocket(0, 16);
+        slave = new TPCSlaveInfo("1@localhost:" + server.getLocalPort());
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        slave.closeIdle();
+        server.close();
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Released connections are reused unless closed or asked fresh")
+    public void reusesConnections() throws KVException {
+        Socket first = slave.acquire(1000, false);
+        slave.release(first, true);
+        Socket again = slave.acquire(1000, false);
+        assertSame(first, again);
+        Socket fresh = slave.acquire(1000, true);
+        assertNotSame(first, fresh);
+        slave.release(fresh, false);
+        assertTrue(fresh.isClosed());
+        slave.release(again, true);
+
+        slave.closeIdle();
+        assertTrue(first.isClosed());
+        Socket next = slave.acquire(1000, false);
+        assertNotSame(first, next);
+        slave.release(next, false);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "The pool limits connections in flight and expires idle ones")
+    public void limitsAndExpiry() throws Exception {
+        slave.setPoolLimits(1, 2, 50);
+        Socket a = slave.acquire(1000, false);
+        Socket b = slave.acquire(1000, false);
+        try {
+            slave.acquire(100, false);
+            fail("a third connection was handed out");
+        } catch(KVException e) {
+            assertEquals(ERROR_SOCKET_TIMEOUT, e.getKVMessage().getMessage());
+        }
+        slave.release(a, true);
+        slave.release(b, true);
+        assertTrue(b.isClosed());
+        Thread.sleep(100);
+        Socket c = slave.acquire(1000, false);
+        assertNotSame(a, c);
+        assertTrue(a.isClosed());
+        slave.release(c, false);
+    }
+}
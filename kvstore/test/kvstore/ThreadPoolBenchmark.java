@@ -0,0 +1,85 @@
+package kvstore;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stress benchmark for ThreadPool handoff. Several producer threads submit
+ * empty jobs as fast as they can; each job records how long it took from
+ * addJob to the start of run(). Reports throughput and handoff latency
+ * percentiles for a few pool sizes, plus the pool's own counters.
+ *
+ * Run with: ant runbench -Dbench=ThreadPoolBenchmark [-Dbenchargs=N]
+ */
+public class ThreadPoolBenchmark {
+
+    static final int[] WORKERS = { 1, 4, 16 };
+    static final int PRODUCERS = 4;
+
+    public static void main(String[] args) throws Exception {
+        int jobsPerProducer = (args.length > 0) ? Integer.parseInt(args[0]) : 50000;
+
+        System.out.format("%-8s %-12s %12s %10s %10s %10s %10s%n", "workers",
+            "queue", "jobs/s", "p50 us", "p99 us", "max us", "pool avg");
+        for (int workers : WORKERS) {
+            run(workers, 0, ThreadPool.RejectionPolicy.BLOCK, jobsPerProducer / 4);
+            run(workers, 0, ThreadPool.RejectionPolicy.BLOCK, jobsPerProducer);
+            run(workers, 1024, ThreadPool.RejectionPolicy.BLOCK, jobsPerProducer);
+            run(workers, 1024, ThreadPool.RejectionPolicy.CALLER_RUNS, jobsPerProducer);
+        }
+    }
+
+    static void run(int workers, int capacity, ThreadPool.RejectionPolicy policy,
+            final int jobsPerProducer) throws Exception {
+        final ThreadPool pool = new ThreadPool(workers, capacity, policy);
+        final long[] latencies = new long[PRODUCERS * jobsPerProducer];
+        final AtomicLong slot = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(latencies.length);
+        final CountDownLatch go = new CountDownLatch(1);
+
+        Thread[] producers = new Thread[PRODUCERS];
+        for (int p = 0; p < PRODUCERS; p++) {
+            producers[p] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        go.await();
+                        for (int i = 0; i < jobsPerProducer; i++) {
+                            final long submitted = System.nanoTime();
+                            pool.addJob(new Runnable() {
+                                @Override
+                                public void run() {
+                                    latencies[(int) slot.getAndIncrement()] =
+                                        System.nanoTime() - submitted;
+                                    done.countDown();
+                                }
+                            });
+                        }
+                    } catch (InterruptedException e) {}
+                }
+            });
+            producers[p].start();
+        }
+
+        long start = System.nanoTime();
+        go.countDown();
+        done.await();
+        long elapsed = System.nanoTime() - start;
+        pool.shutdown();
+        pool.awaitTermination(5, java.util.concurrent.TimeUnit.SECONDS);
+
+        Arrays.sort(latencies);
+        String queue = (capacity == 0) ? "unbounded"
+            : capacity + (policy == ThreadPool.RejectionPolicy.BLOCK ? " block" : " caller");
+        System.out.format("%-8d %-12s %12.0f %10.1f %10.1f %10.1f %10.1f%n",
+            workers, queue, latencies.length * 1e9 / elapsed,
+            percentile(latencies, 0.50), percentile(latencies, 0.99),
+            latencies[latencies.length - 1] / 1e3,
+            pool.getMeanWaitNanos() / 1e3);
+    }
+
+    static double percentile(long[] sorted, double p) {
+        return sorted[(int) Math.min(sorted.length - 1, p * sorted.length)] / 1e3;
+    }
+}
@@ -1,5 +1,9 @@
 package kvstore;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.ReentrantLock;
 
 import static org.junit.Assert.*;
@@ -143,4 +147,201 @@ public class ThreadPoolTest {
             assertTrue("A thread didn't increment the correct array entry", array[i] == i);
         }
     }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "A full bounded queue rejects jobs, and RejectableJobs are told")
+    public void testRejectWhenFull() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger refused = new AtomicInteger();
+        threadPool = new ThreadPool(1, 1, ThreadPool.RejectionPolicy.REJECT);
+        threadPool.addJob(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {}
+            }
+        });
+        /* Wait for the worker to take the first job so the queue is empty. */
+        while (threadPool.getActiveCount() == 0) {
+            Thread.sleep(1);
+        }
+        threadPool.addJob(r);
+        threadPool.addJob(new ThreadPool.RejectableJob() {
+            @Override
+            public void run() {
+                fail("rejected job ran");
+            }
+
+            @Override
+            public void reject() {
+                refused.incrementAndGet();
+            }
+        });
+        try {
+            threadPool.addJob(r);
+            fail("plain job was accepted by a full queue");
+        } catch (RejectedExecutionException e) {}
+        assertEquals(1, refused.get());
+        assertEquals(2, threadPool.getRejectedJobs());
+        assertEquals(1, threadPool.getQueueDepth());
+        release.countDown();
+        threadPool.shutdown();
+        assertTrue(threadPool.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals(2, threadPool.getCompletedJobs());
+        assertEquals(1, count);
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "CALLER_RUNS runs overflow jobs on the submitting thread")
+    public void testCallerRunsWhenFull() throws InterruptedException {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Thread caller = Thread.currentThread();
+        final AtomicInteger ranOnCaller = new AtomicInteger();
+        threadPool = new ThreadPool(1, 1, ThreadPool.RejectionPolicy.CALLER_RUNS);
+        threadPool.addJob(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {}
+            }
+        });
+        while (threadPool.getActiveCount() == 0) {
+            Thread.sleep(1);
+        }
+        threadPool.addJob(r);
+        threadPool.addJob(new Runnable() {
+            @Override
+            public void run() {
+                if (Thread.currentThread() == caller) {
+                    ranOnCaller.incrementAndGet();
+                }
+            }
+        });
+        assertEquals(1, ranOnCaller.get());
+        assertEquals(0, threadPool.getRejectedJobs());
+        release.countDown();
+        threadPool.shutdown();
+        assertTrue(threadPool.awaitTermination(1, TimeUnit.SECONDS));
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Shutdown runs queued jobs, refuses new ones and stops workers")
+    public void testShutdownDrainsQueue() throws InterruptedException {
+        threadPool = new ThreadPool(2);
+        for (int i = 0; i < array.length; i++) {
+            threadPool.addJob(t);
+        }
+        threadPool.shutdown();
+        assertTrue(threadPool.awaitTermination(2, TimeUnit.SECONDS));
+        for (int i = 0; i < array.length; i++) {
+            assertTrue("A queued job was dropped at shutdown", array[i] == i);
+        }
+        assertEquals(array.length, threadPool.getCompletedJobs());
+        assertTrue(threadPool.getMeanRunNanos() >= TimeUnit.MILLISECONDS.toNanos(20));
+        try {
+            threadPool.addJob(r);
+            fail("job accepted after shutdown");
+        } catch (RejectedExecutionException e) {}
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Idle workers park until a job arrives and wake at shutdown")
+    public void testIdleWorkersPark() throws InterruptedException {
+        threadPool = new ThreadPool(3, 1, ThreadPool.RejectionPolicy.BLOCK);
+        threadPool.addJob(r);
+        for (Thread worker : threadPool.threads) {
+            while (worker.getState() != Thread.State.WAITING) {
+                assertNotEquals(Thread.State.TIMED_WAITING, worker.getState());
+                Thread.sleep(1);
+            }
+        }
+        threadPool.shutdown();
+        assertTrue(threadPool.awaitTermination(1, TimeUnit.SECONDS));
+        assertEquals(0, threadPool.getQueueDepth());
+        assertEquals(1, count);
+    }
+
+    @Test(timeout = kTimeoutDefault)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "Every job added as the pool shuts down either runs or is refused")
+    public void testShutdownLosesNoJob() throws InterruptedException {
+        final AtomicInteger ran = new AtomicInteger();
+        final AtomicInteger refused = new AtomicInteger();
+        final ThreadPool.RejectableJob job = new ThreadPool.RejectableJob() {
+            @Override
+            public void run() {
+                ran.incrementAndGet();
+            }
+
+            @Override
+            public void reject() {
+                refused.incrementAndGet();
+            }
+        };
+        final int perThread = 100;
+        for (int round = 0; round < 200; round++) {
+            ran.set(0);
+            refused.set(0);
+            final ThreadPool pool = new ThreadPool(2, 4, ThreadPool.RejectionPolicy.BLOCK);
+            Thread[] adders = new Thread[4];
+            for (int i = 0; i < adders.length; i++) {
+                adders[i] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            for (int j = 0; j < perThread; j++) {
+                                pool.addJob(job);
+                            }
+                        } catch (InterruptedException e) {}
+                    }
+                });
+                adders[i].start();
+            }
+            pool.shutdown();
+            for (Thread adder : adders) {
+                adder.join();
+            }
+            assertTrue(pool.awaitTermination(1, TimeUnit.SECONDS));
+            assertEquals(adders.length * perThread, ran.get() + refused.get());
+            assertEquals(ran.get(), pool.getCompletedJobs());
+            assertEquals(0, pool.getQueueDepth());
+        }
+    }
+
+    @Test(timeout = kTimeoutQuick)
+    @Category(AG_PROJ3_CODE.class)
+    @AGTestDetails(points = 1,
+        desc = "VIRTUAL mode runs every job, or falls back to the pool")
+    public void testVirtualMode() throws InterruptedException {
+        ThreadPool.ExecutionMode saved = ThreadPool.getDefaultMode();
+        ThreadPool.setDefaultMode(ThreadPool.ExecutionMode.VIRTUAL);
+        try {
+            threadPool = new ThreadPool(2);
+        } finally {
+            ThreadPool.setDefaultMode(saved);
+        }
+        assertEquals(ThreadPool.virtualThreadsSupported()
+            ? ThreadPool.ExecutionMode.VIRTUAL : ThreadPool.ExecutionMode.POOLED,
+            threadPool.getMode());
+        for (int i = 0; i < array.length; i++) {
+            threadPool.addJob(t);
+        }
+        threadPool.shutdown();
+        assertTrue(threadPool.awaitTermination(2, TimeUnit.SECONDS));
+        for (int i = 0; i < array.length; i++) {
+            assertTrue("A thread didn't increment the correct array entry", array[i] == i);
+        }
+        assertEquals(array.length, threadPool.getCompletedJobs());
+    }
 }